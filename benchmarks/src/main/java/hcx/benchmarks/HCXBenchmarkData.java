@@ -0,0 +1,145 @@
+package hcx.benchmarks;
+
+import org.hl7.fhir.r4.model.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Seeded fixtures for the benchmarks. A claim is built the way HCXClaim.claimExample does, with a configurable number
+ * of referenced resources and an optional Communication carrying an attachment of the given size, so bundle size and
+ * payload size can be varied independently.
+ */
+final class HCXBenchmarkData {
+
+    static final String BUNDLE_URL = "https://ig.hcxprotocol.io/v0.7.1/StructureDefinition-ClaimRequestBundle.html";
+    static final String CLAIM_PROFILE = "https://ig.hcxprotocol.io/v0.7/StructureDefinition-Claim.html";
+
+    private static final long SEED = 20221017L;
+    private static final Date CREATED = new Date(1665964800000L);
+
+    private HCXBenchmarkData() {
+    }
+
+    /**
+     * Returns the resources referenced by the claim: patient, coverage, provider and insurer, then alternating extra
+     * organizations and patients up to {@code count} resources, then the attachment Communication if
+     * {@code attachmentKb} is positive.
+     */
+    static DomainResource[] referenced(int count, int attachmentKb) {
+        List<DomainResource> resources = new ArrayList<>(count + 1);
+        resources.add(patient("RVH1003"));
+        resources.add(coverage("COVERAGE1"));
+        resources.add(organization("Tmh01", "Tata Memorial Hospital", "Rohini Id", "HOSP001"));
+        resources.add(organization("GICOFINDIA", "GICOFINDIA", "IRDA", "GIC001"));
+        for (int i = resources.size(); i < count; i++) {
+            resources.add(i % 2 == 0 ? organization("ORG" + i, "Network hospital " + i, "Rohini Id", "HOSP" + i) : patient("PAT" + i));
+        }
+        if (attachmentKb > 0) {
+            resources.add(communication(attachmentKb));
+        }
+        return resources.toArray(new DomainResource[0]);
+    }
+
+    /**
+     * Returns a claim without contained resources.
+     */
+    static Claim claim() {
+        Claim claim = new Claim();
+        claim.setId("CLAIM1");
+        claim.getMeta().getProfile().add(new CanonicalType(CLAIM_PROFILE));
+        claim.setStatus(Claim.ClaimStatus.ACTIVE);
+        claim.getIdentifier().add(new Identifier().setSystem("http://identifiersystem.com").setValue("IdentifierValue"));
+        claim.setType(new CodeableConcept(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/claim-type").setCode("institutional")));
+        claim.setUse(Claim.Use.CLAIM);
+        claim.setPatient(new Reference("Patient/RVH1003"));
+        claim.setCreated(CREATED);
+        claim.setInsurer(new Reference("Organization/GICOFINDIA"));
+        claim.setProvider(new Reference("Organization/Tmh01"));
+        claim.setPriority(new CodeableConcept(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/processpriority").setCode("normal")));
+        claim.setPayee(new Claim.PayeeComponent().setType(new CodeableConcept(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/payeetype").setCode("provider"))));
+        claim.getCareTeam().add(new Claim.CareTeamComponent().setSequence(1).setProvider(new Reference("Organization/Tmh01")));
+        claim.getInsurance().add(new Claim.InsuranceComponent().setFocal(true).setCoverage(new Reference("Coverage/COVERAGE1")).setSequence(1));
+        claim.getItem().add(new Claim.ItemComponent().setSequence(1)
+                .setProductOrService(new CodeableConcept(new Coding().setCode("E101021").setSystem("https://pmjay.gov.in/hbp-package-code").setDisplay("Twin Pregnancy Delivery")))
+                .setUnitPrice(new Money().setValue(100000).setCurrency("INR")));
+        return claim;
+    }
+
+    /**
+     * Returns a claim with the referenced resources as contained resources.
+     */
+    static Claim claim(int referencedCount, int attachmentKb) {
+        Claim claim = claim();
+        for (DomainResource resource : referenced(referencedCount, attachmentKb)) {
+            claim.addContained(resource);
+        }
+        return claim;
+    }
+
+    static String resource(String name) {
+        try (InputStream in = HCXBenchmarkData.class.getResourceAsStream("/" + name)) {
+            if (in == null) {
+                throw new IllegalStateException("Benchmark resource " + name + " is not on the classpath");
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Patient patient(String id) {
+        Patient patient = new Patient();
+        patient.setId(id);
+        patient.getMeta().getProfile().add(new CanonicalType("https://nrces.in/ndhm/fhir/r4/StructureDefinition/Patient"));
+        patient.getIdentifier().add(new Identifier().setType(new CodeableConcept(new Coding().setSystem("http://snomed.info/sct").setCode("SN").setDisplay("Subscriber Number")))
+                .setSystem("http://gicofIndia.com/beneficiaries").setValue("BEN-101"));
+        patient.getName().add(new HumanName().setText("Prasidh Dixit"));
+        patient.setGender(Enumerations.AdministrativeGender.MALE);
+        patient.getAddress().add(new Address().setText("#39 Kalena Agrahara, Kamanahalli, Bengaluru - 560056").setCity("Bengaluru").setPostalCode("560056").setCountry("India"));
+        return patient;
+    }
+
+    private static Coverage coverage(String id) {
+        Coverage coverage = new Coverage();
+        coverage.setId(id);
+        coverage.getMeta().getProfile().add(new CanonicalType("https://ig.hcxprotocol.io/v0.7/StructureDefinition-Coverage.html"));
+        coverage.getIdentifier().add(new Identifier().setSystem("https://www.gicofIndia.in/policies").setValue("policy-RVH1003"));
+        coverage.setStatus(Coverage.CoverageStatus.ACTIVE);
+        coverage.setSubscriber(new Reference("Patient/RVH1003"));
+        coverage.setSubscriberId("2XX8971");
+        coverage.setBeneficiary(new Reference("Patient/RVH1003"));
+        coverage.setRelationship(new CodeableConcept(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/subscriber-relationship").setCode("self")));
+        coverage.getPayor().add(new Reference("Organization/GICOFINDIA"));
+        return coverage;
+    }
+
+    private static Organization organization(String id, String name, String idType, String idValue) {
+        Organization organization = new Organization();
+        organization.setId(id);
+        organization.getMeta().getProfile().add(new CanonicalType("https://nrces.in/ndhm/fhir/r4/StructureDefinition/Organization"));
+        organization.setName(name);
+        organization.getIdentifier().add(new Identifier().setSystem("http://abdm.gov.in/facilities").setValue(idValue)
+                .setType(new CodeableConcept(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/v2-0203").setCode("AC").setDisplay(idType))));
+        organization.getAddress().add(new Address().setText(" Bannerghatta Road, Bengaluru ").setCity("Bengaluru").setCountry("India"));
+        return organization;
+    }
+
+    private static Communication communication(int attachmentKb) {
+        byte[] data = new byte[attachmentKb * 1024];
+        new Random(SEED).nextBytes(data);
+        Communication communication = new Communication();
+        communication.setId("COMMUNICATION1");
+        communication.getMeta().getProfile().add(new CanonicalType("https://ig.hcxprotocol.io/v0.7.1/StructureDefinition-Communication.html"));
+        communication.setStatus(Communication.CommunicationStatus.COMPLETED);
+        communication.getAbout().add(new Reference("Claim/CLAIM1"));
+        communication.getPayload().add(new Communication.CommunicationPayloadComponent()
+                .setContent(new Attachment().setContentType("application/pdf").setTitle("discharge-summary.pdf").setData(data)));
+        return communication;
+    }
+}
@@ -0,0 +1,67 @@
+package hcx.benchmarks;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Claim;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bundle assembly and disassembly: HCXFHIRUtils.resourceToBundle, bundleToResource and addContainedToResource, and
+ * resolving the focal resource of a serialized bundle through HCXBundleView.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class HCXBundleBenchmark {
+
+    /**
+     * Number of bundle entries, the claim included and the attachment Communication not.
+     */
+    @Param({"5", "64", "256"})
+    public int bundleSize;
+
+    @Param({"0", "256", "2048"})
+    public int attachmentKb;
+
+    private Claim claim;
+    private DomainResource[] referenced;
+    private Bundle bundle;
+    private String bundleJson;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        referenced = HCXBenchmarkData.referenced(bundleSize - 1, attachmentKb);
+        claim = HCXBenchmarkData.claim(bundleSize - 1, attachmentKb);
+        bundle = HCXSdk.resourceToBundle(claim, Bundle.BundleType.COLLECTION, HCXBenchmarkData.BUNDLE_URL);
+        bundleJson = HCXSdk.encode(bundle);
+    }
+
+    @Benchmark
+    public Bundle resourceToBundle() {
+        return HCXSdk.resourceToBundle(claim, Bundle.BundleType.COLLECTION, HCXBenchmarkData.BUNDLE_URL);
+    }
+
+    @Benchmark
+    public DomainResource bundleToResource() {
+        return HCXSdk.bundleToResource(bundle, ResourceType.Claim);
+    }
+
+    @Benchmark
+    public Claim addContainedToResource() {
+        Claim shell = HCXBenchmarkData.claim();
+        HCXSdk.addContainedToResource(shell, referenced);
+        return shell;
+    }
+
+    @Benchmark
+    public Resource bundleViewFindFirst() {
+        return HCXSdk.findFirst(HCXSdk.bundleView(bundleJson), ResourceType.Claim);
+    }
+}
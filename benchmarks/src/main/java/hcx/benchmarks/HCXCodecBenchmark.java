@@ -0,0 +1,61 @@
+package hcx.benchmarks;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and parsing of claim bundles through HCXFHIRSerializer, as compact and pretty printed JSON and in the
+ * binary form of HCXBinaryCodec.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class HCXCodecBenchmark {
+
+    @Param({"5", "64", "256"})
+    public int bundleSize;
+
+    @Param({"0", "256", "2048"})
+    public int attachmentKb;
+
+    private Bundle bundle;
+    private String bundleJson;
+    private byte[] bundleBinary;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        bundle = HCXSdk.resourceToBundle(HCXBenchmarkData.claim(bundleSize - 1, attachmentKb), Bundle.BundleType.COLLECTION, HCXBenchmarkData.BUNDLE_URL);
+        bundleJson = HCXSdk.encode(bundle);
+        bundleBinary = HCXSdk.encodeBinary(bundle);
+    }
+
+    @Benchmark
+    public String encode() {
+        return HCXSdk.encode(bundle);
+    }
+
+    @Benchmark
+    public String encodePretty() {
+        return HCXSdk.encodePretty(bundle);
+    }
+
+    @Benchmark
+    public Bundle parse() {
+        return HCXSdk.parse(Bundle.class, bundleJson);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return HCXSdk.encodeBinary(bundle);
+    }
+
+    @Benchmark
+    public Bundle parseBinary() {
+        return HCXSdk.parseBinary(Bundle.class, bundleBinary);
+    }
+}
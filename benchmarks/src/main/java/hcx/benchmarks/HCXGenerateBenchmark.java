@@ -0,0 +1,92 @@
+package hcx.benchmarks;
+
+import io.hcxprotocol.impl.HCXOutgoingRequest;
+import io.hcxprotocol.init.HCXIntegrator;
+import io.hcxprotocol.utils.Operations;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end generate of a claim/submit request against a local HCXStubGateway: encode, encrypt and post.
+ *
+ * "pipeline" runs the stages of HCXAsyncSubmitter one after the other on the benchmark thread (HCXFHIRSerializer,
+ * HCXJweEncrypter, HCXHttpDispatcher). "sdk" calls HCXOutgoingRequest.generate with HCXIntegrator initialised against
+ * the stub, which answers the participant search with the benchmark certificate so the recipient key is served
+ * locally as well. The key pair in the resources is a self signed throwaway used only here.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class HCXGenerateBenchmark {
+
+    private static final String SENDER_CODE = "1-521eaec7-8cb9-4b6c-8b4e-4dba300af6f4";
+    private static final String RECIPIENT_CODE = "1-29482df3-e875-45ef-a4e9-592b6f565782";
+
+    @Param({"5", "64"})
+    public int bundleSize;
+
+    @Param({"0", "256", "2048"})
+    public int attachmentKb;
+
+    @Param({"pipeline", "sdk"})
+    public String mode;
+
+    private AutoCloseable stub;
+    private Object encrypter;
+    private Object dispatcher;
+    private HCXOutgoingRequest outgoing;
+    private Bundle bundle;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        String certificate = HCXBenchmarkData.resource("bench-cert.pem");
+        stub = HCXSdk.newStubGateway();
+        String protocolBasePath = HCXSdk.protocolBasePath(stub);
+        if ("sdk".equals(mode)) {
+            String certUrl = protocolBasePath.substring(0, protocolBasePath.indexOf("/api/")) + "/certs/bench-cert.pem";
+            HCXSdk.respond(stub, "/certs/bench-cert.pem", 200, certificate);
+            HCXSdk.respond(stub, "/api/v0.7/participant/search", 200, "{\"participants\":[{\"participant_code\":\"" + RECIPIENT_CODE
+                    + "\",\"participant_name\":\"Benchmark Payor\",\"roles\":[\"payor\"],\"status\":\"Active\",\"encryption_cert\":\"" + certUrl + "\"}]}");
+            Map<String, Object> configMap = new HashMap<>();
+            configMap.put("protocolBasePath", protocolBasePath);
+            configMap.put("participantCode", SENDER_CODE);
+            configMap.put("authBasePath", HCXSdk.authBasePath(stub));
+            configMap.put("username", "benchmark@hcx.local");
+            configMap.put("password", "benchmark");
+            configMap.put("encryptionPrivateKey", HCXBenchmarkData.resource("bench-key.pem"));
+            configMap.put("igUrl", "https://ig.hcxprotocol.io/v0.7");
+            HCXIntegrator.init(configMap);
+            outgoing = new HCXOutgoingRequest();
+        } else {
+            encrypter = HCXSdk.newEncrypter(certificate, SENDER_CODE);
+            dispatcher = HCXSdk.newDispatcher(protocolBasePath, () -> "stub-token");
+        }
+        bundle = HCXSdk.resourceToBundle(HCXBenchmarkData.claim(bundleSize - 1, attachmentKb), Bundle.BundleType.COLLECTION, HCXBenchmarkData.BUNDLE_URL);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        stub.close();
+    }
+
+    @Benchmark
+    public Object generate() {
+        String payload = HCXSdk.encode(bundle);
+        if (outgoing != null) {
+            Map<String, Object> output = new HashMap<>();
+            if (!outgoing.generate(payload, Operations.CLAIM_SUBMIT, RECIPIENT_CODE, output)) {
+                throw new IllegalStateException("generate failed: " + output);
+            }
+            return output;
+        }
+        Map<String, Object> body = HCXSdk.encrypt(encrypter, payload, Operations.CLAIM_SUBMIT, RECIPIENT_CODE);
+        return HCXSdk.dispatch(dispatcher, body, Operations.CLAIM_SUBMIT).join();
+    }
+}
@@ -0,0 +1,318 @@
+package hcx.benchmarks;
+
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ValidationResult;
+import io.hcxprotocol.utils.Operations;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Access to the SDK classes from the benchmarks. The SDK classes live in the default package, which cannot be imported
+ * from the named package JMH requires for benchmarks, so they are called through static final method handles. The JIT
+ * treats those as constants and inlines the target, so the indirection does not show in the measurements.
+ */
+final class HCXSdk {
+
+    private HCXSdk() {
+    }
+
+    private static final MethodHandle RESOURCE_TO_BUNDLE = findStatic("HCXFHIRUtils", "resourceToBundle",
+            methodType(Bundle.class, DomainResource.class, Bundle.BundleType.class, String.class));
+    private static final MethodHandle BUNDLE_TO_RESOURCE = findStatic("HCXFHIRUtils", "bundleToResource",
+            methodType(DomainResource.class, Bundle.class));
+    private static final MethodHandle BUNDLE_TO_RESOURCE_BY_TYPE = findStatic("HCXFHIRUtils", "bundleToResource",
+            methodType(DomainResource.class, Bundle.class, ResourceType.class));
+    private static final MethodHandle ADD_CONTAINED = findStatic("HCXFHIRUtils", "addContainedToResource",
+            methodType(void.class, DomainResource.class, DomainResource[].class));
+
+    private static final MethodHandle ENCODE = findStatic("HCXFHIRSerializer", "encode", methodType(String.class, IBaseResource.class));
+    private static final MethodHandle ENCODE_PRETTY = findStatic("HCXFHIRSerializer", "encodePretty", methodType(String.class, IBaseResource.class));
+    private static final MethodHandle PARSE = findStatic("HCXFHIRSerializer", "parse", methodType(IBaseResource.class, Class.class, String.class));
+    private static final MethodHandle ENCODE_BINARY = findStatic("HCXFHIRSerializer", "encodeBinary", methodType(byte[].class, IBaseResource.class));
+    private static final MethodHandle PARSE_BINARY = findStatic("HCXFHIRSerializer", "parseBinary", methodType(IBaseResource.class, Class.class, byte[].class));
+
+    private static final MethodHandle BUNDLE_VIEW_PARSE = findStatic("HCXBundleView", "parse", methodType(type("HCXBundleView"), String.class))
+            .asType(methodType(Object.class, String.class));
+    private static final MethodHandle BUNDLE_VIEW_FIND_FIRST = findVirtual("HCXBundleView", "findFirst", methodType(Resource.class, ResourceType.class))
+            .asType(methodType(Resource.class, Object.class, ResourceType.class));
+
+    private static final MethodHandle VALIDATION_CACHE_NEW = findConstructor("HCXValidationCache", methodType(void.class, FhirValidator.class, int.class, Duration.class))
+            .asType(methodType(Object.class, FhirValidator.class, int.class, Duration.class));
+    private static final MethodHandle VALIDATION_CACHE_VALIDATE = findVirtual("HCXValidationCache", "validateWithResult", methodType(ValidationResult.class, Bundle.class))
+            .asType(methodType(ValidationResult.class, Object.class, Bundle.class));
+
+    private static final MethodHandle PRE_VALIDATOR_BUILDER = findStatic("HCXPreValidator", "builder", methodType(type("HCXPreValidator$Builder"), IValidationSupport.class))
+            .asType(methodType(Object.class, IValidationSupport.class));
+    private static final MethodHandle PRE_VALIDATOR_MODE = findVirtual("HCXPreValidator$Builder", "mode", methodType(type("HCXPreValidator$Builder"), type("HCXPreValidator$Mode")))
+            .asType(methodType(Object.class, Object.class, Enum.class));
+    private static final MethodHandle PRE_VALIDATOR_BUILD = findVirtual("HCXPreValidator$Builder", "build", methodType(type("HCXPreValidator")))
+            .asType(methodType(Object.class, Object.class));
+    private static final MethodHandle PRE_VALIDATOR_VALIDATE = findVirtual("HCXPreValidator", "validateWithResult", methodType(ValidationResult.class, Bundle.class))
+            .asType(methodType(ValidationResult.class, Object.class, Bundle.class));
+
+    private static final MethodHandle STUB_NEW = findConstructor("HCXStubGateway", methodType(void.class)).asType(methodType(AutoCloseable.class));
+    private static final MethodHandle STUB_PROTOCOL_BASE_PATH = findVirtual("HCXStubGateway", "getProtocolBasePath", methodType(String.class))
+            .asType(methodType(String.class, AutoCloseable.class));
+    private static final MethodHandle STUB_AUTH_BASE_PATH = findVirtual("HCXStubGateway", "getAuthBasePath", methodType(String.class))
+            .asType(methodType(String.class, AutoCloseable.class));
+    private static final MethodHandle STUB_RESPOND = findVirtual("HCXStubGateway", "respond", methodType(type("HCXStubGateway"), String.class, int.class, String.class))
+            .asType(methodType(void.class, AutoCloseable.class, String.class, int.class, String.class));
+
+    private static final MethodHandle ENCRYPTER_FROM_PEM = findStatic("HCXJweEncrypter", "fromPem", methodType(type("HCXJweEncrypter"), String.class, String.class))
+            .asType(methodType(Object.class, String.class, String.class));
+    private static final MethodHandle ENCRYPT = findVirtual("HCXJweEncrypter", "encrypt", methodType(Map.class, String.class, Operations.class, String.class))
+            .asType(methodType(Map.class, Object.class, String.class, Operations.class, String.class));
+    private static final MethodHandle DISPATCHER_NEW = findConstructor("HCXHttpDispatcher", methodType(void.class, String.class, Supplier.class))
+            .asType(methodType(Object.class, String.class, Supplier.class));
+    private static final MethodHandle DISPATCH = findVirtual("HCXHttpDispatcher", "dispatch", methodType(CompletableFuture.class, Map.class, Operations.class))
+            .asType(methodType(CompletableFuture.class, Object.class, Map.class, Operations.class));
+
+    static Bundle resourceToBundle(DomainResource resource, Bundle.BundleType type, String bundleUrl) {
+        try {
+            return (Bundle) RESOURCE_TO_BUNDLE.invokeExact(resource, type, bundleUrl);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static DomainResource bundleToResource(Bundle bundle) {
+        try {
+            return (DomainResource) BUNDLE_TO_RESOURCE.invokeExact(bundle);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static DomainResource bundleToResource(Bundle bundle, ResourceType focalType) {
+        try {
+            return (DomainResource) BUNDLE_TO_RESOURCE_BY_TYPE.invokeExact(bundle, focalType);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void addContainedToResource(DomainResource resource, DomainResource[] contained) {
+        try {
+            ADD_CONTAINED.invokeExact(resource, contained);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static String encode(IBaseResource resource) {
+        try {
+            return (String) ENCODE.invokeExact(resource);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static String encodePretty(IBaseResource resource) {
+        try {
+            return (String) ENCODE_PRETTY.invokeExact(resource);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static <T extends IBaseResource> T parse(Class<T> type, String json) {
+        try {
+            return type.cast((IBaseResource) PARSE.invokeExact((Class) type, json));
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static byte[] encodeBinary(IBaseResource resource) {
+        try {
+            return (byte[]) ENCODE_BINARY.invokeExact(resource);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static <T extends IBaseResource> T parseBinary(Class<T> type, byte[] data) {
+        try {
+            return type.cast((IBaseResource) PARSE_BINARY.invokeExact((Class) type, data));
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Object bundleView(String json) {
+        try {
+            return (Object) BUNDLE_VIEW_PARSE.invokeExact(json);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Resource findFirst(Object bundleView, ResourceType type) {
+        try {
+            return (Resource) BUNDLE_VIEW_FIND_FIRST.invokeExact(bundleView, type);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Object newValidationCache(FhirValidator validator, int maxEntries, Duration ttl) {
+        try {
+            return (Object) VALIDATION_CACHE_NEW.invokeExact(validator, maxEntries, ttl);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static ValidationResult validate(Object validationCache, Bundle bundle) {
+        try {
+            return (ValidationResult) VALIDATION_CACHE_VALIDATE.invokeExact(validationCache, bundle);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * HCXPreValidator in TRUSTED mode, i.e. pre checks only.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Object newTrustedPreValidator(IValidationSupport profiles) {
+        try {
+            Enum<?> trusted = Enum.valueOf((Class) type("HCXPreValidator$Mode"), "TRUSTED");
+            Object builder = (Object) PRE_VALIDATOR_BUILDER.invokeExact(profiles);
+            builder = (Object) PRE_VALIDATOR_MODE.invokeExact(builder, (Enum) trusted);
+            return (Object) PRE_VALIDATOR_BUILD.invokeExact(builder);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static ValidationResult preValidate(Object preValidator, Bundle bundle) {
+        try {
+            return (ValidationResult) PRE_VALIDATOR_VALIDATE.invokeExact(preValidator, bundle);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static AutoCloseable newStubGateway() {
+        try {
+            return (AutoCloseable) STUB_NEW.invokeExact();
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static String protocolBasePath(AutoCloseable stub) {
+        try {
+            return (String) STUB_PROTOCOL_BASE_PATH.invokeExact(stub);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static String authBasePath(AutoCloseable stub) {
+        try {
+            return (String) STUB_AUTH_BASE_PATH.invokeExact(stub);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void respond(AutoCloseable stub, String path, int status, String body) {
+        try {
+            STUB_RESPOND.invokeExact(stub, path, status, body);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Object newEncrypter(String publicKeyPem, String senderCode) {
+        try {
+            return (Object) ENCRYPTER_FROM_PEM.invokeExact(publicKeyPem, senderCode);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> encrypt(Object encrypter, String payload, Operations operation, String recipientCode) {
+        try {
+            return (Map<String, Object>) ENCRYPT.invokeExact(encrypter, payload, operation, recipientCode);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Object newDispatcher(String protocolBasePath, Supplier<String> accessToken) {
+        try {
+            return (Object) DISPATCHER_NEW.invokeExact(protocolBasePath, accessToken);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static CompletableFuture<Map<String, Object>> dispatch(Object dispatcher, Map<String, Object> body, Operations operation) {
+        try {
+            return (CompletableFuture<Map<String, Object>>) DISPATCH.invokeExact(dispatcher, body, operation);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("SDK class " + name + " is not on the classpath", e);
+        }
+    }
+
+    private static MethodHandle findStatic(String className, String name, MethodType type) {
+        try {
+            return MethodHandles.publicLookup().findStatic(type(className), name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle findVirtual(String className, String name, MethodType type) {
+        try {
+            return MethodHandles.publicLookup().findVirtual(type(className), name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle findConstructor(String className, MethodType type) {
+        try {
+            return MethodHandles.publicLookup().findConstructor(type(className), type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new IllegalStateException(e);
+    }
+}
@@ -0,0 +1,69 @@
+package hcx.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ValidationResult;
+import io.hcxprotocol.validator.HCXFHIRValidator;
+import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bundle validation with the plain HAPI instance validator (core profiles only), with the HCX validator of the SDK
+ * (fetches the HCX IG from igUrl on first use, needs network access), and with HCXValidationCache in front of the HAPI
+ * validator. The cached variant validates the same bundle each time, so it measures the hit path. The trusted
+ * variant runs only the HCXPreValidator checks, compiled from the core profiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class HCXValidationBenchmark {
+
+    @Param({"5", "64"})
+    public int bundleSize;
+
+    @Param({"0", "256"})
+    public int attachmentKb;
+
+    @Param({"hapi", "sdk", "cached", "trusted"})
+    public String validator;
+
+    private FhirValidator fhirValidator;
+    private Object validationCache;
+    private Object preValidator;
+    private Bundle bundle;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if ("sdk".equals(validator)) {
+            fhirValidator = HCXFHIRValidator.getValidator();
+        } else {
+            FhirContext context = FhirContext.forR4Cached();
+            fhirValidator = context.newValidator().registerValidatorModule(new FhirInstanceValidator(context));
+        }
+        if ("cached".equals(validator)) {
+            validationCache = HCXSdk.newValidationCache(fhirValidator, 10000, Duration.ofHours(1));
+        }
+        if ("trusted".equals(validator)) {
+            preValidator = HCXSdk.newTrustedPreValidator(FhirContext.forR4Cached().getValidationSupport());
+        }
+        bundle = HCXSdk.resourceToBundle(HCXBenchmarkData.claim(bundleSize - 1, attachmentKb), Bundle.BundleType.COLLECTION, HCXBenchmarkData.BUNDLE_URL);
+    }
+
+    @Benchmark
+    public ValidationResult validate() {
+        if (validationCache != null) {
+            return HCXSdk.validate(validationCache, bundle);
+        }
+        if (preValidator != null) {
+            return HCXSdk.preValidate(preValidator, bundle);
+        }
+        return fhirValidator.validateWithResult(bundle);
+    }
+}
@@ -0,0 +1,196 @@
+import io.hcxprotocol.impl.HCXOutgoingRequest;
+import io.hcxprotocol.utils.Operations;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous submission of outgoing HCX requests. Every submit runs through three pipelined stages, each on its own
+ * bounded thread pool: encoding the bundle to compact JSON, encrypting it into a JWE payload and dispatching it to
+ * the gateway. While one request is encrypted the next can already be encoded and a previous one be on the wire.
+ *
+ * The number of submitted but not yet completed requests is bounded by maxInFlight. When the limit is reached
+ * submit blocks the caller until a request completes, which pushes back on producers faster than the gateway.
+ *
+ * With the default constructor encryption and dispatch are done together by HCXOutgoingRequest.generate of the HCX
+ * SDK, which does not expose them separately. Pass an Encryptor and a Dispatcher, e.g. HCXHttpDispatcher pointed at an
+ * HCXStubGateway, to run them as separate stages.
+ */
+public class HCXAsyncSubmitter implements AutoCloseable {
+
+    /**
+     * Turns the FHIR JSON payload into the request body for the gateway, e.g. a map with the JWE "payload".
+     */
+    public interface Encryptor {
+        Map<String, Object> encrypt(String fhirPayload, Operations operation, String recipientCode) throws Exception;
+    }
+
+    /**
+     * Sends an encrypted request body to the gateway and completes with the gateway response.
+     */
+    public interface Dispatcher {
+        CompletableFuture<Map<String, Object>> dispatch(Map<String, Object> requestBody, Operations operation);
+    }
+
+    private final Encryptor encryptor;
+    private final Dispatcher dispatcher;
+    private final Semaphore inFlight;
+    private final ExecutorService encodeExecutor;
+    private final ExecutorService encryptExecutor;
+
+    /**
+     * Uses HCXOutgoingRequest.generate of the HCX SDK as combined encryption and dispatch stage. HCXIntegrator must
+     * have been initialized.
+     */
+    public HCXAsyncSubmitter(int maxInFlight) {
+        // the SDK generate blocks on the HTTP call, so the encryption pool has to be able to hold every request in flight
+        this(HCXAsyncSubmitter::generate, (body, operation) -> CompletableFuture.completedFuture(body), maxInFlight, maxInFlight);
+    }
+
+    /**
+     * The encryption runs on a pool sized by the CPU count like the encode pool, so the encryptor must not block.
+     */
+    public HCXAsyncSubmitter(Encryptor encryptor, Dispatcher dispatcher, int maxInFlight) {
+        this(encryptor, dispatcher, maxInFlight, Runtime.getRuntime().availableProcessors());
+    }
+
+    private HCXAsyncSubmitter(Encryptor encryptor, Dispatcher dispatcher, int maxInFlight, int encryptThreads) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.encryptor = encryptor;
+        this.dispatcher = dispatcher;
+        this.inFlight = new Semaphore(maxInFlight);
+        int cpus = Runtime.getRuntime().availableProcessors();
+        this.encodeExecutor = newPool("hcx-submit-encode", Math.min(cpus, maxInFlight));
+        this.encryptExecutor = newPool("hcx-submit-encrypt", Math.min(encryptThreads, maxInFlight));
+    }
+
+    /**
+     * Submits a bundle. Blocks while maxInFlight requests are pending. The returned future completes with the output
+     * of the dispatch stage, or exceptionally with the error of the first failing stage.
+     */
+    public CompletableFuture<Map<String, Object>> submit(Bundle bundle, Operations operation, String recipientCode) throws InterruptedException {
+        return track(() -> CompletableFuture.supplyAsync(() -> HCXFHIRSerializer.encode(bundle), encodeExecutor), operation, recipientCode);
+    }
+
+    /**
+     * Submits an already encoded FHIR JSON payload, skipping the encode stage.
+     */
+    public CompletableFuture<Map<String, Object>> submit(String fhirPayload, Operations operation, String recipientCode) throws InterruptedException {
+        return track(() -> CompletableFuture.completedFuture(fhirPayload), operation, recipientCode);
+    }
+
+    /**
+     * Submits a bundle and returns the future of its on_* response instead of the gateway acknowledgement. The request
+     * is registered in the tracker under the x-hcx-correlation_id of the encrypted request before it is dispatched,
+     * and the future completes when the callback is passed to the tracker, e.g. by HCXIncomingProcessor. A failed
+     * dispatch fails the future.
+     */
+    public <T> CompletableFuture<T> submit(Bundle bundle, Operations operation, String recipientCode, HCXCorrelationTracker<T> tracker) throws InterruptedException {
+        return correlate(() -> CompletableFuture.supplyAsync(() -> HCXFHIRSerializer.encode(bundle), encodeExecutor), operation, recipientCode, tracker);
+    }
+
+    /**
+     * Submits an already encoded FHIR JSON payload and returns the future of its on_* response.
+     */
+    public <T> CompletableFuture<T> submit(String fhirPayload, Operations operation, String recipientCode, HCXCorrelationTracker<T> tracker) throws InterruptedException {
+        return correlate(() -> CompletableFuture.completedFuture(fhirPayload), operation, recipientCode, tracker);
+    }
+
+    private <T> CompletableFuture<T> correlate(Supplier<CompletableFuture<String>> encode, Operations operation, String recipientCode, HCXCorrelationTracker<T> tracker) throws InterruptedException {
+        CompletableFuture<CompletableFuture<T>> dispatched;
+        inFlight.acquire();
+        try {
+            dispatched = encode.get()
+                    .thenCompose(payload -> encryptAsync(payload, operation, recipientCode))
+                    .thenCompose(body -> {
+                        String correlationId = HCXCorrelationTracker.correlationId(body);
+                        if (correlationId == null) {
+                            throw new IllegalStateException("Outgoing request has no x-hcx-correlation_id");
+                        }
+                        // registered before dispatch, so the callback cannot arrive before its entry
+                        CompletableFuture<T> response = tracker.register(correlationId);
+                        return dispatcher.dispatch(body, operation).handle((output, error) -> {
+                            if (error != null) {
+                                tracker.fail(correlationId, error);
+                            }
+                            return response;
+                        });
+                    });
+        } catch (RuntimeException e) {
+            // e.g. RejectedExecutionException of a closed pool, the request never got in flight
+            inFlight.release();
+            throw e;
+        }
+        dispatched.whenComplete((response, error) -> inFlight.release());
+        return dispatched.thenCompose(response -> response);
+    }
+
+    private CompletableFuture<Map<String, Object>> track(Supplier<CompletableFuture<String>> encode, Operations operation, String recipientCode) throws InterruptedException {
+        CompletableFuture<Map<String, Object>> result;
+        inFlight.acquire();
+        try {
+            result = encode.get()
+                    .thenCompose(payload -> encryptAsync(payload, operation, recipientCode))
+                    .thenCompose(body -> dispatcher.dispatch(body, operation));
+        } catch (RuntimeException e) {
+            // e.g. RejectedExecutionException of a closed pool, the request never got in flight
+            inFlight.release();
+            throw e;
+        }
+        result.whenComplete((output, error) -> inFlight.release());
+        return result;
+    }
+
+    /**
+     * Runs the encryption on its pool. A rejected task completes the returned future exceptionally instead of throwing
+     * in the thread which completed the encode stage, so the request still completes and releases its permit.
+     */
+    private CompletableFuture<Map<String, Object>> encryptAsync(String payload, Operations operation, String recipientCode) {
+        try {
+            return CompletableFuture.supplyAsync(() -> encrypt(payload, operation, recipientCode), encryptExecutor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private Map<String, Object> encrypt(String payload, Operations operation, String recipientCode) {
+        try {
+            return encryptor.encrypt(payload, operation, recipientCode);
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static Map<String, Object> generate(String payload, Operations operation, String recipientCode) throws Exception {
+        Map<String, Object> output = new HashMap<>();
+        if (!HCXInstrumentation.generate(new HCXOutgoingRequest(), payload, operation, recipientCode, output)) {
+            throw new IllegalStateException("Error in generating outgoing payload: " + output);
+        }
+        return output;
+    }
+
+    public int availablePermits() {
+        return inFlight.availablePermits();
+    }
+
+    @Override
+    public void close() {
+        encodeExecutor.shutdown();
+        encryptExecutor.shutdown();
+    }
+
+    private static ExecutorService newPool(String name, int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
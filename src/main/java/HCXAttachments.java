@@ -0,0 +1,368 @@
+import ca.uhn.fhir.util.FhirTerser;
+import com.fasterxml.jackson.core.*;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Base64BinaryType;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.io.*;
+import java.lang.ref.Cleaner;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.*;
+
+/**
+ * Attachments kept in files instead of on the heap.
+ *
+ * fileAttachment creates an Attachment whose data element refers to a file. The file is a Java field of the element,
+ * not part of the FHIR data: the data value stays empty and nothing about the file is ever encoded. The resource can
+ * be handled like any other, including resourceToBundle, and encode writes it as compact JSON with the file contents
+ * streamed in as base64, reading the file in chunks. Together with the streaming
+ * HCXJweEncrypter.encrypt and HCXHttpDispatcher.dispatch(Path, Operations) a document goes from disk to the gateway
+ * without being held in memory in any form. Any other encoder (HCXFHIRSerializer, HCXBinaryCodec, a HAPI parser)
+ * throws an IllegalStateException on such an attachment instead of sending the document without its contents.
+ *
+ * In the other direction parse decodes base64 attachment data larger than a threshold straight into temp files and
+ * gives the attachment a file backed data element. openData and getFile give access to the contents. deleteFiles
+ * removes the temp files of a resource once it is processed, a temp file nobody deleted is removed once no
+ * attachment refers to it any more.
+ */
+public final class HCXAttachments {
+
+    private static final int CHUNK = 48 * 1024;
+    private static final int DEFAULT_SPILL_THRESHOLD = 256 * 1024;
+    private static final JsonFactory factory = new JsonFactory();
+    private static final SecureRandom random = new SecureRandom();
+    private static final Cleaner cleaner = Cleaner.create();
+
+    // placeholders for the data of file attachments while the JSON is produced or parsed: 15 random bytes, new for
+    // every call, and a 3 byte index, so 20 and 24 base64 characters without padding
+    private static final int TOKEN_PREFIX = 15;
+    private static final int TOKEN = TOKEN_PREFIX + 3;
+
+    private HCXAttachments() {
+    }
+
+    /**
+     * Returns an attachment backed by the file, with the size set from the file. The file is not deleted by deleteFiles.
+     */
+    public static Attachment fileAttachment(Path file, String contentType, String title) throws IOException {
+        long size = Files.size(file);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Attachment " + file + " is larger than the 2 GB FHIR R4 attachments can hold");
+        }
+        Attachment attachment = new Attachment().setContentType(contentType).setTitle(title).setSize((int) size);
+        attachment.setDataElement(new FileData(file.toAbsolutePath(), null));
+        return attachment;
+    }
+
+    /**
+     * Returns the file holding the data of the attachment, or null if the data is inline.
+     */
+    public static Path getFile(Attachment attachment) {
+        return attachment.getDataElement() instanceof FileData ? ((FileData) attachment.getDataElement()).file : null;
+    }
+
+    /**
+     * Opens the data of the attachment, from its file or from the inline data.
+     */
+    public static InputStream openData(Attachment attachment) throws IOException {
+        Path file = getFile(attachment);
+        if (file != null) {
+            return Files.newInputStream(file);
+        }
+        return new ByteArrayInputStream(attachment.hasData() ? attachment.getData() : new byte[0]);
+    }
+
+    /**
+     * Encodes the resource as compact JSON into out with the contents of file backed attachments in base64. out is
+     * not closed. The resource is not modified, it is copied when it has file backed attachments.
+     */
+    public static void encode(IBaseResource resource, OutputStream out) throws IOException {
+        List<Path> files = new ArrayList<>();
+        byte[] prefix = new byte[TOKEN_PREFIX];
+        random.nextBytes(prefix);
+        IBaseResource encoded = resource;
+        if (attachments(resource).stream().anyMatch(attachment -> getFile(attachment) != null)) {
+            // placeholders go into a copy, so the resource can be encoded by other threads at the same time
+            encoded = ((Resource) resource).copy();
+            for (Attachment attachment : attachments(encoded)) {
+                Path file = getFile(attachment);
+                if (file != null) {
+                    attachment.setDataElement(new Base64BinaryType(token(prefix, files.size())));
+                    files.add(file);
+                }
+            }
+        }
+        String json = HCXFHIRSerializer.encode(encoded);
+        String encodedPrefix = Base64.getEncoder().encodeToString(prefix);
+        byte[] chunk = null;
+        int position = 0;
+        int found;
+        while (!files.isEmpty() && (found = json.indexOf(encodedPrefix, position)) >= 0) {
+            int end = found + TOKEN / 3 * 4;
+            byte[] token = Base64.getDecoder().decode(json.substring(found, end));
+            int index = (token[TOKEN_PREFIX] & 0xff) << 16 | (token[TOKEN_PREFIX + 1] & 0xff) << 8 | token[TOKEN_PREFIX + 2] & 0xff;
+            out.write(json.substring(position, found).getBytes(StandardCharsets.UTF_8));
+            if (chunk == null) {
+                chunk = new byte[CHUNK];
+            }
+            writeBase64(files.get(index), chunk, out);
+            position = end;
+        }
+        out.write(json.substring(position).getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static void writeBase64(Path file, byte[] chunk, OutputStream out) throws IOException {
+        OutputStream base64 = Base64.getEncoder().wrap(new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                // keeps out open, the JSON continues after the data
+            }
+        });
+        try (InputStream in = Files.newInputStream(file)) {
+            int length;
+            while ((length = in.read(chunk)) >= 0) {
+                base64.write(chunk, 0, length);
+            }
+        }
+        base64.close();
+    }
+
+    /**
+     * Same as parse with the default temp directory and a threshold of 256 KB.
+     */
+    public static <T extends IBaseResource> T parse(Class<T> type, InputStream in) throws IOException {
+        return parse(type, in, null, DEFAULT_SPILL_THRESHOLD);
+    }
+
+    /**
+     * Parses a resource from UTF-8 JSON. Attachment data larger than spillThreshold bytes is decoded into a temp file
+     * in spillDirectory (the default temp directory if null) and the attachment gets a data element backed by it.
+     * Smaller attachment data stays inline.
+     */
+    public static <T extends IBaseResource> T parse(Class<T> type, InputStream in, Path spillDirectory, int spillThreshold) throws IOException {
+        StringWriter skeleton = new StringWriter();
+        List<Path> files = new ArrayList<>();
+        byte[] prefix = new byte[TOKEN_PREFIX];
+        random.nextBytes(prefix);
+        // field name of each open object and array, array elements take the name of their array, to tell attachment
+        // data from other fields called "data"
+        Deque<String> containers = new ArrayDeque<>();
+        boolean parsed = false;
+        try {
+            try (JsonParser parser = factory.createParser(in); JsonGenerator generator = factory.createGenerator(skeleton)) {
+                JsonToken token;
+                while ((token = parser.nextToken()) != null) {
+                    if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                        String name = parser.getParsingContext().getParent() != null && parser.getParsingContext().getParent().inArray()
+                                ? containers.peek() : parser.getCurrentName();
+                        containers.push(name == null ? "" : name);
+                    } else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                        containers.pop();
+                    }
+                    if (token == JsonToken.VALUE_STRING && "data".equals(parser.getCurrentName()) && isAttachment(containers.peek())) {
+                        SpillStream data = new SpillStream(spillDirectory, spillThreshold);
+                        try (data) {
+                            parser.readBinaryValue(Base64Variants.MIME_NO_LINEFEEDS, data);
+                        } finally {
+                            if (data.file != null) {
+                                files.add(data.file);
+                            }
+                        }
+                        generator.writeBinary(data.file != null ? token(prefix, files.size() - 1) : data.bytes());
+                    } else {
+                        generator.copyCurrentEvent(parser);
+                    }
+                }
+            }
+            T resource = HCXFHIRSerializer.parse(type, skeleton.toString());
+            int placed = 0;
+            for (Attachment attachment : attachments(resource)) {
+                byte[] data = attachment.getData();
+                if (data != null && data.length == TOKEN && Arrays.equals(data, 0, TOKEN_PREFIX, prefix, 0, TOKEN_PREFIX)) {
+                    Path file = files.get((data[TOKEN_PREFIX] & 0xff) << 16 | (data[TOKEN_PREFIX + 1] & 0xff) << 8 | data[TOKEN_PREFIX + 2] & 0xff);
+                    attachment.setDataElement(new FileData(file, temporary(file)));
+                    placed++;
+                }
+            }
+            if (placed != files.size()) {
+                throw new IOException("Attachment data of " + files.size() + " attachments was spilled, but only " + placed + " attachments found");
+            }
+            parsed = true;
+            return resource;
+        } finally {
+            if (!parsed) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the temp files parse created for the attachments of the resource and its contained resources and
+     * clears their data. Files of fileAttachment are not deleted, but their data is cleared as well.
+     */
+    public static void deleteFiles(IBaseResource resource) throws IOException {
+        for (Attachment attachment : attachments(resource)) {
+            if (attachment.getDataElement() instanceof FileData) {
+                FileData data = (FileData) attachment.getDataElement();
+                if (data.owner != null) {
+                    Files.deleteIfExists(data.file);
+                }
+                attachment.setDataElement(null);
+            }
+        }
+    }
+
+    /**
+     * Returns the attachments of the resource and of its contained resources and bundle entries.
+     */
+    private static List<Attachment> attachments(IBaseResource resource) {
+        FhirTerser terser = HCXFHIRSerializer.getContext().newTerser();
+        List<Attachment> attachments = new ArrayList<>(terser.getAllPopulatedChildElementsOfType(resource, Attachment.class));
+        // the terser does not descend into bundle entries and contained resources
+        for (IBaseResource embedded : terser.getAllEmbeddedResources(resource, true)) {
+            attachments.addAll(terser.getAllPopulatedChildElementsOfType(embedded, Attachment.class));
+        }
+        return attachments;
+    }
+
+    private static byte[] token(byte[] prefix, int index) {
+        byte[] token = Arrays.copyOf(prefix, TOKEN);
+        token[TOKEN_PREFIX] = (byte) (index >>> 16);
+        token[TOKEN_PREFIX + 1] = (byte) (index >>> 8);
+        token[TOKEN_PREFIX + 2] = (byte) index;
+        return token;
+    }
+
+    /**
+     * Registers a temp file to be deleted once the returned owner is unreachable, i.e. no copy of its FileData is left.
+     */
+    private static Object temporary(Path file) {
+        Object owner = new Object();
+        cleaner.register(owner, cleanup(file));
+        return owner;
+    }
+
+    /**
+     * Returns the action deleting a temp file. It must not refer to the owner, or the owner never becomes unreachable.
+     */
+    static Runnable cleanup(Path file) {
+        return () -> {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // nothing left to do, the file stays in the temp directory
+            }
+        };
+    }
+
+    /**
+     * Attachment elements of the R4 resources used with HCX, by JSON field name.
+     */
+    private static boolean isAttachment(String field) {
+        if (field == null) {
+            return false;
+        }
+        switch (field) {
+            case "attachment":
+            case "photo":
+            case "presentedForm":
+                return true;
+            default:
+                return field.endsWith("Attachment");
+        }
+    }
+
+    /**
+     * Data element of a file backed attachment. Its value stays null, but it is never empty, so encoders reach
+     * getValueAsString and fail there instead of leaving the data out. Copies share the file.
+     */
+    private static final class FileData extends Base64BinaryType {
+        private final Path file;
+        // set for temp files of parse, which are deleted once no FileData refers to it any more
+        private final Object owner;
+
+        FileData(Path file, Object owner) {
+            this.file = file;
+            this.owner = owner;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+
+        @Override
+        public String getValueAsString() {
+            throw new IllegalStateException("Attachment data is in the file " + file + ", encode the resource with HCXAttachments.encode");
+        }
+
+        @Override
+        public FileData copy() {
+            return new FileData(file, owner);
+        }
+
+        @Override
+        public String toString() {
+            return "FileData[" + file + "]";
+        }
+    }
+
+    /**
+     * Keeps the data in memory up to the threshold and moves it to a temp file when it grows beyond.
+     */
+    private static final class SpillStream extends OutputStream {
+        private final Path directory;
+        private final int threshold;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private OutputStream disk;
+        Path file;
+
+        SpillStream(Path directory, int threshold) {
+            this.directory = directory;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (disk == null && memory.size() + len > threshold) {
+                file = directory == null ? Files.createTempFile("hcx-attachment-", ".bin") : Files.createTempFile(directory, "hcx-attachment-", ".bin");
+                disk = new BufferedOutputStream(Files.newOutputStream(file), CHUNK);
+                memory.writeTo(disk);
+                memory = null;
+            }
+            if (disk != null) {
+                disk.write(b, off, len);
+            } else {
+                memory.write(b, off, len);
+            }
+        }
+
+        byte[] bytes() {
+            return memory.toByteArray();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (disk != null) {
+                disk.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import io.hcxprotocol.validator.HCXFHIRValidator;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Validates batches of bundles in parallel on a fixed pool of worker threads and returns the results in input order.
+ *
+ * FhirValidator and its validation support chain are thread safe once initialized, but the HCX validator loads its
+ * IG packages lazily on first use. The first bundle of every batch is therefore validated on the calling thread
+ * before the remaining bundles are handed to the workers. At most twice the parallelism bundles are in flight at a
+ * time, so a stream of bundles is not read into memory ahead of the workers.
+ *
+ * A bundle whose validation throws gets a result with a single FATAL message, the other bundles of the batch are
+ * validated as usual. In fail fast mode the batch stops at the first bundle with an error: bundles not validated yet
+ * are returned as skipped.
+ */
+public class HCXBatchValidator implements AutoCloseable {
+
+    private final Function<Bundle, ValidationResult> validation;
+    private final int parallelism;
+    private final boolean failFast;
+    private final ExecutorService executor;
+
+    public HCXBatchValidator(Function<Bundle, ValidationResult> validation, int parallelism, boolean failFast) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.validation = validation;
+        this.parallelism = parallelism;
+        this.failFast = failFast;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "hcx-batch-validator-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public HCXBatchValidator(FhirValidator validator, int parallelism, boolean failFast) {
+        this(bundle -> HCXInstrumentation.validate(validator, bundle), parallelism, failFast);
+    }
+
+    public HCXBatchValidator(HCXValidationCache cache, int parallelism, boolean failFast) {
+        this(cache::validateWithResult, parallelism, failFast);
+    }
+
+    /**
+     * Creates a batch validator around the HCX SDK validator using one thread per available processor.
+     */
+    public static HCXBatchValidator create(boolean failFast) throws Exception {
+        return new HCXBatchValidator(HCXFHIRValidator.getValidator(), Runtime.getRuntime().availableProcessors(), failFast);
+    }
+
+    public List<Result> validate(Collection<Bundle> bundles) throws InterruptedException {
+        return validate(bundles.iterator(), bundles.size());
+    }
+
+    public List<Result> validate(Stream<Bundle> bundles) throws InterruptedException {
+        return validate(bundles.iterator(), 16);
+    }
+
+    private List<Result> validate(Iterator<Bundle> bundles, int expectedSize) throws InterruptedException {
+        List<Result> results = new ArrayList<>(expectedSize);
+        if (!bundles.hasNext()) {
+            return results;
+        }
+        Result first = run(0, bundles.next());
+        AtomicBoolean failed = new AtomicBoolean(failFast && !first.isSuccessful());
+
+        Semaphore inFlight = new Semaphore(parallelism * 2);
+        List<Future<Result>> futures = new ArrayList<>(expectedSize);
+        futures.add(CompletableFuture.completedFuture(first));
+        int index = 1;
+        while (bundles.hasNext()) {
+            Bundle bundle = bundles.next();
+            int position = index++;
+            if (failed.get()) {
+                futures.add(CompletableFuture.completedFuture(Result.skipped(position)));
+                continue;
+            }
+            inFlight.acquire();
+            futures.add(executor.submit(() -> {
+                try {
+                    if (failed.get()) {
+                        return Result.skipped(position);
+                    }
+                    Result result = run(position, bundle);
+                    if (failFast && !result.isSuccessful()) {
+                        failed.set(true);
+                    }
+                    return result;
+                } finally {
+                    inFlight.release();
+                }
+            }));
+        }
+        for (Future<Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Validation of a bundle failed", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    private Result run(int index, Bundle bundle) {
+        long start = System.nanoTime();
+        ValidationResult result;
+        try {
+            result = validation.apply(bundle);
+        } catch (RuntimeException e) {
+            SingleValidationMessage message = new SingleValidationMessage();
+            message.setSeverity(ResultSeverityEnum.FATAL);
+            message.setLocationString("Bundle");
+            message.setMessage("Validation failed: " + e);
+            result = new ValidationResult(HCXFHIRSerializer.getContext(), Collections.singletonList(message));
+        }
+        return new Result(index, result, System.nanoTime() - start, false);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public boolean isFailFast() {
+        return failFast;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Validation result of one bundle of a batch together with its position in the input and the validation time.
+     */
+    public static class Result {
+        private final int index;
+        private final ValidationResult validationResult;
+        private final long nanos;
+        private final boolean skipped;
+
+        Result(int index, ValidationResult validationResult, long nanos, boolean skipped) {
+            this.index = index;
+            this.validationResult = validationResult;
+            this.nanos = nanos;
+            this.skipped = skipped;
+        }
+
+        static Result skipped(int index) {
+            return new Result(index, null, 0, true);
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Returns the validation result, or null if the bundle was skipped in fail fast mode.
+         */
+        public ValidationResult getValidationResult() {
+            return validationResult;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public boolean isSkipped() {
+            return skipped;
+        }
+
+        public boolean isSuccessful() {
+            return !skipped && validationResult.isSuccessful();
+        }
+    }
+}
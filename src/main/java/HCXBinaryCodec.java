@@ -0,0 +1,544 @@
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IJsonLikeParser;
+import ca.uhn.fhir.parser.json.JsonLikeWriter;
+import ca.uhn.fhir.parser.json.jackson.JacksonStructure;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadFeature;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Compact binary form of FHIR resources for internal storage such as spools and caches. It is the JSON form of the
+ * resource written as Smile, the binary JSON format of Jackson, so it holds exactly what the JSON form holds and a
+ * resource decoded from it encodes to the same JSON.
+ *
+ * HAPI writes the resource straight into the Smile generator and parses it from a tree read from the Smile parser,
+ * without JSON text in between. Property names and string values repeated within a resource are written once and
+ * referenced after that. String values found in the dictionary, the system URLs and profile canonicals of the HCX
+ * protocol plus the entries passed to the builder, are written as their 1 or 2 byte index. Base64 "data", e.g. of
+ * attachments, is written as raw bytes, a quarter smaller than its base64 text.
+ *
+ * The binary form is not meant to leave the deployment: it is only readable by a codec with the same dictionary.
+ * Every encoded resource starts with a header holding the format version and a checksum of the dictionary, and
+ * parse rejects data written with a different one instead of decoding wrong values. The header ends with the length
+ * of the Smile data, so parse reads exactly one resource from a stream and resources can be written one after another
+ * into a spool file and read back the same way.
+ */
+public final class HCXBinaryCodec {
+
+    private static final byte[] MAGIC = {'H', 'C', 'X', 'B'};
+    private static final byte VERSION = 2;
+    // magic, version and dictionary checksum, followed by the length of the Smile data
+    private static final int HEADER = 9;
+    private static final int LENGTH = 4;
+    private static final int MAX_DICTIONARY = 65536;
+    // binary values up to this length are dictionary indexes, longer ones base64 data
+    private static final int MAX_INDEX_LENGTH = 2;
+
+    /**
+     * The standard dictionary. Changing it changes the checksum, so data written before can only be read with a
+     * codec built with the old list, e.g. builder().standardDictionary(false).dictionary(oldList).
+     */
+    public static final List<String> STANDARD_DICTIONARY = Collections.unmodifiableList(Arrays.asList(
+            HCXTerminology.CLAIM_TYPE_SYSTEM,
+            HCXTerminology.PROCESS_PRIORITY_SYSTEM,
+            HCXTerminology.PAYEE_TYPE_SYSTEM,
+            HCXTerminology.ADJUDICATION_SYSTEM,
+            HCXTerminology.SUBSCRIBER_RELATIONSHIP_SYSTEM,
+            HCXTerminology.IDENTIFIER_TYPE_SYSTEM,
+            HCXTerminology.PMJAY_PACKAGE_SYSTEM,
+            HCXTerminology.CLAIM_PROFILE,
+            HCXTerminology.CLAIM_RESPONSE_PROFILE,
+            HCXTerminology.COVERAGE_ELIGIBILITY_REQUEST_PROFILE,
+            HCXTerminology.COVERAGE_ELIGIBILITY_RESPONSE_PROFILE,
+            HCXTerminology.COVERAGE_PROFILE,
+            HCXTerminology.PAYMENT_NOTICE_PROFILE,
+            HCXTerminology.PAYMENT_RECONCILIATION_PROFILE,
+            HCXTerminology.COMMUNICATION_PROFILE,
+            HCXTerminology.COMMUNICATION_REQUEST_PROFILE,
+            HCXTerminology.NDHM_PATIENT_PROFILE,
+            HCXTerminology.NDHM_ORGANIZATION_PROFILE,
+            HCXTerminology.COVERAGE_ELIGIBILITY_REQUEST_BUNDLE_PROFILE,
+            "http://abdm.gov.in/facilities",
+            "http://irdai.gov.in/insurers",
+            "http://terminology.hl7.org/CodeSystem/coverage-class",
+            "http://terminology.hl7.org/CodeSystem/coverageeligibilityresponse-ex-auth-support",
+            "http://terminology.hl7.org/CodeSystem/claim-exception",
+            "http://terminology.hl7.org/CodeSystem/ex-payee-resource-type",
+            "http://terminology.hl7.org/CodeSystem/payment-type",
+            "http://terminology.hl7.org/CodeSystem/payment-adjustment-reason",
+            "http://terminology.hl7.org/CodeSystem/payment-status",
+            "http://terminology.hl7.org/CodeSystem/ex-diagnosistype",
+            "http://terminology.hl7.org/CodeSystem/benefit-type",
+            "http://terminology.hl7.org/CodeSystem/ex-benefitcategory",
+            "http://terminology.hl7.org/CodeSystem/communication-category",
+            "http://terminology.hl7.org/CodeSystem/v3-ActCode",
+            "http://terminology.hl7.org/CodeSystem/v3-RoleCode",
+            "http://hl7.org/fhir/sid/icd-10",
+            "http://snomed.info/sct",
+            "http://loinc.org",
+            "urn:ietf:bcp:13",
+            "urn:ietf:rfc:3986"));
+
+    private static final SmileFactory factory = SmileFactory.builder()
+            .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES)
+            .disable(SmileGenerator.Feature.ENCODE_BINARY_AS_7BIT)
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .disable(StreamReadFeature.AUTO_CLOSE_SOURCE)
+            .build();
+
+    // exact decimals, so 100.50 keeps its precision like in HAPI's own JSON parsing
+    private static final JsonNodeFactory nodes = new JsonNodeFactory(true);
+
+    private static final HCXBinaryCodec standard = builder().build();
+
+    private final String[] dictionary;
+    private final Map<String, byte[]> indexes;
+    private final byte[] header;
+
+    private HCXBinaryCodec(List<String> entries) {
+        this.dictionary = entries.toArray(new String[0]);
+        this.indexes = new HashMap<>(entries.size() * 2);
+        CRC32C crc = new CRC32C();
+        for (int i = 0; i < dictionary.length; i++) {
+            byte[] index = i < 256 ? new byte[]{(byte) i} : new byte[]{(byte) (i >>> 8), (byte) i};
+            if (indexes.putIfAbsent(dictionary[i], index) != null) {
+                throw new IllegalArgumentException("Duplicate dictionary entry " + dictionary[i]);
+            }
+            crc.update(dictionary[i].getBytes(StandardCharsets.UTF_8));
+            crc.update('\n');
+        }
+        int checksum = (int) crc.getValue();
+        this.header = new byte[]{MAGIC[0], MAGIC[1], MAGIC[2], MAGIC[3], VERSION,
+                (byte) (checksum >>> 24), (byte) (checksum >>> 16), (byte) (checksum >>> 8), (byte) checksum};
+    }
+
+    /**
+     * Returns the codec with the standard dictionary, which HCXFHIRSerializer.encodeBinary and parseBinary use.
+     */
+    public static HCXBinaryCodec standard() {
+        return standard;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns true if the data starts with the header of the binary form, e.g. to tell it from JSON in a cache that
+     * holds both.
+     */
+    public static boolean isBinary(byte[] data) {
+        return data.length >= HEADER + LENGTH && data[0] == MAGIC[0] && data[1] == MAGIC[1] && data[2] == MAGIC[2] && data[3] == MAGIC[3];
+    }
+
+    public byte[] encode(IBaseResource resource) {
+        try {
+            return record(resource).toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the binary form of the resource to the stream. The stream is flushed but not closed.
+     */
+    public void encode(IBaseResource resource, OutputStream out) throws IOException {
+        record(resource).writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Encodes the resource behind the header and fills in its length once it is known.
+     */
+    private RecordBuffer record(IBaseResource resource) throws IOException {
+        RecordBuffer out = new RecordBuffer();
+        out.write(header);
+        out.write(new byte[LENGTH]);
+        try (SmileGenerator generator = factory.createGenerator(out)) {
+            jsonParser().encodeResourceToJsonLikeWriter(resource, new SmileWriter(generator));
+        }
+        out.setLength();
+        return out;
+    }
+
+    public IBaseResource parse(byte[] data) {
+        return parse(IBaseResource.class, data);
+    }
+
+    public <T extends IBaseResource> T parse(Class<T> type, byte[] data) {
+        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        T resource;
+        try {
+            resource = parse(type, in);
+        } catch (IOException e) {
+            throw new DataFormatException("Invalid binary resource: " + e.getMessage(), e);
+        }
+        if (in.available() > 0) {
+            throw new DataFormatException("Binary resource is followed by " + in.available() + " more bytes");
+        }
+        return resource;
+    }
+
+    /**
+     * Reads one resource in binary form from the stream and nothing after it, so the next resource written to the same
+     * stream can be read by the next call. Throws EOFException if the stream ends before the resource does, e.g. at
+     * the end of a spool file. The stream is not closed.
+     */
+    public <T extends IBaseResource> T parse(Class<T> type, InputStream in) throws IOException {
+        DataInputStream input = new DataInputStream(in);
+        byte[] read = new byte[HEADER + LENGTH];
+        input.readFully(read);
+        if (!isBinary(read)) {
+            throw new DataFormatException("Not a binary resource");
+        }
+        if (read[4] != VERSION) {
+            throw new DataFormatException("Unsupported binary resource version " + read[4]);
+        }
+        if (!Arrays.equals(read, 0, HEADER, header, 0, HEADER)) {
+            throw new DataFormatException("Binary resource was written with a different dictionary");
+        }
+        int length = (read[HEADER] & 0xff) << 24 | (read[HEADER + 1] & 0xff) << 16 | (read[HEADER + 2] & 0xff) << 8 | read[HEADER + 3] & 0xff;
+        if (length <= 0) {
+            throw new DataFormatException("Invalid binary resource length " + length);
+        }
+        byte[] data = new byte[length];
+        input.readFully(data);
+        JsonNode root;
+        try (SmileParser parser = factory.createParser(data)) {
+            JsonToken token = parser.nextToken();
+            if (token != JsonToken.START_OBJECT) {
+                throw new DataFormatException("Binary resource does not start with an object");
+            }
+            root = read(parser, token);
+            if (parser.nextToken() != null) {
+                throw new DataFormatException("Binary resource has data after its end");
+            }
+        }
+        JacksonStructure structure = new JacksonStructure();
+        structure.setNativeObject((ObjectNode) root);
+        IJsonLikeParser parser = jsonParser();
+        if (type == IBaseResource.class) {
+            return type.cast(parser.parseResource(structure));
+        }
+        return parser.parseResource(type, structure);
+    }
+
+    private JsonNode read(SmileParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case START_OBJECT:
+                ObjectNode object = nodes.objectNode();
+                String name;
+                while ((name = parser.nextFieldName()) != null) {
+                    object.set(name, read(parser, parser.nextToken()));
+                }
+                return object;
+            case START_ARRAY:
+                ArrayNode array = nodes.arrayNode();
+                JsonToken next;
+                while ((next = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    array.add(read(parser, next));
+                }
+                return array;
+            case VALUE_STRING:
+                return nodes.textNode(parser.getText());
+            case VALUE_EMBEDDED_OBJECT:
+                byte[] value = parser.getBinaryValue();
+                return nodes.textNode(value.length > MAX_INDEX_LENGTH ? Base64.getEncoder().encodeToString(value) : lookup(value));
+            case VALUE_NUMBER_INT:
+                switch (parser.getNumberType()) {
+                    case INT:
+                        return nodes.numberNode(parser.getIntValue());
+                    case LONG:
+                        return nodes.numberNode(parser.getLongValue());
+                    default:
+                        return nodes.numberNode(parser.getBigIntegerValue());
+                }
+            case VALUE_NUMBER_FLOAT:
+                if (parser.getNumberType() == JsonParser.NumberType.BIG_DECIMAL) {
+                    return nodes.numberNode(parser.getDecimalValue());
+                }
+                return nodes.numberNode(parser.getDoubleValue());
+            case VALUE_TRUE:
+                return nodes.booleanNode(true);
+            case VALUE_FALSE:
+                return nodes.booleanNode(false);
+            case VALUE_NULL:
+                return nodes.nullNode();
+            default:
+                throw new DataFormatException("Unexpected " + token + " in binary resource");
+        }
+    }
+
+    private String lookup(byte[] index) {
+        int i = index.length == 1 ? index[0] & 0xff : index.length == 2 ? (index[0] & 0xff) << 8 | index[1] & 0xff : -1;
+        if (i < 0 || i >= dictionary.length) {
+            throw new DataFormatException("Invalid dictionary reference in binary resource");
+        }
+        return dictionary[i];
+    }
+
+    private static IJsonLikeParser jsonParser() {
+        // the compact parser of the calling thread is a HAPI JsonParser, which reads and writes JSON-like structures
+        return (IJsonLikeParser) HCXFHIRSerializer.parser();
+    }
+
+    public int getDictionarySize() {
+        return dictionary.length;
+    }
+
+    public static class Builder {
+        private boolean standardDictionary = true;
+        private final List<String> dictionary = new ArrayList<>();
+
+        /**
+         * Whether the dictionary starts with STANDARD_DICTIONARY, true by default.
+         */
+        public Builder standardDictionary(boolean standardDictionary) {
+            this.standardDictionary = standardDictionary;
+            return this;
+        }
+
+        /**
+         * Appends entries to the dictionary, e.g. the identifier systems and bundle profiles of the participant.
+         * Writer and reader must be built with the same entries in the same order.
+         */
+        public Builder dictionary(Collection<String> entries) {
+            dictionary.addAll(entries);
+            return this;
+        }
+
+        public Builder dictionary(String... entries) {
+            return dictionary(Arrays.asList(entries));
+        }
+
+        public HCXBinaryCodec build() {
+            List<String> entries = new ArrayList<>();
+            if (standardDictionary) {
+                entries.addAll(STANDARD_DICTIONARY);
+            }
+            entries.addAll(dictionary);
+            if (entries.size() > MAX_DICTIONARY) {
+                throw new IllegalArgumentException("The dictionary can hold at most " + MAX_DICTIONARY + " entries");
+            }
+            return new HCXBinaryCodec(entries);
+        }
+    }
+
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer() {
+            super(4096);
+        }
+
+        void setLength() {
+            int length = count - HEADER - LENGTH;
+            buf[HEADER] = (byte) (length >>> 24);
+            buf[HEADER + 1] = (byte) (length >>> 16);
+            buf[HEADER + 2] = (byte) (length >>> 8);
+            buf[HEADER + 3] = (byte) length;
+        }
+    }
+
+    /**
+     * Receives the JSON events of HAPI's JSON parser and writes them to the Smile generator.
+     */
+    private final class SmileWriter extends JsonLikeWriter {
+        private final SmileGenerator generator;
+
+        SmileWriter(SmileGenerator generator) {
+            this.generator = generator;
+        }
+
+        private void string(String value) throws IOException {
+            byte[] index = indexes.get(value);
+            if (index != null) {
+                generator.writeBinary(index);
+            } else {
+                generator.writeString(value);
+            }
+        }
+
+        @Override
+        public JsonLikeWriter init() {
+            return this;
+        }
+
+        @Override
+        public JsonLikeWriter flush() throws IOException {
+            generator.flush();
+            return this;
+        }
+
+        @Override
+        public void close() throws IOException {
+            generator.close();
+        }
+
+        @Override
+        public JsonLikeWriter beginObject() throws IOException {
+            generator.writeStartObject();
+            return this;
+        }
+
+        @Override
+        public JsonLikeWriter beginObject(String name) throws IOException {
+            generator.writeFieldName(name);
+            generator.writeStartObject();
+            return this;
+        }
+
+        @Override
+        public JsonLikeWriter beginArray(String name) throws IOException {
+            generator.writeFieldName(name);
+            generator.writeStartArray();
+            return this;
+        }
+
+        @Override
+        public JsonLikeWriter write(String value) throws IOException {
+            string(value);
+            return this;
+        }
+
+        @Override
+        public JsonLikeWriter write(BigInteger value) throws IOException {
+            generator.writeNumber(value);
+            return this;
+        }
+
+        @Override
+        public JsonLikeWriter write(BigDecimal value) throws IOException {
+            generator.writeNumber(value);
+            return this;
+        }
+
+        @Override
+        public JsonLikeWriter write(long value) throws IOException {
+            generator.writeNumber(value);
+            return this;
+        }
+
+        @Override
+        public JsonLikeWriter write(double value) throws IOException {
+            generator.writeNumber(value);
+            return this;
+        }
+
+        @Override
+        public JsonLikeWriter write(Boolean value) throws IOException {
+            if (value == null) {
+                generator.writeNull();
+            } else {
+                generator.writeBoolean(value);
+            }
+            return this;
+        }
+
+        @Override
+        public JsonLikeWriter write(boolean value) throws IOException {
+            generator.writeBoolean(value);
+            return this;
+        }
+
+        @Override
+        public JsonLikeWriter writeNull() throws IOException {
+            generator.writeNull();
+            return this;
+        }
+
+        @Override
+        public JsonLikeWriter write(String name, String value) throws IOException {
+            generator.writeFieldName(name);
+            if (name.equals("data") && value.length() > 4) {
+                data(value);
+            } else {
+                string(value);
+            }
+            return this;
+        }
+
+        private void data(String value) throws IOException {
+            byte[] decoded;
+            try {
+                decoded = Base64.getDecoder().decode(value);
+            } catch (IllegalArgumentException e) {
+                decoded = null;
+            }
+            // only canonical base64 comes back as the same text, anything else is kept as it is
+            if (decoded != null && decoded.length > MAX_INDEX_LENGTH && value.equals(Base64.getEncoder().encodeToString(decoded))) {
+                generator.writeBinary(decoded);
+            } else {
+                string(value);
+            }
+        }
+
+        @Override
+        public JsonLikeWriter write(String name, BigInteger value) throws IOException {
+            generator.writeFieldName(name);
+            return write(value);
+        }
+
+        @Override
+        public JsonLikeWriter write(String name, BigDecimal value) throws IOException {
+            generator.writeFieldName(name);
+            return write(value);
+        }
+
+        @Override
+        public JsonLikeWriter write(String name, long value) throws IOException {
+            generator.writeFieldName(name);
+            return write(value);
+        }
+
+        @Override
+        public JsonLikeWriter write(String name, double value) throws IOException {
+            generator.writeFieldName(name);
+            return write(value);
+        }
+
+        @Override
+        public JsonLikeWriter write(String name, Boolean value) throws IOException {
+            generator.writeFieldName(name);
+            return write(value);
+        }
+
+        @Override
+        public JsonLikeWriter write(String name, boolean value) throws IOException {
+            generator.writeFieldName(name);
+            return write(value);
+        }
+
+        @Override
+        public JsonLikeWriter endObject() throws IOException {
+            generator.writeEndObject();
+            return this;
+        }
+
+        @Override
+        public JsonLikeWriter endArray() throws IOException {
+            generator.writeEndArray();
+            return this;
+        }
+
+        @Override
+        public JsonLikeWriter endBlock() throws IOException {
+            generator.writeEndObject();
+            return this;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.hl7.fhir.r4.model.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read only, indexed view over the entries of a bundle. The indexes are built once when the view is created and map
+ * every entry by its fullUrl, by "ResourceType/id" and by its bare id for "#id" references, and the entries by
+ * resource type and meta profile, so finding the focal resource and resolving references do not need to scan the
+ * entry list.
+ * A view created from JSON with parse only decodes the entries which are asked for, straight from their part of the
+ * JSON text. The PARSE stage of parse measures the scan of the bundle, the decodes of single entries are not recorded
+ * as PARSE stages of their own.
+ */
+public class HCXBundleView {
+
+    private static final JsonFactory factory = new JsonFactory();
+
+    private final List<Entry> entries;
+    private final Map<String, Entry> index;
+    private final Map<String, Entry> byId;
+    private final Map<String, List<Entry>> byType;
+    private final Map<String, Entry> byProfile;
+
+    private HCXBundleView(List<Entry> entries) {
+        this.entries = entries;
+        this.index = new HashMap<>(entries.size() * 4);
+        this.byId = new HashMap<>(entries.size() * 2);
+        this.byType = new HashMap<>();
+        this.byProfile = new HashMap<>();
+        for (Entry entry : entries) {
+            if (entry.fullUrl != null) {
+                index.putIfAbsent(entry.fullUrl, entry);
+            }
+            if (entry.id != null) {
+                index.putIfAbsent(entry.resourceType + "/" + entry.id, entry);
+                byId.putIfAbsent(entry.id, entry);
+            }
+            byType.computeIfAbsent(entry.resourceType, type -> new ArrayList<>(2)).add(entry);
+            for (String profile : entry.profiles) {
+                byProfile.putIfAbsent(profile, entry);
+            }
+        }
+    }
+
+    /**
+     * Creates a view over an already decoded bundle. The bundle is not copied, the view returns its entry resources.
+     */
+    public static HCXBundleView of(Bundle bundle) {
+        List<Entry> entries = new ArrayList<>(bundle.getEntry().size());
+        for (Bundle.BundleEntryComponent component : bundle.getEntry()) {
+            Resource resource = component.getResource();
+            if (resource == null) {
+                continue;
+            }
+            List<String> profiles = new ArrayList<>(resource.getMeta().getProfile().size());
+            for (CanonicalType profile : resource.getMeta().getProfile()) {
+                profiles.add(profile.getValue());
+            }
+            Entry entry = new Entry(component.getFullUrl(), resource.getResourceType().name(), idPart(resource), profiles, null, 0, 0);
+            entry.resource = resource;
+            entries.add(entry);
+        }
+        return new HCXBundleView(entries);
+    }
+
+    /**
+     * Creates a view over a bundle in JSON format. The JSON is streamed once, reading the fullUrl and the type, id and
+     * meta profiles of each entry and skipping over the rest of the entry resources. Entry resources are decoded on
+     * first access from their part of the text, which the view keeps.
+     */
+    public static HCXBundleView parse(String bundleJson) throws IOException {
+        try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.PARSE, null)) {
+            HCXBundleView view = scan(bundleJson);
+            span.success(bundleJson);
+            return view;
+        }
+    }
+
+    private static HCXBundleView scan(String bundleJson) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (JsonParser parser = factory.createParser(bundleJson)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Bundle JSON does not start with an object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (field.equals("entry") && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        Entry entry = scanEntry(parser, bundleJson);
+                        if (entry != null) {
+                            entries.add(entry);
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return new HCXBundleView(entries);
+    }
+
+    private static Entry scanEntry(JsonParser parser, String bundleJson) throws IOException {
+        String fullUrl = null;
+        String resourceType = null;
+        String id = null;
+        List<String> profiles = new ArrayList<>(1);
+        int start = -1;
+        int end = -1;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (field.equals("fullUrl") && value == JsonToken.VALUE_STRING) {
+                fullUrl = parser.getText();
+            } else if (field.equals("resource") && value == JsonToken.START_OBJECT) {
+                start = (int) parser.getTokenLocation().getCharOffset();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String resourceField = parser.getCurrentName();
+                    JsonToken resourceValue = parser.nextToken();
+                    if (resourceField.equals("resourceType") && resourceValue == JsonToken.VALUE_STRING) {
+                        resourceType = parser.getText();
+                    } else if (resourceField.equals("id") && resourceValue == JsonToken.VALUE_STRING) {
+                        id = parser.getText();
+                    } else if (resourceField.equals("meta") && resourceValue == JsonToken.START_OBJECT) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            if (parser.getCurrentName().equals("profile") && parser.nextToken() == JsonToken.START_ARRAY) {
+                                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                                    profiles.add(parser.getText());
+                                }
+                            } else {
+                                parser.nextToken();
+                                parser.skipChildren();
+                            }
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                end = (int) parser.getCurrentLocation().getCharOffset();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (start < 0) {
+            return null;
+        }
+        return new Entry(fullUrl, resourceType == null ? "" : resourceType, id, profiles, bundleJson, start, end);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the first entry resource having the given profile in its meta, or null if there is none.
+     */
+    public Resource findByProfile(String profileUrl) {
+        Entry entry = byProfile.get(profileUrl);
+        return entry == null ? null : entry.decode();
+    }
+
+    /**
+     * Returns the first entry resource of the given type, or null if there is none.
+     */
+    public Resource findFirst(ResourceType type) {
+        List<Entry> ofType = byType.get(type.name());
+        return ofType == null ? null : ofType.get(0).decode();
+    }
+
+    /**
+     * Typed variant of findFirst, e.g. findFirst(Claim.class)
+     */
+    public <T extends Resource> T findFirst(Class<T> type) {
+        List<Entry> ofType = byType.get(type.getSimpleName());
+        return ofType == null ? null : type.cast(ofType.get(0).decode());
+    }
+
+    /**
+     * Returns all entry resources of the given type in bundle order.
+     */
+    public List<Resource> findAll(ResourceType type) {
+        List<Entry> ofType = byType.getOrDefault(type.name(), Collections.emptyList());
+        List<Resource> result = new ArrayList<>(ofType.size());
+        for (Entry entry : ofType) {
+            result.add(entry.decode());
+        }
+        return result;
+    }
+
+    /**
+     * Resolves a reference such as "Patient/RVH1003", "#RVH1003" or an entry fullUrl to the entry resource, or null if
+     * the bundle does not contain it.
+     */
+    public Resource resolve(String reference) {
+        Entry entry = lookup(reference);
+        return entry == null ? null : entry.decode();
+    }
+
+    public Resource resolve(Reference reference) {
+        return reference == null ? null : resolve(reference.getReference());
+    }
+
+    /**
+     * Returns true if resolve would find the reference, without decoding the entry.
+     */
+    public boolean contains(String reference) {
+        return lookup(reference) != null;
+    }
+
+    private Entry lookup(String reference) {
+        if (reference == null) {
+            return null;
+        }
+        Entry entry = index.get(reference);
+        if (entry == null && reference.startsWith("#")) {
+            entry = byId.get(reference.substring(1));
+        }
+        if (entry == null) {
+            // absolute references like "http://server/fhir/Patient/RVH1003" fall back to their last two segments
+            int idSlash = reference.lastIndexOf('/');
+            int typeSlash = idSlash > 0 ? reference.lastIndexOf('/', idSlash - 1) : -1;
+            if (typeSlash >= 0) {
+                entry = index.get(reference.substring(typeSlash + 1));
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Returns all entry resources in bundle order, decoding the ones not decoded yet.
+     */
+    public List<Resource> resources() {
+        List<Resource> result = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            result.add(entry.decode());
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static String idPart(Resource resource) {
+        if (!resource.hasIdElement()) {
+            return null;
+        }
+        return resource.getIdElement().getIdPart().replace("#", "");
+    }
+
+    private static final class Entry {
+        final String fullUrl;
+        final String resourceType;
+        final String id;
+        final List<String> profiles;
+        // the bundle JSON and the range of the entry resource in it, until the resource is decoded
+        private String json;
+        private final int start;
+        private final int end;
+        private Resource resource;
+
+        Entry(String fullUrl, String resourceType, String id, List<String> profiles, String json, int start, int end) {
+            this.fullUrl = fullUrl;
+            this.resourceType = resourceType;
+            this.id = id;
+            this.profiles = profiles;
+            this.json = json;
+            this.start = start;
+            this.end = end;
+        }
+
+        synchronized Resource decode() {
+            if (resource == null) {
+                // the raw parser, HCXFHIRSerializer.parse would record the entry as another PARSE of the same bundle
+                resource = (Resource) HCXFHIRSerializer.parser().parseResource(json.substring(start, end));
+                json = null;
+            }
+            return resource;
+        }
+    }
+}
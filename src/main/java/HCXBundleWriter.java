@@ -0,0 +1,375 @@
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DomainResource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Writes HCX Claim, CoverageEligibilityRequest and PaymentNotice bundles straight to JSON with the Jackson streaming
+ * generator, without building the HAPI object model. The output is byte for byte the compact HAPI encoding of the
+ * bundle which HCXFHIRUtils.resourceToBundle makes from the resource the matching builder (HCXClaim.builder,
+ * HCXCoverageEligibility.builder, HCXPayment.paymentNoticeBuilder) builds from the same values. Fields left null
+ * are omitted as HAPI omits them. The resource id, the ids it references and the required references must be set,
+ * the builders would turn a missing one into "Claim/null", the writer throws an IllegalArgumentException instead.
+ *
+ * Referenced resources (Patient, Coverage, Organization...) are written from pre-encoded entries, see RawEntry.of.
+ * They usually repeat across many bundles, so they can be encoded once and reused.
+ */
+public class HCXBundleWriter {
+
+    private static final JsonFactory factory = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    private static final DateTimeFormatter INSTANT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSxxx");
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssxxx");
+
+    /**
+     * Bundle level values. Like resourceToBundle, a random id and identifier value and the current time for
+     * lastUpdated and timestamp are used for the ones left null.
+     */
+    public static class Header {
+        public String id;
+        public String profile;
+        public Bundle.BundleType type = Bundle.BundleType.COLLECTION;
+        public String identifierValue;
+        public Date lastUpdated;
+        public Date timestamp;
+    }
+
+    public static class ClaimRecord {
+        public String id;
+        public String identifierSystem = "http://identifiersystem.com";
+        public String identifierValue;
+        public String patientId;
+        public String insurerId;
+        public String providerId;
+        public String coverageId;
+        public Date created;
+        public Date lastUpdated;
+        public List<Item> items = new ArrayList<>();
+    }
+
+    public static class Item {
+        public String packageCode;
+        public String display;
+        public long unitPriceInr;
+
+        public Item(String packageCode, String display, long unitPriceInr) {
+            this.packageCode = packageCode;
+            this.display = display;
+            this.unitPriceInr = unitPriceInr;
+        }
+    }
+
+    public static class EligibilityRecord {
+        public String id;
+        public String identifierValue;
+        public String patientId;
+        public String providerId;
+        public String insurerId;
+        public String entererReference;
+        public String facilityReference;
+        public String coverageId;
+        public Date servicedStart;
+        public Date servicedEnd;
+        public Date created;
+    }
+
+    public static class NoticeRecord {
+        public String id;
+        public String identifierSystem = "https://www.tmh.in/paymentnotice";
+        public String identifierValue;
+        public String requestReference;
+        public String responseReference;
+        public String providerId;
+        public String recipientId;
+        public String paymentReference;
+        public long amountInr;
+        public Date created;
+    }
+
+    /**
+     * A bundle entry with its resource already encoded as compact JSON.
+     */
+    public static class RawEntry {
+        final String fullUrl;
+        final String json;
+
+        public RawEntry(String fullUrl, String json) {
+            this.fullUrl = fullUrl;
+            this.json = json;
+        }
+
+        /**
+         * Encodes the resource once, the same way resourceToBundle adds a contained resource to the bundle. A "#"
+         * prefix of the id is removed on the resource.
+         */
+        public static RawEntry of(DomainResource resource) {
+            String id = required(resource.getIdElement().getIdPart(), resource.getResourceType() + " id").replace("#", "");
+            resource.setId(id);
+            return new RawEntry(resource.getResourceType() + "/" + id, HCXFHIRSerializer.encode(resource));
+        }
+    }
+
+    public static void writeClaimBundle(Header header, List<RawEntry> referenced, ClaimRecord claim, OutputStream out) throws IOException {
+        try (JsonGenerator g = factory.createGenerator(out, JsonEncoding.UTF8)) {
+            startBundle(g, header, referenced);
+            startEntry(g, "Claim", required(claim.id, "Claim id"));
+            startResource(g, "Claim", claim.id, HCXTerminology.CLAIM_PROFILE, claim.lastUpdated);
+            identifier(g, claim.identifierSystem, claim.identifierValue);
+            g.writeStringField("status", "active");
+            codeableConcept(g, "type", HCXTerminology.CLAIM_TYPE_SYSTEM, "institutional", null);
+            g.writeStringField("use", "claim");
+            reference(g, "patient", "Patient", claim.patientId);
+            g.writeStringField("created", dateTime(orNow(claim.created)));
+            reference(g, "insurer", "Organization", claim.insurerId);
+            reference(g, "provider", "Organization", claim.providerId);
+            codeableConcept(g, "priority", HCXTerminology.PROCESS_PRIORITY_SYSTEM, "normal", null);
+            g.writeObjectFieldStart("payee");
+            codeableConcept(g, "type", HCXTerminology.PAYEE_TYPE_SYSTEM, "provider", null);
+            reference(g, "party", "Organization", claim.providerId);
+            g.writeEndObject();
+            g.writeArrayFieldStart("careTeam");
+            g.writeStartObject();
+            g.writeNumberField("sequence", 1);
+            reference(g, "provider", "Organization", claim.providerId);
+            g.writeEndObject();
+            g.writeEndArray();
+            g.writeArrayFieldStart("insurance");
+            g.writeStartObject();
+            g.writeNumberField("sequence", 1);
+            g.writeBooleanField("focal", true);
+            reference(g, "coverage", "Coverage", claim.coverageId);
+            g.writeEndObject();
+            g.writeEndArray();
+            if (!claim.items.isEmpty()) {
+                g.writeArrayFieldStart("item");
+                int sequence = 1;
+                for (Item item : claim.items) {
+                    g.writeStartObject();
+                    g.writeNumberField("sequence", sequence++);
+                    codeableConcept(g, "productOrService", HCXTerminology.PMJAY_PACKAGE_SYSTEM, item.packageCode, item.display);
+                    money(g, "unitPrice", item.unitPriceInr);
+                    g.writeEndObject();
+                }
+                g.writeEndArray();
+            }
+            endBundle(g);
+        }
+    }
+
+    public static void writeCoverageEligibilityRequestBundle(Header header, List<RawEntry> referenced, EligibilityRecord ce, OutputStream out) throws IOException {
+        try (JsonGenerator g = factory.createGenerator(out, JsonEncoding.UTF8)) {
+            startBundle(g, header, referenced);
+            startEntry(g, "CoverageEligibilityRequest", required(ce.id, "CoverageEligibilityRequest id"));
+            startResource(g, "CoverageEligibilityRequest", ce.id, HCXTerminology.COVERAGE_ELIGIBILITY_REQUEST_PROFILE, null);
+            identifier(g, null, ce.identifierValue);
+            g.writeStringField("status", "active");
+            codeableConcept(g, "priority", HCXTerminology.PROCESS_PRIORITY_SYSTEM, "normal", null);
+            g.writeArrayFieldStart("purpose");
+            g.writeString("benefits");
+            g.writeEndArray();
+            reference(g, "patient", "Patient", ce.patientId);
+            if (ce.servicedStart != null || ce.servicedEnd != null) {
+                g.writeObjectFieldStart("servicedPeriod");
+                stringField(g, "start", ce.servicedStart == null ? null : dateTime(ce.servicedStart));
+                stringField(g, "end", ce.servicedEnd == null ? null : dateTime(ce.servicedEnd));
+                g.writeEndObject();
+            }
+            g.writeStringField("created", dateTime(orNow(ce.created)));
+            if (ce.entererReference != null) {
+                reference(g, "enterer", ce.entererReference);
+            }
+            reference(g, "provider", "Organization", ce.providerId);
+            reference(g, "insurer", "Organization", ce.insurerId);
+            if (ce.facilityReference != null) {
+                reference(g, "facility", ce.facilityReference);
+            }
+            g.writeArrayFieldStart("insurance");
+            g.writeStartObject();
+            reference(g, "coverage", "Coverage", ce.coverageId);
+            g.writeEndObject();
+            g.writeEndArray();
+            endBundle(g);
+        }
+    }
+
+    public static void writePaymentNoticeBundle(Header header, List<RawEntry> referenced, NoticeRecord notice, OutputStream out) throws IOException {
+        try (JsonGenerator g = factory.createGenerator(out, JsonEncoding.UTF8)) {
+            startBundle(g, header, referenced);
+            startEntry(g, "PaymentNotice", required(notice.id, "PaymentNotice id"));
+            startResource(g, "PaymentNotice", notice.id, HCXTerminology.PAYMENT_NOTICE_PROFILE, null);
+            identifier(g, notice.identifierSystem, notice.identifierValue);
+            g.writeStringField("status", "active");
+            reference(g, "request", notice.requestReference);
+            if (notice.responseReference != null) {
+                reference(g, "response", notice.responseReference);
+            }
+            g.writeStringField("created", dateTime(orNow(notice.created)));
+            reference(g, "provider", "Organization", notice.providerId);
+            reference(g, "payment", notice.paymentReference);
+            reference(g, "recipient", "Organization", notice.recipientId);
+            money(g, "amount", notice.amountInr);
+            endBundle(g);
+        }
+    }
+
+    public static String writeClaimBundle(Header header, List<RawEntry> referenced, ClaimRecord claim) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        writeClaimBundle(header, referenced, claim, out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    public static String writeCoverageEligibilityRequestBundle(Header header, List<RawEntry> referenced, EligibilityRecord ce) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        writeCoverageEligibilityRequestBundle(header, referenced, ce, out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    public static String writePaymentNoticeBundle(Header header, List<RawEntry> referenced, NoticeRecord notice) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        writePaymentNoticeBundle(header, referenced, notice, out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void startBundle(JsonGenerator g, Header header, List<RawEntry> referenced) throws IOException {
+        g.writeStartObject();
+        g.writeStringField("resourceType", "Bundle");
+        g.writeStringField("id", header.id != null ? header.id : UUID.randomUUID().toString());
+        g.writeObjectFieldStart("meta");
+        g.writeStringField("lastUpdated", instant(orNow(header.lastUpdated)));
+        if (header.profile != null) {
+            g.writeArrayFieldStart("profile");
+            g.writeString(header.profile);
+            g.writeEndArray();
+        }
+        g.writeEndObject();
+        g.writeObjectFieldStart("identifier");
+        g.writeStringField("system", "https://www.tmh.in/bundle");
+        g.writeStringField("value", header.identifierValue != null ? header.identifierValue : UUID.randomUUID().toString());
+        g.writeEndObject();
+        g.writeStringField("type", header.type.toCode());
+        g.writeStringField("timestamp", instant(orNow(header.timestamp)));
+        g.writeArrayFieldStart("entry");
+        for (RawEntry entry : referenced) {
+            g.writeStartObject();
+            g.writeStringField("fullUrl", entry.fullUrl);
+            g.writeFieldName("resource");
+            g.writeRawValue(entry.json);
+            g.writeEndObject();
+        }
+    }
+
+    private static void startEntry(JsonGenerator g, String resourceType, String id) throws IOException {
+        g.writeStartObject();
+        g.writeStringField("fullUrl", resourceType + "/" + id);
+        g.writeObjectFieldStart("resource");
+    }
+
+    private static void startResource(JsonGenerator g, String resourceType, String id, String profile, Date lastUpdated) throws IOException {
+        g.writeStringField("resourceType", resourceType);
+        g.writeStringField("id", id);
+        g.writeObjectFieldStart("meta");
+        if (lastUpdated != null) {
+            g.writeStringField("lastUpdated", instant(lastUpdated));
+        }
+        g.writeArrayFieldStart("profile");
+        g.writeString(profile);
+        g.writeEndArray();
+        g.writeEndObject();
+    }
+
+    private static void endBundle(JsonGenerator g) throws IOException {
+        g.writeEndObject(); // resource
+        g.writeEndObject(); // entry
+        g.writeEndArray();
+        g.writeEndObject();
+    }
+
+    /**
+     * Writes an identifier array with one identifier. Like HAPI, an identifier without system and value is left out
+     * together with the array.
+     */
+    private static void identifier(JsonGenerator g, String system, String value) throws IOException {
+        if (system == null && value == null) {
+            return;
+        }
+        g.writeArrayFieldStart("identifier");
+        g.writeStartObject();
+        stringField(g, "system", system);
+        stringField(g, "value", value);
+        g.writeEndObject();
+        g.writeEndArray();
+    }
+
+    private static void codeableConcept(JsonGenerator g, String field, String system, String code, String display) throws IOException {
+        g.writeObjectFieldStart(field);
+        g.writeArrayFieldStart("coding");
+        g.writeStartObject();
+        g.writeStringField("system", system);
+        g.writeStringField("code", code);
+        stringField(g, "display", display);
+        g.writeEndObject();
+        g.writeEndArray();
+        g.writeEndObject();
+    }
+
+    private static void reference(JsonGenerator g, String field, String reference) throws IOException {
+        g.writeObjectFieldStart(field);
+        g.writeStringField("reference", required(reference, field + " reference"));
+        g.writeEndObject();
+    }
+
+    private static void reference(JsonGenerator g, String field, String resourceType, String id) throws IOException {
+        reference(g, field, resourceType + "/" + required(id, field + " id"));
+    }
+
+    private static String required(String value, String name) {
+        if (value == null) {
+            throw new IllegalArgumentException(name + " must be set");
+        }
+        return value;
+    }
+
+    private static void money(JsonGenerator g, String field, long value) throws IOException {
+        g.writeObjectFieldStart(field);
+        g.writeNumberField("value", BigDecimal.valueOf(value));
+        g.writeStringField("currency", "INR");
+        g.writeEndObject();
+    }
+
+    private static void stringField(JsonGenerator g, String field, String value) throws IOException {
+        if (value != null) {
+            g.writeStringField(field, value);
+        }
+    }
+
+    private static Date orNow(Date date) {
+        return date != null ? date : new Date();
+    }
+
+    /**
+     * Formats like an InstantType (millisecond precision) in the default time zone, as HAPI does.
+     */
+    static String instant(Date date) {
+        return INSTANT.format(Instant.ofEpochMilli(date.getTime()).atZone(ZoneId.systemDefault()));
+    }
+
+    /**
+     * Formats like a DateTimeType set from a Date (second precision) in the default time zone, as HAPI does.
+     */
+    static String dateTime(Date date) {
+        return DATE_TIME.format(Instant.ofEpochMilli(date.getTime()).atZone(ZoneId.systemDefault()));
+    }
+}
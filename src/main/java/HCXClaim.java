@@ -1,41 +1,38 @@
 import org.hl7.fhir.r4.model.*;
+
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 public class HCXClaim {
 
     public static Claim claimExample(){
         //Creating the Claims request
         Claim claim = new Claim();
-        Meta metaClaim = new Meta();
-        metaClaim.getProfile().add(new CanonicalType("https://ig.hcxprotocol.io/v0.7/StructureDefinition-Claim.html"));
-        metaClaim.setLastUpdated(new Date());
-        claim.setMeta(metaClaim);
+        claim.setMeta(HCXTerminology.meta(HCXTerminology.CLAIM_PROFILE, new Date()));
         claim.setStatus(org.hl7.fhir.r4.model.Claim.ClaimStatus.ACTIVE);
-        claim.setType(new CodeableConcept(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/claim-type").setCode("institutional")));
+        claim.setType(HCXTerminology.claimTypeInstitutional());
         claim.setUse(org.hl7.fhir.r4.model.Claim.Use.CLAIM);
         claim.setPatient(new Reference("Patient/RVH1003"));
         claim.addIdentifier(new Identifier().setSystem("http://identifiersystem.com").setValue("IdentifierValue"));
         claim.setCreated(new Date());
         claim.setInsurer(new Reference("Organization/GICOFINDIA"));
         claim.setProvider(new Reference("Organization/Tmh01"));
-        claim.setPriority(new CodeableConcept(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/processpriority").setCode("normal")));
-        claim.setPayee(new org.hl7.fhir.r4.model.Claim.PayeeComponent().setParty(new Reference("Organization/Tmh01")).setType(new CodeableConcept(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/payeetype").setCode("provider"))));
+        claim.setPriority(HCXTerminology.processPriorityNormal());
+        claim.setPayee(new org.hl7.fhir.r4.model.Claim.PayeeComponent().setParty(new Reference("Organization/Tmh01")).setType(HCXTerminology.payeeTypeProvider()));
         claim.getCareTeam().add(new org.hl7.fhir.r4.model.Claim.CareTeamComponent().setSequence(4).setProvider(new Reference("Organization/Tmh01")));
         claim.addInsurance(new org.hl7.fhir.r4.model.Claim.InsuranceComponent().setFocal(true).setCoverage(new Reference("Coverage/COVERAGE1")).setSequence(1));
-        claim.getItem().add(new org.hl7.fhir.r4.model.Claim.ItemComponent().setSequence(1).setProductOrService(new CodeableConcept(new Coding().setSystem("https://pmjay.gov.in/hbp-package-code").setCode("ID003").setDisplay("Treatment of COVID-19 Infection"))).setUnitPrice(new Money().setValue(100000).setCurrency("INR")));
+        claim.getItem().add(new org.hl7.fhir.r4.model.Claim.ItemComponent().setSequence(1).setProductOrService(HCXTerminology.packageCode("ID003", "Treatment of COVID-19 Infection")).setUnitPrice(new Money().setValue(100000).setCurrency("INR")));
         return claim;
     }
 
     public static ClaimResponse claimResponseExample(){
         //Creating Claim response
         ClaimResponse claimRes = new ClaimResponse();
-        Meta metaClaimRes = new Meta();
-        metaClaimRes.getProfile().add(new CanonicalType("https://ig.hcxprotocol.io/v0.7/StructureDefinition-ClaimResponse.html"));
-        metaClaimRes.setLastUpdated(new Date());
-        claimRes.setMeta(metaClaimRes);
+        claimRes.setMeta(HCXTerminology.meta(HCXTerminology.CLAIM_RESPONSE_PROFILE, new Date()));
         claimRes.setStatus(ClaimResponse.ClaimResponseStatus.ACTIVE);
         claimRes.addIdentifier(new Identifier().setSystem("http://identifiersystem.com").setValue("IdentifierValue"));
-        claimRes.setType(new CodeableConcept(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/claim-type").setCode("institutional")));
+        claimRes.setType(HCXTerminology.claimTypeInstitutional());
         claimRes.setUse(ClaimResponse.Use.CLAIM);
         claimRes.setPatient(new Reference("Patient/RVH1003"));
         claimRes.setCreated(new Date());
@@ -43,7 +40,120 @@ public class HCXClaim {
         claimRes.setRequestor(new Reference("Organization/Tmh01"));
         claimRes.setRequest(new Reference("Claim/CLAIM1"));
         claimRes.setOutcome(ClaimResponse.RemittanceOutcome.COMPLETE);
-        claimRes.getTotal().add(new ClaimResponse.TotalComponent().setCategory(new CodeableConcept(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/adjudication").setCode("benefit"))).setAmount(new Money().setValue(80000).setCurrency("INR")));
+        claimRes.getTotal().add(new ClaimResponse.TotalComponent().setCategory(HCXTerminology.adjudicationBenefit()).setAmount(new Money().setValue(80000).setCurrency("INR")));
         return claimRes;
     }
+
+    public static Builder builder(){
+        return new Builder();
+    }
+
+    /**
+     * Builds institutional claims as per the HCX Claim profile. Every claim gets its own instances, only the
+     * reference strings are built once per setter call and shared. A builder can be kept as a template: set the
+     * fields common to a batch once, then set the per-claim fields and items and call build for every claim. Not
+     * thread safe.
+     */
+    public static class Builder {
+        private String id;
+        private String identifierSystem = "http://identifiersystem.com";
+        private String identifierValue;
+        private String patientReference;
+        private String insurerReference;
+        private String providerReference;
+        private String coverageReference;
+        private Date created;
+        private Date lastUpdated;
+        private List<Claim.ItemComponent> items = new ArrayList<>();
+
+        public Builder id(String id){
+            this.id = id;
+            return this;
+        }
+
+        public Builder identifier(String system, String value){
+            this.identifierSystem = system;
+            this.identifierValue = value;
+            return this;
+        }
+
+        public Builder patient(String patientId){
+            this.patientReference = "Patient/" + patientId;
+            return this;
+        }
+
+        public Builder insurer(String organizationId){
+            this.insurerReference = "Organization/" + organizationId;
+            return this;
+        }
+
+        public Builder provider(String organizationId){
+            this.providerReference = "Organization/" + organizationId;
+            return this;
+        }
+
+        public Builder coverage(String coverageId){
+            this.coverageReference = "Coverage/" + coverageId;
+            return this;
+        }
+
+        public Builder created(Date created){
+            this.created = created;
+            return this;
+        }
+
+        /**
+         * Sets meta.lastUpdated, left out when not set.
+         */
+        public Builder lastUpdated(Date lastUpdated){
+            this.lastUpdated = lastUpdated;
+            return this;
+        }
+
+        /**
+         * Adds an item for a PM-JAY package code with the unit price in INR.
+         */
+        public Builder item(String packageCode, String display, long unitPriceInr){
+            items.add(new Claim.ItemComponent().setSequence(items.size() + 1).setProductOrService(HCXTerminology.packageCode(packageCode, display))
+                    .setUnitPrice(new Money().setValue(unitPriceInr).setCurrency("INR")));
+            return this;
+        }
+
+        public Builder clearItems(){
+            items.clear();
+            return this;
+        }
+
+        public Claim build(){
+            try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.BUILD, null)) {
+                Claim claim = create();
+                span.success();
+                return claim;
+            }
+        }
+
+        private Claim create(){
+            Claim claim = new Claim();
+            if (id != null) {
+                claim.setId(id);
+            }
+            claim.setMeta(HCXTerminology.meta(HCXTerminology.CLAIM_PROFILE, lastUpdated));
+            claim.setStatus(Claim.ClaimStatus.ACTIVE);
+            claim.setType(HCXTerminology.claimTypeInstitutional());
+            claim.setUse(Claim.Use.CLAIM);
+            claim.setPatient(new Reference(patientReference));
+            claim.addIdentifier(new Identifier().setSystem(identifierSystem).setValue(identifierValue));
+            claim.setCreated(created != null ? created : new Date());
+            claim.setInsurer(new Reference(insurerReference));
+            claim.setProvider(new Reference(providerReference));
+            claim.setPriority(HCXTerminology.processPriorityNormal());
+            claim.setPayee(new Claim.PayeeComponent().setParty(new Reference(providerReference)).setType(HCXTerminology.payeeTypeProvider()));
+            claim.getCareTeam().add(new Claim.CareTeamComponent().setSequence(1).setProvider(new Reference(providerReference)));
+            claim.addInsurance(new Claim.InsuranceComponent().setFocal(true).setCoverage(new Reference(coverageReference)).setSequence(1));
+            // the items are handed over to the claim, the next claim of this builder starts without items
+            claim.setItem(items);
+            items = new ArrayList<>();
+            return claim;
+        }
+    }
 }
@@ -1,5 +1,7 @@
 import org.hl7.fhir.r4.model.*;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Date;
 
 public class HCXCommunicationRequest {
@@ -29,4 +31,14 @@ public class HCXCommunicationRequest {
         comm.getPayload().add(new Communication.CommunicationPayloadComponent().setContent(new Attachment().setContentType("application/pdf").setData("abcd".getBytes()).setTitle("accident_notes.pdf").setCreation(new Date())));
         return comm;
     }
+
+    /**
+     * Same as communicationExample with the document attached from a file. Encode it with HCXAttachments.encode so the
+     * file contents are streamed into the payload instead of being loaded.
+     */
+    public static Communication communicationExample(Path document) throws IOException {
+        Communication comm = communicationExample();
+        comm.getPayload().get(0).setContent(HCXAttachments.fileAttachment(document, "application/pdf", document.getFileName().toString()).setCreation(new Date()));
+        return comm;
+    }
 }
@@ -0,0 +1,736 @@
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.hcxprotocol.impl.HCXIncomingRequest;
+import io.hcxprotocol.utils.Operations;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Ties outgoing HCX requests to the on_* callbacks answering them. HCX is asynchronous: a coverage eligibility check
+ * or claim submit is acknowledged by the gateway right away, and the response arrives later as an incoming request
+ * with the same x-hcx-correlation_id. register returns a future for that response, complete (or one of the process
+ * helpers) completes it when the callback has been decoded, and futures without a response within their timeout
+ * complete exceptionally with a TimeoutException.
+ *
+ * Built for millions of pending requests. The registry is split into stripes, each an open addressing hash table with
+ * its own hashed timer wheel and lock, so threads only contend when they hit the same stripe, and the timer thread
+ * holds one stripe lock at a time. UUID correlation ids are kept as two longs and the entry is the returned future
+ * itself, about 80 bytes per pending request. Completing or cancelling that future from outside removes the request
+ * like a response does. The number of pending requests is capped by maxPending, register
+ * fails beyond it.
+ *
+ * A callback can overtake the registration, e.g. when the request is sent by HCXOutgoingRequest.generate before
+ * register is called. Such early responses are kept for earlyResponseRetention and handed out by the register call
+ * for their correlation id.
+ */
+public class HCXCorrelationTracker<T> implements AutoCloseable {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Stripe[] stripes;
+    private final int maxPending;
+    private final long timeoutNanos;
+    private final long earlyRetentionNanos;
+    private final long tickNanos;
+    private final int wheelMask;
+    private final long startNanos = System.nanoTime();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread timer;
+    private volatile boolean closed;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder early = new LongAdder();
+    private final LongAdder unmatched = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private HCXCorrelationTracker(Builder<T> builder) {
+        this.maxPending = builder.maxPending;
+        this.timeoutNanos = builder.timeout.toNanos();
+        this.earlyRetentionNanos = builder.earlyResponseRetention.toNanos();
+        this.tickNanos = builder.tick.toNanos();
+        this.wheelMask = builder.wheelSize - 1;
+        this.stripes = newArray(new HCXCorrelationTracker<?>.Stripe[builder.stripes]);
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(builder.wheelSize);
+        }
+        this.timer = new Thread(this::runTimer, "hcx-correlation-timer");
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    public static <T> Builder<T> builder() {
+        return new Builder<>();
+    }
+
+    /**
+     * Registers a request with the default timeout, see register(String, Duration).
+     */
+    public CompletableFuture<T> register(String correlationId) {
+        return register(correlationId, null);
+    }
+
+    /**
+     * Registers a request and returns the future of its response. The future is already complete if the response
+     * arrived before, and completed exceptionally with a RejectedExecutionException if maxPending requests are pending,
+     * the correlation id is pending already or the tracker is closed. Completing or cancelling the future removes the
+     * request.
+     */
+    public CompletableFuture<T> register(String correlationId, Duration timeout) {
+        if (closed) {
+            return rejected(new RejectedExecutionException("Correlation tracker is closed"));
+        }
+        Entry entry = new Entry(correlationId);
+        long deadline = System.nanoTime() + (timeout == null ? timeoutNanos : timeout.toNanos());
+        Stripe stripe = stripe(entry.hi, entry.lo);
+        stripe.lock.lock();
+        try {
+            Entry existing = stripe.get(entry);
+            if (existing != null) {
+                if (existing.early) {
+                    stripe.remove(existing);
+                    pending.decrementAndGet();
+                    return existing;
+                }
+                return rejected(new RejectedExecutionException("Correlation id " + correlationId + " is pending already"));
+            }
+            if (pending.incrementAndGet() > maxPending) {
+                pending.decrementAndGet();
+                return rejected(new RejectedExecutionException("More than " + maxPending + " requests pending"));
+            }
+            entry.deadline = deadline;
+            stripe.put(entry);
+            schedule(stripe, entry);
+        } finally {
+            stripe.lock.unlock();
+        }
+        return entry;
+    }
+
+    /**
+     * Completes the pending request with the response. Returns false if none is pending for the correlation id, the
+     * response is then kept as early response for earlyResponseRetention.
+     */
+    public boolean complete(String correlationId, T response) {
+        if (correlationId == null) {
+            unmatched.increment();
+            return false;
+        }
+        Entry entry = take(correlationId, response);
+        if (entry == null) {
+            return false;
+        }
+        completed.increment();
+        entry.resolve(response);
+        return true;
+    }
+
+    /**
+     * Completes the pending request exceptionally, e.g. when the callback could not be decrypted. Returns false if
+     * none is pending for the correlation id.
+     */
+    public boolean fail(String correlationId, Throwable error) {
+        if (correlationId == null) {
+            unmatched.increment();
+            return false;
+        }
+        Entry entry = take(correlationId, null);
+        if (entry == null) {
+            return false;
+        }
+        failed.increment();
+        entry.reject(error);
+        return true;
+    }
+
+    /**
+     * Removes the waiting entry for the correlation id. With a response and no waiting entry, the response is kept
+     * as early response instead.
+     */
+    private Entry take(String correlationId, T response) {
+        Entry key = new Entry(correlationId);
+        Stripe stripe = stripe(key.hi, key.lo);
+        stripe.lock.lock();
+        try {
+            Entry entry = stripe.get(key);
+            if (entry != null && !entry.early) {
+                stripe.remove(entry);
+                pending.decrementAndGet();
+                return entry;
+            }
+            if (entry == null && response != null && earlyRetentionNanos > 0 && !closed) {
+                if (pending.incrementAndGet() <= maxPending) {
+                    key.early = true;
+                    key.deadline = System.nanoTime() + earlyRetentionNanos;
+                    key.resolve(response);
+                    stripe.put(key);
+                    schedule(stripe, key);
+                    early.increment();
+                    return null;
+                }
+                pending.decrementAndGet();
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        unmatched.increment();
+        return null;
+    }
+
+    /**
+     * Reads the x-hcx-correlation_id from the protected header of a JWE, a request body {"payload": jwe} or the
+     * output map of HCXOutgoingRequest.generate. The header is not encrypted, so no key is needed.
+     */
+    public static String correlationId(Map<String, Object> requestBody) {
+        Object payload = requestBody.get("payload");
+        return payload instanceof String ? correlationId((String) payload) : null;
+    }
+
+    /**
+     * Same as correlationId(Map) for a JWE or a request body in JSON.
+     */
+    public static String correlationId(String jweOrRequestBody) {
+        try {
+            String jwe = jweOrRequestBody.trim();
+            if (jwe.startsWith("{")) {
+                Object payload = mapper.readValue(jwe, new TypeReference<Map<String, Object>>() {}).get("payload");
+                if (!(payload instanceof String)) {
+                    return null;
+                }
+                jwe = (String) payload;
+            }
+            int dot = jwe.indexOf('.');
+            if (dot < 0) {
+                return null;
+            }
+            Map<String, Object> header = mapper.readValue(Base64.getUrlDecoder().decode(jwe.substring(0, dot)), new TypeReference<Map<String, Object>>() {});
+            Object id = header.get("x-hcx-correlation_id");
+            return id instanceof String ? (String) id : null;
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * HCXIncomingRequest.process of the HCX SDK for an on_* callback, completing the pending request of its
+     * correlation id with the output map, or failing it if processing fails after the JWE was decrypted. The
+     * correlation id is taken from the decrypted headers the SDK puts into the output map, a callback rejected before
+     * (unreadable header, wrong key, tampered JWE) leaves the pending request to time out.
+     */
+    public static boolean process(HCXCorrelationTracker<Map<String, Object>> tracker, HCXIncomingRequest incoming, String requestBody,
+                                  Operations operation, Map<String, Object> output) {
+        boolean processed;
+        try {
+            processed = HCXInstrumentation.process(incoming, requestBody, operation, output);
+        } catch (RuntimeException e) {
+            String correlationId = decryptedCorrelationId(output);
+            if (correlationId != null) {
+                tracker.fail(correlationId, e);
+            }
+            throw e;
+        }
+        String correlationId = decryptedCorrelationId(output);
+        if (correlationId == null) {
+            return processed;
+        }
+        if (processed) {
+            tracker.complete(correlationId, output);
+        } else {
+            tracker.fail(correlationId, new IllegalStateException("Error in processing incoming " + operation + ": " + output));
+        }
+        return processed;
+    }
+
+    /**
+     * The x-hcx-correlation_id of the "headers" HCXIncomingRequest.decryptPayload puts into the output map, or null
+     * if the JWE was not decrypted.
+     */
+    private static String decryptedCorrelationId(Map<String, Object> output) {
+        Object headers = output.get("headers");
+        Object id = headers instanceof Map ? ((Map<?, ?>) headers).get("x-hcx-correlation_id") : null;
+        return id instanceof String ? (String) id : null;
+    }
+
+    /**
+     * Returns the number of requests waiting for their response plus the early responses kept.
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    /**
+     * Returns the number of responses which arrived before their registration.
+     */
+    public long getEarly() {
+        return early.sum();
+    }
+
+    /**
+     * Returns the number of responses without a pending request, including early responses never registered.
+     */
+    public long getUnmatched() {
+        return unmatched.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Stops the timer and fails every pending request with a RejectedExecutionException.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        timer.interrupt();
+        for (Stripe stripe : stripes) {
+            List<Entry> removed = new ArrayList<>();
+            stripe.lock.lock();
+            try {
+                stripe.drain(removed);
+            } finally {
+                stripe.lock.unlock();
+            }
+            for (Entry entry : removed) {
+                pending.decrementAndGet();
+                if (!entry.early) {
+                    entry.reject(new RejectedExecutionException("Correlation tracker closed"));
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HCXCorrelationTracker{pending=" + getPending() + ", completed=" + getCompleted() + ", failed=" + getFailed()
+                + ", timedOut=" + getTimedOut() + ", early=" + getEarly() + ", unmatched=" + getUnmatched() + ", rejected=" + getRejected() + "}";
+    }
+
+    private CompletableFuture<T> rejected(Throwable error) {
+        rejected.increment();
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
+    private Stripe stripe(long hi, long lo) {
+        return stripes[(int) (mix(hi ^ lo) >>> 40) & (stripes.length - 1)];
+    }
+
+    /**
+     * Puts the entry into the wheel bucket of its deadline, no earlier than the next tick the stripe processes.
+     */
+    private void schedule(Stripe stripe, Entry entry) {
+        long ticks = Math.max((entry.deadline - startNanos + tickNanos - 1) / tickNanos, stripe.tick);
+        entry.rounds = (ticks - stripe.tick) / (wheelMask + 1);
+        entry.bucket = (int) (ticks & wheelMask);
+        Entry head = stripe.wheel[entry.bucket];
+        entry.next = head;
+        entry.previous = null;
+        if (head != null) {
+            head.previous = entry;
+        }
+        stripe.wheel[entry.bucket] = entry;
+    }
+
+    private void runTimer() {
+        List<Entry> expired = new ArrayList<>();
+        long tick = 0;
+        while (!closed) {
+            long sleep = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            // catches up on ticks missed while the thread was not scheduled
+            long current = (System.nanoTime() - startNanos) / tickNanos;
+            long now = System.nanoTime();
+            for (Stripe stripe : stripes) {
+                stripe.lock.lock();
+                try {
+                    while (stripe.tick <= current) {
+                        stripe.expire((int) (stripe.tick & wheelMask), now, expired);
+                        stripe.tick++;
+                    }
+                } finally {
+                    stripe.lock.unlock();
+                }
+                for (Entry entry : expired) {
+                    pending.decrementAndGet();
+                    if (entry.early) {
+                        unmatched.increment();
+                    } else {
+                        timedOut.increment();
+                        entry.reject(new TimeoutException("No response for correlation id " + entry.id() + " within the timeout"));
+                    }
+                }
+                expired.clear();
+            }
+            tick = current + 1;
+        }
+    }
+
+    /**
+     * Removes an entry whose future was completed or cancelled by its holder.
+     */
+    private void removed(Entry entry) {
+        Stripe stripe = stripe(entry.hi, entry.lo);
+        stripe.lock.lock();
+        try {
+            if (stripe.get(entry) == entry) {
+                stripe.remove(entry);
+                pending.decrementAndGet();
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <A> A newArray(Object[] array) {
+        return (A) array;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * A pending request, which is also the future handed out for it. UUID ids are kept as two longs only, other ids as
+     * a 128 bit hash together with the id for the equality check.
+     */
+    private final class Entry extends CompletableFuture<T> {
+        final long hi;
+        final long lo;
+        final String key;
+        long deadline;
+        long rounds;
+        int bucket;
+        boolean early;
+        Entry next;
+        Entry previous;
+
+        Entry(String correlationId) {
+            long hi;
+            long lo;
+            String key = null;
+            if (correlationId.length() == 36 && correlationId.charAt(8) == '-' && correlationId.charAt(13) == '-'
+                    && correlationId.charAt(18) == '-' && correlationId.charAt(23) == '-') {
+                try {
+                    UUID uuid = UUID.fromString(correlationId);
+                    hi = uuid.getMostSignificantBits();
+                    lo = uuid.getLeastSignificantBits();
+                } catch (IllegalArgumentException e) {
+                    key = correlationId;
+                    hi = mix(correlationId.hashCode());
+                    lo = mix(hi ^ correlationId.length());
+                }
+            } else {
+                key = correlationId;
+                hi = mix(correlationId.hashCode());
+                lo = mix(hi ^ correlationId.length());
+            }
+            this.hi = hi;
+            this.lo = lo;
+            this.key = key;
+        }
+
+        boolean sameKey(Entry other) {
+            return hi == other.hi && lo == other.lo && (key == null ? other.key == null : key.equals(other.key));
+        }
+
+        String id() {
+            return key != null ? key : new UUID(hi, lo).toString();
+        }
+
+        // resolve and reject are used by the tracker once the entry is out of the table, the public completion methods
+        // are for the holder of the future and take the entry out of the table as well
+
+        void resolve(T response) {
+            super.complete(response);
+        }
+
+        void reject(Throwable error) {
+            super.completeExceptionally(error);
+        }
+
+        @Override
+        public boolean complete(T value) {
+            boolean completed = super.complete(value);
+            if (completed) {
+                removed(this);
+            }
+            return completed;
+        }
+
+        @Override
+        public boolean completeExceptionally(Throwable error) {
+            boolean completed = super.completeExceptionally(error);
+            if (completed) {
+                removed(this);
+            }
+            return completed;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                removed(this);
+            }
+            return cancelled;
+        }
+
+        @Override
+        public CompletableFuture<T> completeAsync(Supplier<? extends T> supplier, Executor executor) {
+            // the JDK implementation completes the future internally, bypassing complete
+            executor.execute(() -> {
+                try {
+                    complete(supplier.get());
+                } catch (Throwable e) {
+                    completeExceptionally(e);
+                }
+            });
+            return this;
+        }
+
+        @Override
+        public void obtrudeValue(T value) {
+            super.obtrudeValue(value);
+            removed(this);
+        }
+
+        @Override
+        public void obtrudeException(Throwable error) {
+            super.obtrudeException(error);
+            removed(this);
+        }
+    }
+
+    /**
+     * One stripe: an open addressing hash table with linear probing and a timer wheel of doubly linked bucket lists,
+     * guarded by the stripe lock. tick is the next wheel tick the timer thread processes for this stripe.
+     */
+    private final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final Entry[] wheel;
+        Entry[] table = newTable(INITIAL_CAPACITY);
+        int size;
+        long tick;
+
+        Stripe(int wheelSize) {
+            this.wheel = newTable(wheelSize);
+        }
+
+        Entry[] newTable(int capacity) {
+            return newArray(new HCXCorrelationTracker<?>.Entry[capacity]);
+        }
+
+        Entry get(Entry key) {
+            int mask = table.length - 1;
+            for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+                Entry entry = table[i];
+                if (entry == null || entry.sameKey(key)) {
+                    return entry;
+                }
+            }
+        }
+
+        void put(Entry entry) {
+            if (++size > table.length >> 1) {
+                resize(table.length << 1);
+            }
+            insert(table, entry);
+        }
+
+        void remove(Entry entry) {
+            unlink(entry);
+            int mask = table.length - 1;
+            int i = slot(entry, mask);
+            while (table[i] != entry) {
+                i = (i + 1) & mask;
+            }
+            // backward shift deletion keeps the probe sequences intact without tombstones
+            int gap = i;
+            for (int j = (gap + 1) & mask; table[j] != null; j = (j + 1) & mask) {
+                int home = slot(table[j], mask);
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    table[gap] = table[j];
+                    gap = j;
+                }
+            }
+            table[gap] = null;
+            size--;
+            if (table.length > INITIAL_CAPACITY && size < table.length >> 3) {
+                resize(table.length >> 1);
+            }
+        }
+
+        void expire(int bucket, long now, List<Entry> expired) {
+            Entry entry = wheel[bucket];
+            while (entry != null) {
+                Entry next = entry.next;
+                if (entry.rounds > 0) {
+                    entry.rounds--;
+                } else if (entry.deadline <= now) {
+                    remove(entry);
+                    expired.add(entry);
+                } else {
+                    // deadline within this tick but after now, moves to the next tick
+                    unlink(entry);
+                    entry.bucket = (bucket + 1) & wheelMask;
+                    entry.rounds = 0;
+                    entry.previous = null;
+                    entry.next = wheel[entry.bucket];
+                    if (entry.next != null) {
+                        entry.next.previous = entry;
+                    }
+                    wheel[entry.bucket] = entry;
+                }
+                entry = next;
+            }
+        }
+
+        void drain(List<Entry> removed) {
+            for (Entry entry : table) {
+                if (entry != null) {
+                    removed.add(entry);
+                }
+            }
+            table = newTable(INITIAL_CAPACITY);
+            size = 0;
+            Arrays.fill(wheel, null);
+        }
+
+        private void unlink(Entry entry) {
+            if (entry.previous != null) {
+                entry.previous.next = entry.next;
+            } else if (wheel[entry.bucket] == entry) {
+                wheel[entry.bucket] = entry.next;
+            }
+            if (entry.next != null) {
+                entry.next.previous = entry.previous;
+            }
+            entry.next = null;
+            entry.previous = null;
+        }
+
+        private void resize(int capacity) {
+            Entry[] old = table;
+            table = newTable(capacity);
+            for (Entry entry : old) {
+                if (entry != null) {
+                    insert(table, entry);
+                }
+            }
+        }
+
+        private void insert(Entry[] table, Entry entry) {
+            int mask = table.length - 1;
+            int i = slot(entry, mask);
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = entry;
+        }
+
+        private int slot(Entry entry, int mask) {
+            return (int) mix(entry.hi * 31 + entry.lo) & mask;
+        }
+    }
+
+    public static class Builder<T> {
+        private Duration timeout = Duration.ofMinutes(5);
+        private int maxPending = 4_000_000;
+        private int stripes = 64;
+        private Duration tick = Duration.ofMillis(100);
+        private int wheelSize = 512;
+        private Duration earlyResponseRetention = Duration.ofSeconds(30);
+
+        private Builder() {
+        }
+
+        /**
+         * Default time to wait for a response, 5 minutes by default.
+         */
+        public Builder<T> timeout(Duration timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        /**
+         * Maximum number of pending requests and early responses, 4 million by default.
+         */
+        public Builder<T> maxPending(int maxPending) {
+            this.maxPending = maxPending;
+            return this;
+        }
+
+        /**
+         * Number of lock stripes, rounded up to a power of two, 64 by default.
+         */
+        public Builder<T> stripes(int stripes) {
+            this.stripes = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+            return this;
+        }
+
+        /**
+         * Resolution of the timeouts and number of buckets of the timer wheel, rounded up to a power of two, 100 ms
+         * and 512 by default.
+         */
+        public Builder<T> timerWheel(Duration tick, int wheelSize) {
+            this.tick = tick;
+            this.wheelSize = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+            return this;
+        }
+
+        /**
+         * How long a response which arrived before its registration is kept, 30 seconds by default, zero to drop them.
+         */
+        public Builder<T> earlyResponseRetention(Duration retention) {
+            this.earlyResponseRetention = retention;
+            return this;
+        }
+
+        public HCXCorrelationTracker<T> build() {
+            return new HCXCorrelationTracker<>(this);
+        }
+    }
+}
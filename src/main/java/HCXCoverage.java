@@ -17,7 +17,7 @@ public class HCXCoverage {
         cov.getSubscriber().setReference("Patient/RVH1003");
         cov.setSubscriberId("SN-RVH1003");
         cov.getBeneficiary().setReference( "Patient/RVH1003");
-        cov.setRelationship(new CodeableConcept(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/subscriber-relationship").setCode("self")));
+        cov.setRelationship(HCXTerminology.subscriberRelationshipSelf());
         cov.getPayor().add(new Reference("Organization/GICOFINDIA"));
         return cov;
     }
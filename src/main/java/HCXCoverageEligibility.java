@@ -9,12 +9,10 @@ public class HCXCoverageEligibility {
         //Creating coverage eligibility request
         CoverageEligibilityRequest ce = new CoverageEligibilityRequest();
         ce.setId("dc82673b-8c71-48c2-8a17-16dcb3b035f6");
-        Meta meta = new Meta();
-        meta.getProfile().add(new CanonicalType("https://ig.hcxprotocol.io/v0.7/StructureDefinition-CoverageEligibilityRequest.html"));
-        ce.setMeta(meta);
+        ce.setMeta(HCXTerminology.meta(HCXTerminology.COVERAGE_ELIGIBILITY_REQUEST_PROFILE, null));
         ce.getIdentifier().add(new Identifier().setValue("req_70e02576-f5f5-424f-b115-b5f1029704d4"));
         ce.setStatus(CoverageEligibilityRequest.EligibilityRequestStatus.ACTIVE);
-        ce.setPriority(new CodeableConcept(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/processpriority").setCode("normal")));
+        ce.setPriority(HCXTerminology.processPriorityNormal());
 
         EnumFactory<CoverageEligibilityRequest.EligibilityRequestPurpose> fact = new CoverageEligibilityRequest.EligibilityRequestPurposeEnumFactory();
         ce.setPurpose(List.of((Enumeration) new Enumeration<>(fact).setValue(CoverageEligibilityRequest.EligibilityRequestPurpose.BENEFITS)));
@@ -33,10 +31,7 @@ public class HCXCoverageEligibility {
     public static CoverageEligibilityResponse coverageEligibilityResponseExample() {
         //Creating the coverage eligibility response
         CoverageEligibilityResponse covelires = new CoverageEligibilityResponse();
-        Meta metaResponse = new Meta();
-        metaResponse.getProfile().add(new CanonicalType("https://ig.hcxprotocol.io/v0.7/StructureDefinition-CoverageEligibilityResponse.html"));
-        metaResponse.setLastUpdated(new Date());
-        covelires.setMeta(metaResponse);
+        covelires.setMeta(HCXTerminology.meta(HCXTerminology.COVERAGE_ELIGIBILITY_RESPONSE_PROFILE, new Date()));
         covelires.addIdentifier(new Identifier().setSystem("http://identifiersystem.com").setValue("IdentifierValue"));
         covelires.setStatus(CoverageEligibilityResponse.EligibilityResponseStatus.ACTIVE);
         covelires.setPatient(new Reference("Patient/RVH1003"));
@@ -47,4 +42,113 @@ public class HCXCoverageEligibility {
         covelires.setOutcome(Enumerations.RemittanceOutcome.COMPLETE);
         return covelires;
     }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Builds coverage eligibility requests for benefits as per the HCX CoverageEligibilityRequest profile. Every
+     * request gets its own instances, only the reference strings are shared. A builder can be kept as a template for
+     * a batch. Not thread safe.
+     */
+    public static class Builder {
+        private String id;
+        private String identifierValue;
+        private String patientReference;
+        private String providerReference;
+        private String insurerReference;
+        private String entererReference;
+        private String facilityReference;
+        private String coverageReference;
+        private Date servicedStart;
+        private Date servicedEnd;
+        private Date created;
+
+        public Builder id(String id) {
+            this.id = id;
+            return this;
+        }
+
+        public Builder identifier(String value) {
+            this.identifierValue = value;
+            return this;
+        }
+
+        public Builder patient(String patientId) {
+            this.patientReference = "Patient/" + patientId;
+            return this;
+        }
+
+        public Builder provider(String organizationId) {
+            this.providerReference = "Organization/" + organizationId;
+            return this;
+        }
+
+        public Builder insurer(String organizationId) {
+            this.insurerReference = "Organization/" + organizationId;
+            return this;
+        }
+
+        public Builder enterer(String reference) {
+            this.entererReference = reference;
+            return this;
+        }
+
+        public Builder facility(String reference) {
+            this.facilityReference = reference;
+            return this;
+        }
+
+        public Builder coverage(String coverageId) {
+            this.coverageReference = "Coverage/" + coverageId;
+            return this;
+        }
+
+        public Builder servicedPeriod(Date start, Date end) {
+            this.servicedStart = start;
+            this.servicedEnd = end;
+            return this;
+        }
+
+        public Builder created(Date created) {
+            this.created = created;
+            return this;
+        }
+
+        public CoverageEligibilityRequest build() {
+            try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.BUILD, null)) {
+                CoverageEligibilityRequest ce = create();
+                span.success();
+                return ce;
+            }
+        }
+
+        private CoverageEligibilityRequest create() {
+            CoverageEligibilityRequest ce = new CoverageEligibilityRequest();
+            if (id != null) {
+                ce.setId(id);
+            }
+            ce.setMeta(HCXTerminology.meta(HCXTerminology.COVERAGE_ELIGIBILITY_REQUEST_PROFILE, null));
+            ce.getIdentifier().add(new Identifier().setValue(identifierValue));
+            ce.setStatus(CoverageEligibilityRequest.EligibilityRequestStatus.ACTIVE);
+            ce.setPriority(HCXTerminology.processPriorityNormal());
+            ce.addPurpose(CoverageEligibilityRequest.EligibilityRequestPurpose.BENEFITS);
+            ce.setPatient(new Reference(patientReference));
+            if (servicedStart != null || servicedEnd != null) {
+                ce.setServiced(new Period().setStart(servicedStart).setEnd(servicedEnd));
+            }
+            ce.setCreated(created != null ? created : new Date());
+            if (entererReference != null) {
+                ce.setEnterer(new Reference(entererReference));
+            }
+            ce.setProvider(new Reference(providerReference));
+            ce.setInsurer(new Reference(insurerReference));
+            if (facilityReference != null) {
+                ce.setFacility(new Reference(facilityReference));
+            }
+            ce.getInsurance().add(new CoverageEligibilityRequest.InsuranceComponent(new Reference(coverageReference)));
+            return ce;
+        }
+    }
 }
@@ -1,4 +1,3 @@
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.validation.FhirValidator;
 import ca.uhn.fhir.validation.SingleValidationMessage;
@@ -16,6 +15,8 @@ import org.hl7.fhir.r4.model.Enumeration;
 
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
 
 public class HCXFHIRResourceCreateExample {
@@ -25,15 +26,25 @@ public class HCXFHIRResourceCreateExample {
         /**
          * Initializing FHIR HAPI parser for R4 version as Swasth IGs follow R4 HL7 FHIR standards
          * Parser context is later used to covert FHIR objects in JSON and other formats for easy readability and data transfer
+         * HCXFHIRSerializer holds the shared R4 context, the pretty printing parser below is only used for console output
         */
-        IParser p = FhirContext.forR4().newJsonParser().setPrettyPrint(true);
+        HCXFHIRSerializer.warmUp();
+        IParser p = HCXFHIRSerializer.getContext().newJsonParser().setPrettyPrint(true);
+        //Collecting per stage latencies of the request lifecycle, printed after the incoming request below
+        HCXLatencyRegistry metrics = new HCXLatencyRegistry();
+        HCXInstrumentation.setMetrics(metrics);
 
         /**
          * Initializing hcx_sdk to use helper functions and FHIR validator
          * Documentation is available at https://github.com/Swasth-Digital-Health-Foundation/hcx-platform/releases/tag/hcx-integrator-sdk-1.0.0
          */
         String publicKeyUrl = "https://raw.githubusercontent.com/Swasth-Digital-Health-Foundation/hcx-platform/sprint-29/demo-app/server/resources/keys/x509-private-key.pem";
-        String certificate = IOUtils.toString(new URL(publicKeyUrl), StandardCharsets.UTF_8.toString());
+        //Offline startup: with -Dhcx.encryptionPrivateKey=<pem file> the key is read from the file, and with
+        //-Dhcx.validationSnapshot=<file> the validator is built from a local HCXValidationSnapshot instead of the IG url
+        String privateKeyFile = System.getProperty("hcx.encryptionPrivateKey");
+        String snapshotFile = System.getProperty("hcx.validationSnapshot");
+        String certificate = privateKeyFile != null ? new String(Files.readAllBytes(Paths.get(privateKeyFile)), StandardCharsets.UTF_8)
+                : IOUtils.toString(new URL(publicKeyUrl), StandardCharsets.UTF_8.toString());
 
         Map<String, Object> configMap = new HashMap<>();
         configMap.put("protocolBasePath", "http://staging-hcx.swasth.app/api/v0.7");
@@ -43,7 +54,14 @@ public class HCXFHIRResourceCreateExample {
         configMap.put("password", "Opensaber@123");
         configMap.put("encryptionPrivateKey", certificate);
         configMap.put("igUrl", "https://ig.hcxprotocol.io/v0.7");
-        HCXIntegrator.init(configMap);
+        HCXStartup startup = null;
+        if (privateKeyFile != null) {
+            startup = HCXStartup.builder().encryptionPrivateKey(Paths.get(privateKeyFile))
+                    .validationSnapshot(snapshotFile == null ? null : Paths.get(snapshotFile)).integratorConfig(configMap).start();
+            System.out.println("startup \n" + startup.getReport());
+        } else {
+            HCXIntegrator.init(configMap);
+        }
 
         /**
          * Swasth IG version : 0.7.1
@@ -167,7 +185,7 @@ public class HCXFHIRResourceCreateExample {
         /**
          * All the resources in the bundle can be validated using the HCX FHIR validator available in the HCX SDK
          */
-        FhirValidator validator = HCXFHIRValidator.getValidator();
+        FhirValidator validator = startup != null && startup.getValidator() != null ? startup.getValidator() : HCXFHIRValidator.getValidator();
         ValidationResult result1 = validator.validateWithResult(bundleTest);
         for (SingleValidationMessage next : result1.getMessages()) {
             System.out.println(next.getSeverity() + " -- " + next.getLocationString() + " -- " + next.getMessage());
@@ -181,7 +199,7 @@ public class HCXFHIRResourceCreateExample {
         {
             try {
                 outgoing = new HCXOutgoingRequest();
-                outgoing.generate(p.encodeResourceToString(bundleTest), Operations.COVERAGE_ELIGIBILITY_CHECK, "1-29482df3-e875-45ef-a4e9-592b6f565782",outmap);
+                HCXInstrumentation.generate(outgoing, HCXFHIRSerializer.encode(bundleTest), Operations.COVERAGE_ELIGIBILITY_CHECK, "1-29482df3-e875-45ef-a4e9-592b6f565782",outmap);
                 System.out.println("generated payload "+ outmap);
             } catch (Exception e) {
                 System.out.println("Error in generating outgoing payload");
@@ -201,8 +219,9 @@ public class HCXFHIRResourceCreateExample {
                 Map<String, Object> output = new HashMap<>();
                 Map<String, Object> abcd = new HashMap<>();
                 abcd.put("payload",outmap.get("payload"));
-                hcxIncomingRequest.process(JSONUtils.serialize(abcd), Operations.COVERAGE_ELIGIBILITY_CHECK, output);
+                HCXInstrumentation.process(hcxIncomingRequest, JSONUtils.serialize(abcd), Operations.COVERAGE_ELIGIBILITY_CHECK, output);
                 System.out.println("output of incoming request " + output);
+                System.out.println("stage latencies \n" + metrics.report());
             } catch (Exception e) {
                 System.out.println("Error with processing incoming payload");
                 throw new RuntimeException(e);
@@ -0,0 +1,188 @@
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Shared FHIR serialization for the SDK. Holds the single R4 FhirContext of the process and hands out one parser
+ * per thread, so it can be used from any number of threads. Output is compact (not pretty printed) unless one of
+ * the encodePretty methods is used.
+ */
+public class HCXFHIRSerializer {
+
+    private static final FhirContext context = FhirContext.forR4Cached();
+
+    private static final ThreadLocal<IParser> compactParser = ThreadLocal.withInitial(() -> context.newJsonParser().setPrettyPrint(false));
+    private static final ThreadLocal<IParser> prettyParser = ThreadLocal.withInitial(() -> context.newJsonParser().setPrettyPrint(true));
+
+    private static volatile boolean warmedUp = false;
+
+    public static FhirContext getContext() {
+        return context;
+    }
+
+    /**
+     * Returns the compact JSON parser of the calling thread. The parser must not be handed to other threads.
+     */
+    public static IParser parser() {
+        return compactParser.get();
+    }
+
+    public static String encode(IBaseResource resource) {
+        try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.ENCODE, null)) {
+            String json = compactParser.get().encodeResourceToString(resource);
+            span.success(json);
+            return json;
+        }
+    }
+
+    public static String encodePretty(IBaseResource resource) {
+        return prettyParser.get().encodeResourceToString(resource);
+    }
+
+    /**
+     * Encodes the resource as compact UTF-8 JSON straight into the stream. The stream is flushed but not closed.
+     */
+    public static void encode(IBaseResource resource, OutputStream out) throws IOException {
+        try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.ENCODE, null)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            compactParser.get().encodeResourceToWriter(resource, writer);
+            writer.flush();
+            span.success();
+        }
+    }
+
+    /**
+     * Encodes the resource as compact UTF-8 JSON into a heap buffer. The returned buffer wraps the encoding buffer
+     * directly, it is positioned at 0 and its limit is the encoded length.
+     */
+    public static ByteBuffer encodeToByteBuffer(IBaseResource resource) throws IOException {
+        ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream();
+        encode(resource, out);
+        return out.toByteBuffer();
+    }
+
+    /**
+     * Encodes the resource in the compact binary form of HCXBinaryCodec.standard(), for spools and caches within the
+     * deployment. Use encode for anything sent to other participants.
+     */
+    public static byte[] encodeBinary(IBaseResource resource) {
+        try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.ENCODE, null)) {
+            byte[] data = HCXBinaryCodec.standard().encode(resource);
+            span.success(data.length);
+            return data;
+        }
+    }
+
+    /**
+     * Writes the binary form of the resource straight into the stream. The stream is flushed but not closed.
+     */
+    public static void encodeBinary(IBaseResource resource, OutputStream out) throws IOException {
+        try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.ENCODE, null)) {
+            HCXBinaryCodec.standard().encode(resource, out);
+            span.success();
+        }
+    }
+
+    public static <T extends IBaseResource> T parseBinary(Class<T> type, byte[] data) {
+        try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.PARSE, null)) {
+            T resource = HCXBinaryCodec.standard().parse(type, data);
+            span.success(data.length);
+            return resource;
+        }
+    }
+
+    public static <T extends IBaseResource> T parseBinary(Class<T> type, InputStream in) throws IOException {
+        try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.PARSE, null)) {
+            T resource = HCXBinaryCodec.standard().parse(type, in);
+            span.success();
+            return resource;
+        }
+    }
+
+    public static IBaseResource parse(String json) {
+        try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.PARSE, null)) {
+            IBaseResource resource = compactParser.get().parseResource(json);
+            span.success(json);
+            return resource;
+        }
+    }
+
+    public static <T extends IBaseResource> T parse(Class<T> type, String json) {
+        try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.PARSE, null)) {
+            T resource = compactParser.get().parseResource(type, json);
+            span.success(json);
+            return resource;
+        }
+    }
+
+    public static <T extends IBaseResource> T parse(Class<T> type, InputStream in) {
+        try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.PARSE, null)) {
+            T resource = compactParser.get().parseResource(type, new InputStreamReader(in, StandardCharsets.UTF_8));
+            span.success();
+            return resource;
+        }
+    }
+
+    public static <T extends IBaseResource> T parse(Class<T> type, ByteBuffer buffer) {
+        return parse(type, new ByteBufferInputStream(buffer.duplicate()));
+    }
+
+    /**
+     * Loads the model definitions of the HCX resource types and runs one encode/parse round trip so the first real
+     * request does not pay for it. Calling it more than once is cheap.
+     */
+    public static void warmUp() {
+        if (warmedUp) {
+            return;
+        }
+        List<Class<? extends Resource>> types = List.of(Bundle.class, Claim.class, ClaimResponse.class, CoverageEligibilityRequest.class,
+                CoverageEligibilityResponse.class, Coverage.class, Patient.class, Organization.class, Composition.class,
+                Communication.class, CommunicationRequest.class, PaymentNotice.class, PaymentReconciliation.class);
+        for (Class<? extends Resource> type : types) {
+            context.getResourceDefinition(type);
+        }
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setFullUrl("Patient/warmup").setResource(new Patient().setActive(true));
+        compactParser.get().parseResource(Bundle.class, compactParser.get().encodeResourceToString(bundle));
+        warmedUp = true;
+    }
+
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        ExposedByteArrayOutputStream() {
+            super(8192);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
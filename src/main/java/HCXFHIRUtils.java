@@ -1,18 +1,42 @@
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import org.hl7.fhir.r4.model.*;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 
 public class HCXFHIRUtils {
 
-    //Initializing the FHIR parser
-    static IParser p = FhirContext.forR4().newJsonParser().setPrettyPrint(true);
+    //Pretty printing parser on the shared FHIR context, use HCXFHIRSerializer for payloads and from multiple threads
+    static IParser p = HCXFHIRSerializer.getContext().newJsonParser().setPrettyPrint(true);
 
+    /**
+     * Converts a resource with contained resources into a bundle. The input resource is deep copied first and is
+     * never modified, use moveResourceToBundle when the caller does not need the resource afterwards.
+     */
     public static Bundle resourceToBundle(DomainResource res, Bundle.BundleType type, String bundleURL){
-        DomainResource resource = res.copy();
+        try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.BUNDLE, null)) {
+            Bundle bundle = toBundle(res.copy(), type, bundleURL);
+            span.success();
+            return bundle;
+        }
+    }
+
+    /**
+     * Same as resourceToBundle but without the defensive copy. The resource and its contained resources are moved
+     * into the bundle entries: the "#" prefix is stripped from the contained ids, the contained list of the resource
+     * is cleared and the resource itself becomes the last entry of the returned bundle.
+     */
+    public static Bundle moveResourceToBundle(DomainResource resource, Bundle.BundleType type, String bundleURL){
+        try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.BUNDLE, null)) {
+            Bundle bundle = toBundle(resource, type, bundleURL);
+            span.success();
+            return bundle;
+        }
+    }
+
+    private static Bundle toBundle(DomainResource resource, Bundle.BundleType type, String bundleURL){
         Bundle bundle = new Bundle();
         bundle.setId(UUID.randomUUID().toString());
         Meta meta = new Meta();
@@ -23,26 +47,66 @@ public class HCXFHIRUtils {
         bundle.setType((type));
         bundle.setTimestamp(new Date());
         List<Resource> refResources = resource.getContained();
+        List<Bundle.BundleEntryComponent> entries = new ArrayList<>(refResources.size() + 1);
         for (Resource refResource : refResources) {
             String id = refResource.getId().toString().replace("#","");
             refResource.setId(id);
-            bundle.getEntry().add(new Bundle.BundleEntryComponent().setFullUrl(refResource.getResourceType() + "/" + id).setResource(refResource));
+            entries.add(new Bundle.BundleEntryComponent().setFullUrl(refResource.getResourceType() + "/" + id).setResource(refResource));
         }
         //adding the main resource to the bundle entry
         resource.getContained().clear();
-        bundle.getEntry().add(new Bundle.BundleEntryComponent().setFullUrl(resource.getResourceType() + "/" + resource.getId().toString().replace("#","")).setResource(resource));
+        entries.add(new Bundle.BundleEntryComponent().setFullUrl(resource.getResourceType() + "/" + resource.getId().toString().replace("#","")).setResource(resource));
+        bundle.setEntry(entries);
         return bundle;
     }
 
-
+    /**
+     * Converts a bundle back into its main resource with the other entries as contained resources. The input bundle
+     * is deep copied first and is never modified, use moveBundleToResource when the bundle is not needed afterwards.
+     */
     public static DomainResource bundleToResource(Bundle resource){
-        Bundle newBundle = resource.copy();
-        Bundle.BundleEntryComponent par = newBundle.getEntry().get(1);
-        DomainResource dm = (DomainResource) par.getResource();
-        dm.addContained(newBundle.getEntry().get(0).getResource());
-        for(int i=2; i<newBundle.getEntry().size(); i++){
-            dm.addContained(newBundle.getEntry().get(i).getResource());
+        return moveBundleToResource(resource.copy());
+    }
+
+    /**
+     * Same as bundleToResource but without the defensive copy. The entry resources are moved into the returned
+     * resource: the main resource (entry 1) gets the other entry resources added to its contained list and the entry
+     * list of the bundle is cleared.
+     */
+    public static DomainResource moveBundleToResource(Bundle bundle){
+        List<Bundle.BundleEntryComponent> entries = bundle.getEntry();
+        DomainResource dm = (DomainResource) entries.get(1).getResource();
+        dm.addContained(entries.get(0).getResource());
+        for(int i=2; i<entries.size(); i++){
+            dm.addContained(entries.get(i).getResource());
+        }
+        entries.clear();
+        return dm;
+    }
+
+    /**
+     * Same as bundleToResource but picks the main resource by type instead of by position, e.g. ResourceType.Claim.
+     * The input bundle is deep copied first and is never modified.
+     */
+    public static DomainResource bundleToResource(Bundle resource, ResourceType focalType){
+        return moveBundleToResource(resource.copy(), focalType);
+    }
+
+    /**
+     * Same as moveBundleToResource but picks the main resource by type instead of by position. Every other entry
+     * resource is added to the contained list of the main resource and the entry list of the bundle is cleared.
+     */
+    public static DomainResource moveBundleToResource(Bundle bundle, ResourceType focalType){
+        DomainResource dm = (DomainResource) HCXBundleView.of(bundle).findFirst(focalType);
+        if (dm == null) {
+            throw new IllegalArgumentException("Bundle does not contain a " + focalType + " resource");
+        }
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.getResource() != dm) {
+                dm.addContained(entry.getResource());
+            }
         }
+        bundle.getEntry().clear();
         return dm;
     }
 
@@ -0,0 +1,196 @@
+import io.hcxprotocol.utils.Operations;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+/**
+ * Checks of the protocol headers of an incoming HCX request, the same checks HCXIncomingRequest.process of the HCX
+ * SDK runs on the JWE protected header before it decrypts: mandatory headers, sender and recipient codes, api_call_id,
+ * correlation_id and workflow_id as UUIDs, the timestamp and the status. The SDK does not expose them on their own,
+ * so they are ported here for HCXIncomingProcessor, which decrypts with HCXJweDecrypter instead of the SDK.
+ *
+ * Errors are reported with the error codes of the SDK, e.g. ERR_MANDATORY_HEADER_MISSING.
+ */
+public class HCXHeaderValidator {
+
+    public static final String SENDER_CODE = "x-hcx-sender_code";
+    public static final String RECIPIENT_CODE = "x-hcx-recipient_code";
+    public static final String API_CALL_ID = "x-hcx-api_call_id";
+    public static final String CORRELATION_ID = "x-hcx-correlation_id";
+    public static final String WORKFLOW_ID = "x-hcx-workflow_id";
+    public static final String TIMESTAMP = "x-hcx-timestamp";
+    public static final String STATUS = "x-hcx-status";
+
+    private static final List<String> MANDATORY = List.of("alg", "enc", SENDER_CODE, RECIPIENT_CODE, API_CALL_ID, TIMESTAMP, CORRELATION_ID);
+    private static final Set<String> RESPONSE_STATUS = Set.of("response.complete", "response.partial", "response.error", "response.redirect");
+
+    private final String participantCode;
+    private final Duration maxClockSkew;
+    private final Duration maxAge;
+
+    private HCXHeaderValidator(Builder builder) {
+        this.participantCode = builder.participantCode;
+        this.maxClockSkew = builder.maxClockSkew;
+        this.maxAge = builder.maxAge;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns the errors of the headers by error code, empty if they are valid.
+     */
+    public Map<String, String> validate(Map<String, Object> headers, Operations operation) {
+        Map<String, String> errors = new LinkedHashMap<>();
+        boolean response = isResponse(operation);
+        List<String> missing = new ArrayList<>();
+        for (String header : MANDATORY) {
+            if (isBlank(headers.get(header))) {
+                missing.add(header);
+            }
+        }
+        if (response && isBlank(headers.get(STATUS))) {
+            missing.add(STATUS);
+        }
+        if (!missing.isEmpty()) {
+            errors.put("ERR_MANDATORY_HEADER_MISSING", "Mandatory headers are missing: " + missing);
+        }
+        Object sender = headers.get(SENDER_CODE);
+        Object recipient = headers.get(RECIPIENT_CODE);
+        if (!isBlank(sender) && !(sender instanceof String)) {
+            errors.put("ERR_INVALID_SENDER", "Sender code must be a string");
+        }
+        if (!isBlank(recipient) && !(recipient instanceof String)) {
+            errors.put("ERR_INVALID_RECIPIENT", "Recipient code must be a string");
+        } else if (!isBlank(recipient) && participantCode != null && !participantCode.equals(recipient)) {
+            errors.put("ERR_INVALID_RECIPIENT", "Recipient code " + recipient + " is not this participant");
+        }
+        if (!isBlank(sender) && sender.equals(recipient)) {
+            errors.put("ERR_INVALID_SENDER", "Sender and recipient code must be different");
+        }
+        checkUuid(headers, API_CALL_ID, "ERR_INVALID_API_CALL_ID", errors);
+        checkUuid(headers, CORRELATION_ID, "ERR_INVALID_CORRELATION_ID", errors);
+        checkUuid(headers, WORKFLOW_ID, "ERR_INVALID_WORKFLOW_ID", errors);
+        Object timestamp = headers.get(TIMESTAMP);
+        if (!isBlank(timestamp)) {
+            String error = checkTimestamp(String.valueOf(timestamp));
+            if (error != null) {
+                errors.put("ERR_INVALID_TIMESTAMP", error);
+            }
+        }
+        Object status = headers.get(STATUS);
+        if (!isBlank(status) && (response ? !RESPONSE_STATUS.contains(status) : !String.valueOf(status).startsWith("request."))) {
+            errors.put("ERR_INVALID_STATUS", "Status " + status + " is not allowed for " + operation + ", expected "
+                    + (response ? "one of " + new TreeSet<>(RESPONSE_STATUS) : "a request.* status"));
+        }
+        return errors;
+    }
+
+    /**
+     * Throws InvalidHeadersException with all errors if the headers are not valid.
+     */
+    public void check(Map<String, Object> headers, Operations operation) throws InvalidHeadersException {
+        Map<String, String> errors = validate(headers, operation);
+        if (!errors.isEmpty()) {
+            throw new InvalidHeadersException(errors);
+        }
+    }
+
+    /**
+     * on_* operations carry the response to an earlier request.
+     */
+    public static boolean isResponse(Operations operation) {
+        return operation != null && operation.name().contains("_ON_");
+    }
+
+    private String checkTimestamp(String value) {
+        Instant timestamp;
+        try {
+            timestamp = OffsetDateTime.parse(value).toInstant();
+        } catch (DateTimeParseException e) {
+            return "Timestamp " + value + " is not an ISO-8601 date time with offset";
+        }
+        Instant now = Instant.now();
+        if (timestamp.isAfter(now.plus(maxClockSkew))) {
+            return "Timestamp " + value + " is in the future";
+        }
+        if (maxAge != null && timestamp.isBefore(now.minus(maxAge))) {
+            return "Timestamp " + value + " is older than " + maxAge;
+        }
+        return null;
+    }
+
+    private static void checkUuid(Map<String, Object> headers, String header, String code, Map<String, String> errors) {
+        Object value = headers.get(header);
+        if (isBlank(value)) {
+            return;
+        }
+        try {
+            String text = String.valueOf(value);
+            // UUID.fromString accepts shortened groups, the protocol needs the canonical 36 character form
+            if (text.length() != 36 || !UUID.fromString(text).toString().equalsIgnoreCase(text)) {
+                errors.put(code, header + " " + value + " is not a UUID");
+            }
+        } catch (IllegalArgumentException e) {
+            errors.put(code, header + " " + value + " is not a UUID");
+        }
+    }
+
+    private static boolean isBlank(Object value) {
+        return value == null || value instanceof String && ((String) value).trim().isEmpty();
+    }
+
+    public static class Builder {
+        private String participantCode;
+        private Duration maxClockSkew = Duration.ofMinutes(1);
+        private Duration maxAge;
+
+        /**
+         * The participant code of this participant, x-hcx-recipient_code must be equal to it. Not checked when null.
+         */
+        public Builder participantCode(String participantCode) {
+            this.participantCode = participantCode;
+            return this;
+        }
+
+        /**
+         * How far x-hcx-timestamp may be ahead of the local clock, 1 minute by default.
+         */
+        public Builder maxClockSkew(Duration maxClockSkew) {
+            this.maxClockSkew = maxClockSkew;
+            return this;
+        }
+
+        /**
+         * How old x-hcx-timestamp may be, not checked by default.
+         */
+        public Builder maxAge(Duration maxAge) {
+            this.maxAge = maxAge;
+            return this;
+        }
+
+        public HCXHeaderValidator build() {
+            return new HCXHeaderValidator(this);
+        }
+    }
+
+    /**
+     * Protocol headers of an incoming request failed validation. getErrors maps the error codes to their messages.
+     */
+    public static class InvalidHeadersException extends Exception {
+        private final Map<String, String> errors;
+
+        InvalidHeadersException(Map<String, String> errors) {
+            super(errors.toString());
+            this.errors = Collections.unmodifiableMap(errors);
+        }
+
+        public Map<String, String> getErrors() {
+            return errors;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.hcxprotocol.utils.Operations;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Dispatch stage for HCXAsyncSubmitter posting request bodies to an HCX gateway with the non blocking JDK HTTP client.
+ * The output map holds the parsed gateway response under "responseObj", as the HCX SDK does. Responses other than 2xx
+ * complete the future exceptionally with a StatusException.
+ */
+public class HCXHttpDispatcher implements HCXAsyncSubmitter.Dispatcher {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final Map<String, String> paths = new HashMap<>();
+
+    static {
+        paths.put("COVERAGE_ELIGIBILITY_CHECK", "/coverageeligibility/check");
+        paths.put("COVERAGE_ELIGIBILITY_ON_CHECK", "/coverageeligibility/on_check");
+        paths.put("PRE_AUTH_SUBMIT", "/preauth/submit");
+        paths.put("PRE_AUTH_ON_SUBMIT", "/preauth/on_submit");
+        paths.put("CLAIM_SUBMIT", "/claim/submit");
+        paths.put("CLAIM_ON_SUBMIT", "/claim/on_submit");
+        paths.put("PAYMENT_NOTICE_REQUEST", "/paymentnotice/request");
+        paths.put("PAYMENT_NOTICE_ON_REQUEST", "/paymentnotice/on_request");
+        paths.put("COMMUNICATION_REQUEST", "/communication/request");
+        paths.put("COMMUNICATION_ON_REQUEST", "/communication/on_request");
+    }
+
+    private final HttpClient client;
+    private final String protocolBasePath;
+    private final Supplier<String> accessToken;
+
+    /**
+     * @param protocolBasePath e.g. "http://staging-hcx.swasth.app/api/v0.7" or the base path of an HCXStubGateway
+     * @param accessToken supplies the bearer token for each request
+     */
+    public HCXHttpDispatcher(String protocolBasePath, Supplier<String> accessToken) {
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofSeconds(10)).build();
+        this.protocolBasePath = protocolBasePath.endsWith("/") ? protocolBasePath.substring(0, protocolBasePath.length() - 1) : protocolBasePath;
+        this.accessToken = accessToken;
+    }
+
+    public static String path(Operations operation) {
+        String path = paths.get(operation.name());
+        if (path == null) {
+            throw new IllegalArgumentException("No HCX API path known for operation " + operation);
+        }
+        return path;
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> dispatch(Map<String, Object> requestBody, Operations operation) {
+        HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.DISPATCH, operation);
+        HttpRequest request;
+        byte[] body;
+        try {
+            body = mapper.writeValueAsBytes(requestBody);
+            request = HttpRequest.newBuilder(URI.create(protocolBasePath + path(operation)))
+                    .timeout(Duration.ofSeconds(30))
+                    .header("Content-Type", "application/json")
+                    .header("Authorization", "Bearer " + accessToken.get())
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                    .build();
+        } catch (IOException e) {
+            span.close();
+            return CompletableFuture.failedFuture(e);
+        } catch (RuntimeException e) {
+            span.close();
+            throw e;
+        }
+        return send(request).whenComplete((output, error) -> {
+            if (error == null) {
+                span.success(body.length);
+            }
+            span.close();
+        });
+    }
+
+    /**
+     * Posts a request body written to a file, e.g. by the streaming HCXJweEncrypter.encrypt, without loading it.
+     */
+    public CompletableFuture<Map<String, Object>> dispatch(Path requestBody, Operations operation) {
+        HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.DISPATCH, operation);
+        HttpRequest request;
+        long size;
+        try {
+            size = Files.size(requestBody);
+            request = HttpRequest.newBuilder(URI.create(protocolBasePath + path(operation)))
+                    .timeout(Duration.ofSeconds(30))
+                    .header("Content-Type", "application/json")
+                    .header("Authorization", "Bearer " + accessToken.get())
+                    .POST(HttpRequest.BodyPublishers.ofFile(requestBody))
+                    .build();
+        } catch (IOException e) {
+            span.close();
+            return CompletableFuture.failedFuture(e);
+        } catch (RuntimeException e) {
+            span.close();
+            throw e;
+        }
+        return send(request).whenComplete((output, error) -> {
+            if (error == null) {
+                span.success(size);
+            }
+            span.close();
+        });
+    }
+
+    private CompletableFuture<Map<String, Object>> send(HttpRequest request) {
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).thenApply(response -> {
+            String body = new String(response.body(), StandardCharsets.UTF_8);
+            if (response.statusCode() / 100 != 2) {
+                throw new CompletionException(new StatusException(response.statusCode(), body));
+            }
+            Map<String, Object> output = new HashMap<>();
+            try {
+                output.put("responseObj", body.isEmpty() ? new HashMap<>() : mapper.readValue(body, new TypeReference<Map<String, Object>>() {}));
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            return output;
+        });
+    }
+
+    /**
+     * The gateway answered with a status other than 2xx. getBody has the response body.
+     */
+    public static class StatusException extends IOException {
+        private final int statusCode;
+        private final String body;
+
+        StatusException(int statusCode, String body) {
+            super("HCX gateway returned status " + statusCode + ": " + body);
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getBody() {
+            return body;
+        }
+    }
+}
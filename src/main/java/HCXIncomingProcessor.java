@@ -0,0 +1,246 @@
+import ca.uhn.fhir.validation.ValidationResult;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.hcxprotocol.utils.Operations;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Multi threaded processing of incoming HCX requests such as on_check and on_submit callbacks. The private key is
+ * parsed once into an HCXJweDecrypter which is shared by the worker threads. The protocol headers are checked by an
+ * HCXHeaderValidator like HCXIncomingRequest.process of the SDK does, then decrypted payloads go straight into an
+ * HCXBundleView instead of an output map, with an optional validation step before.
+ *
+ * Payloads are queued in a bounded queue. When it is full, submit blocks the caller until a worker takes a payload.
+ * After close, submit returns futures failed with a RejectedExecutionException.
+ */
+public class HCXIncomingProcessor implements AutoCloseable {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final HCXJweDecrypter decrypter;
+    private final HCXHeaderValidator headerValidator;
+    private final Function<Bundle, ValidationResult> validation;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates a processor which checks the protocol headers, but not that the recipient code is this participant.
+     *
+     * @param validation validates the decoded bundle, e.g. HCXValidationCache::validateWithResult, or null to skip it
+     */
+    public HCXIncomingProcessor(HCXJweDecrypter decrypter, Function<Bundle, ValidationResult> validation, int threads, int queueCapacity) {
+        this(decrypter, HCXHeaderValidator.builder().build(), validation, threads, queueCapacity);
+    }
+
+    public HCXIncomingProcessor(HCXJweDecrypter decrypter, HCXHeaderValidator headerValidator, Function<Bundle, ValidationResult> validation,
+                                int threads, int queueCapacity) {
+        this.decrypter = decrypter;
+        this.headerValidator = headerValidator;
+        this.validation = validation;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread thread = new Thread(r, "hcx-incoming-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, (task, pool) -> {
+            // block the submitting thread until there is room in the queue
+            if (pool.isShutdown()) {
+                throw new RejectedExecutionException("HCXIncomingProcessor is closed");
+            }
+            try {
+                pool.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        });
+    }
+
+    /**
+     * Creates a processor using the "encryptionPrivateKey" and "participantCode" of the configuration map passed to
+     * HCXIntegrator.init. The recipient code of incoming requests has to be that participant code.
+     */
+    public static HCXIncomingProcessor fromConfig(Map<String, Object> configMap, Function<Bundle, ValidationResult> validation, int threads, int queueCapacity) throws Exception {
+        HCXHeaderValidator headerValidator = HCXHeaderValidator.builder().participantCode((String) configMap.get("participantCode")).build();
+        return new HCXIncomingProcessor(HCXJweDecrypter.fromPem((String) configMap.get("encryptionPrivateKey")), headerValidator, validation, threads, queueCapacity);
+    }
+
+    /**
+     * Queues a request body ({"payload": jwe}) or a bare JWE for processing.
+     */
+    public CompletableFuture<Incoming> submit(String requestBody, Operations operation) {
+        return execute(() -> process(requestBody, operation, null));
+    }
+
+    private CompletableFuture<Incoming> execute(Callable<Incoming> task) {
+        CompletableFuture<Incoming> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(task.call());
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Queues an on_* callback for processing and completes the request pending in the tracker for its correlation
+     * id with the result. The pending request is failed if the callback cannot be processed after it was decrypted,
+     * e.g. its headers are invalid, and with an InvalidPayloadException if the validation result has errors. A callback
+     * which cannot be decrypted leaves the pending request to time out, as the correlation id in the header of its JWE
+     * is not authenticated. The returned future completes with the result either way once the callback is processed,
+     * so the caller can acknowledge or reject the callback.
+     */
+    public CompletableFuture<Incoming> submit(String requestBody, Operations operation, HCXCorrelationTracker<Incoming> tracker) {
+        return execute(() -> process(requestBody, operation, tracker)).whenComplete((incoming, error) -> {
+            // on errors the pending request was failed already if the callback was decrypted
+            if (error == null) {
+                if (incoming.getValidationResult() != null && !incoming.getValidationResult().isSuccessful()) {
+                    tracker.fail(incoming.getCorrelationId(), new InvalidPayloadException(incoming));
+                } else {
+                    tracker.complete(incoming.getCorrelationId(), incoming);
+                }
+            }
+        });
+    }
+
+    /**
+     * Processes a request body on the calling thread.
+     */
+    public Incoming process(String requestBody, Operations operation) throws Exception {
+        return process(requestBody, operation, null);
+    }
+
+    /**
+     * Processes a request body, failing the request pending in the tracker, if any, when processing fails after the
+     * JWE was decrypted and its headers are authenticated.
+     */
+    private Incoming process(String requestBody, Operations operation, HCXCorrelationTracker<Incoming> tracker) throws Exception {
+        try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.PROCESS, operation)) {
+            long start = System.nanoTime();
+            HCXJweDecrypter.Decrypted decrypted = decrypter.decrypt(jwe(requestBody));
+            Incoming incoming;
+            try {
+                incoming = processDecrypted(decrypted, operation, start);
+            } catch (Exception e) {
+                if (tracker != null) {
+                    tracker.fail((String) decrypted.getHeaders().get(HCXHeaderValidator.CORRELATION_ID), e);
+                }
+                throw e;
+            }
+            span.success(requestBody);
+            return incoming;
+        }
+    }
+
+    private static String jwe(String requestBody) throws Exception {
+        String jwe = requestBody.trim();
+        if (jwe.startsWith("{")) {
+            Map<String, Object> body = mapper.readValue(jwe, new TypeReference<Map<String, Object>>() {});
+            jwe = (String) body.get("payload");
+            if (jwe == null) {
+                throw new IllegalArgumentException("Incoming request does not contain a payload");
+            }
+        }
+        return jwe;
+    }
+
+    private Incoming processDecrypted(HCXJweDecrypter.Decrypted decrypted, Operations operation, long start) throws Exception {
+        headerValidator.check(decrypted.getHeaders(), operation);
+        HCXBundleView view;
+        ValidationResult validationResult = null;
+        if (validation != null) {
+            Bundle bundle = HCXFHIRSerializer.parse(Bundle.class, decrypted.getPayloadAsString());
+            validationResult = validation.apply(bundle);
+            view = HCXBundleView.of(bundle);
+        } else {
+            view = HCXBundleView.parse(decrypted.getPayloadAsString());
+        }
+        return new Incoming(operation, decrypted.getHeaders(), view, validationResult, System.nanoTime() - start);
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * A decrypted incoming request: protocol headers from the JWE protected header and the bundle view.
+     */
+    public static class Incoming {
+        private final Operations operation;
+        private final Map<String, Object> headers;
+        private final HCXBundleView bundle;
+        private final ValidationResult validationResult;
+        private final long nanos;
+
+        Incoming(Operations operation, Map<String, Object> headers, HCXBundleView bundle, ValidationResult validationResult, long nanos) {
+            this.operation = operation;
+            this.headers = headers;
+            this.bundle = bundle;
+            this.validationResult = validationResult;
+            this.nanos = nanos;
+        }
+
+        public Operations getOperation() {
+            return operation;
+        }
+
+        public Map<String, Object> getHeaders() {
+            return headers;
+        }
+
+        public String getApiCallId() {
+            return (String) headers.get("x-hcx-api_call_id");
+        }
+
+        public String getCorrelationId() {
+            return (String) headers.get("x-hcx-correlation_id");
+        }
+
+        public HCXBundleView getBundle() {
+            return bundle;
+        }
+
+        /**
+         * Returns the validation result, or null if the processor was created without validation.
+         */
+        public ValidationResult getValidationResult() {
+            return validationResult;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * The payload of an on_* callback failed validation. getIncoming has the decoded callback and its validation result.
+     */
+    public static class InvalidPayloadException extends Exception {
+        private final Incoming incoming;
+
+        InvalidPayloadException(Incoming incoming) {
+            super("Invalid " + incoming.getOperation() + " payload for correlation id " + incoming.getCorrelationId() + ": "
+                    + incoming.getValidationResult().getMessages().size() + " validation messages");
+            this.incoming = incoming;
+        }
+
+        public Incoming getIncoming() {
+            return incoming;
+        }
+    }
+}
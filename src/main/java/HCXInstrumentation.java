@@ -0,0 +1,195 @@
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ValidationResult;
+import io.hcxprotocol.impl.HCXIncomingRequest;
+import io.hcxprotocol.impl.HCXOutgoingRequest;
+import io.hcxprotocol.utils.Operations;
+import jdk.jfr.EventType;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.util.Map;
+
+/**
+ * Per stage latency instrumentation of the HCX request lifecycle. Each stage is measured with a Span which is passed
+ * to the HCXMetrics registry set with setMetrics and committed as an HCXStageEvent to JFR when it is enabled.
+ *
+ * The builders, HCXFHIRUtils, HCXFHIRSerializer, HCXValidationCache, HCXPreValidator, HCXJweEncrypter,
+ * HCXHttpDispatcher, HCXJweDecrypter and HCXIncomingProcessor are instrumented already. Calls to the HCX SDK can go through generate,
+ * process and validate here to be measured as well.
+ *
+ * <pre>
+ * try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.ENCODE, operation)) {
+ *     String json = encode(bundle);
+ *     span.success(json);
+ *     return json;
+ * }
+ * </pre>
+ * A span closed without success is recorded as failed. Payload sizes are in bytes, text is counted as UTF-8.
+ */
+public final class HCXInstrumentation {
+
+    private static final EventType stageEventType = EventType.getEventType(HCXStageEvent.class);
+
+    private static volatile HCXMetrics metrics = HCXMetrics.NOOP;
+
+    private HCXInstrumentation() {
+    }
+
+    public static HCXMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the registry receiving the measurements of all stages, null restores the no-op default.
+     */
+    public static void setMetrics(HCXMetrics registry) {
+        metrics = registry == null ? HCXMetrics.NOOP : registry;
+    }
+
+    /**
+     * Starts measuring a stage. Returns a shared span doing nothing while no registry is set and the JFR event is
+     * disabled.
+     */
+    public static Span start(HCXMetrics.Stage stage, Operations operation) {
+        HCXMetrics registry = metrics;
+        boolean jfr = stageEventType.isEnabled();
+        if (registry == HCXMetrics.NOOP && !jfr) {
+            return Span.NOOP;
+        }
+        HCXStageEvent event = null;
+        if (jfr) {
+            event = new HCXStageEvent();
+            event.begin();
+        }
+        return new Span(registry, stage, operation, event);
+    }
+
+    /**
+     * HCXOutgoingRequest.generate measured as GENERATE stage, the payload size is the size of the FHIR payload.
+     */
+    public static boolean generate(HCXOutgoingRequest outgoing, String fhirPayload, Operations operation, String recipientCode, Map<String, Object> output) {
+        try (Span span = start(HCXMetrics.Stage.GENERATE, operation)) {
+            boolean generated = outgoing.generate(fhirPayload, operation, recipientCode, output);
+            if (generated) {
+                span.success(fhirPayload);
+            }
+            return generated;
+        }
+    }
+
+    /**
+     * HCXIncomingRequest.process measured as PROCESS stage, the payload size is the size of the request body.
+     */
+    public static boolean process(HCXIncomingRequest incoming, String requestBody, Operations operation, Map<String, Object> output) {
+        try (Span span = start(HCXMetrics.Stage.PROCESS, operation)) {
+            boolean processed = incoming.process(requestBody, operation, output);
+            if (processed) {
+                span.success(requestBody);
+            }
+            return processed;
+        }
+    }
+
+    /**
+     * FhirValidator.validateWithResult measured as VALIDATE stage. A result with errors counts as success, the stage
+     * fails only if the validator throws.
+     */
+    public static ValidationResult validate(FhirValidator validator, Bundle bundle) {
+        try (Span span = start(HCXMetrics.Stage.VALIDATE, null)) {
+            ValidationResult result = validator.validateWithResult(bundle);
+            span.success();
+            return result;
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the text in UTF-8, without encoding it. An unpaired surrogate counts as the one
+     * byte replacement String.getBytes writes for it.
+     */
+    static long utf8Length(CharSequence text) {
+        int length = text.length();
+        long bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                bytes++;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 2;
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Measurement of one stage execution. Not thread safe, but may be closed on another thread than it was started
+     * on, e.g. when an asynchronous call completes.
+     */
+    public static final class Span implements AutoCloseable {
+
+        static final Span NOOP = new Span(HCXMetrics.NOOP, null, null, null);
+
+        private final HCXMetrics registry;
+        private final HCXMetrics.Stage stage;
+        private final Operations operation;
+        private final HCXStageEvent event;
+        private final long start;
+        private long payloadSize = -1;
+        private boolean success;
+        private boolean closed;
+
+        private Span(HCXMetrics registry, HCXMetrics.Stage stage, Operations operation, HCXStageEvent event) {
+            this.registry = registry;
+            this.stage = stage;
+            this.operation = operation;
+            this.event = event;
+            this.start = stage == null ? 0 : System.nanoTime();
+        }
+
+        public void success() {
+            if (this != NOOP) {
+                success = true;
+            }
+        }
+
+        public void success(long payloadSize) {
+            if (this != NOOP) {
+                this.payloadSize = payloadSize;
+                success = true;
+            }
+        }
+
+        /**
+         * Records success with the UTF-8 size of the text as payload size, counted only if the span is recorded.
+         */
+        public void success(CharSequence payload) {
+            if (this != NOOP) {
+                this.payloadSize = utf8Length(payload);
+                success = true;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (this == NOOP || closed) {
+                return;
+            }
+            closed = true;
+            registry.record(stage, operation, System.nanoTime() - start, payloadSize, success);
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.stage = stage.name();
+                    event.operation = operation == null ? null : operation.name();
+                    event.payloadSize = payloadSize;
+                    event.success = success;
+                    event.commit();
+                }
+            }
+        }
+    }
+}
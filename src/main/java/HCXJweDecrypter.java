@@ -0,0 +1,168 @@
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * Decrypts HCX JWE payloads in compact serialization (RSA-OAEP-256 key encryption, A256GCM content encryption).
+ * The PEM private key is parsed once when the decrypter is created and the ciphers are kept per thread, so one
+ * instance can be shared by all threads processing incoming requests.
+ */
+public class HCXJweDecrypter {
+
+    static final OAEPParameterSpec OAEP_SHA256 = new OAEPParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT);
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final Base64.Decoder base64Url = Base64.getUrlDecoder();
+
+    private final PrivateKey privateKey;
+    private final ThreadLocal<Cipher> rsa = ThreadLocal.withInitial(() -> cipher("RSA/ECB/OAEPPadding"));
+    private final ThreadLocal<Cipher> aes = ThreadLocal.withInitial(() -> cipher("AES/GCM/NoPadding"));
+
+    public HCXJweDecrypter(PrivateKey privateKey) {
+        this.privateKey = privateKey;
+    }
+
+    /**
+     * Creates a decrypter from a PEM private key as passed to HCXIntegrator.init in "encryptionPrivateKey", either
+     * PKCS#8 ("BEGIN PRIVATE KEY") or PKCS#1 ("BEGIN RSA PRIVATE KEY").
+     */
+    public static HCXJweDecrypter fromPem(String pem) throws GeneralSecurityException {
+        return new HCXJweDecrypter(parsePrivateKey(pem));
+    }
+
+    public static PrivateKey parsePrivateKey(String pem) throws GeneralSecurityException {
+        boolean pkcs1 = pem.contains("BEGIN RSA PRIVATE KEY");
+        byte[] der = Base64.getMimeDecoder().decode(pem.replaceAll("-----[A-Z ]+-----", ""));
+        if (pkcs1) {
+            der = pkcs1ToPkcs8(der);
+        }
+        return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(der));
+    }
+
+    /**
+     * Decrypts a compact JWE, returning its protected header and the plain text payload.
+     */
+    public Decrypted decrypt(String jwe) throws GeneralSecurityException {
+        try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.DECRYPT, null)) {
+            Decrypted decrypted = decryptCompact(jwe);
+            span.success(decrypted.getPayload().length);
+            return decrypted;
+        }
+    }
+
+    private Decrypted decryptCompact(String jwe) throws GeneralSecurityException {
+        String[] parts = jwe.trim().split("\\.");
+        if (parts.length != 5) {
+            throw new GeneralSecurityException("Invalid JWE compact serialization, expected 5 parts but got " + parts.length);
+        }
+        Map<String, Object> header;
+        try {
+            header = mapper.readValue(base64Url.decode(parts[0]), new TypeReference<Map<String, Object>>() {});
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Invalid JWE protected header", e);
+        }
+        if (!"RSA-OAEP-256".equals(header.get("alg")) || !"A256GCM".equals(header.get("enc"))) {
+            throw new GeneralSecurityException("Unsupported JWE algorithm " + header.get("alg") + "/" + header.get("enc"));
+        }
+        if (header.containsKey("zip")) {
+            throw new GeneralSecurityException("Compressed JWE payloads are not supported");
+        }
+
+        Cipher keyCipher = rsa.get();
+        keyCipher.init(Cipher.DECRYPT_MODE, privateKey, OAEP_SHA256);
+        byte[] cek = keyCipher.doFinal(base64Url.decode(parts[1]));
+
+        byte[] iv = base64Url.decode(parts[2]);
+        byte[] cipherText = base64Url.decode(parts[3]);
+        byte[] tag = base64Url.decode(parts[4]);
+        byte[] input = new byte[cipherText.length + tag.length];
+        System.arraycopy(cipherText, 0, input, 0, cipherText.length);
+        System.arraycopy(tag, 0, input, cipherText.length, tag.length);
+
+        Cipher contentCipher = aes.get();
+        contentCipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cek, "AES"), new GCMParameterSpec(tag.length * 8, iv));
+        contentCipher.updateAAD(parts[0].getBytes(StandardCharsets.US_ASCII));
+        return new Decrypted(header, contentCipher.doFinal(input));
+    }
+
+    private static Cipher cipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Wraps a PKCS#1 RSAPrivateKey structure into a PKCS#8 PrivateKeyInfo structure.
+     */
+    private static byte[] pkcs1ToPkcs8(byte[] pkcs1) {
+        byte[] algorithm = {0x30, 0x0d, 0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x01, 0x05, 0x00};
+        byte[] octetString = concat(new byte[]{0x04}, derLength(pkcs1.length), pkcs1);
+        byte[] body = concat(new byte[]{0x02, 0x01, 0x00}, algorithm, octetString);
+        return concat(new byte[]{0x30}, derLength(body.length), body);
+    }
+
+    private static byte[] derLength(int length) {
+        if (length < 0x80) {
+            return new byte[]{(byte) length};
+        }
+        if (length < 0x100) {
+            return new byte[]{(byte) 0x81, (byte) length};
+        }
+        if (length < 0x10000) {
+            return new byte[]{(byte) 0x82, (byte) (length >> 8), (byte) length};
+        }
+        return new byte[]{(byte) 0x83, (byte) (length >> 16), (byte) (length >> 8), (byte) length};
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        int length = 0;
+        for (byte[] array : arrays) {
+            length += array.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] array : arrays) {
+            System.arraycopy(array, 0, result, offset, array.length);
+            offset += array.length;
+        }
+        return result;
+    }
+
+    public static class Decrypted {
+        private final Map<String, Object> headers;
+        private final byte[] payload;
+
+        Decrypted(Map<String, Object> headers, byte[] payload) {
+            this.headers = headers;
+            this.payload = payload;
+        }
+
+        public Map<String, Object> getHeaders() {
+            return headers;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public String getPayloadAsString() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.hcxprotocol.utils.Operations;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.cert.CertificateFactory;
+import java.security.spec.X509EncodedKeySpec;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Encrypts FHIR payloads into HCX JWE compact serialization (RSA-OAEP-256, A256GCM) with the HCX protocol headers in
+ * the protected header. The recipient public key is parsed once and the ciphers are kept per thread, so one instance
+ * per recipient can be shared between threads. Can be used as the encryption stage of HCXAsyncSubmitter.
+ */
+public class HCXJweEncrypter implements HCXAsyncSubmitter.Encryptor {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final Base64.Encoder base64Url = Base64.getUrlEncoder().withoutPadding();
+
+    private final PublicKey recipientKey;
+    private final String senderCode;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Cipher> rsa = ThreadLocal.withInitial(() -> cipher("RSA/ECB/OAEPPadding"));
+    private final ThreadLocal<Cipher> aes = ThreadLocal.withInitial(() -> cipher("AES/GCM/NoPadding"));
+
+    public HCXJweEncrypter(PublicKey recipientKey, String senderCode) {
+        this.recipientKey = recipientKey;
+        this.senderCode = senderCode;
+    }
+
+    /**
+     * Creates an encrypter from a PEM X.509 certificate ("BEGIN CERTIFICATE") or public key ("BEGIN PUBLIC KEY").
+     */
+    public static HCXJweEncrypter fromPem(String pem, String senderCode) throws GeneralSecurityException {
+        return new HCXJweEncrypter(parsePublicKey(pem), senderCode);
+    }
+
+    public static PublicKey parsePublicKey(String pem) throws GeneralSecurityException {
+        if (pem.contains("BEGIN CERTIFICATE")) {
+            return CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(pem.getBytes(StandardCharsets.US_ASCII))).getPublicKey();
+        }
+        byte[] der = Base64.getMimeDecoder().decode(pem.replaceAll("-----[A-Z ]+-----", ""));
+        return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(der));
+    }
+
+    /**
+     * Returns the request body {"payload": jwe} with new api call and correlation ids.
+     */
+    @Override
+    public Map<String, Object> encrypt(String fhirPayload, Operations operation, String recipientCode) throws Exception {
+        Map<String, Object> headers = protocolHeaders(operation, recipientCode);
+        try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.ENCRYPT, operation)) {
+            String jwe = encrypt(headers, fhirPayload.getBytes(StandardCharsets.UTF_8));
+            Map<String, Object> output = new HashMap<>();
+            output.put("payload", jwe);
+            span.success(jwe);
+            return output;
+        }
+    }
+
+    /**
+     * Streaming variant of encrypt for payloads too large to hold in memory, e.g. bundles with attachments written by
+     * HCXAttachments.encode. The payload is encrypted while the writer produces it and the request body
+     * {"payload": jwe} is written to out as it goes. out is not closed.
+     */
+    public void encrypt(PayloadWriter payload, Operations operation, String recipientCode, OutputStream out) throws Exception {
+        try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.ENCRYPT, operation)) {
+            String encodedHeader = encodedHeader(protocolHeaders(operation, recipientCode));
+            byte[] cek = new byte[32];
+            byte[] iv = new byte[12];
+            random.nextBytes(cek);
+            random.nextBytes(iv);
+
+            Cipher keyCipher = rsa.get();
+            keyCipher.init(Cipher.ENCRYPT_MODE, recipientKey, HCXJweDecrypter.OAEP_SHA256);
+            byte[] encryptedKey = keyCipher.doFinal(cek);
+
+            Cipher contentCipher = aes.get();
+            contentCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cek, "AES"), new GCMParameterSpec(128, iv));
+            contentCipher.updateAAD(encodedHeader.getBytes(StandardCharsets.US_ASCII));
+
+            out.write(("{\"payload\":\"" + encodedHeader + '.' + base64Url.encodeToString(encryptedKey) + '.' + base64Url.encodeToString(iv) + '.')
+                    .getBytes(StandardCharsets.US_ASCII));
+            OutputStream ciphertext = base64Url.wrap(new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                    // keeps out open, the JWE continues after the ciphertext
+                }
+            });
+            CipherStream plaintext = new CipherStream(contentCipher, ciphertext);
+            payload.writeTo(plaintext);
+            // GCM returns the rest of the ciphertext followed by the 16 byte tag on doFinal
+            byte[] last = contentCipher.doFinal();
+            ciphertext.write(last, 0, last.length - 16);
+            ciphertext.close();
+            out.write('.');
+            out.write(base64Url.encode(Arrays.copyOfRange(last, last.length - 16, last.length)));
+            out.write("\"}".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            span.success(plaintext.count);
+        }
+    }
+
+    /**
+     * Writes a plain text payload, see the streaming encrypt.
+     */
+    public interface PayloadWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private Map<String, Object> protocolHeaders(Operations operation, String recipientCode) {
+        Map<String, Object> headers = new LinkedHashMap<>();
+        headers.put("x-hcx-sender_code", senderCode);
+        headers.put("x-hcx-recipient_code", recipientCode);
+        headers.put("x-hcx-api_call_id", UUID.randomUUID().toString());
+        headers.put("x-hcx-correlation_id", UUID.randomUUID().toString());
+        headers.put("x-hcx-timestamp", Instant.now().toString());
+        if (HCXHeaderValidator.isResponse(operation)) {
+            // mandatory on on_* requests
+            headers.put("x-hcx-status", "response.complete");
+        }
+        return headers;
+    }
+
+    private static String encodedHeader(Map<String, Object> protocolHeaders) throws IOException {
+        Map<String, Object> header = new LinkedHashMap<>();
+        header.put("alg", "RSA-OAEP-256");
+        header.put("enc", "A256GCM");
+        header.putAll(protocolHeaders);
+        return base64Url.encodeToString(mapper.writeValueAsBytes(header));
+    }
+
+    /**
+     * Encrypts the payload with the given protocol headers, "alg" and "enc" are added to them.
+     */
+    public String encrypt(Map<String, Object> protocolHeaders, byte[] payload) throws Exception {
+        String encodedHeader = encodedHeader(protocolHeaders);
+
+        byte[] cek = new byte[32];
+        byte[] iv = new byte[12];
+        random.nextBytes(cek);
+        random.nextBytes(iv);
+
+        Cipher keyCipher = rsa.get();
+        keyCipher.init(Cipher.ENCRYPT_MODE, recipientKey, HCXJweDecrypter.OAEP_SHA256);
+        byte[] encryptedKey = keyCipher.doFinal(cek);
+
+        Cipher contentCipher = aes.get();
+        contentCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cek, "AES"), new GCMParameterSpec(128, iv));
+        contentCipher.updateAAD(encodedHeader.getBytes(StandardCharsets.US_ASCII));
+        byte[] sealed = contentCipher.doFinal(payload);
+        int cipherLength = sealed.length - 16;
+
+        return encodedHeader + '.' + base64Url.encodeToString(encryptedKey) + '.' + base64Url.encodeToString(iv) + '.'
+                + base64Url.encodeToString(Arrays.copyOfRange(sealed, 0, cipherLength)) + '.'
+                + base64Url.encodeToString(Arrays.copyOfRange(sealed, cipherLength, sealed.length));
+    }
+
+    /**
+     * Feeds written plain text through the cipher in fixed size pieces into the base64url encoded ciphertext.
+     */
+    private static final class CipherStream extends OutputStream {
+        private static final int PIECE = 8192;
+        private final Cipher cipher;
+        private final OutputStream ciphertext;
+        private final byte[] output = new byte[PIECE + 16];
+        long count;
+
+        CipherStream(Cipher cipher, OutputStream ciphertext) {
+            this.cipher = cipher;
+            this.ciphertext = ciphertext;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+            try {
+                for (int end = off + len; off < end; off += PIECE) {
+                    int n = cipher.update(b, off, Math.min(PIECE, end - off), output);
+                    ciphertext.write(output, 0, n);
+                }
+            } catch (ShortBufferException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private static Cipher cipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
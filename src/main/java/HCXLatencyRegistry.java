@@ -0,0 +1,283 @@
+import io.hcxprotocol.utils.Operations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In memory HCXMetrics registry keeping a latency histogram, success and failure counters and payload size gauges
+ * per stage and operation. Recording does not allocate and does not lock.
+ *
+ * The histogram has 8 linear sub buckets per power of two, so percentiles are accurate to about 12.5%. Latencies
+ * above 2^40 ns (about 18 minutes) are counted in the last bucket.
+ */
+public class HCXLatencyRegistry implements HCXMetrics {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private static final Stage[] stages = Stage.values();
+    private static final Operations[] operations = Operations.values();
+
+    // index stage * (operations + 1) + operation ordinal + 1, 0 for stages without operation
+    private final AtomicReferenceArray<Histogram> histograms = new AtomicReferenceArray<>(stages.length * (operations.length + 1));
+
+    @Override
+    public void record(Stage stage, Operations operation, long nanos, long payloadSize, boolean success) {
+        int index = stage.ordinal() * (operations.length + 1) + (operation == null ? 0 : operation.ordinal() + 1);
+        Histogram histogram = histograms.get(index);
+        if (histogram == null) {
+            histograms.compareAndSet(index, null, new Histogram(stage, operation));
+            histogram = histograms.get(index);
+        }
+        histogram.record(nanos, payloadSize, success);
+    }
+
+    /**
+     * Returns the snapshot of one stage and operation, operation null for measurements without operation.
+     */
+    public Snapshot snapshot(Stage stage, Operations operation) {
+        Histogram histogram = histograms.get(stage.ordinal() * (operations.length + 1) + (operation == null ? 0 : operation.ordinal() + 1));
+        return histogram == null ? new Histogram(stage, operation).snapshot() : histogram.snapshot();
+    }
+
+    /**
+     * Returns the snapshot of one stage over all operations.
+     */
+    public Snapshot snapshot(Stage stage) {
+        Histogram merged = new Histogram(stage, null);
+        for (int i = 0; i <= operations.length; i++) {
+            Histogram histogram = histograms.get(stage.ordinal() * (operations.length + 1) + i);
+            if (histogram != null) {
+                merged.add(histogram);
+            }
+        }
+        return merged.snapshot();
+    }
+
+    /**
+     * Returns the snapshots of every stage and operation with at least one measurement.
+     */
+    public List<Snapshot> snapshots() {
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (int i = 0; i < histograms.length(); i++) {
+            Histogram histogram = histograms.get(i);
+            if (histogram != null) {
+                snapshots.add(histogram.snapshot());
+            }
+        }
+        return snapshots;
+    }
+
+    public void reset() {
+        for (int i = 0; i < histograms.length(); i++) {
+            histograms.set(i, null);
+        }
+    }
+
+    /**
+     * Returns a table with one line per stage and operation.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder(String.format("%-9s %-27s %9s %7s %10s %10s %10s %10s %10s %12s%n",
+                "stage", "operation", "count", "failed", "mean ms", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "max payload"));
+        for (Snapshot snapshot : snapshots()) {
+            report.append(String.format("%-9s %-27s %9d %7d %10.3f %10.3f %10.3f %10.3f %10.3f %12d%n",
+                    snapshot.getStage(), snapshot.getOperation() == null ? "-" : snapshot.getOperation(), snapshot.getCount(),
+                    snapshot.getFailures(), snapshot.getMeanNanos() / 1e6, snapshot.getPercentileNanos(50) / 1e6,
+                    snapshot.getPercentileNanos(99) / 1e6, snapshot.getPercentileNanos(99.9) / 1e6,
+                    snapshot.getMaxNanos() / 1e6, snapshot.getMaxPayloadSize()));
+        }
+        return report.toString();
+    }
+
+    @Override
+    public String toString() {
+        return report();
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(nanos, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    private static final class Histogram {
+        private final Stage stage;
+        private final Operations operation;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final LongAdder totalPayloadSize = new LongAdder();
+        private final AtomicLong maxPayloadSize = new AtomicLong(-1);
+        private volatile long lastPayloadSize = -1;
+
+        Histogram(Stage stage, Operations operation) {
+            this.stage = stage;
+            this.operation = operation;
+        }
+
+        void record(long nanos, long payloadSize, boolean success) {
+            buckets.incrementAndGet(bucket(nanos));
+            count.increment();
+            if (!success) {
+                failures.increment();
+            }
+            totalNanos.add(nanos);
+            if (nanos > maxNanos.get()) {
+                maxNanos.accumulateAndGet(nanos, Math::max);
+            }
+            if (payloadSize >= 0) {
+                totalPayloadSize.add(payloadSize);
+                lastPayloadSize = payloadSize;
+                if (payloadSize > maxPayloadSize.get()) {
+                    maxPayloadSize.accumulateAndGet(payloadSize, Math::max);
+                }
+            }
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.addAndGet(i, other.buckets.get(i));
+            }
+            count.add(other.count.sum());
+            failures.add(other.failures.sum());
+            totalNanos.add(other.totalNanos.sum());
+            maxNanos.accumulateAndGet(other.maxNanos.get(), Math::max);
+            totalPayloadSize.add(other.totalPayloadSize.sum());
+            maxPayloadSize.accumulateAndGet(other.maxPayloadSize.get(), Math::max);
+            if (other.lastPayloadSize >= 0) {
+                lastPayloadSize = other.lastPayloadSize;
+            }
+        }
+
+        Snapshot snapshot() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return new Snapshot(stage, operation, counts, count.sum(), failures.sum(), totalNanos.sum(), maxNanos.get(),
+                    totalPayloadSize.sum(), maxPayloadSize.get(), lastPayloadSize);
+        }
+    }
+
+    /**
+     * Point in time copy of the measurements of one stage. The values are read one after the other while recording
+     * goes on, so the count may be slightly off from the sum of the histogram buckets.
+     */
+    public static final class Snapshot {
+        private final Stage stage;
+        private final Operations operation;
+        private final long[] buckets;
+        private final long count;
+        private final long failures;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long totalPayloadSize;
+        private final long maxPayloadSize;
+        private final long lastPayloadSize;
+
+        Snapshot(Stage stage, Operations operation, long[] buckets, long count, long failures, long totalNanos, long maxNanos,
+                 long totalPayloadSize, long maxPayloadSize, long lastPayloadSize) {
+            this.stage = stage;
+            this.operation = operation;
+            this.buckets = buckets;
+            this.count = count;
+            this.failures = failures;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.totalPayloadSize = totalPayloadSize;
+            this.maxPayloadSize = maxPayloadSize;
+            this.lastPayloadSize = lastPayloadSize;
+        }
+
+        public Stage getStage() {
+            return stage;
+        }
+
+        /**
+         * Returns the operation, or null for measurements without operation and for snapshots merged over all operations.
+         */
+        public Operations getOperation() {
+            return operation;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public double getMeanNanos() {
+            return count == 0 ? 0 : (double) totalNanos / count;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        /**
+         * Returns the upper bound of the histogram bucket holding the given percentile, e.g. 99.9, capped at the maximum.
+         */
+        public long getPercentileNanos(double percentile) {
+            long total = 0;
+            for (long bucket : buckets) {
+                total += bucket;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        public long getTotalPayloadSize() {
+            return totalPayloadSize;
+        }
+
+        /**
+         * Returns the largest payload size recorded, or -1 if none was.
+         */
+        public long getMaxPayloadSize() {
+            return maxPayloadSize;
+        }
+
+        /**
+         * Returns the most recent payload size recorded, or -1 if none was.
+         */
+        public long getLastPayloadSize() {
+            return lastPayloadSize;
+        }
+    }
+}
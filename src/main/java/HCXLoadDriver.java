@@ -0,0 +1,363 @@
+import ca.uhn.fhir.validation.ValidationResult;
+import io.hcxprotocol.impl.HCXOutgoingRequest;
+import io.hcxprotocol.utils.Operations;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.nio.file.Paths;
+import java.security.KeyPairGenerator;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Load driver pushing an HCXWorkload through bundle, encode, validate and generate against a local HCXStubGateway at
+ * a target rate, and reporting throughput and latency percentiles.
+ *
+ * The load is open loop: request i is scheduled at start + i / rate whether or not the previous ones have completed,
+ * and its latency is measured from that scheduled time, so time spent waiting for a free worker counts as it would for
+ * real traffic. With rate 0 the workers send requests back to back instead. Every stage is measured through
+ * HCXInstrumentation, the whole request as Stage.REQUEST, in an HCXLatencyRegistry which is reset after the warm-up.
+ *
+ * By default generate runs as HCXJweEncrypter and HCXHttpDispatcher against a stub gateway started for the run, with
+ * a throwaway recipient key. With sdkGenerate HCXOutgoingRequest.generate of the HCX SDK is used instead, HCXIntegrator
+ * then has to be initialized against the gateway passed to gateway.
+ *
+ * Usage: HCXLoadDriver [rate per second, 0 for back to back] [seconds] [threads] [seed]
+ */
+public final class HCXLoadDriver {
+
+    private static final String SENDER_CODE = "hcx-load-driver";
+    private static final String RECIPIENT_CODE = "hcx-load-recipient";
+
+    private final Builder config;
+    private final HCXLatencyRegistry registry = new HCXLatencyRegistry();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+    private final AtomicLong nextIndex = new AtomicLong();
+    private HCXJweEncrypter encrypter;
+    private HCXHttpDispatcher dispatcher;
+
+    private HCXLoadDriver(Builder config) {
+        this.config = config;
+    }
+
+    public static Builder builder(HCXWorkload workload) {
+        return new Builder(workload);
+    }
+
+    public static void main(String[] args) throws Exception {
+        // before the stub gateway starts, see HCXStubGateway
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        double rate = args.length > 0 ? Double.parseDouble(args[0]) : 200;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+        HCXWorkload workload = HCXWorkload.builder(seed).items(1, 8).attachments(Integer.getInteger("hcx.attachmentKb", 0), 0.2).build();
+        Builder builder = builder(workload).rate(rate).duration(Duration.ofSeconds(seconds)).threads(threads);
+        String snapshot = System.getProperty("hcx.validationSnapshot");
+        if (snapshot != null) {
+            HCXStartup startup = HCXStartup.builder().validationSnapshot(Paths.get(snapshot)).start();
+            builder.validation(bundle -> HCXInstrumentation.validate(startup.getValidator(), bundle));
+        }
+        System.out.println(builder.run());
+    }
+
+    private Report run() throws Exception {
+        HCXStubGateway stub = null;
+        String protocolBasePath = config.protocolBasePath;
+        if (protocolBasePath == null) {
+            stub = new HCXStubGateway().setLatencyMillis(config.gatewayLatency.toMillis());
+            protocolBasePath = stub.getProtocolBasePath();
+        }
+        if (!config.sdkGenerate) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            encrypter = new HCXJweEncrypter(generator.generateKeyPair().getPublic(), SENDER_CODE);
+            dispatcher = new HCXHttpDispatcher(protocolBasePath, () -> "load-driver-token");
+        }
+        HCXMetrics previous = HCXInstrumentation.getMetrics();
+        HCXInstrumentation.setMetrics(registry);
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(config.threads, r -> {
+            Thread thread = new Thread(r, "hcx-load-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            if (!config.warmUp.isZero()) {
+                runPhase(workers, config.warmUp);
+            }
+            registry.reset();
+            requests.reset();
+            failures.reset();
+            invalid.reset();
+            long start = System.nanoTime();
+            long bytesBefore = stub == null ? 0 : stub.getBytesReceived();
+            runPhase(workers, config.duration);
+            long nanos = System.nanoTime() - start;
+            return new Report(config.rate, config.threads, requests.sum(), failures.sum(), invalid.sum(), nanos,
+                    stub == null ? -1 : stub.getBytesReceived() - bytesBefore, registry);
+        } finally {
+            workers.shutdownNow();
+            HCXInstrumentation.setMetrics(previous);
+            if (stub != null) {
+                stub.close();
+            }
+        }
+    }
+
+    /**
+     * Sends requests for the given time and waits until the last one has completed.
+     */
+    private void runPhase(ExecutorService workers, Duration duration) throws InterruptedException {
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        LongAdder done = new LongAdder();
+        long submitted = 0;
+        if (config.rate > 0) {
+            double period = 1e9 / config.rate;
+            for (long i = 0; ; i++) {
+                long scheduled = start + (long) (i * period);
+                if (scheduled >= end) {
+                    break;
+                }
+                long wait = scheduled - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                workers.execute(() -> {
+                    send(scheduled);
+                    done.increment();
+                });
+                submitted++;
+            }
+        } else {
+            for (int t = 0; t < config.threads; t++) {
+                workers.execute(() -> {
+                    long now;
+                    while ((now = System.nanoTime()) < end) {
+                        send(now);
+                    }
+                    done.increment();
+                });
+            }
+            submitted = config.threads;
+        }
+        while (done.sum() < submitted) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void send(long scheduled) {
+        boolean success = false;
+        long size = -1;
+        HCXWorkload.Request request = null;
+        try {
+            request = config.workload.request(nextIndex.getAndIncrement());
+            Bundle bundle = request.getBundle();
+            String payload = HCXFHIRSerializer.encode(bundle);
+            size = HCXInstrumentation.utf8Length(payload);
+            if (config.validation != null) {
+                ValidationResult result = config.validation.apply(bundle);
+                if (!result.isSuccessful()) {
+                    invalid.increment();
+                }
+            }
+            if (config.sdkGenerate) {
+                Map<String, Object> output = new HashMap<>();
+                if (!HCXInstrumentation.generate(new HCXOutgoingRequest(), payload, request.getOperation(), RECIPIENT_CODE, output)) {
+                    throw new IllegalStateException("Error in generating outgoing payload: " + output);
+                }
+            } else {
+                dispatcher.dispatch(encrypter.encrypt(payload, request.getOperation(), RECIPIENT_CODE), request.getOperation()).join();
+            }
+            success = true;
+        } catch (Exception e) {
+            failures.increment();
+        } finally {
+            requests.increment();
+            Operations operation = request == null ? null : request.getOperation();
+            registry.record(HCXMetrics.Stage.REQUEST, operation, System.nanoTime() - scheduled, size, success);
+        }
+    }
+
+    public static class Builder {
+        private final HCXWorkload workload;
+        private double rate = 100;
+        private Duration duration = Duration.ofSeconds(30);
+        private Duration warmUp = Duration.ofSeconds(10);
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private Function<Bundle, ValidationResult> validation;
+        private Duration gatewayLatency = Duration.ZERO;
+        private String protocolBasePath;
+        private boolean sdkGenerate;
+
+        private Builder(HCXWorkload workload) {
+            this.workload = workload;
+        }
+
+        /**
+         * Target rate in requests per second, 100 by default, 0 to send back to back from every thread.
+         */
+        public Builder rate(double requestsPerSecond) {
+            this.rate = requestsPerSecond;
+            return this;
+        }
+
+        /**
+         * Length of the measured run, 30 seconds by default.
+         */
+        public Builder duration(Duration duration) {
+            this.duration = duration;
+            return this;
+        }
+
+        /**
+         * Length of the unmeasured run before, at the same rate, 10 seconds by default.
+         */
+        public Builder warmUp(Duration warmUp) {
+            this.warmUp = warmUp;
+            return this;
+        }
+
+        /**
+         * Number of worker threads, the number of processors by default.
+         */
+        public Builder threads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("threads must be at least 1");
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Validation between encode and generate, none by default. Results with errors are counted as invalid, the
+         * request is still sent. Use an instrumented validation, e.g. HCXInstrumentation.validate or HCXPreValidator,
+         * for the stage to show up in the report.
+         */
+        public Builder validation(Function<Bundle, ValidationResult> validation) {
+            this.validation = validation;
+            return this;
+        }
+
+        /**
+         * Artificial latency of the stub gateway started for the run, none by default.
+         */
+        public Builder gatewayLatency(Duration latency) {
+            this.gatewayLatency = latency;
+            return this;
+        }
+
+        /**
+         * Sends to this gateway, e.g. a shared HCXStubGateway, instead of starting a stub for the run.
+         */
+        public Builder gateway(String protocolBasePath) {
+            this.protocolBasePath = protocolBasePath;
+            return this;
+        }
+
+        /**
+         * Generates with HCXOutgoingRequest.generate of the HCX SDK, which must have been initialized against the
+         * gateway.
+         */
+        public Builder sdkGenerate(boolean sdkGenerate) {
+            this.sdkGenerate = sdkGenerate;
+            return this;
+        }
+
+        public Report run() throws Exception {
+            return new HCXLoadDriver(this).run();
+        }
+    }
+
+    /**
+     * Throughput and latency of the measured run. Latencies are taken from Stage.REQUEST of the registry, which also
+     * holds the latencies of the single stages.
+     */
+    public static final class Report {
+        private final double targetRate;
+        private final int threads;
+        private final long requests;
+        private final long failures;
+        private final long invalid;
+        private final long nanos;
+        private final long bytesSent;
+        private final HCXLatencyRegistry registry;
+        private final HCXLatencyRegistry.Snapshot latency;
+
+        Report(double targetRate, int threads, long requests, long failures, long invalid, long nanos, long bytesSent, HCXLatencyRegistry registry) {
+            this.targetRate = targetRate;
+            this.threads = threads;
+            this.requests = requests;
+            this.failures = failures;
+            this.invalid = invalid;
+            this.nanos = nanos;
+            this.bytesSent = bytesSent;
+            this.registry = registry;
+            this.latency = registry.snapshot(HCXMetrics.Stage.REQUEST);
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * Returns the number of requests whose validation result had errors.
+         */
+        public long getInvalid() {
+            return invalid;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Returns the completed requests per second.
+         */
+        public double getThroughput() {
+            return requests / (nanos / 1e9);
+        }
+
+        public long getPercentileNanos(double percentile) {
+            return latency.getPercentileNanos(percentile);
+        }
+
+        /**
+         * Returns the bytes received by the stub gateway, or -1 if an external gateway was used.
+         */
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public HCXLatencyRegistry getRegistry() {
+            return registry;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("target %s/s, %d threads: %d requests in %.1f s, %.1f/s, %d failed, %d invalid%s%n"
+                            + "latency p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms%n%s",
+                    targetRate > 0 ? String.format("%.0f", targetRate) : "unlimited", threads, requests, nanos / 1e9, getThroughput(),
+                    failures, invalid, bytesSent < 0 ? "" : String.format(", %.1f MB sent", bytesSent / 1e6),
+                    getPercentileNanos(50) / 1e6, getPercentileNanos(99) / 1e6, getPercentileNanos(99.9) / 1e6,
+                    latency.getMaxNanos() / 1e6, registry.report());
+        }
+    }
+}
@@ -0,0 +1,50 @@
+import io.hcxprotocol.utils.Operations;
+
+/**
+ * Receives one measurement per completed stage of an HCX request, see HCXInstrumentation. Implementations turn them
+ * into latency histograms, counters and payload size gauges, e.g. HCXLatencyRegistry or an adapter to the metrics
+ * library of the application. Implementations are called from many threads and must not block.
+ */
+public interface HCXMetrics {
+
+    enum Stage {
+        /** building a resource with one of the HCX builders */
+        BUILD,
+        /** resourceToBundle and moveResourceToBundle, no payload size */
+        BUNDLE,
+        /** FHIR JSON encoding */
+        ENCODE,
+        /** FHIR validation */
+        VALIDATE,
+        /** HCXPreValidator checks, no payload size */
+        PREVALIDATE,
+        /** JWE encryption */
+        ENCRYPT,
+        /** HTTP round trip to the gateway */
+        DISPATCH,
+        /** HCXOutgoingRequest.generate of the HCX SDK, encryption and HTTP round trip together */
+        GENERATE,
+        /** JWE decryption of an incoming request */
+        DECRYPT,
+        /** FHIR JSON parsing */
+        PARSE,
+        /** processing of an incoming request as a whole */
+        PROCESS,
+        /** an outgoing request of HCXLoadDriver as a whole, from its scheduled start to the gateway response */
+        REQUEST
+    }
+
+    /**
+     * Used when no registry is set. HCXInstrumentation does not take timestamps at all while this one is set and no
+     * JFR recording has HCX events enabled.
+     */
+    HCXMetrics NOOP = (stage, operation, nanos, payloadSize, success) -> {
+    };
+
+    /**
+     * @param operation the HCX operation, or null if the stage is not tied to one
+     * @param payloadSize size of the stage payload in bytes, text counted as UTF-8, or -1 if not known
+     * @param success false if the stage threw an exception or completed exceptionally
+     */
+    void record(Stage stage, Operations operation, long nanos, long payloadSize, boolean success);
+}
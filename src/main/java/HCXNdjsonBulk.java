@@ -0,0 +1,572 @@
+import ca.uhn.fhir.util.FhirTerser;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bulk conversion between FHIR NDJSON resource dumps and NDJSON files of HCX bundles, one bundle per line.
+ *
+ * On import every focal resource (a resource of one of the types passed with the bundle profiles, e.g. Claim) is
+ * bundled together with the resources it references, e.g. Claim.patient, Claim.insurance.coverage, Claim.provider
+ * and Claim.insurer, and with the resources those reference in turn, e.g. Coverage.payor. References are resolved
+ * by "Type/id" against an index of all non focal resources of the file, so the order of the lines does not matter:
+ * <pre>
+ * {"resourceType":"Patient","id":"RVH1003",...}
+ * {"resourceType":"Claim","id":"CLAIM1","patient":{"reference":"Patient/RVH1003"},...}   bundle of Patient and Claim
+ * {"resourceType":"Claim","id":"CLAIM2","patient":{"reference":"Patient/RVH1003"},...}   bundle of Patient and Claim
+ * </pre>
+ * A resource referenced by several focal resources goes into each of their bundles. References which do not
+ * resolve, absolute references and references to other focal resources are left as they are. When a Type/id occurs
+ * more than once, the first line wins. Export turns every bundle line back into one line per entry resource.
+ *
+ * The input file is memory mapped in windows of a fixed size and split at line boundaries into as many ranges as
+ * there are threads. Import first indexes the ranges in parallel, then bundles them. Each thread writes its range to
+ * a part file next to the output, the parts are appended to the output in order at the end. A window is unmapped as
+ * soon as the reader moves past it. Memory use therefore depends on the window size, the number of threads, the
+ * largest bundle and, for import, the index: the offset and length of every non focal resource by Type/id.
+ */
+public class HCXNdjsonBulk {
+
+    private static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final JsonFactory factory = new JsonFactory();
+
+    // sun.misc.Unsafe.invokeCleaner, used to unmap windows and by HCXOutbox for deleted segments, see unmap
+    private static final Method invokeCleaner;
+    private static final Object unsafe;
+
+    static {
+        Method method = null;
+        Object instance = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            instance = field.get(null);
+            method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // not available, windows are unmapped by the garbage collector
+        }
+        invokeCleaner = method;
+        unsafe = instance;
+    }
+
+    private final Map<ResourceType, String> bundleProfiles;
+    private final Bundle.BundleType bundleType;
+    private final int threads;
+    private final int windowSize;
+
+    /**
+     * @param bundleProfiles bundle profile URL per focal resource type, e.g. Claim to the claim request bundle profile
+     */
+    public HCXNdjsonBulk(Map<ResourceType, String> bundleProfiles, Bundle.BundleType bundleType, int threads) {
+        this(bundleProfiles, bundleType, threads, DEFAULT_WINDOW_SIZE);
+    }
+
+    public HCXNdjsonBulk(Map<ResourceType, String> bundleProfiles, Bundle.BundleType bundleType, int threads, int windowSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        if (windowSize < 4096) {
+            throw new IllegalArgumentException("windowSize must be at least 4096 bytes");
+        }
+        this.bundleProfiles = new EnumMap<>(bundleProfiles);
+        this.bundleType = bundleType;
+        this.threads = threads;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Reads an NDJSON file of resources and writes an NDJSON file of bundles, see the class comment for the grouping.
+     * Resources no focal resource references are not written and counted as orphans in the summary.
+     */
+    public Summary importResources(Path resources, Path bundles) throws IOException {
+        return run(resources, bundles, true);
+    }
+
+    /**
+     * Reads an NDJSON file of bundles and writes an NDJSON file with one line per entry resource.
+     */
+    public Summary exportResources(Path bundles, Path resources) throws IOException {
+        return run(bundles, resources, false);
+    }
+
+    private Summary run(Path input, Path output, boolean importing) throws IOException {
+        long start = System.nanoTime();
+        List<Path> parts = new ArrayList<>();
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "hcx-ndjson-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            long[] bounds = split(channel);
+            Map<String, Line> index = new HashMap<>();
+            Set<String> used = ConcurrentHashMap.newKeySet();
+            if (importing) {
+                List<Future<Map<String, Line>>> futures = new ArrayList<>();
+                for (int i = 0; i + 1 < bounds.length; i++) {
+                    long from = bounds[i];
+                    long to = bounds[i + 1];
+                    futures.add(executor.submit(() -> indexRange(channel, from, to)));
+                }
+                // ranges are merged in file order, so the first line of a Type/id wins across ranges as well
+                for (Future<Map<String, Line>> future : futures) {
+                    get(future).forEach(index::putIfAbsent);
+                }
+            }
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                Path part = Files.createTempFile(output.toAbsolutePath().getParent(), output.getFileName() + ".", ".part");
+                parts.add(part);
+                long from = bounds[i];
+                long to = bounds[i + 1];
+                futures.add(executor.submit(() -> importing ? importRange(channel, from, to, index, used, part) : exportRange(channel, from, to, part)));
+            }
+            long[] totals = new long[2];
+            for (Future<long[]> future : futures) {
+                long[] counts = get(future);
+                for (int i = 0; i < totals.length; i++) {
+                    totals[i] += counts[i];
+                }
+            }
+            try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Path part : parts) {
+                    try (FileChannel in = FileChannel.open(part, StandardOpenOption.READ)) {
+                        long size = in.size();
+                        for (long position = 0; position < size; ) {
+                            position += in.transferTo(position, size - position, out);
+                        }
+                    }
+                }
+            }
+            return new Summary(totals[0], totals[1], index.size() - used.size(), channel.size(), Files.size(output), System.nanoTime() - start);
+        } finally {
+            executor.shutdownNow();
+            for (Path part : parts) {
+                Files.deleteIfExists(part);
+            }
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the NDJSON workers", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the range boundaries: the start of the file, one position per additional thread and the end of the file.
+     * Every boundary is the start of a line.
+     */
+    private long[] split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long[] bounds = new long[threads + 1];
+        int n = 1;
+        for (int i = 1; i < threads; i++) {
+            long target = Math.max(size * i / threads, bounds[n - 1]);
+            long bound;
+            try (LineReader reader = new LineReader(channel, target == 0 ? 0 : target - 1, size, windowSize)) {
+                // skip to the start of the next line, the line containing target - 1 belongs to the previous range
+                reader.skipLine();
+                bound = reader.position();
+            }
+            if (bound > bounds[n - 1] && bound < size) {
+                bounds[n++] = bound;
+            }
+        }
+        bounds[n++] = size;
+        return Arrays.copyOf(bounds, n);
+    }
+
+    /**
+     * Returns the position of every non focal resource of the range by "Type/id".
+     */
+    private Map<String, Line> indexRange(FileChannel channel, long from, long to) throws IOException {
+        Map<String, Line> index = new HashMap<>();
+        try (LineReader reader = new LineReader(channel, from, to, windowSize)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] typeAndId = typeAndId(line, reader.lineStart());
+                if (typeAndId[1] != null && !isFocal(typeAndId[0])) {
+                    index.putIfAbsent(typeAndId[0] + '/' + typeAndId[1], new Line(reader.lineStart(), reader.lineLength()));
+                }
+            }
+        }
+        return index;
+    }
+
+    private long[] importRange(FileChannel channel, long from, long to, Map<String, Line> index, Set<String> used, Path part) throws IOException {
+        FhirTerser terser = HCXFHIRSerializer.getContext().newTerser();
+        long lines = 0;
+        long bundles = 0;
+        try (LineReader reader = new LineReader(channel, from, to, windowSize);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(part), 1 << 16)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                String type = typeAndId(line, reader.lineStart())[0];
+                if (!isFocal(type)) {
+                    continue;
+                }
+                String bundleProfile = bundleProfiles.get(ResourceType.fromCode(type));
+                DomainResource resource = parse(line, reader.lineStart());
+                List<DomainResource> referenced = referenced(channel, terser, resource, index);
+                for (DomainResource r : referenced) {
+                    used.add(r.getResourceType() + "/" + r.getIdElement().getIdPart());
+                }
+                HCXFHIRUtils.addContainedToResource(resource, referenced.toArray(new DomainResource[0]));
+                // the resources were parsed for this bundle only, so they can be moved instead of copied
+                HCXFHIRSerializer.encode(HCXFHIRUtils.moveResourceToBundle(resource, bundleType, bundleProfile), out);
+                out.write('\n');
+                bundles++;
+            }
+        }
+        return new long[]{lines, bundles};
+    }
+
+    /**
+     * Resolves the references of the focal resource against the index and parses the resources they point to,
+     * following the references of those as well. Each resource is returned once, in the order it was first referenced.
+     */
+    private static List<DomainResource> referenced(FileChannel channel, FhirTerser terser, DomainResource focal, Map<String, Line> index) throws IOException {
+        List<DomainResource> referenced = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        seen.add(focal.getResourceType() + "/" + focal.getIdElement().getIdPart());
+        Deque<DomainResource> pending = new ArrayDeque<>();
+        pending.add(focal);
+        while (!pending.isEmpty()) {
+            for (Reference reference : terser.getAllPopulatedChildElementsOfType(pending.poll(), Reference.class)) {
+                IIdType id = reference.getReferenceElement();
+                if (id.isAbsolute() || id.isLocal() || !id.hasResourceType() || !id.hasIdPart()) {
+                    continue;
+                }
+                String key = id.getResourceType() + "/" + id.getIdPart();
+                Line line = index.get(key);
+                if (line != null && seen.add(key)) {
+                    DomainResource resource = parse(line.read(channel), line.offset);
+                    referenced.add(resource);
+                    pending.add(resource);
+                }
+            }
+        }
+        return referenced;
+    }
+
+    private long[] exportRange(FileChannel channel, long from, long to, Path part) throws IOException {
+        long lines = 0;
+        long resources = 0;
+        try (LineReader reader = new LineReader(channel, from, to, windowSize);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(part), 1 << 16)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                Bundle bundle;
+                try {
+                    bundle = HCXFHIRSerializer.parse(Bundle.class, line);
+                } catch (RuntimeException e) {
+                    throw new IOException("Invalid bundle at byte offset " + reader.lineStart() + ": " + e.getMessage(), e);
+                }
+                for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                    if (entry.getResource() != null) {
+                        HCXFHIRSerializer.encode(entry.getResource(), out);
+                        out.write('\n');
+                        resources++;
+                    }
+                }
+            }
+        }
+        return new long[]{lines, resources};
+    }
+
+    private static DomainResource parse(String line, long offset) throws IOException {
+        IBaseResource resource;
+        try {
+            resource = HCXFHIRSerializer.parse(line);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid resource at byte offset " + offset + ": " + e.getMessage(), e);
+        }
+        if (!(resource instanceof DomainResource)) {
+            throw new IOException("Unsupported resource " + ((Resource) resource).getResourceType() + " at byte offset " + offset);
+        }
+        DomainResource domainResource = (DomainResource) resource;
+        // the parser qualifies the id with the resource type, bundle entries take the plain id
+        if (domainResource.hasIdElement()) {
+            domainResource.setId(domainResource.getIdElement().getIdPart());
+        }
+        return domainResource;
+    }
+
+    private boolean isFocal(String type) {
+        try {
+            return type != null && bundleProfiles.containsKey(ResourceType.fromCode(type));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the top level resourceType and id of a JSON line without building the resource, either may be null.
+     */
+    static String[] typeAndId(String line, long offset) throws IOException {
+        String[] typeAndId = new String[2];
+        try (JsonParser parser = factory.createParser(line)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Invalid resource at byte offset " + offset + ": not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME && (typeAndId[0] == null || typeAndId[1] == null)) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.VALUE_STRING && "resourceType".equals(field)) {
+                    typeAndId[0] = parser.getText();
+                } else if (value == JsonToken.VALUE_STRING && "id".equals(field)) {
+                    typeAndId[1] = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            throw new IOException("Invalid resource at byte offset " + offset + ": " + e.getMessage(), e);
+        }
+        return typeAndId;
+    }
+
+    /**
+     * Position of an indexed line, read back with a positional read instead of a mapped window.
+     */
+    private static final class Line {
+        final long offset;
+        final int length;
+
+        Line(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        String read(FileChannel channel) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("Line at byte offset " + offset + " ends early, was the file changed?");
+                }
+            }
+            return new String(buffer.array(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Reads the lines of a file range through memory mapped windows. A line crossing the end of a window is read by
+     * mapping a new window at its start, the window grows for lines longer than the window size. Windows are unmapped
+     * when they are replaced and on close instead of waiting for the garbage collector, so a reader keeps at most one
+     * window mapped. No view of a window escapes the reader, lines are copied out.
+     */
+    private static final class LineReader implements AutoCloseable {
+        private final FileChannel channel;
+        private final long end;
+        private final long fileSize;
+        private final int windowSize;
+        private MappedByteBuffer window;
+        private long windowStart;
+        private long position;
+        private long lineStart;
+        private int lineLength;
+
+        LineReader(FileChannel channel, long start, long end, int windowSize) throws IOException {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+            this.fileSize = channel.size();
+            this.windowSize = windowSize;
+        }
+
+        long position() {
+            return position;
+        }
+
+        long lineStart() {
+            return lineStart;
+        }
+
+        /**
+         * Returns the length in bytes of the last line read, without the line terminator.
+         */
+        int lineLength() {
+            return lineLength;
+        }
+
+        /**
+         * Returns the next non blank line without the line terminator, or null at the end of the range.
+         */
+        String readLine() throws IOException {
+            while (position < end) {
+                int length = nextLineLength();
+                ByteBuffer line = window.duplicate();
+                line.position((int) (lineStart - windowStart)).limit((int) (lineStart - windowStart) + length);
+                if (length > 0 && line.get(line.limit() - 1) == '\r') {
+                    line.limit(line.limit() - 1);
+                }
+                byte[] bytes = new byte[line.remaining()];
+                line.get(bytes);
+                lineLength = bytes.length;
+                String text = new String(bytes, StandardCharsets.UTF_8);
+                if (!text.isBlank()) {
+                    return text;
+                }
+            }
+            return null;
+        }
+
+        void skipLine() throws IOException {
+            if (position < fileSize) {
+                nextLineLength();
+            }
+        }
+
+        /**
+         * Finds the line starting at position, maps it completely and moves position behind its terminator.
+         */
+        private int nextLineLength() throws IOException {
+            lineStart = position;
+            int size = windowSize;
+            while (true) {
+                if (window == null || position < windowStart || position >= windowStart + window.limit()
+                        || size > window.limit() && windowStart + window.limit() < fileSize) {
+                    unmap(window);
+                    windowStart = position;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size, fileSize - position));
+                }
+                int from = (int) (position - windowStart);
+                int limit = window.limit();
+                for (int i = from; i < limit; i++) {
+                    if (window.get(i) == '\n') {
+                        position = windowStart + i + 1;
+                        return i - from;
+                    }
+                }
+                if (windowStart + limit >= fileSize) {
+                    // last line without terminator
+                    position = fileSize;
+                    return limit - from;
+                }
+                if (from == 0) {
+                    if (size > Integer.MAX_VALUE / 2) {
+                        throw new IOException("Line at byte offset " + lineStart + " is too long");
+                    }
+                    size *= 2;
+                }
+                // remap at the line start, grown if the line did not fit into a whole window
+                unmap(window);
+                windowStart = -1;
+                window = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            unmap(window);
+            window = null;
+        }
+    }
+
+    /**
+     * Unmaps a window right away. The JDK has no public API for it, so sun.misc.Unsafe.invokeCleaner is used where
+     * available, the way Lucene and Netty release mapped buffers.
+     */
+    static void unmap(MappedByteBuffer window) {
+        if (window == null || invokeCleaner == null) {
+            return;
+        }
+        try {
+            invokeCleaner.invoke(unsafe, window);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // left to the garbage collector
+        }
+    }
+
+    public static class Summary {
+        private final long lines;
+        private final long written;
+        private final long orphans;
+        private final long bytesRead;
+        private final long bytesWritten;
+        private final long nanos;
+
+        Summary(long lines, long written, long orphans, long bytesRead, long bytesWritten, long nanos) {
+            this.lines = lines;
+            this.written = written;
+            this.orphans = orphans;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            this.nanos = nanos;
+        }
+
+        public long getLines() {
+            return lines;
+        }
+
+        /**
+         * Returns the number of lines written: bundles on import, resources on export.
+         */
+        public long getWritten() {
+            return written;
+        }
+
+        /**
+         * Returns the number of non focal resources which no focal resource references, they were not bundled. Always
+         * 0 on export.
+         */
+        public long getOrphans() {
+            return orphans;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return lines + " lines read, " + written + " written, " + orphans + " orphans, " + bytesRead + " -> " + bytesWritten
+                    + " bytes in " + nanos / 1000000 + " ms";
+        }
+    }
+}
@@ -0,0 +1,640 @@
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.hcxprotocol.utils.Operations;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.zip.CRC32C;
+
+/**
+ * Persistent append-only outbox for outgoing HCX requests. Encrypted request bodies are appended to memory mapped
+ * segment files and sent by a background thread through a Dispatcher, e.g. HCXHttpDispatcher, with retries and
+ * exponential backoff. enqueue returns as soon as the body is in the segment, so request generation does not wait
+ * for the gateway.
+ *
+ * Every record carries a CRC32C. Deliveries and final failures are appended as records of their own. An entry fails
+ * for good after maxAttempts, or at once when the error is not retryable, e.g. a 4xx response of the gateway, so
+ * poison entries do not stay in the outbox. On open the
+ * segments are scanned and every entry without such a record is queued again, a torn record at the end of a segment
+ * ends the scan of that segment. Delivery is at least once: an entry sent just before a crash may be sent again after
+ * the restart, with the same x-hcx-api_call_id in its protected header.
+ *
+ * Segments are compacted from the oldest one: a segment without pending entries is unmapped and deleted, one with
+ * only a few pending entries left has them copied to the active segment first. Without sync, appended records survive a crash of
+ * the process but not of the machine, with sync every append is forced to disk.
+ *
+ * The HCX SDK encrypts and sends in one call, so the outbox encrypts with an HCXAsyncSubmitter.Encryptor, e.g.
+ * HCXJweEncrypter, instead of HCXOutgoingRequest.generate.
+ */
+public class HCXOutbox implements AutoCloseable {
+
+    /**
+     * Notified about the outcome of every entry, on the thread completing the dispatch, e.g. one of the HTTP client,
+     * or on the sender thread when the dispatcher completes before returning. Implementations must not block.
+     */
+    public interface Listener {
+        default void delivered(long sequence, Operations operation, Map<String, Object> response) {
+        }
+
+        default void failed(long sequence, Operations operation, Throwable error) {
+        }
+    }
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER = 8;
+    private static final byte ENTRY = 1;
+    private static final byte DELIVERED = 2;
+    private static final byte FAILED = 3;
+
+    private final Path directory;
+    private final HCXAsyncSubmitter.Encryptor encryptor;
+    private final HCXAsyncSubmitter.Dispatcher dispatcher;
+    private final Listener listener;
+    private final int segmentSize;
+    private final boolean sync;
+    private final int maxAttempts;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final Predicate<Throwable> retryable;
+    private final Semaphore inFlight;
+
+    // guarded by this
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private long nextSequence;
+    private long nextSegmentId;
+
+    private final ConcurrentHashMap<Long, Entry> pending = new ConcurrentHashMap<>();
+    private final DelayQueue<Entry> due = new DelayQueue<>();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final AtomicLong corruptRecords = new AtomicLong();
+    private final Thread sender;
+    private volatile boolean running = true;
+
+    private HCXOutbox(Builder builder) throws IOException {
+        this.directory = builder.directory;
+        this.encryptor = builder.encryptor;
+        this.dispatcher = builder.dispatcher;
+        this.listener = builder.listener;
+        this.segmentSize = builder.segmentSize;
+        this.sync = builder.sync;
+        this.maxAttempts = builder.maxAttempts;
+        this.initialBackoffNanos = builder.initialBackoff.toNanos();
+        this.maxBackoffNanos = builder.maxBackoff.toNanos();
+        this.retryable = builder.retryable;
+        this.inFlight = new Semaphore(builder.maxInFlight);
+        Files.createDirectories(directory);
+        recover();
+        this.sender = new Thread(this::send, "hcx-outbox-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * @param directory directory holding the segment files of this outbox only
+     */
+    public static Builder builder(Path directory, HCXAsyncSubmitter.Dispatcher dispatcher) {
+        return new Builder(directory, dispatcher);
+    }
+
+    /**
+     * Encrypts the FHIR payload with the encryptor of the outbox and appends it. Returns the sequence number of the
+     * entry.
+     */
+    public long enqueue(String fhirPayload, Operations operation, String recipientCode) throws Exception {
+        if (encryptor == null) {
+            throw new IllegalStateException("The outbox was opened without an encryptor");
+        }
+        return enqueue(encryptor.encrypt(fhirPayload, operation, recipientCode), operation);
+    }
+
+    /**
+     * Appends an encrypted request body, e.g. {"payload": jwe}. Returns the sequence number of the entry.
+     */
+    public long enqueue(Map<String, Object> requestBody, Operations operation) throws IOException {
+        if (!running) {
+            throw new IllegalStateException("The outbox is closed");
+        }
+        byte[] body = mapper.writeValueAsBytes(requestBody);
+        byte[] op = operation.name().getBytes(StandardCharsets.US_ASCII);
+        Entry entry;
+        synchronized (this) {
+            long sequence = nextSequence++;
+            entry = new Entry(sequence, operation);
+            int bodyOffset = append(sequence, ENTRY, op, body, 0, body.length);
+            entry.moveTo(active, bodyOffset, body.length);
+            pending.put(sequence, entry);
+        }
+        due.add(entry);
+        return entry.sequence;
+    }
+
+    /**
+     * Deletes segments without pending entries, oldest first, and moves the remaining entries of a segment to the
+     * active segment when they take less than a quarter of it. Stops at the first segment which is still mostly
+     * pending, so segments are always removed in order. Runs on the sender thread after every segment roll and when
+     * it is idle as well.
+     */
+    public synchronized void compact() throws IOException {
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            if (oldest == active) {
+                return;
+            }
+            if (oldest.pending.get() > 0) {
+                if (oldest.pendingBytes.get() * 4 > oldest.buffer.capacity()) {
+                    return;
+                }
+                for (Entry entry : pending.values()) {
+                    relocate(entry, oldest);
+                }
+                if (oldest.pending.get() > 0) {
+                    // entries acknowledged while being relocated, their counts are updated next time
+                    return;
+                }
+            }
+            segments.remove(oldest.id);
+            // no entry refers to the segment any more
+            HCXNdjsonBulk.unmap(oldest.buffer);
+            Files.deleteIfExists(oldest.path);
+        }
+    }
+
+    private void relocate(Entry entry, Segment from) throws IOException {
+        synchronized (entry) {
+            if (entry.segment != from || entry.done) {
+                return;
+            }
+            byte[] body = entry.read();
+            int bodyOffset = append(entry.sequence, ENTRY, entry.operation.name().getBytes(StandardCharsets.US_ASCII), body, 0, body.length);
+            entry.moveTo(active, bodyOffset, body.length);
+        }
+    }
+
+    /**
+     * Appends a record to the active segment, rolling to a new segment when it does not fit. Returns the offset of the
+     * body in the segment. The length is written last, so a record cut short by a crash reads as end of segment.
+     */
+    private synchronized int append(long sequence, byte type, byte[] operation, byte[] body, int offset, int length) throws IOException {
+        int contentLength = 8 + 1 + (type == ENTRY ? 2 + operation.length + length : 0);
+        if (active == null || active.buffer.capacity() - active.position < HEADER + contentLength) {
+            roll(HEADER + contentLength);
+        }
+        MappedByteBuffer buffer = active.buffer;
+        int start = active.position;
+        ByteBuffer content = buffer.duplicate();
+        content.position(start + HEADER);
+        content.putLong(sequence).put(type);
+        int bodyOffset = -1;
+        if (type == ENTRY) {
+            content.putShort((short) operation.length).put(operation);
+            bodyOffset = content.position();
+            content.put(body, offset, length);
+        }
+        CRC32C crc = new CRC32C();
+        ByteBuffer checked = buffer.duplicate();
+        checked.position(start + HEADER).limit(start + HEADER + contentLength);
+        crc.update(checked);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.putInt(start, contentLength);
+        active.position = start + HEADER + contentLength;
+        if (sync) {
+            buffer.force();
+        }
+        return bodyOffset;
+    }
+
+    private void roll(int minimumSize) throws IOException {
+        Segment segment = Segment.create(directory.resolve(segmentName(nextSegmentId)), nextSegmentId, Math.max(segmentSize, minimumSize));
+        nextSegmentId++;
+        segments.put(segment.id, segment);
+        if (active != null) {
+            active.buffer.force();
+        }
+        active = segment;
+    }
+
+    private void recover() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(paths::add);
+        }
+        Map<Long, Entry> entries = new HashMap<>();
+        Set<Long> completed = new HashSet<>();
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            segments.put(id, Segment.open(path, id));
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+        }
+        for (Segment segment : segments.values()) {
+            MappedByteBuffer buffer = segment.buffer;
+            int position = 0;
+            while (position + HEADER <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length == 0) {
+                    break;
+                }
+                if (length < 9 || length > buffer.capacity() - position - HEADER || !validCrc(buffer, position, length)) {
+                    corruptRecords.incrementAndGet();
+                    // torn write, clear the rest of the segment so later appends are not followed by garbage
+                    for (int i = position; i < buffer.capacity(); i++) {
+                        buffer.put(i, (byte) 0);
+                    }
+                    break;
+                }
+                long sequence = buffer.getLong(position + HEADER);
+                byte type = buffer.get(position + HEADER + 8);
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                if (type == ENTRY) {
+                    int opLength = buffer.getShort(position + HEADER + 9);
+                    byte[] op = new byte[opLength];
+                    ByteBuffer slice = buffer.duplicate();
+                    slice.position(position + HEADER + 11);
+                    slice.get(op);
+                    int bodyOffset = position + HEADER + 11 + opLength;
+                    Entry entry = entries.get(sequence);
+                    if (entry == null) {
+                        entry = new Entry(sequence, Operations.valueOf(new String(op, StandardCharsets.US_ASCII)));
+                        entries.put(sequence, entry);
+                    }
+                    // a relocated entry is read from its latest copy, pending counts are set once all segments are read
+                    entry.segment = segment;
+                    entry.offset = bodyOffset;
+                    entry.length = length - 11 - opLength;
+                } else {
+                    completed.add(sequence);
+                }
+                position += HEADER + length;
+            }
+            segment.position = position;
+        }
+        entries.keySet().removeAll(completed);
+        List<Entry> recovered = new ArrayList<>(entries.values());
+        recovered.sort(Comparator.comparingLong(entry -> entry.sequence));
+        for (Entry entry : recovered) {
+            Segment segment = entry.segment;
+            entry.segment = null;
+            entry.moveTo(segment, entry.offset, entry.length);
+            pending.put(entry.sequence, entry);
+            due.add(entry);
+        }
+        if (!segments.isEmpty()) {
+            active = segments.lastEntry().getValue();
+        }
+        compact();
+    }
+
+    private static boolean validCrc(MappedByteBuffer buffer, int position, int length) {
+        CRC32C crc = new CRC32C();
+        ByteBuffer checked = buffer.duplicate();
+        checked.position(position + HEADER).limit(position + HEADER + length);
+        crc.update(checked);
+        return (int) crc.getValue() == buffer.getInt(position + 4);
+    }
+
+    private void send() {
+        long compactedAt = 0;
+        while (running) {
+            Entry entry;
+            try {
+                entry = due.poll(100, TimeUnit.MILLISECONDS);
+                if (entry != null) {
+                    inFlight.acquire();
+                    dispatch(entry);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            // compact after a segment roll and whenever the sender is idle with more than one segment
+            long segmentId;
+            int segmentCount;
+            synchronized (this) {
+                segmentId = nextSegmentId;
+                segmentCount = segments.size();
+            }
+            if (segmentId != compactedAt || entry == null && segmentCount > 1) {
+                compactedAt = segmentId;
+                try {
+                    compact();
+                } catch (IOException e) {
+                    // retried on the next roll or idle poll
+                }
+            }
+        }
+    }
+
+    private void dispatch(Entry entry) {
+        CompletableFuture<Map<String, Object>> response;
+        try {
+            Map<String, Object> body;
+            synchronized (entry) {
+                body = mapper.readValue(entry.read(), new TypeReference<Map<String, Object>>() {});
+            }
+            response = dispatcher.dispatch(body, entry.operation);
+        } catch (Exception e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        response.whenComplete((output, error) -> {
+            try {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                if (error == null) {
+                    complete(entry, DELIVERED);
+                    delivered.increment();
+                    listener.delivered(entry.sequence, entry.operation, output);
+                } else if (++entry.attempts >= maxAttempts || !running || !retryable.test(cause)) {
+                    if (running) {
+                        complete(entry, FAILED);
+                        failed.increment();
+                        listener.failed(entry.sequence, entry.operation, cause);
+                    }
+                } else {
+                    retries.increment();
+                    long backoff = Math.min(maxBackoffNanos, initialBackoffNanos << Math.min(entry.attempts - 1, 30));
+                    // jitter between half and the full backoff so retries of a batch do not arrive together
+                    entry.dueNanos = System.nanoTime() + backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                    due.add(entry);
+                }
+            } catch (IOException e) {
+                // the completion record could not be written, the entry is sent again after a restart
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private void complete(Entry entry, byte type) throws IOException {
+        synchronized (entry) {
+            entry.done = true;
+        }
+        append(entry.sequence, type, null, null, 0, 0);
+        synchronized (entry) {
+            entry.segment.pending.decrementAndGet();
+            entry.segment.pendingBytes.addAndGet(-entry.length);
+        }
+        pending.remove(entry.sequence);
+    }
+
+    /**
+     * Default classification of dispatch errors: transport errors and 408, 425, 429 and 5xx responses of the gateway
+     * are retried. Other 4xx responses, and request bodies which cannot be read or are rejected as invalid arguments,
+     * would fail the same way again and are not.
+     */
+    public static boolean isRetryable(Throwable error) {
+        if (error instanceof HCXHttpDispatcher.StatusException) {
+            int status = ((HCXHttpDispatcher.StatusException) error).getStatusCode();
+            return status / 100 != 4 || status == 408 || status == 425 || status == 429;
+        }
+        return !(error instanceof JsonProcessingException || error instanceof IllegalArgumentException);
+    }
+
+    public int getPending() {
+        return pending.size();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * Returns the number of records found corrupt on open.
+     */
+    public long getCorruptRecords() {
+        return corruptRecords.get();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Waits until no entries are pending or the timeout elapses. Returns true if the outbox is empty.
+     */
+    public boolean drain(Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (!pending.isEmpty()) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Stops the sender. Entries still pending stay in the segments and are sent when the outbox is opened again.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        sender.interrupt();
+        try {
+            sender.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+            }
+        }
+    }
+
+    private static String segmentName(long id) {
+        return String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX);
+    }
+
+    private static final class Segment {
+        final long id;
+        final Path path;
+        final MappedByteBuffer buffer;
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicLong pendingBytes = new AtomicLong();
+        int position;
+
+        private Segment(long id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        static Segment create(Path path, long id, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return new Segment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+        }
+
+        static Segment open(Path path, long id) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return new Segment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+            }
+        }
+    }
+
+    private static final class Entry implements Delayed {
+        final long sequence;
+        final Operations operation;
+        // location of the body, changes when the entry is relocated, guarded by this
+        Segment segment;
+        int offset;
+        int length;
+        boolean done;
+        volatile int attempts;
+        volatile long dueNanos = System.nanoTime();
+
+        Entry(long sequence, Operations operation) {
+            this.sequence = sequence;
+            this.operation = operation;
+        }
+
+        synchronized void moveTo(Segment target, int bodyOffset, int bodyLength) {
+            if (segment != null) {
+                segment.pending.decrementAndGet();
+                segment.pendingBytes.addAndGet(-length);
+            }
+            segment = target;
+            offset = bodyOffset;
+            length = bodyLength;
+            target.pending.incrementAndGet();
+            target.pendingBytes.addAndGet(bodyLength);
+        }
+
+        synchronized byte[] read() {
+            byte[] body = new byte[length];
+            ByteBuffer slice = segment.buffer.duplicate();
+            slice.position(offset);
+            slice.get(body);
+            return body;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Entry entry = (Entry) other;
+            int order = Long.compare(dueNanos, entry.dueNanos);
+            return order != 0 ? order : Long.compare(sequence, entry.sequence);
+        }
+    }
+
+    public static class Builder {
+        private final Path directory;
+        private final HCXAsyncSubmitter.Dispatcher dispatcher;
+        private HCXAsyncSubmitter.Encryptor encryptor;
+        private Listener listener = new Listener() {
+        };
+        private int segmentSize = 64 * 1024 * 1024;
+        private boolean sync;
+        private int maxInFlight = 16;
+        private int maxAttempts = 20;
+        private Duration initialBackoff = Duration.ofMillis(200);
+        private Duration maxBackoff = Duration.ofMinutes(5);
+        private Predicate<Throwable> retryable = HCXOutbox::isRetryable;
+
+        private Builder(Path directory, HCXAsyncSubmitter.Dispatcher dispatcher) {
+            this.directory = directory;
+            this.dispatcher = dispatcher;
+        }
+
+        /**
+         * Encryptor used by enqueue of FHIR payloads, e.g. HCXJweEncrypter.
+         */
+        public Builder encryptor(HCXAsyncSubmitter.Encryptor encryptor) {
+            this.encryptor = encryptor;
+            return this;
+        }
+
+        public Builder listener(Listener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * Size of new segment files, 64 MB by default. Larger records get a segment of their own size.
+         */
+        public Builder segmentSize(int segmentSize) {
+            if (segmentSize < 4096) {
+                throw new IllegalArgumentException("segmentSize must be at least 4096 bytes");
+            }
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * Forces every append to disk before enqueue returns, off by default.
+         */
+        public Builder sync(boolean sync) {
+            this.sync = sync;
+            return this;
+        }
+
+        public Builder maxInFlight(int maxInFlight) {
+            if (maxInFlight < 1) {
+                throw new IllegalArgumentException("maxInFlight must be at least 1");
+            }
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Sends an entry at most maxAttempts times, waiting initialBackoff after the first failure and doubling the
+         * wait up to maxBackoff after every further one. Defaults are 20 attempts, 200 ms and 5 minutes.
+         */
+        public Builder retry(int maxAttempts, Duration initialBackoff, Duration maxBackoff) {
+            if (maxAttempts < 1) {
+                throw new IllegalArgumentException("maxAttempts must be at least 1");
+            }
+            this.maxAttempts = maxAttempts;
+            this.initialBackoff = initialBackoff;
+            this.maxBackoff = maxBackoff;
+            return this;
+        }
+
+        /**
+         * Decides whether a failed dispatch is tried again, HCXOutbox.isRetryable by default. Gets the error the
+         * dispatch failed with, unwrapped from a CompletionException.
+         */
+        public Builder retryIf(Predicate<Throwable> retryable) {
+            this.retryable = retryable;
+            return this;
+        }
+
+        /**
+         * Opens the outbox, queues the pending entries found in the directory and starts the sender.
+         */
+        public HCXOutbox open() throws IOException {
+            return new HCXOutbox(this);
+        }
+    }
+}
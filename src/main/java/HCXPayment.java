@@ -6,10 +6,7 @@ public class HCXPayment {
 
     public static PaymentReconciliation paymentReconciliationExample(){
         PaymentReconciliation pay = new PaymentReconciliation();
-        Meta meta = new Meta();
-        meta.getProfile().add(new CanonicalType("https://ig.hcxprotocol.io/v0.7.1/StructureDefinition-PaymentReconciliation.html"));
-        meta.setLastUpdated(new Date());
-        pay.setMeta(meta);
+        pay.setMeta(HCXTerminology.meta(HCXTerminology.PAYMENT_RECONCILIATION_PROFILE, new Date()));
         pay.setStatus(PaymentReconciliation.PaymentReconciliationStatus.ACTIVE);
         pay.setCreated(new Date());
         pay.setRequestor(new Reference("Organization/GICOFINDIA"));
@@ -22,10 +19,7 @@ public class HCXPayment {
 
     public static PaymentNotice paymentNoticeExample(){
         PaymentNotice pay = new PaymentNotice();
-        Meta meta = new Meta();
-        meta.getProfile().add(new CanonicalType("https://ig.hcxprotocol.io/v0.7.1/StructureDefinition-PaymentNotice.html"));
-        meta.setLastUpdated(new Date());
-        pay.setMeta(meta);
+        pay.setMeta(HCXTerminology.meta(HCXTerminology.PAYMENT_NOTICE_PROFILE, new Date()));
         pay.getIdentifier().add(new Identifier().setValue("123435").setSystem("https://www.tmh.in/paymentnotice"));
         pay.setStatus(PaymentNotice.PaymentNoticeStatus.ACTIVE);
         pay.setRequest(new Reference("https://www.tmh.in/fhir/claim/12345"));
@@ -37,4 +31,99 @@ public class HCXPayment {
         pay.setAmount(new Money().setValue(100000).setCurrency("INR"));
         return pay;
     }
+
+    public static NoticeBuilder paymentNoticeBuilder(){
+        return new NoticeBuilder();
+    }
+
+    /**
+     * Builds payment notices as per the HCX PaymentNotice profile. Every notice gets its own instances, only the
+     * reference strings are shared. A builder can be kept as a template for a batch. Not thread safe.
+     */
+    public static class NoticeBuilder {
+        private String id;
+        private String identifierSystem = "https://www.tmh.in/paymentnotice";
+        private String identifierValue;
+        private String requestReference;
+        private String responseReference;
+        private String providerReference;
+        private String recipientReference;
+        private String paymentReference;
+        private long amountInr;
+        private Date created;
+
+        public NoticeBuilder id(String id){
+            this.id = id;
+            return this;
+        }
+
+        public NoticeBuilder identifier(String system, String value){
+            this.identifierSystem = system;
+            this.identifierValue = value;
+            return this;
+        }
+
+        public NoticeBuilder request(String reference){
+            this.requestReference = reference;
+            return this;
+        }
+
+        public NoticeBuilder response(String reference){
+            this.responseReference = reference;
+            return this;
+        }
+
+        public NoticeBuilder provider(String organizationId){
+            this.providerReference = "Organization/" + organizationId;
+            return this;
+        }
+
+        public NoticeBuilder recipient(String organizationId){
+            this.recipientReference = "Organization/" + organizationId;
+            return this;
+        }
+
+        public NoticeBuilder payment(String reference){
+            this.paymentReference = reference;
+            return this;
+        }
+
+        public NoticeBuilder amount(long amountInr){
+            this.amountInr = amountInr;
+            return this;
+        }
+
+        public NoticeBuilder created(Date created){
+            this.created = created;
+            return this;
+        }
+
+        public PaymentNotice build(){
+            try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.BUILD, null)) {
+                PaymentNotice pay = create();
+                span.success();
+                return pay;
+            }
+        }
+
+        private PaymentNotice create(){
+            PaymentNotice pay = new PaymentNotice();
+            if (id != null) {
+                pay.setId(id);
+            }
+            pay.setMeta(HCXTerminology.meta(HCXTerminology.PAYMENT_NOTICE_PROFILE, null));
+            pay.getIdentifier().add(new Identifier().setValue(identifierValue).setSystem(identifierSystem));
+            pay.setStatus(PaymentNotice.PaymentNoticeStatus.ACTIVE);
+            pay.setRequest(new Reference(requestReference));
+            if (responseReference != null) {
+                pay.setResponse(new Reference(responseReference));
+            }
+            pay.setCreated(created != null ? created : new Date());
+            pay.setProvider(new Reference(providerReference));
+            pay.setPayment(new Reference(paymentReference));
+            pay.setRecipient(new Reference(recipientReference));
+            pay.setAmount(new Money().setValue(amountInr).setCurrency("INR"));
+            return pay;
+        }
+    }
 }
@@ -0,0 +1,662 @@
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import org.hl7.fhir.common.hapi.validation.support.SnapshotGeneratingValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.r4.model.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Fast pre-validation of HCX bundles with the rules of the profile StructureDefinitions compiled into direct field
+ * checks. It catches the common rejections in microseconds, before the full profile validation which takes
+ * milliseconds per bundle:
+ * <ul>
+ * <li>cardinality of the profile elements, e.g. missing identifiers or a missing Claim.insurance.coverage</li>
+ * <li>fixed and pattern values, and codes of required bindings whose value set can be expanded locally, e.g. wrong
+ * status codes</li>
+ * <li>types of choice elements and target resource types of references</li>
+ * </ul>
+ * By default the pre checks never reject a bundle which the profile validation accepts. Two stricter HCX rules can be
+ * turned on in the builder, see requireProfile and resolveReferences:
+ * <ul>
+ * <li>references like "Patient/RVH1003" or "Coverage/COVERAGE1" which do not resolve to an entry of the bundle,
+ * absolute references to other servers and references to contained resources are not checked</li>
+ * <li>missing meta.profile on the bundle and on the resources which have an HCX profile</li>
+ * </ul>
+ *
+ * Profiles are taken from the IValidationSupport passed to builder, e.g. the chain holding the HCX v0.7.1 IG
+ * package, with the base R4 definitions of the FHIR context as fallback. Every resource is checked against the
+ * profiles in its meta.profile, or against the base definition of its type when none of them is known. A profile is
+ * compiled on first use, only elements with at least one rule are kept, and slices, extensions, invariants and
+ * elements inside data types which the profile does not list are left to the full validation.
+ *
+ * In FULL mode bundles passing the checks are handed to the full validation, in TRUSTED mode they are accepted
+ * without it, which is meant for bundles of trusted internal producers, e.g. built with the HCX builders. The instance
+ * can be shared between threads.
+ */
+public class HCXPreValidator {
+
+    public enum Mode {
+        /** pre checks, then the full validation for bundles passing them */
+        FULL,
+        /** pre checks only */
+        TRUSTED
+    }
+
+    private static final String BASE_PROFILE_PREFIX = "http://hl7.org/fhir/StructureDefinition/";
+    private static final String ENTRY_LOCATION_PREFIX = "Bundle.entry[";
+    private static final Profile NONE = new Profile(null, Collections.emptyList());
+
+    /**
+     * The bundle and the resource types with an HCX profile.
+     */
+    public static final Set<ResourceType> HCX_PROFILED_TYPES = Collections.unmodifiableSet(EnumSet.of(ResourceType.Bundle,
+            ResourceType.Claim, ResourceType.ClaimResponse, ResourceType.CoverageEligibilityRequest,
+            ResourceType.CoverageEligibilityResponse, ResourceType.Coverage, ResourceType.PaymentNotice,
+            ResourceType.PaymentReconciliation, ResourceType.Communication, ResourceType.CommunicationRequest));
+
+    private final FhirContext context = HCXFHIRSerializer.getContext();
+    private final IValidationSupport support;
+    private final Function<Bundle, ValidationResult> fullValidation;
+    private final Mode mode;
+    private final Set<ResourceType> profiledTypes;
+    private final boolean resolveReferences;
+    private final Map<String, Profile> profiles = new ConcurrentHashMap<>();
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder fullValidations = new LongAdder();
+    private final LongAdder trusted = new LongAdder();
+
+    private HCXPreValidator(Builder builder) {
+        this.support = new ValidationSupportChain(builder.support, context.getValidationSupport(), new SnapshotGeneratingValidationSupport(context));
+        this.fullValidation = builder.fullValidation;
+        this.mode = builder.mode;
+        this.profiledTypes = builder.profiledTypes;
+        this.resolveReferences = builder.resolveReferences;
+    }
+
+    /**
+     * @param profiles validation support providing the profile StructureDefinitions, ValueSets and CodeSystems
+     */
+    public static Builder builder(IValidationSupport profiles) {
+        return new Builder(profiles);
+    }
+
+    /**
+     * Validates the bundle in the mode of this instance, so it can be used as validation of HCXBatchValidator.
+     */
+    public ValidationResult validateWithResult(Bundle bundle) {
+        return validateWithResult(bundle, mode);
+    }
+
+    /**
+     * Runs the pre checks and returns their errors when there are any. Otherwise returns the result of the full
+     * validation in FULL mode, and an empty result in TRUSTED mode.
+     */
+    public ValidationResult validateWithResult(Bundle bundle, Mode mode) {
+        if (mode == Mode.FULL && fullValidation == null) {
+            throw new IllegalStateException("FULL mode needs a full validation, see Builder.fullValidation");
+        }
+        List<SingleValidationMessage> messages = check(bundle);
+        if (!messages.isEmpty()) {
+            rejected.increment();
+            return new ValidationResult(context, messages);
+        }
+        if (mode == Mode.TRUSTED) {
+            trusted.increment();
+            return new ValidationResult(context, messages);
+        }
+        fullValidations.increment();
+        return fullValidation.apply(bundle);
+    }
+
+    /**
+     * Runs the pre checks only and returns their errors, an empty list if the bundle passes them.
+     */
+    public List<SingleValidationMessage> check(Bundle bundle) {
+        try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.PREVALIDATE, null)) {
+            List<SingleValidationMessage> messages = new ArrayList<>();
+            checkBundle(bundle, messages);
+            span.success();
+            return messages;
+        }
+    }
+
+    /**
+     * Compiles the profile if it was not yet and returns false if it is not known to the validation support.
+     */
+    public boolean compile(String profileUrl) {
+        return profile(profileUrl) != NONE;
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getFullValidations() {
+        return fullValidations.sum();
+    }
+
+    public long getTrusted() {
+        return trusted.sum();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    @Override
+    public String toString() {
+        return "HCXPreValidator{mode=" + mode + ", profiles=" + profiles.size() + ", rejected=" + getRejected()
+                + ", fullValidations=" + getFullValidations() + ", trusted=" + getTrusted() + "}";
+    }
+
+    private void checkBundle(Bundle bundle, List<SingleValidationMessage> messages) {
+        if (profiledTypes.contains(ResourceType.Bundle) && !bundle.getMeta().hasProfile()) {
+            error(messages, "Bundle.meta", "Bundle has no meta.profile");
+        }
+        HCXBundleView view = HCXBundleView.of(bundle);
+        List<Bundle.BundleEntryComponent> entries = bundle.getEntry();
+        for (int i = 0; i < entries.size(); i++) {
+            Resource resource = entries.get(i).getResource();
+            if (resource == null) {
+                continue;
+            }
+            String location = ENTRY_LOCATION_PREFIX + i + "].resource";
+            checkResource(resource, location, view, messages);
+        }
+    }
+
+    private void checkResource(Resource resource, String location, HCXBundleView view, List<SingleValidationMessage> messages) {
+        String type = resource.getResourceType().name();
+        List<CanonicalType> declared = resource.getMeta().getProfile();
+        if (declared.isEmpty() && profiledTypes.contains(resource.getResourceType())) {
+            error(messages, location + ".meta", type + " has no meta.profile");
+        }
+        boolean checked = false;
+        for (CanonicalType url : declared) {
+            Profile profile = profile(url.getValue());
+            if (profile != NONE && profile.type.equals(type)) {
+                checkNodes(profile.nodes, resource, location, profile.url, view, messages);
+                checked = true;
+            }
+        }
+        if (!checked) {
+            Profile base = profile(BASE_PROFILE_PREFIX + type);
+            checkNodes(base.nodes, resource, location, base.url, view, messages);
+        }
+        if (resource instanceof DomainResource) {
+            for (Resource contained : ((DomainResource) resource).getContained()) {
+                Profile base = profile(BASE_PROFILE_PREFIX + contained.getResourceType().name());
+                checkNodes(base.nodes, contained, location + ".contained", base.url, view, messages);
+            }
+        }
+    }
+
+    private void checkNodes(List<Node> nodes, IBase parent, String location, String url, HCXBundleView view, List<SingleValidationMessage> messages) {
+        for (Node node : nodes) {
+            BaseRuntimeChildDefinition child = node.child.get(parent.getClass());
+            if (child == null) {
+                continue;
+            }
+            List<IBase> values = child.getAccessor().getValues(parent);
+            boolean repeating = child.getMax() != 1;
+            int count = 0;
+            for (int i = 0; i < values.size(); i++) {
+                IBase value = values.get(i);
+                if (value.isEmpty()) {
+                    continue;
+                }
+                count++;
+                String valueLocation = location + "." + node.elementName + (repeating ? "[" + i + "]" : "");
+                for (Check check : node.checks) {
+                    String message = check.test(value, view);
+                    if (message != null) {
+                        error(messages, valueLocation, message + " (from " + url + ")");
+                    }
+                }
+                checkNodes(node.children, value, valueLocation, url, view, messages);
+            }
+            if (count < node.min) {
+                error(messages, location + "." + node.elementName, node.path + ": minimum required = " + node.min + ", but only found " + count + " (from " + url + ")");
+            }
+            if (node.max >= 0 && count > node.max) {
+                error(messages, location + "." + node.elementName, node.path + ": max allowed = " + node.max + ", but found " + count + " (from " + url + ")");
+            }
+        }
+    }
+
+    private static void error(List<SingleValidationMessage> messages, String location, String text) {
+        SingleValidationMessage message = new SingleValidationMessage();
+        message.setSeverity(ResultSeverityEnum.ERROR);
+        message.setLocationString(location);
+        message.setMessage(text);
+        messages.add(message);
+    }
+
+    private Profile profile(String url) {
+        Profile profile = profiles.get(url);
+        if (profile == null) {
+            profile = profiles.computeIfAbsent(url, this::compileProfile);
+        }
+        return profile;
+    }
+
+    private Profile compileProfile(String url) {
+        StructureDefinition definition = structureDefinition(url);
+        if (definition == null || definition.getKind() != StructureDefinition.StructureDefinitionKind.RESOURCE) {
+            return NONE;
+        }
+        if (!definition.hasSnapshot()) {
+            definition = definition.copy();
+            support.generateSnapshot(new ValidationSupportContext(support), definition, definition.getUrl(), null, definition.getName());
+            if (!definition.hasSnapshot()) {
+                return NONE;
+            }
+        }
+        Node root = new Node(definition.getType(), definition.getType());
+        for (ElementDefinition element : definition.getSnapshot().getElement()) {
+            String[] segments = element.getPath().split("\\.");
+            if (segments.length < 2 || element.hasSliceName() || element.getId().indexOf(':') >= 0 || element.hasContentReference()
+                    || isExtensionPath(segments)) {
+                continue;
+            }
+            List<Check> checks = compileChecks(element);
+            int max = "*".equals(element.getMax()) || element.getMax().equals(element.getBase().getMax()) ? -1 : Integer.parseInt(element.getMax());
+            if (element.getMin() == 0 && max < 0 && checks.isEmpty()) {
+                continue;
+            }
+            Node node = root;
+            for (int i = 1; i < segments.length; i++) {
+                node = node.child(segments[i], element.getPath());
+            }
+            node.min = element.getMin();
+            node.max = max;
+            node.checks = checks;
+        }
+        return new Profile(definition, root.children);
+    }
+
+    private StructureDefinition structureDefinition(String url) {
+        // canonical references may carry a version, "url|0.7.1"
+        int bar = url.indexOf('|');
+        return (StructureDefinition) support.fetchStructureDefinition(bar < 0 ? url : url.substring(0, bar));
+    }
+
+    private static boolean isExtensionPath(String[] segments) {
+        for (String segment : segments) {
+            if (segment.equals("extension") || segment.equals("modifierExtension")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Check> compileChecks(ElementDefinition element) {
+        List<Check> checks = new ArrayList<>(2);
+        if (element.hasFixed()) {
+            checks.add(fixedCheck(element.getFixed()));
+        }
+        if (element.hasPattern()) {
+            Check check = patternCheck(element.getPattern());
+            if (check != null) {
+                checks.add(check);
+            }
+        }
+        if (element.getBinding().getStrength() == Enumerations.BindingStrength.REQUIRED && element.getBinding().hasValueSet()) {
+            Check check = bindingCheck(element.getBinding().getValueSet());
+            if (check != null) {
+                checks.add(check);
+            }
+        }
+        if (element.getPath().endsWith("[x]") && element.getType().size() > 0) {
+            Check check = choiceCheck(element.getType());
+            if (check != null) {
+                checks.add(check);
+            }
+        }
+        for (ElementDefinition.TypeRefComponent type : element.getType()) {
+            if (type.getCode().equals("Reference")) {
+                if (resolveReferences) {
+                    checks.add(HCXPreValidator::resolveCheck);
+                }
+                if (type.hasTargetProfile()) {
+                    Check check = targetCheck(type.getTargetProfile());
+                    if (check != null) {
+                        checks.add(check);
+                    }
+                }
+            }
+        }
+        return checks;
+    }
+
+    private static Check fixedCheck(Type fixed) {
+        if (fixed instanceof PrimitiveType) {
+            String expected = ((PrimitiveType<?>) fixed).getValueAsString();
+            return (value, view) -> value instanceof PrimitiveType && expected.equals(((PrimitiveType<?>) value).getValueAsString())
+                    ? null : "Value is '" + valueString(value) + "' but must be '" + expected + "'";
+        }
+        return (value, view) -> value instanceof Base && ((Base) value).equalsDeep(fixed)
+                ? null : "Value does not match the fixed value of the profile";
+    }
+
+    private static Check patternCheck(Type pattern) {
+        if (pattern instanceof PrimitiveType) {
+            return fixedCheck(pattern);
+        }
+        if (pattern instanceof Coding) {
+            Coding expected = (Coding) pattern;
+            return (value, view) -> value instanceof Coding && matches((Coding) value, expected)
+                    ? null : "The pattern [system " + expected.getSystem() + ", code " + expected.getCode() + "] is not found";
+        }
+        if (pattern instanceof CodeableConcept) {
+            List<Coding> expected = ((CodeableConcept) pattern).getCoding();
+            return (value, view) -> {
+                if (!(value instanceof CodeableConcept)) {
+                    return "Value is not a CodeableConcept";
+                }
+                for (Coding coding : expected) {
+                    boolean found = false;
+                    for (Coding candidate : ((CodeableConcept) value).getCoding()) {
+                        found |= matches(candidate, coding);
+                    }
+                    if (!found) {
+                        return "The pattern [system " + coding.getSystem() + ", code " + coding.getCode() + "] is not found";
+                    }
+                }
+                return null;
+            };
+        }
+        if (pattern instanceof Identifier) {
+            Identifier expected = (Identifier) pattern;
+            return (value, view) -> value instanceof Identifier
+                    && (!expected.hasSystem() || expected.getSystem().equals(((Identifier) value).getSystem()))
+                    && (!expected.hasValue() || expected.getValue().equals(((Identifier) value).getValue()))
+                    ? null : "The pattern [system " + expected.getSystem() + ", value " + expected.getValue() + "] is not found";
+        }
+        // other complex patterns are left to the full validation
+        return null;
+    }
+
+    private static boolean matches(Coding candidate, Coding pattern) {
+        return (!pattern.hasSystem() || pattern.getSystem().equals(candidate.getSystem()))
+                && (!pattern.hasCode() || pattern.getCode().equals(candidate.getCode()));
+    }
+
+    /**
+     * Required binding to a value set which can be expanded from its own codes and the concepts of complete code
+     * systems, other value sets are left to the full validation.
+     */
+    private Check bindingCheck(String valueSetUrl) {
+        int bar = valueSetUrl.indexOf('|');
+        ValueSet valueSet = (ValueSet) support.fetchValueSet(bar < 0 ? valueSetUrl : valueSetUrl.substring(0, bar));
+        if (valueSet == null || !valueSet.hasCompose() || valueSet.getCompose().hasExclude()) {
+            return null;
+        }
+        Set<String> codes = new HashSet<>();
+        Set<String> systemCodes = new HashSet<>();
+        for (ValueSet.ConceptSetComponent include : valueSet.getCompose().getInclude()) {
+            if (include.hasValueSet() || include.hasFilter() || !include.hasSystem()) {
+                return null;
+            }
+            if (include.hasConcept()) {
+                for (ValueSet.ConceptReferenceComponent concept : include.getConcept()) {
+                    codes.add(concept.getCode());
+                    systemCodes.add(include.getSystem() + '|' + concept.getCode());
+                }
+            } else {
+                CodeSystem codeSystem = (CodeSystem) support.fetchCodeSystem(include.getSystem());
+                if (codeSystem == null || codeSystem.getContent() != CodeSystem.CodeSystemContentMode.COMPLETE) {
+                    return null;
+                }
+                addConcepts(include.getSystem(), codeSystem.getConcept(), codes, systemCodes);
+            }
+        }
+        String name = valueSet.getUrl();
+        return (value, view) -> {
+            if (value instanceof Coding) {
+                Coding coding = (Coding) value;
+                return systemCodes.contains(coding.getSystem() + '|' + coding.getCode()) ? null : notInValueSet(coding.getCode(), name);
+            }
+            if (value instanceof CodeableConcept) {
+                for (Coding coding : ((CodeableConcept) value).getCoding()) {
+                    if (systemCodes.contains(coding.getSystem() + '|' + coding.getCode())) {
+                        return null;
+                    }
+                }
+                return notInValueSet(((CodeableConcept) value).getCodingFirstRep().getCode(), name);
+            }
+            if (value instanceof PrimitiveType) {
+                String code = ((PrimitiveType<?>) value).getValueAsString();
+                return codes.contains(code) ? null : notInValueSet(code, name);
+            }
+            return null;
+        };
+    }
+
+    private static void addConcepts(String system, List<CodeSystem.ConceptDefinitionComponent> concepts, Set<String> codes, Set<String> systemCodes) {
+        for (CodeSystem.ConceptDefinitionComponent concept : concepts) {
+            codes.add(concept.getCode());
+            systemCodes.add(system + '|' + concept.getCode());
+            addConcepts(system, concept.getConcept(), codes, systemCodes);
+        }
+    }
+
+    private static String notInValueSet(String code, String valueSet) {
+        return "The value provided ('" + code + "') is not in the value set '" + valueSet + "'";
+    }
+
+    private Check choiceCheck(List<ElementDefinition.TypeRefComponent> types) {
+        Set<Class<?>> allowed = new HashSet<>();
+        for (ElementDefinition.TypeRefComponent type : types) {
+            BaseRuntimeElementDefinition<?> definition = context.getElementDefinition(type.getCode());
+            if (definition == null) {
+                return null;
+            }
+            allowed.add(definition.getImplementingClass());
+        }
+        return (value, view) -> {
+            for (Class<?> type = value.getClass(); type != null; type = type.getSuperclass()) {
+                if (allowed.contains(type)) {
+                    return null;
+                }
+            }
+            return "The type '" + context.getElementDefinition(value.getClass()).getName() + "' is not allowed here";
+        };
+    }
+
+    /**
+     * Resource types the reference may point to, checked on the type part of a relative reference, otherwise on the
+     * bundle entry it resolves to.
+     */
+    private Check targetCheck(List<CanonicalType> targetProfiles) {
+        Set<String> allowed = new HashSet<>();
+        for (CanonicalType target : targetProfiles) {
+            String url = target.getValue();
+            String type;
+            if (url.startsWith(BASE_PROFILE_PREFIX)) {
+                type = url.substring(BASE_PROFILE_PREFIX.length());
+            } else {
+                StructureDefinition definition = structureDefinition(url);
+                type = definition == null ? null : definition.getType();
+            }
+            if (type == null || type.equals("Resource") || type.equals("DomainResource")) {
+                return null;
+            }
+            allowed.add(type);
+        }
+        return (value, view) -> {
+            String reference = ((Reference) value).getReference();
+            if (reference == null || reference.startsWith("#")) {
+                return null;
+            }
+            // the type part is only reliable in relative references, absolute ones are typed by the entry they resolve to
+            String type = reference.indexOf(':') < 0 ? ((Reference) value).getReferenceElement().getResourceType() : null;
+            if (type == null && view != null) {
+                Resource resolved = view.resolve(reference);
+                type = resolved == null ? null : resolved.getResourceType().name();
+            }
+            return type == null || allowed.contains(type) ? null
+                    : "Invalid Resource target type. Found " + type + ", but expected one of (" + allowed + ")";
+        };
+    }
+
+    /**
+     * References which have to resolve within the bundle are the relative ones and urn:uuid / urn:oid, absolute
+     * references to other servers are not checked.
+     */
+    private static String resolveCheck(IBase value, HCXBundleView view) {
+        if (!(value instanceof Reference)) {
+            return null;
+        }
+        String reference = ((Reference) value).getReference();
+        if (reference == null || reference.startsWith("#") || (reference.indexOf(':') >= 0 && !reference.startsWith("urn:"))) {
+            return null;
+        }
+        return view.resolve(reference) == null ? "Unable to resolve resource '" + reference + "' in the bundle" : null;
+    }
+
+    private static String valueString(IBase value) {
+        return value instanceof PrimitiveType ? ((PrimitiveType<?>) value).getValueAsString() : String.valueOf(value);
+    }
+
+    /**
+     * Check of one element value, returns the error message or null when the value passes.
+     */
+    private interface Check {
+        String test(IBase value, HCXBundleView view);
+    }
+
+    private static final class Profile {
+        final String url;
+        final String type;
+        final List<Node> nodes;
+
+        Profile(StructureDefinition definition, List<Node> nodes) {
+            this.url = definition == null ? null : definition.getUrl();
+            this.type = definition == null ? null : definition.getType();
+            this.nodes = nodes;
+        }
+    }
+
+    /**
+     * Compiled element of a profile with its rules and the compiled elements below it. The child definition is
+     * looked up once per element class, as elements of choice types have a different class for each type.
+     */
+    private final class Node {
+        final String name;
+        final String elementName;
+        final String path;
+        final ClassValue<BaseRuntimeChildDefinition> child;
+        final List<Node> children = new ArrayList<>(0);
+        int min;
+        int max = -1;
+        List<Check> checks = Collections.emptyList();
+
+        Node(String name, String path) {
+            this.name = name;
+            this.elementName = name.endsWith("[x]") ? name.substring(0, name.length() - 3) : name;
+            this.path = path;
+            this.child = new ClassValue<BaseRuntimeChildDefinition>() {
+                @Override
+                protected BaseRuntimeChildDefinition computeValue(Class<?> type) {
+                    BaseRuntimeElementDefinition<?> definition = IBase.class.isAssignableFrom(type)
+                            ? context.getElementDefinition(type.asSubclass(IBase.class)) : null;
+                    return definition instanceof BaseRuntimeElementCompositeDefinition
+                            ? ((BaseRuntimeElementCompositeDefinition<?>) definition).getChildByName(Node.this.name) : null;
+                }
+            };
+        }
+
+        Node child(String name, String path) {
+            for (Node node : children) {
+                if (node.name.equals(name)) {
+                    return node;
+                }
+            }
+            Node node = new Node(name, path);
+            children.add(node);
+            return node;
+        }
+    }
+
+    public static class Builder {
+        private final IValidationSupport support;
+        private Function<Bundle, ValidationResult> fullValidation;
+        private Mode mode = Mode.FULL;
+        private Set<ResourceType> profiledTypes = Collections.emptySet();
+        private boolean resolveReferences;
+
+        private Builder(IValidationSupport support) {
+            this.support = support;
+        }
+
+        /**
+         * Full validation run in FULL mode for bundles passing the pre checks.
+         */
+        public Builder fullValidation(Function<Bundle, ValidationResult> fullValidation) {
+            this.fullValidation = fullValidation;
+            return this;
+        }
+
+        public Builder fullValidation(FhirValidator validator) {
+            return fullValidation(bundle -> HCXInstrumentation.validate(validator, bundle));
+        }
+
+        public Builder fullValidation(HCXValidationCache cache) {
+            return fullValidation(cache::validateWithResult);
+        }
+
+        /**
+         * Mode used by validateWithResult(Bundle), FULL by default.
+         */
+        public Builder mode(Mode mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        /**
+         * Resource types, including Bundle for the bundle itself, which must declare a meta.profile, none by default.
+         */
+        public Builder requireProfile(ResourceType... types) {
+            return requireProfile(Arrays.asList(types));
+        }
+
+        /**
+         * Same as requireProfile(ResourceType...), e.g. with HCX_PROFILED_TYPES.
+         */
+        public Builder requireProfile(Collection<ResourceType> types) {
+            this.profiledTypes = types.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(EnumSet.copyOf(types));
+            return this;
+        }
+
+        /**
+         * Whether references have to resolve within the bundle, false by default as the profile validation does not
+         * report references which do not resolve.
+         */
+        public Builder resolveReferences(boolean resolveReferences) {
+            this.resolveReferences = resolveReferences;
+            return this;
+        }
+
+        public HCXPreValidator build() {
+            if (mode == Mode.FULL && fullValidation == null) {
+                throw new IllegalStateException("FULL mode needs a full validation");
+            }
+            return new HCXPreValidator(this);
+        }
+    }
+}
@@ -0,0 +1,1039 @@
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.hl7.fhir.r4.model.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reconciles payments, PaymentNotices and the details of PaymentReconciliations, against the amounts expected from
+ * ClaimResponses: the benefit total, or the payment amount if there is no benefit total.
+ *
+ * Payments find their ClaimResponse through their response and request references and the identifiers in them.
+ * ClaimResponses are keyed on their own reference (ClaimResponse/id), their request reference and identifiers and
+ * their own identifiers. References are compared on type (case insensitive) and id, so https://host/fhir/claim/12345
+ * matches Claim/12345. Inputs can come in any order, a payment arriving before its ClaimResponse is kept and joined
+ * with it later. Feed either the PaymentNotices or the PaymentReconciliations of a payment run, a payment present in
+ * both is counted twice.
+ *
+ * Built for millions of claims a month: keys are kept in an open addressing map of 64 bit hashes to slots, with the
+ * characters of every key in one shared array so a hash hit is confirmed on the full key and two keys sharing a hash
+ * never join their claims. Amounts are longs in minor units (two decimals, paise for INR), and the state of a claim is
+ * a slot in parallel arrays, about 170 bytes per claim plus 2 bytes per character of its keys. read streams NDJSON
+ * without building FHIR resources.
+ *
+ * Results are reported to the listener as they are known. A claim is reported MATCHED as soon as its payments add up
+ * to the expected amount, and AMOUNT_MISMATCH whenever a further payment exceeds it. A claim can therefore be reported
+ * more than once, the last report counts. Claims paid less than expected, claims without payments and payments
+ * without a ClaimResponse are reported by finish. Not thread safe.
+ */
+public class HCXReconciliation {
+
+    public enum Outcome {
+        /** The payments add up to the expected amount. */
+        MATCHED,
+        /** The payments differ from the expected amount, or are in another currency. */
+        AMOUNT_MISMATCH,
+        /** No payment for a ClaimResponse. */
+        UNPAID,
+        /** Payments without a ClaimResponse, reported with the reference they were made for. */
+        UNMATCHED_PAYMENT
+    }
+
+    /**
+     * Receives the results. Amounts are in minor units, see format.
+     */
+    public interface Listener {
+        void report(Outcome outcome, String claim, long expected, long paid, int payments, String currency);
+    }
+
+    private static final JsonFactory factory = new JsonFactory();
+    private static final int AMBIGUOUS = -2;
+
+    private static final byte HAS_EXPECTED = 1;
+    private static final byte REPORTED = 2;
+    private static final byte CURRENCY_MISMATCH = 4;
+
+    private final Listener listener;
+    private final KeyMap keys = new KeyMap();
+    private final List<String> currencies = new ArrayList<>();
+
+    // one slot per claim, merged slots point to their root in parent
+    private int slots;
+    private int[] parent = new int[1024];
+    private long[] expected = new long[1024];
+    private long[] paid = new long[1024];
+    private int[] payments = new int[1024];
+    private byte[] flags = new byte[1024];
+    private byte[] currency = new byte[1024];
+    private int[] labelStart = new int[1024];
+    private int[] labelLength = new int[1024];
+    private byte[] labels = new byte[64 * 1024];
+    private int labelsSize;
+
+    private long claimResponses;
+    private long paymentCount;
+    private long skipped;
+    private long bytesRead;
+    private final long start = System.nanoTime();
+    private boolean finished;
+
+    public HCXReconciliation(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Reads an NDJSON file of ClaimResponses, PaymentNotices, PaymentReconciliations or bundles of them, see read(InputStream).
+     */
+    public void read(Path ndjson) throws IOException {
+        try (InputStream in = Files.newInputStream(ndjson)) {
+            read(in);
+        }
+    }
+
+    /**
+     * Reads a stream of JSON resources, one per line or simply one after another. Only the fields the reconciliation
+     * needs are picked from the JSON, other resource types are skipped.
+     */
+    public void read(InputStream in) throws IOException {
+        try (JsonParser parser = factory.createParser(in)) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token != JsonToken.START_OBJECT) {
+                    throw new IOException("Expected a JSON resource at " + parser.getCurrentLocation());
+                }
+                accept(readRecord(parser));
+            }
+            bytesRead += parser.getCurrentLocation().getByteOffset();
+        }
+    }
+
+    /**
+     * Adds a ClaimResponse, PaymentNotice, PaymentReconciliation or the entries of a Bundle. Other resources are skipped.
+     */
+    public void accept(Resource resource) {
+        if (resource instanceof Bundle) {
+            for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+                if (entry.hasResource()) {
+                    accept(entry.getResource());
+                }
+            }
+        } else {
+            accept(Record.of(resource));
+        }
+    }
+
+    /**
+     * Reports the claims not reported yet and their final outcome, and returns the totals. No more input can be added.
+     */
+    public Summary finish() {
+        if (finished) {
+            throw new IllegalStateException("Reconciliation already finished");
+        }
+        finished = true;
+        Summary summary = new Summary();
+        summary.claimResponses = claimResponses;
+        summary.payments = paymentCount;
+        summary.skipped = skipped;
+        summary.bytesRead = bytesRead;
+        for (int slot = 0; slot < slots; slot++) {
+            if (parent[slot] != slot) {
+                continue;
+            }
+            Outcome outcome = outcome(slot);
+            if ((flags[slot] & REPORTED) == 0) {
+                report(outcome, slot);
+            }
+            summary.count[outcome.ordinal()]++;
+            if ((flags[slot] & HAS_EXPECTED) != 0) {
+                summary.expected += expected[slot];
+            }
+            summary.paid += paid[slot];
+        }
+        summary.nanos = System.nanoTime() - start;
+        return summary;
+    }
+
+    /**
+     * Formats an amount in minor units, e.g. 8000050 as 80000.50.
+     */
+    public static String format(long amount) {
+        long abs = Math.abs(amount);
+        String cents = Long.toString(abs % 100);
+        return (amount < 0 ? "-" : "") + abs / 100 + "." + (cents.length() == 1 ? "0" + cents : cents);
+    }
+
+    /**
+     * Returns a listener writing one CSV line per report: outcome, claim, expected, paid, payments, currency.
+     */
+    public static Listener csv(Writer writer) {
+        try {
+            writer.write("outcome,claim,expected,paid,payments,currency\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return (outcome, claim, expected, paid, payments, currency) -> {
+            try {
+                writer.write(outcome.name());
+                writer.write(',');
+                writer.write(claim.indexOf(',') < 0 && claim.indexOf('"') < 0 ? claim : '"' + claim.replace("\"", "\"\"") + '"');
+                writer.write(',');
+                writer.write(expected == Long.MIN_VALUE ? "" : format(expected));
+                writer.write(',');
+                writer.write(format(paid));
+                writer.write(',');
+                writer.write(Integer.toString(payments));
+                writer.write(',');
+                writer.write(currency == null ? "" : currency);
+                writer.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    private void accept(Record record) {
+        if (finished) {
+            throw new IllegalStateException("Reconciliation already finished");
+        }
+        if (record == null || "cancelled".equals(record.status) || "entered-in-error".equals(record.status)) {
+            skipped++;
+            return;
+        }
+        switch (record.type) {
+            case "ClaimResponse":
+                Amount amount = record.benefit != null ? record.benefit : record.paymentAmount;
+                if (amount == null) {
+                    skipped++;
+                } else {
+                    addClaimResponse(record, amount);
+                }
+                break;
+            case "PaymentNotice":
+                if (record.amount == null) {
+                    skipped++;
+                } else {
+                    addPayment(record, record.amount);
+                }
+                break;
+            case "PaymentReconciliation":
+                // the payment amount of a reconciliation without details cannot be attributed to claims
+                if (record.details.isEmpty()) {
+                    skipped++;
+                }
+                for (Record detail : record.details) {
+                    if (detail.amount == null) {
+                        skipped++;
+                    } else {
+                        addPayment(detail, detail.amount);
+                    }
+                }
+                break;
+            case "Bundle":
+                if (record.entries != null) {
+                    for (Record entry : record.entries) {
+                        accept(entry);
+                    }
+                }
+                break;
+            default:
+                skipped++;
+        }
+    }
+
+    private void addClaimResponse(Record record, Amount amount) {
+        claimResponses++;
+        String label = record.id != null ? "ClaimResponse/" + record.id : record.request != null ? record.request : "ClaimResponse";
+        byte[] labelBytes = label.getBytes(StandardCharsets.UTF_8);
+        String[] claimKeys = record.claimResponseKeys();
+        int target = -1;
+        for (String key : claimKeys) {
+            int slot = find(key);
+            if (slot < 0 || slot == target) {
+                continue;
+            }
+            if ((flags[slot] & HAS_EXPECTED) != 0 && !labelEquals(slot, labelBytes)) {
+                // another ClaimResponse has this key, e.g. a shared identifier, so it identifies neither
+                keys.put(key, AMBIGUOUS);
+                continue;
+            }
+            target = target < 0 ? slot : union(target, slot);
+        }
+        if (target < 0) {
+            target = newSlot();
+        }
+        for (String key : claimKeys) {
+            int slot = find(key);
+            if (slot == -1) {
+                keys.put(key, target);
+            } else if (slot >= 0 && slot != target) {
+                keys.put(key, AMBIGUOUS);
+            }
+        }
+        setLabel(target, labelBytes);
+        expected[target] = amount.value;
+        int currencyIndex = currencyIndex(amount.currency);
+        if (payments[target] > 0 && currency[target] != currencyIndex) {
+            flags[target] |= CURRENCY_MISMATCH;
+        }
+        currency[target] = (byte) currencyIndex;
+        flags[target] = (byte) ((flags[target] | HAS_EXPECTED) & ~REPORTED);
+        evaluate(target);
+    }
+
+    private void addPayment(Record record, Amount amount) {
+        paymentCount++;
+        String[] paymentKeys = record.paymentKeys();
+        int target = -1;
+        for (String key : paymentKeys) {
+            int slot = find(key);
+            if (slot >= 0) {
+                target = slot;
+                break;
+            }
+        }
+        if (target < 0) {
+            target = newSlot();
+            String label = record.response != null ? record.response : record.request != null ? record.request
+                    : record.parentId != null ? "PaymentReconciliation/" + record.parentId : record.type + (record.id != null ? "/" + record.id : "");
+            setLabel(target, label.getBytes(StandardCharsets.UTF_8));
+            currency[target] = (byte) currencyIndex(amount.currency);
+        } else if (currency[target] != currencyIndex(amount.currency)) {
+            flags[target] |= CURRENCY_MISMATCH;
+        }
+        for (String key : paymentKeys) {
+            if (find(key) == -1) {
+                keys.put(key, target);
+            }
+        }
+        paid[target] += amount.value;
+        payments[target]++;
+        flags[target] &= ~REPORTED;
+        evaluate(target);
+    }
+
+    /**
+     * Reports a claim as soon as it is fully paid or overpaid. Underpaid claims may still get payments until finish.
+     */
+    private void evaluate(int slot) {
+        if ((flags[slot] & HAS_EXPECTED) != 0 && payments[slot] > 0
+                && (paid[slot] >= expected[slot] || (flags[slot] & CURRENCY_MISMATCH) != 0)) {
+            report(outcome(slot), slot);
+        }
+    }
+
+    private Outcome outcome(int slot) {
+        if ((flags[slot] & HAS_EXPECTED) == 0) {
+            return Outcome.UNMATCHED_PAYMENT;
+        }
+        if (payments[slot] == 0) {
+            return Outcome.UNPAID;
+        }
+        return paid[slot] == expected[slot] && (flags[slot] & CURRENCY_MISMATCH) == 0 ? Outcome.MATCHED : Outcome.AMOUNT_MISMATCH;
+    }
+
+    private void report(Outcome outcome, int slot) {
+        flags[slot] |= REPORTED;
+        listener.report(outcome, new String(labels, labelStart[slot], labelLength[slot], StandardCharsets.UTF_8),
+                (flags[slot] & HAS_EXPECTED) != 0 ? expected[slot] : Long.MIN_VALUE, paid[slot], payments[slot], currencies.get(currency[slot]));
+    }
+
+    /**
+     * Returns the root slot of the key, -1 if unknown or AMBIGUOUS.
+     */
+    private int find(String key) {
+        int slot = keys.get(key);
+        if (slot < 0) {
+            return slot;
+        }
+        while (parent[slot] != slot) {
+            parent[slot] = parent[parent[slot]];
+            slot = parent[slot];
+        }
+        return slot;
+    }
+
+    /**
+     * Joins slot into target, at most one of them has a ClaimResponse, and returns the slot which stays root.
+     */
+    private int union(int target, int slot) {
+        if ((flags[slot] & HAS_EXPECTED) != 0) {
+            int swap = target;
+            target = slot;
+            slot = swap;
+        }
+        parent[slot] = target;
+        if (payments[target] > 0 && payments[slot] > 0 && currency[target] != currency[slot]) {
+            flags[target] |= CURRENCY_MISMATCH;
+        }
+        if (payments[target] == 0) {
+            currency[target] = currency[slot];
+        }
+        paid[target] += paid[slot];
+        payments[target] += payments[slot];
+        flags[target] = (byte) ((flags[target] | (flags[slot] & CURRENCY_MISMATCH)) & ~REPORTED);
+        return target;
+    }
+
+    private int newSlot() {
+        if (slots == parent.length) {
+            int capacity = slots << 1;
+            parent = Arrays.copyOf(parent, capacity);
+            expected = Arrays.copyOf(expected, capacity);
+            paid = Arrays.copyOf(paid, capacity);
+            payments = Arrays.copyOf(payments, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            currency = Arrays.copyOf(currency, capacity);
+            labelStart = Arrays.copyOf(labelStart, capacity);
+            labelLength = Arrays.copyOf(labelLength, capacity);
+        }
+        parent[slots] = slots;
+        return slots++;
+    }
+
+    private void setLabel(int slot, byte[] label) {
+        if (labelLength[slot] > 0 && labelEquals(slot, label)) {
+            return;
+        }
+        if (labelsSize + label.length > labels.length) {
+            labels = Arrays.copyOf(labels, Math.max(labels.length << 1, labelsSize + label.length));
+        }
+        System.arraycopy(label, 0, labels, labelsSize, label.length);
+        labelStart[slot] = labelsSize;
+        labelLength[slot] = label.length;
+        labelsSize += label.length;
+    }
+
+    private boolean labelEquals(int slot, byte[] label) {
+        return Arrays.equals(labels, labelStart[slot], labelStart[slot] + labelLength[slot], label, 0, label.length);
+    }
+
+    private int currencyIndex(String code) {
+        int index = currencies.indexOf(code);
+        if (index < 0) {
+            if (currencies.size() == Byte.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many currencies");
+            }
+            currencies.add(code);
+            index = currencies.size() - 1;
+        }
+        return index;
+    }
+
+    /**
+     * Key of a reference on its type and id, ignoring the base URL and the version, with the type in lower case.
+     * References without a type, e.g. urn:uuid: references, are taken as they are.
+     */
+    static String referenceKey(String reference) {
+        int end = reference.indexOf("/_history/");
+        if (end < 0) {
+            end = reference.length();
+        }
+        int idStart = reference.lastIndexOf('/', end - 1) + 1;
+        int typeStart = idStart > 1 ? reference.lastIndexOf('/', idStart - 2) + 1 : 0;
+        return "R" + reference.substring(typeStart, idStart).toLowerCase(Locale.ROOT) + reference.substring(idStart, end);
+    }
+
+    static String identifierKey(String system, String value) {
+        return "I" + (system != null ? system : "") + '|' + value;
+    }
+
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001B3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        // zero marks a free slot of the key map
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Amount of a Money in minor units.
+     */
+    static Amount amount(Money money) {
+        if (money == null || !money.hasValue()) {
+            return null;
+        }
+        return new Amount(scaled(money.getValue()), money.getCurrency());
+    }
+
+    static long scaled(BigDecimal value) {
+        return value.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    /**
+     * Parses a JSON number into minor units without a BigDecimal for plain decimals.
+     */
+    static long scaled(String number) {
+        int length = number.length();
+        int i = 0;
+        boolean negative = number.charAt(0) == '-';
+        if (negative) {
+            i++;
+        }
+        long value = 0;
+        int decimals = -1;
+        boolean roundUp = false;
+        for (; i < length; i++) {
+            char c = number.charAt(i);
+            if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else if (c >= '0' && c <= '9' && value < 1_000_000_000_000_000L) {
+                if (decimals < 2) {
+                    value = value * 10 + (c - '0');
+                    if (decimals >= 0) {
+                        decimals++;
+                    }
+                } else if (decimals == 2) {
+                    roundUp = c >= '5';
+                    decimals++;
+                }
+            } else {
+                // exponents and very large numbers
+                return scaled(new BigDecimal(number));
+            }
+        }
+        for (int d = Math.max(decimals, 0); d < 2; d++) {
+            value *= 10;
+        }
+        if (roundUp) {
+            value++;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * The fields of a resource the reconciliation needs, from a FHIR resource or straight from JSON.
+     */
+    private static Record readRecord(JsonParser parser) throws IOException {
+        Record record = new Record();
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            token = parser.nextToken();
+            switch (field) {
+                case "resourceType":
+                    record.type = parser.getText();
+                    break;
+                case "id":
+                    record.id = parser.getText();
+                    break;
+                case "status":
+                    record.status = parser.getText();
+                    break;
+                case "identifier":
+                    if (token == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            readIdentifier(parser, record.identifiers);
+                        }
+                    } else if (token == JsonToken.START_OBJECT) {
+                        readIdentifier(parser, record.identifiers);
+                    }
+                    break;
+                case "request":
+                    if (token == JsonToken.START_OBJECT) {
+                        List<String> identifier = new ArrayList<>(2);
+                        record.request = readReference(parser, identifier);
+                        record.requestIdentifier = identifier;
+                    }
+                    break;
+                case "response":
+                    if (token == JsonToken.START_OBJECT) {
+                        List<String> identifier = new ArrayList<>(2);
+                        record.response = readReference(parser, identifier);
+                        record.responseIdentifier = identifier;
+                    }
+                    break;
+                case "amount":
+                    record.amount = token == JsonToken.START_OBJECT ? readMoney(parser) : skip(parser);
+                    break;
+                case "payment":
+                    if (token == JsonToken.START_OBJECT) {
+                        record.paymentAmount = readPaymentAmount(parser);
+                    }
+                    break;
+                case "total":
+                    if (token == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            readTotal(parser, record);
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                    break;
+                case "detail":
+                    if (token == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            Record detail = readRecord(parser);
+                            detail.type = "PaymentReconciliation.detail";
+                            record.details.add(detail);
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                    break;
+                case "entry":
+                    if (token == JsonToken.START_ARRAY) {
+                        record.entries = new ArrayList<>();
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                                if (parser.nextToken() == JsonToken.START_OBJECT && "resource".equals(parser.getCurrentName())) {
+                                    record.entries.add(readRecord(parser));
+                                } else {
+                                    parser.skipChildren();
+                                }
+                            }
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        for (Record detail : record.details) {
+            detail.parentId = record.id;
+        }
+        return record;
+    }
+
+    private static Amount skip(JsonParser parser) throws IOException {
+        parser.skipChildren();
+        return null;
+    }
+
+    private static void readIdentifier(JsonParser parser, List<String> identifiers) throws IOException {
+        String system = null;
+        String value = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("system".equals(field)) {
+                system = parser.getText();
+            } else if ("value".equals(field)) {
+                value = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (value != null) {
+            identifiers.add(system);
+            identifiers.add(value);
+        }
+    }
+
+    private static String readReference(JsonParser parser, List<String> identifier) throws IOException {
+        String reference = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("reference".equals(field)) {
+                reference = parser.getText();
+            } else if ("identifier".equals(field) && token == JsonToken.START_OBJECT) {
+                readIdentifier(parser, identifier);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return reference;
+    }
+
+    private static Amount readMoney(JsonParser parser) throws IOException {
+        Amount amount = new Amount(0, null);
+        boolean hasValue = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("value".equals(field) && (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT)) {
+                amount.value = scaled(parser.getText());
+                hasValue = true;
+            } else if ("currency".equals(field)) {
+                amount.currency = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return hasValue ? amount : null;
+    }
+
+    private static Amount readPaymentAmount(JsonParser parser) throws IOException {
+        Amount amount = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.START_OBJECT && "amount".equals(field)) {
+                amount = readMoney(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return amount;
+    }
+
+    private static void readTotal(JsonParser parser, Record record) throws IOException {
+        boolean benefit = false;
+        Amount amount = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("amount".equals(field) && token == JsonToken.START_OBJECT) {
+                amount = readMoney(parser);
+            } else if ("category".equals(field) && token == JsonToken.START_OBJECT) {
+                benefit = readBenefitCategory(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (benefit && amount != null) {
+            record.benefit = amount;
+        }
+    }
+
+    private static boolean readBenefitCategory(JsonParser parser) throws IOException {
+        boolean benefit = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("coding".equals(field) && token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String codingField = parser.getCurrentName();
+                        parser.nextToken();
+                        if ("code".equals(codingField)) {
+                            benefit |= "benefit".equals(parser.getText());
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return benefit;
+    }
+
+    static final class Amount {
+        long value;
+        String currency;
+
+        Amount(long value, String currency) {
+            this.value = value;
+            this.currency = currency;
+        }
+    }
+
+    private static final class Record {
+        String type;
+        String id;
+        String parentId;
+        String status;
+        final List<String> identifiers = new ArrayList<>(2);
+        String request;
+        List<String> requestIdentifier;
+        String response;
+        List<String> responseIdentifier;
+        Amount amount;
+        Amount benefit;
+        Amount paymentAmount;
+        final List<Record> details = new ArrayList<>(0);
+        List<Record> entries;
+
+        static Record of(Resource resource) {
+            Record record = new Record();
+            record.type = resource.getResourceType().name();
+            record.id = resource.getIdElement().getIdPart();
+            if (resource instanceof ClaimResponse) {
+                ClaimResponse claimResponse = (ClaimResponse) resource;
+                record.status = claimResponse.hasStatus() ? claimResponse.getStatus().toCode() : null;
+                identifiers(claimResponse.getIdentifier(), record.identifiers);
+                if (claimResponse.hasRequest()) {
+                    record.request = claimResponse.getRequest().getReference();
+                    record.requestIdentifier = identifier(claimResponse.getRequest());
+                }
+                for (ClaimResponse.TotalComponent total : claimResponse.getTotal()) {
+                    for (Coding coding : total.getCategory().getCoding()) {
+                        if ("benefit".equals(coding.getCode())) {
+                            record.benefit = amount(total.getAmount());
+                        }
+                    }
+                }
+                if (claimResponse.hasPayment()) {
+                    record.paymentAmount = amount(claimResponse.getPayment().getAmount());
+                }
+            } else if (resource instanceof PaymentNotice) {
+                PaymentNotice notice = (PaymentNotice) resource;
+                record.status = notice.hasStatus() ? notice.getStatus().toCode() : null;
+                identifiers(notice.getIdentifier(), record.identifiers);
+                if (notice.hasRequest()) {
+                    record.request = notice.getRequest().getReference();
+                    record.requestIdentifier = identifier(notice.getRequest());
+                }
+                if (notice.hasResponse()) {
+                    record.response = notice.getResponse().getReference();
+                    record.responseIdentifier = identifier(notice.getResponse());
+                }
+                record.amount = amount(notice.getAmount());
+            } else if (resource instanceof PaymentReconciliation) {
+                PaymentReconciliation reconciliation = (PaymentReconciliation) resource;
+                record.status = reconciliation.hasStatus() ? reconciliation.getStatus().toCode() : null;
+                for (PaymentReconciliation.DetailsComponent component : reconciliation.getDetail()) {
+                    Record detail = new Record();
+                    detail.type = "PaymentReconciliation.detail";
+                    detail.parentId = record.id;
+                    if (component.hasIdentifier()) {
+                        identifiers(List.of(component.getIdentifier()), detail.identifiers);
+                    }
+                    if (component.hasRequest()) {
+                        detail.request = component.getRequest().getReference();
+                        detail.requestIdentifier = identifier(component.getRequest());
+                    }
+                    if (component.hasResponse()) {
+                        detail.response = component.getResponse().getReference();
+                        detail.responseIdentifier = identifier(component.getResponse());
+                    }
+                    detail.amount = amount(component.getAmount());
+                    record.details.add(detail);
+                }
+            } else {
+                return null;
+            }
+            return record;
+        }
+
+        private static void identifiers(List<Identifier> identifiers, List<String> target) {
+            for (Identifier identifier : identifiers) {
+                if (identifier.hasValue()) {
+                    target.add(identifier.getSystem());
+                    target.add(identifier.getValue());
+                }
+            }
+        }
+
+        private static List<String> identifier(Reference reference) {
+            if (!reference.hasIdentifier() || !reference.getIdentifier().hasValue()) {
+                return null;
+            }
+            List<String> identifier = new ArrayList<>(2);
+            identifier.add(reference.getIdentifier().getSystem());
+            identifier.add(reference.getIdentifier().getValue());
+            return identifier;
+        }
+
+        /**
+         * Own reference, request reference and identifier, own identifiers.
+         */
+        String[] claimResponseKeys() {
+            String[] keys = new String[3 + identifiers.size() / 2];
+            int count = 0;
+            if (id != null) {
+                keys[count++] = referenceKey("ClaimResponse/" + id);
+            }
+            if (request != null) {
+                keys[count++] = referenceKey(request);
+            }
+            if (requestIdentifier != null && requestIdentifier.size() == 2) {
+                keys[count++] = identifierKey(requestIdentifier.get(0), requestIdentifier.get(1));
+            }
+            for (int i = 0; i < identifiers.size(); i += 2) {
+                keys[count++] = identifierKey(identifiers.get(i), identifiers.get(i + 1));
+            }
+            return Arrays.copyOf(keys, count);
+        }
+
+        /**
+         * Response reference and identifier first, as the most specific, then request reference and identifier.
+         */
+        String[] paymentKeys() {
+            String[] keys = new String[4];
+            int count = 0;
+            if (response != null) {
+                keys[count++] = referenceKey(response);
+            }
+            if (responseIdentifier != null && responseIdentifier.size() == 2) {
+                keys[count++] = identifierKey(responseIdentifier.get(0), responseIdentifier.get(1));
+            }
+            if (request != null) {
+                keys[count++] = referenceKey(request);
+            }
+            if (requestIdentifier != null && requestIdentifier.size() == 2) {
+                keys[count++] = identifierKey(requestIdentifier.get(0), requestIdentifier.get(1));
+            }
+            return Arrays.copyOf(keys, count);
+        }
+    }
+
+    /**
+     * Open addressing map of keys to slots. Entries hold the 64 bit hash of the key and the position of its characters
+     * in one shared array, a hash is only a hit if the characters are equal as well. Zero marks a free entry.
+     */
+    private static final class KeyMap {
+        private long[] hashes = new long[4096];
+        private int[] values = new int[4096];
+        private int[] keyStart = new int[4096];
+        private int[] keyLength = new int[4096];
+        private char[] chars = new char[64 * 1024];
+        private int charsSize;
+        private int size;
+
+        int get(String key) {
+            long hash = hash(key);
+            int mask = hashes.length - 1;
+            for (int i = (int) hash & mask; hashes[i] != 0; i = (i + 1) & mask) {
+                if (hashes[i] == hash && keyEquals(i, key)) {
+                    return values[i];
+                }
+            }
+            return -1;
+        }
+
+        void put(String key, int value) {
+            long hash = hash(key);
+            int mask = hashes.length - 1;
+            int i = (int) hash & mask;
+            while (hashes[i] != 0 && !(hashes[i] == hash && keyEquals(i, key))) {
+                i = (i + 1) & mask;
+            }
+            if (hashes[i] == 0) {
+                if (++size > hashes.length >> 1) {
+                    resize();
+                    size--;
+                    put(key, value);
+                    return;
+                }
+                hashes[i] = hash;
+                if (charsSize + key.length() > chars.length) {
+                    chars = Arrays.copyOf(chars, Math.max(chars.length << 1, charsSize + key.length()));
+                }
+                key.getChars(0, key.length(), chars, charsSize);
+                keyStart[i] = charsSize;
+                keyLength[i] = key.length();
+                charsSize += key.length();
+            }
+            values[i] = value;
+        }
+
+        private boolean keyEquals(int i, String key) {
+            if (keyLength[i] != key.length()) {
+                return false;
+            }
+            int start = keyStart[i];
+            for (int j = 0; j < key.length(); j++) {
+                if (chars[start + j] != key.charAt(j)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void resize() {
+            long[] oldHashes = hashes;
+            int[] oldValues = values;
+            int[] oldStart = keyStart;
+            int[] oldLength = keyLength;
+            int capacity = oldHashes.length << 1;
+            hashes = new long[capacity];
+            values = new int[capacity];
+            keyStart = new int[capacity];
+            keyLength = new int[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldHashes.length; j++) {
+                if (oldHashes[j] != 0) {
+                    int i = (int) oldHashes[j] & mask;
+                    while (hashes[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    hashes[i] = oldHashes[j];
+                    values[i] = oldValues[j];
+                    keyStart[i] = oldStart[j];
+                    keyLength[i] = oldLength[j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Final outcome counts and amount totals of a reconciliation.
+     */
+    public static class Summary {
+        private final long[] count = new long[Outcome.values().length];
+        private long claimResponses;
+        private long payments;
+        private long skipped;
+        private long expected;
+        private long paid;
+        private long bytesRead;
+        private long nanos;
+
+        public long getCount(Outcome outcome) {
+            return count[outcome.ordinal()];
+        }
+
+        public long getClaimResponses() {
+            return claimResponses;
+        }
+
+        public long getPayments() {
+            return payments;
+        }
+
+        /**
+         * Returns the number of inputs which are not reconciled: other resource types, cancelled or entered-in-error
+         * resources, resources without amount and PaymentReconciliations without details.
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Returns the total expected amount in minor units.
+         */
+        public long getExpected() {
+            return expected;
+        }
+
+        /**
+         * Returns the total paid amount in minor units, including unmatched payments.
+         */
+        public long getPaid() {
+            return paid;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Summary{claimResponses=" + claimResponses + ", payments=" + payments + ", matched=" + getCount(Outcome.MATCHED)
+                    + ", amountMismatch=" + getCount(Outcome.AMOUNT_MISMATCH) + ", unpaid=" + getCount(Outcome.UNPAID)
+                    + ", unmatchedPayments=" + getCount(Outcome.UNMATCHED_PAYMENT) + ", skipped=" + skipped
+                    + ", expected=" + format(expected) + ", paid=" + format(paid) + ", ms=" + nanos / 1000000 + "}";
+        }
+    }
+}
@@ -0,0 +1,28 @@
+import jdk.jfr.*;
+
+/**
+ * JFR event committed by HCXInstrumentation for every completed stage. Disabled by default, enable it with
+ * -XX:StartFlightRecording and a settings file containing {@code <event name="hcx.Stage"><setting name="enabled">true</setting></event>},
+ * or through JMC.
+ */
+@Name("hcx.Stage")
+@Label("HCX Stage")
+@Category("HCX")
+@Description("A stage of an outgoing or incoming HCX request")
+@Enabled(false)
+@StackTrace(false)
+class HCXStageEvent extends Event {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Payload Size")
+    @DataAmount
+    long payloadSize;
+
+    @Label("Success")
+    boolean success;
+}
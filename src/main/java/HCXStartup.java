@@ -0,0 +1,347 @@
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.validation.FhirValidator;
+import io.hcxprotocol.init.HCXIntegrator;
+import io.hcxprotocol.utils.Operations;
+import io.hcxprotocol.validator.HCXFHIRValidator;
+import org.hl7.fhir.common.hapi.validation.support.*;
+import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
+import org.hl7.fhir.r4.model.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Offline startup of the SDK for new instances which have to serve at full speed right away.
+ *
+ * Instead of downloading keys and IG packages on first use, start loads everything from local files: the validation
+ * support chain from an HCXValidationSnapshot cache with pre-generated snapshots, the private key used for decryption
+ * and the public key of the recipient. It then warms up the parsers, the validator, the pre-validator and the JWE code
+ * on sample HCX bundles, so the first real requests neither load classes and definitions nor run interpreted, and
+ * times every phase against a budget.
+ *
+ * <pre>
+ * HCXStartup startup = HCXStartup.builder()
+ *         .validationSnapshot(Paths.get("/opt/hcx/validation-snapshot.ndjson.gz"))
+ *         .encryptionPrivateKey(Paths.get("/opt/hcx/keys/private-key.pem"))
+ *         .budget(Duration.ofSeconds(15))
+ *         .start();
+ * System.out.println(startup.getReport());
+ * </pre>
+ * Nothing here needs network access, except the HCX SDK when integratorConfig is set: HCXIntegrator.init, and the
+ * validator HCXOutgoingRequest.generate uses (HCXFHIRValidator.getValidator), which loads the IG packages itself and is
+ * warmed up on the sample bundles too. Without integratorConfig only getValidator is warm, so offline instances should
+ * validate with it rather than leave it to generate.
+ */
+public final class HCXStartup {
+
+    private final IValidationSupport validationSupport;
+    private final FhirValidator validator;
+    private final HCXPreValidator preValidator;
+    private final HCXJweDecrypter decrypter;
+    private final HCXJweEncrypter encrypter;
+    private final Report report;
+
+    private HCXStartup(IValidationSupport validationSupport, FhirValidator validator, HCXPreValidator preValidator,
+                       HCXJweDecrypter decrypter, HCXJweEncrypter encrypter, Report report) {
+        this.validationSupport = validationSupport;
+        this.validator = validator;
+        this.preValidator = preValidator;
+        this.decrypter = decrypter;
+        this.encrypter = encrypter;
+        this.report = report;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns the validation support chain built from the snapshot cache, or null if none was set.
+     */
+    public IValidationSupport getValidationSupport() {
+        return validationSupport;
+    }
+
+    /**
+     * Returns the offline validator, or null if no snapshot cache was set.
+     */
+    public FhirValidator getValidator() {
+        return validator;
+    }
+
+    /**
+     * Returns a pre-validator in FULL mode in front of getValidator, or null if no snapshot cache was set.
+     */
+    public HCXPreValidator getPreValidator() {
+        return preValidator;
+    }
+
+    /**
+     * Returns the decrypter for the private key, or null if none was set.
+     */
+    public HCXJweDecrypter getDecrypter() {
+        return decrypter;
+    }
+
+    /**
+     * Returns the encrypter for the recipient public key, or null if none was set.
+     */
+    public HCXJweEncrypter getEncrypter() {
+        return encrypter;
+    }
+
+    public Report getReport() {
+        return report;
+    }
+
+    /**
+     * Sample bundles of the main HCX request types, used for the warm-up.
+     */
+    static List<Bundle> sampleBundles() {
+        List<Bundle> bundles = new ArrayList<>();
+        bundles.add(sample(HCXClaim.claimExample(), "https://www.tmh.in/bundle-profile/claim"));
+        bundles.add(sample(HCXCoverageEligibility.coverageEligibilityRequestExample(), HCXTerminology.COVERAGE_ELIGIBILITY_REQUEST_BUNDLE_PROFILE));
+        bundles.add(sample(HCXPayment.paymentNoticeExample(), "https://www.tmh.in/bundle-profile/paymentnotice"));
+        bundles.add(sample(HCXCommunicationRequest.communicationExample(), "https://www.tmh.in/bundle-profile/communication"));
+        return bundles;
+    }
+
+    private static Bundle sample(DomainResource resource, String bundleProfile) {
+        if (!resource.hasId()) {
+            resource.setId(UUID.randomUUID().toString());
+        }
+        HCXFHIRUtils.addContainedToResource(resource, new DomainResource[]{HCXOrganization.providerOrganizationExample(),
+                HCXOrganization.insurerOrganizationExample(), HCXPatient.patientExample(), HCXCoverage.coverageExample()});
+        return HCXFHIRUtils.moveResourceToBundle(resource, Bundle.BundleType.COLLECTION, bundleProfile);
+    }
+
+    /**
+     * Public key matching an RSA private key, so the decrypter can be warmed up on JWEs encrypted to itself.
+     */
+    private static PublicKey publicKey(PrivateKey privateKey) throws Exception {
+        RSAPrivateCrtKey key = (RSAPrivateCrtKey) privateKey;
+        return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(key.getModulus(), key.getPublicExponent()));
+    }
+
+    public static class Builder {
+        private Path validationSnapshot;
+        private Path encryptionPrivateKey;
+        private Path recipientPublicKey;
+        private String senderCode;
+        private Map<String, Object> integratorConfig;
+        private int warmUpIterations = 10;
+        private Duration budget = Duration.ofSeconds(15);
+
+        private Builder() {
+        }
+
+        /**
+         * HCXValidationSnapshot cache to build the validator from.
+         */
+        public Builder validationSnapshot(Path file) {
+            this.validationSnapshot = file;
+            return this;
+        }
+
+        /**
+         * PEM file of the private key used to decrypt incoming requests, PKCS#8 or PKCS#1.
+         */
+        public Builder encryptionPrivateKey(Path file) {
+            this.encryptionPrivateKey = file;
+            return this;
+        }
+
+        /**
+         * PEM file of the certificate or public key of the recipient of outgoing requests.
+         */
+        public Builder recipientPublicKey(Path file, String senderCode) {
+            this.recipientPublicKey = file;
+            this.senderCode = senderCode;
+            return this;
+        }
+
+        /**
+         * Configuration for HCXIntegrator.init of the HCX SDK. The encryptionPrivateKey entry is filled from the
+         * private key file.
+         */
+        public Builder integratorConfig(Map<String, Object> config) {
+            this.integratorConfig = config;
+            return this;
+        }
+
+        /**
+         * Number of times each sample bundle is run through validation, encoding and encryption, 10 by default.
+         */
+        public Builder warmUpIterations(int iterations) {
+            this.warmUpIterations = iterations;
+            return this;
+        }
+
+        /**
+         * Time the startup is expected to take, 15 seconds by default. Exceeding it is reported, not an error.
+         */
+        public Builder budget(Duration budget) {
+            this.budget = budget;
+            return this;
+        }
+
+        public HCXStartup start() throws Exception {
+            Report report = new Report(budget);
+            long start = System.nanoTime();
+
+            HCXFHIRSerializer.warmUp();
+            FhirContext context = HCXFHIRSerializer.getContext();
+            start = report.phase("fhir context", start);
+
+            PrivateKey privateKey = null;
+            String privateKeyPem = null;
+            HCXJweEncrypter encrypter = null;
+            if (encryptionPrivateKey != null) {
+                privateKeyPem = new String(Files.readAllBytes(encryptionPrivateKey), StandardCharsets.UTF_8);
+                privateKey = HCXJweDecrypter.parsePrivateKey(privateKeyPem);
+            }
+            if (recipientPublicKey != null) {
+                encrypter = HCXJweEncrypter.fromPem(new String(Files.readAllBytes(recipientPublicKey), StandardCharsets.UTF_8), senderCode);
+            }
+            HCXJweDecrypter decrypter = privateKey == null ? null : new HCXJweDecrypter(privateKey);
+            start = report.phase("keys", start);
+
+            if (integratorConfig != null) {
+                Map<String, Object> config = new HashMap<>(integratorConfig);
+                if (privateKeyPem != null) {
+                    config.put("encryptionPrivateKey", privateKeyPem);
+                }
+                HCXIntegrator.init(config);
+                start = report.phase("hcx integrator", start);
+            }
+
+            IValidationSupport support = null;
+            FhirValidator validator = null;
+            HCXPreValidator preValidator = null;
+            PrePopulatedValidationSupport snapshot = null;
+            if (validationSnapshot != null) {
+                snapshot = HCXValidationSnapshot.read(validationSnapshot);
+                start = report.phase("validation snapshot", start);
+
+                support = new CachingValidationSupport(new ValidationSupportChain(snapshot, context.getValidationSupport(),
+                        new CommonCodeSystemsTerminologyService(context), new InMemoryTerminologyServerValidationSupport(context),
+                        new SnapshotGeneratingValidationSupport(context)));
+                validator = context.newValidator().registerValidatorModule(new FhirInstanceValidator(support));
+                preValidator = HCXPreValidator.builder(support).fullValidation(validator).build();
+                start = report.phase("validator", start);
+            }
+
+            List<Bundle> samples = sampleBundles();
+            for (int i = 0; i < warmUpIterations; i++) {
+                for (Bundle bundle : samples) {
+                    HCXFHIRSerializer.parse(Bundle.class, HCXFHIRSerializer.encode(bundle));
+                }
+            }
+            start = report.phase("warm-up parsers", start);
+
+            if (validator != null) {
+                for (StructureDefinition definition : snapshot.<StructureDefinition>fetchAllStructureDefinitions()) {
+                    preValidator.compile(definition.getUrl());
+                }
+                for (int i = 0; i < warmUpIterations; i++) {
+                    for (Bundle bundle : samples) {
+                        preValidator.check(bundle);
+                        validator.validateWithResult(bundle);
+                    }
+                }
+                start = report.phase("warm-up validator", start);
+            }
+
+            if (integratorConfig != null) {
+                FhirValidator sdkValidator = HCXFHIRValidator.getValidator();
+                for (int i = 0; i < warmUpIterations; i++) {
+                    for (Bundle bundle : samples) {
+                        sdkValidator.validateWithResult(bundle);
+                    }
+                }
+                start = report.phase("warm-up sdk validator", start);
+            }
+
+            if (decrypter != null || encrypter != null) {
+                HCXJweEncrypter self = privateKey == null ? null : new HCXJweEncrypter(publicKey(privateKey), "warm-up");
+                for (int i = 0; i < warmUpIterations; i++) {
+                    for (Bundle bundle : samples) {
+                        String payload = HCXFHIRSerializer.encode(bundle);
+                        if (encrypter != null) {
+                            encrypter.encrypt(payload, Operations.CLAIM_SUBMIT, "warm-up");
+                        }
+                        if (self != null) {
+                            decrypter.decrypt((String) self.encrypt(payload, Operations.CLAIM_SUBMIT, "warm-up").get("payload"));
+                        }
+                    }
+                }
+                report.phase("warm-up encryption", start);
+            }
+            return new HCXStartup(support, validator, preValidator, decrypter, encrypter, report);
+        }
+    }
+
+    /**
+     * Duration of each startup phase in order, and the total against the budget.
+     */
+    public static final class Report {
+        private final Duration budget;
+        private final Map<String, Long> phases = new LinkedHashMap<>();
+
+        Report(Duration budget) {
+            this.budget = budget;
+        }
+
+        /**
+         * Records a phase which started at the given System.nanoTime and returns the current one.
+         */
+        long phase(String name, long start) {
+            long now = System.nanoTime();
+            phases.put(name, now - start);
+            return now;
+        }
+
+        /**
+         * Returns the duration of each phase in nanoseconds, in the order they ran.
+         */
+        public Map<String, Long> getPhaseNanos() {
+            return Collections.unmodifiableMap(phases);
+        }
+
+        public long getTotalNanos() {
+            long total = 0;
+            for (long nanos : phases.values()) {
+                total += nanos;
+            }
+            return total;
+        }
+
+        public Duration getBudget() {
+            return budget;
+        }
+
+        public boolean isWithinBudget() {
+            return getTotalNanos() <= budget.toNanos();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            for (Map.Entry<String, Long> phase : phases.entrySet()) {
+                report.append(String.format("%-20s %9.1f ms%n", phase.getKey(), phase.getValue() / 1e6));
+            }
+            report.append(String.format("%-20s %9.1f ms, budget %d ms%s%n", "total", getTotalNanos() / 1e6, budget.toMillis(),
+                    isWithinBudget() ? "" : ", OVER BUDGET"));
+            return report.toString();
+        }
+    }
+}
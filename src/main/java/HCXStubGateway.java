@@ -0,0 +1,130 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for an HCX gateway, listening on a free port of the loopback interface. Every POST is answered with
+ * a canned response: an access token for paths ending with "/token" and an HCX acknowledgement with fresh
+ * api_call_id, correlation_id and timestamp for everything else. Responses for individual paths can be replaced with
+ * respond, and an artificial latency can be set to simulate a slow gateway. No network access is needed.
+ *
+ * The JDK server writes the headers and the body of a response separately, so without -Dsun.net.httpserver.nodelay=true
+ * every response on a kept alive connection waits about 40 ms for the delayed ACK of the client. The property is read
+ * once for the whole JVM when the first server starts, HCXLoadDriver.main sets it, other callers have to set it
+ * themselves.
+ */
+public class HCXStubGateway implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, CannedResponse> responses = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private volatile long latencyMillis;
+
+    public HCXStubGateway() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "hcx-stub-gateway");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Base path to use as "protocolBasePath", e.g. http://127.0.0.1:40123/api/v0.7
+     */
+    public String getProtocolBasePath() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/api/v0.7";
+    }
+
+    /**
+     * URL to use as "authBasePath".
+     */
+    public String getAuthBasePath() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/auth/token";
+    }
+
+    public HCXStubGateway respond(String path, int status, String body) {
+        responses.put(path, new CannedResponse(status, body));
+        return this;
+    }
+
+    public HCXStubGateway setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            long total = 0;
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                total += n;
+            }
+            bytesReceived.addAndGet(total);
+        }
+        requests.incrementAndGet();
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        String path = exchange.getRequestURI().getPath();
+        CannedResponse response = responses.get(path);
+        if (response == null) {
+            response = path.endsWith("/token")
+                    ? new CannedResponse(200, "{\"access_token\":\"stub-token\",\"expires_in\":3600,\"token_type\":\"bearer\"}")
+                    : new CannedResponse(202, "{\"api_call_id\":\"" + UUID.randomUUID() + "\",\"correlation_id\":\"" + UUID.randomUUID()
+                    + "\",\"timestamp\":" + Instant.now().toEpochMilli() + "}");
+        }
+        byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(response.status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static final class CannedResponse {
+        final int status;
+        final String body;
+
+        CannedResponse(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import org.hl7.fhir.r4.model.*;
+
+import java.util.Date;
+
+/**
+ * Shared terminology, profile and reference constants used by the HCX resource builders.
+ *
+ * Only the code systems and profiles are shared, as strings. The HAPI model has no immutable types and
+ * moveResourceToBundle puts resources into bundles without copying them, so every method returns new instances which
+ * the caller owns and may modify.
+ */
+public final class HCXTerminology {
+
+    private HCXTerminology() {
+    }
+
+    // code systems
+    public static final String CLAIM_TYPE_SYSTEM = "http://terminology.hl7.org/CodeSystem/claim-type";
+    public static final String PROCESS_PRIORITY_SYSTEM = "http://terminology.hl7.org/CodeSystem/processpriority";
+    public static final String PAYEE_TYPE_SYSTEM = "http://terminology.hl7.org/CodeSystem/payeetype";
+    public static final String ADJUDICATION_SYSTEM = "http://terminology.hl7.org/CodeSystem/adjudication";
+    public static final String SUBSCRIBER_RELATIONSHIP_SYSTEM = "http://terminology.hl7.org/CodeSystem/subscriber-relationship";
+    public static final String IDENTIFIER_TYPE_SYSTEM = "http://terminology.hl7.org/CodeSystem/v2-0203";
+    public static final String PMJAY_PACKAGE_SYSTEM = "https://pmjay.gov.in/hbp-package-code";
+
+    // profiles
+    public static final String CLAIM_PROFILE = "https://ig.hcxprotocol.io/v0.7/StructureDefinition-Claim.html";
+    public static final String CLAIM_RESPONSE_PROFILE = "https://ig.hcxprotocol.io/v0.7/StructureDefinition-ClaimResponse.html";
+    public static final String COVERAGE_ELIGIBILITY_REQUEST_PROFILE = "https://ig.hcxprotocol.io/v0.7/StructureDefinition-CoverageEligibilityRequest.html";
+    public static final String COVERAGE_ELIGIBILITY_RESPONSE_PROFILE = "https://ig.hcxprotocol.io/v0.7/StructureDefinition-CoverageEligibilityResponse.html";
+    public static final String COVERAGE_PROFILE = "https://ig.hcxprotocol.io/v0.7/StructureDefinition-Coverage.html";
+    public static final String PAYMENT_NOTICE_PROFILE = "https://ig.hcxprotocol.io/v0.7.1/StructureDefinition-PaymentNotice.html";
+    public static final String PAYMENT_RECONCILIATION_PROFILE = "https://ig.hcxprotocol.io/v0.7.1/StructureDefinition-PaymentReconciliation.html";
+    public static final String COMMUNICATION_PROFILE = "https://ig.hcxprotocol.io/v0.7.1/StructureDefinition-Communication.html";
+    public static final String COMMUNICATION_REQUEST_PROFILE = "https://ig.hcxprotocol.io/v0.7.1/StructureDefinition-CommunicationRequest.html";
+    public static final String NDHM_PATIENT_PROFILE = "https://nrces.in/ndhm/fhir/r4/StructureDefinition/Patient";
+    public static final String NDHM_ORGANIZATION_PROFILE = "https://nrces.in/ndhm/fhir/r4/StructureDefinition/Organization";
+    public static final String COVERAGE_ELIGIBILITY_REQUEST_BUNDLE_PROFILE = "https://ig.hcxprotocol.io/v0.7.1/StructureDefinition-CoverageEligibilityRequestBundle.html";
+
+    public static CodeableConcept claimTypeInstitutional() {
+        return code(CLAIM_TYPE_SYSTEM, "institutional");
+    }
+
+    public static CodeableConcept processPriorityNormal() {
+        return code(PROCESS_PRIORITY_SYSTEM, "normal");
+    }
+
+    public static CodeableConcept payeeTypeProvider() {
+        return code(PAYEE_TYPE_SYSTEM, "provider");
+    }
+
+    public static CodeableConcept adjudicationBenefit() {
+        return code(ADJUDICATION_SYSTEM, "benefit");
+    }
+
+    public static CodeableConcept subscriberRelationshipSelf() {
+        return code(SUBSCRIBER_RELATIONSHIP_SYSTEM, "self");
+    }
+
+    /**
+     * Returns a CodeableConcept for a PM-JAY health benefit package code.
+     */
+    public static CodeableConcept packageCode(String code, String display) {
+        return new CodeableConcept(new Coding().setSystem(PMJAY_PACKAGE_SYSTEM).setCode(code).setDisplay(display));
+    }
+
+    /**
+     * Returns an "Organization/id" reference.
+     */
+    public static Reference organization(String id) {
+        return new Reference("Organization/" + id);
+    }
+
+    /**
+     * Returns a Meta with the profile and the given last updated date, which may be null.
+     */
+    public static Meta meta(String profile, Date lastUpdated) {
+        Meta meta = new Meta();
+        meta.addProfile(profile);
+        if (lastUpdated != null) {
+            meta.setLastUpdated(lastUpdated);
+        }
+        return meta;
+    }
+
+    private static CodeableConcept code(String system, String code) {
+        return new CodeableConcept(new Coding().setSystem(system).setCode(code));
+    }
+}
@@ -0,0 +1,432 @@
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import io.hcxprotocol.validator.HCXFHIRValidator;
+import org.hl7.fhir.r4.model.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Caches FHIR validation results per bundle entry, keyed on a SHA-256 hash of the compact JSON of the entry resource
+ * (meta.lastUpdated is left out as it changes on every build). Entries which were seen before reuse their messages and
+ * only new or changed entries are run through the profile validator. Bundles with urn: references which do not
+ * resolve to an entry are validated fully, as only the validation of the whole bundle reports them.
+ *
+ * The bundle itself (bundle profile, bdl constraints, entry cardinality and slicing) is validated on every call, with
+ * each entry resource replaced by an empty resource of the same type, id and meta, and the messages which are not
+ * located inside an entry resource are kept. Messages on an entry itself or about slicing may come from the stand-ins,
+ * e.g. when the bundle profile slices the entries by profile. For those the bundle is validated fully the first time a
+ * bundle shape (type and profiles of the bundle and of its entries in order) reports them, and the cache learns
+ * which of them the full validation reports as well. Later bundles of the same shape whose entries have no errors
+ * keep those and drop the others, anything not seen before or entries with errors lead to a full validation again.
+ * This relies on entries without errors against their own profiles matching the entry slices for those profiles.
+ *
+ * The entry cache is a bounded LRU map with a time to live. The instance can be shared between threads.
+ */
+public class HCXValidationCache {
+
+    private static final String ENTRY_LOCATION_PREFIX = "Bundle.entry[";
+    private static final Pattern ENTRY_RESOURCE_LOCATION = Pattern.compile("^Bundle\\.entry\\[\\d+]\\.resource\\b.*");
+    private static final Pattern ENTRY_LOCATION = Pattern.compile("^Bundle\\.entry\\[\\d+]$");
+    private static final int MAX_SHAPES = 1000;
+
+    private final FhirValidator validator;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final Map<String, Cached> entryCache;
+    private final Map<String, Shape> shapes = new LinkedHashMap<String, Shape>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Shape> eldest) {
+            return size() > MAX_SHAPES;
+        }
+    };
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder fullValidations = new LongAdder();
+
+    private final ThreadLocal<IParser> hashParser = ThreadLocal.withInitial(() -> {
+        IParser parser = HCXFHIRSerializer.getContext().newJsonParser().setPrettyPrint(false);
+        parser.setDontEncodeElements(Collections.singleton("*.meta.lastUpdated"));
+        return parser;
+    });
+    private final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    public HCXValidationCache(FhirValidator validator, int maxEntries, Duration ttl) {
+        this.validator = validator;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttl.toNanos();
+        this.entryCache = lruMap(maxEntries);
+    }
+
+    /**
+     * Creates a cache around the HCX SDK validator holding up to 10000 entries for 6 hours.
+     */
+    public static HCXValidationCache withDefaults() throws Exception {
+        return new HCXValidationCache(HCXFHIRValidator.getValidator(), 10000, Duration.ofHours(6));
+    }
+
+    public ValidationResult validateWithResult(Bundle bundle) {
+        try (HCXInstrumentation.Span span = HCXInstrumentation.start(HCXMetrics.Stage.VALIDATE, null)) {
+            ValidationResult result = validate(bundle);
+            span.success();
+            return result;
+        }
+    }
+
+    private ValidationResult validate(Bundle bundle) {
+        List<SingleValidationMessage> messages = new ArrayList<>();
+        List<SingleValidationMessage> uncertain = new ArrayList<>();
+        for (SingleValidationMessage message : validator.validateWithResult(envelope(bundle)).getMessages()) {
+            String location = message.getLocationString();
+            if (location == null || !ENTRY_RESOURCE_LOCATION.matcher(location).matches()) {
+                if (location != null && ENTRY_LOCATION.matcher(location).matches() || aboutSlices(message.getMessage())) {
+                    // may come from the stand-in entry resources
+                    uncertain.add(message);
+                } else {
+                    messages.add(message);
+                }
+            }
+        }
+        HCXBundleView view = null;
+        FhirTerser terser = HCXFHIRSerializer.getContext().newTerser();
+        boolean entryErrors = false;
+        boolean unresolved = false;
+        List<SingleValidationMessage> entryMessages = new ArrayList<>();
+        List<Bundle.BundleEntryComponent> entries = bundle.getEntry();
+        for (int i = 0; i < entries.size(); i++) {
+            Resource resource = entries.get(i).getResource();
+            if (resource == null) {
+                continue;
+            }
+            String key = contentHash(resource);
+            Cached cached = get(entryCache, key);
+            if (cached == null) {
+                misses.increment();
+                cached = put(entryCache, key, validator.validateWithResult(resource).getMessages());
+            } else {
+                hits.increment();
+            }
+            String prefix = ENTRY_LOCATION_PREFIX + i + "].resource.ofType(" + resource.fhirType() + ")";
+            for (SingleValidationMessage message : cached.messages) {
+                entryErrors |= message.getSeverity() == ResultSeverityEnum.ERROR || message.getSeverity() == ResultSeverityEnum.FATAL;
+                entryMessages.add(copy(message, relocate(message.getLocationString(), prefix)));
+            }
+            for (Reference reference : terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+                String target = reference.getReference();
+                if (target != null && target.startsWith("urn:")) {
+                    if (view == null) {
+                        view = HCXBundleView.of(bundle);
+                    }
+                    unresolved |= !view.contains(target);
+                }
+            }
+        }
+        if (unresolved) {
+            fullValidations.increment();
+            return validator.validateWithResult(bundle);
+        }
+        if (!uncertain.isEmpty()) {
+            Shape shape;
+            String shapeKey = shape(bundle);
+            synchronized (shapes) {
+                shape = shapes.computeIfAbsent(shapeKey, k -> new Shape());
+            }
+            if (entryErrors || !shape.explains(uncertain)) {
+                fullValidations.increment();
+                ValidationResult full = validator.validateWithResult(bundle);
+                if (!entryErrors) {
+                    shape.learn(uncertain, full.getMessages());
+                }
+                return full;
+            }
+            for (SingleValidationMessage message : uncertain) {
+                if (shape.confirmed.contains(key(message))) {
+                    messages.add(message);
+                }
+            }
+        }
+        messages.addAll(entryMessages);
+        return new ValidationResult(HCXFHIRSerializer.getContext(), messages);
+    }
+
+    /**
+     * Type and profiles of the bundle and of its entry resources in order.
+     */
+    private static String shape(Bundle bundle) {
+        StringBuilder shape = new StringBuilder().append(bundle.getTypeElement().getValueAsString());
+        profiles(shape, bundle);
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            Resource resource = entry.getResource();
+            shape.append('\n').append(resource == null ? "-" : resource.fhirType());
+            if (resource != null) {
+                profiles(shape, resource);
+            }
+        }
+        return shape.toString();
+    }
+
+    private static void profiles(StringBuilder shape, Resource resource) {
+        if (resource.hasMeta()) {
+            List<String> profiles = new ArrayList<>();
+            for (CanonicalType profile : resource.getMeta().getProfile()) {
+                profiles.add(profile.getValue());
+            }
+            Collections.sort(profiles);
+            for (String profile : profiles) {
+                shape.append(' ').append(profile);
+            }
+        }
+    }
+
+    /**
+     * Whether a message is about slicing, e.g. "Bundle.entry:Claim: minimum required = 1, but only found 0".
+     */
+    private static boolean aboutSlices(String message) {
+        return message != null && (message.toLowerCase(Locale.ROOT).contains("slice") || message.contains("Bundle.entry:"));
+    }
+
+    private static String key(SingleValidationMessage message) {
+        return message.getSeverity() + "|" + message.getLocationString() + "|" + message.getMessage();
+    }
+
+    /**
+     * Returns a bundle sharing the elements of the given one, but with every entry resource replaced by an empty
+     * resource of the same type with the id and meta of the original. The given bundle is not modified.
+     */
+    private static Bundle envelope(Bundle bundle) {
+        Bundle envelope = new Bundle();
+        if (bundle.hasIdElement()) {
+            envelope.setIdElement(bundle.getIdElement());
+        }
+        if (bundle.hasMeta()) {
+            envelope.setMeta(bundle.getMeta());
+        }
+        if (bundle.hasImplicitRulesElement()) {
+            envelope.setImplicitRulesElement(bundle.getImplicitRulesElement());
+        }
+        if (bundle.hasLanguageElement()) {
+            envelope.setLanguageElement(bundle.getLanguageElement());
+        }
+        if (bundle.hasIdentifier()) {
+            envelope.setIdentifier(bundle.getIdentifier());
+        }
+        if (bundle.hasTypeElement()) {
+            envelope.setTypeElement(bundle.getTypeElement());
+        }
+        if (bundle.hasTimestampElement()) {
+            envelope.setTimestampElement(bundle.getTimestampElement());
+        }
+        if (bundle.hasTotalElement()) {
+            envelope.setTotalElement(bundle.getTotalElement());
+        }
+        if (bundle.hasLink()) {
+            envelope.setLink(bundle.getLink());
+        }
+        if (bundle.hasSignature()) {
+            envelope.setSignature(bundle.getSignature());
+        }
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            Bundle.BundleEntryComponent copy = envelope.addEntry();
+            if (entry.hasExtension()) {
+                copy.setExtension(entry.getExtension());
+            }
+            if (entry.hasModifierExtension()) {
+                copy.setModifierExtension(entry.getModifierExtension());
+            }
+            if (entry.hasLink()) {
+                copy.setLink(entry.getLink());
+            }
+            if (entry.hasFullUrlElement()) {
+                copy.setFullUrlElement(entry.getFullUrlElement());
+            }
+            if (entry.hasSearch()) {
+                copy.setSearch(entry.getSearch());
+            }
+            if (entry.hasRequest()) {
+                copy.setRequest(entry.getRequest());
+            }
+            if (entry.hasResponse()) {
+                copy.setResponse(entry.getResponse());
+            }
+            Resource resource = entry.getResource();
+            if (resource != null) {
+                Resource stub = (Resource) HCXFHIRSerializer.getContext().getResourceDefinition(resource).newInstance();
+                if (resource.hasIdElement()) {
+                    stub.setIdElement(resource.getIdElement());
+                }
+                if (resource.hasMeta()) {
+                    stub.setMeta(resource.getMeta());
+                }
+                copy.setResource(stub);
+            }
+        }
+        return envelope;
+    }
+
+    /**
+     * Returns the canonical content hash used as cache key for the resource.
+     */
+    public String contentHash(Resource resource) {
+        MessageDigest md = digest.get();
+        md.reset();
+        byte[] hash = md.digest(hashParser.get().encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().withoutPadding().encodeToString(hash);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the number of bundles which were validated fully because their bundle level messages could depend on
+     * the content of the entry resources.
+     */
+    public long getFullValidations() {
+        return fullValidations.sum();
+    }
+
+    public int size() {
+        synchronized (entryCache) {
+            return entryCache.size();
+        }
+    }
+
+    public double hitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public void clear() {
+        synchronized (entryCache) {
+            entryCache.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HCXValidationCache{size=" + size() + "/" + maxEntries + ", hits=" + getHits() + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions() + ", fullValidations=" + getFullValidations() + "}";
+    }
+
+    private Cached get(Map<String, Cached> cache, String key) {
+        synchronized (cache) {
+            Cached cached = cache.get(key);
+            if (cached != null && System.nanoTime() - cached.createdAt > ttlNanos) {
+                cache.remove(key);
+                evictions.increment();
+                return null;
+            }
+            return cached;
+        }
+    }
+
+    private Cached put(Map<String, Cached> cache, String key, List<SingleValidationMessage> messages) {
+        Cached cached = new Cached(new ArrayList<>(messages), System.nanoTime());
+        synchronized (cache) {
+            cache.put(key, cached);
+        }
+        return cached;
+    }
+
+    private <K, V> Map<K, V> lruMap(int capacity) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                if (size() > capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Moves a location of a stand-alone validation, e.g. "Patient.identifier[0]", under the bundle entry it came from,
+     * e.g. "Bundle.entry[0].resource.ofType(Patient).identifier[0]" like in the validation of the whole bundle.
+     */
+    private static String relocate(String location, String prefix) {
+        if (location == null) {
+            return prefix;
+        }
+        int dot = location.indexOf('.');
+        return dot < 0 ? prefix : prefix + location.substring(dot);
+    }
+
+    private static SingleValidationMessage copy(SingleValidationMessage source, String location) {
+        SingleValidationMessage message = new SingleValidationMessage();
+        message.setSeverity(source.getSeverity());
+        message.setMessage(source.getMessage());
+        // line and column of the stand-alone JSON would not match the bundle
+        message.setLocationString(location);
+        return message;
+    }
+
+    /**
+     * The messages on entries or about slicing which the envelope validation of a bundle shape reports, split into
+     * those the full validation reported as well and those which came from the stand-ins.
+     */
+    private static final class Shape {
+        final Set<String> confirmed = ConcurrentHashMap.newKeySet();
+        final Set<String> artifacts = ConcurrentHashMap.newKeySet();
+
+        boolean explains(List<SingleValidationMessage> messages) {
+            for (SingleValidationMessage message : messages) {
+                String key = key(message);
+                if (confirmed.contains(key) == artifacts.contains(key)) {
+                    // not seen yet, or kept in one bundle and dropped in another
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void learn(List<SingleValidationMessage> uncertain, List<SingleValidationMessage> full) {
+            Set<String> reported = new HashSet<>();
+            for (SingleValidationMessage message : full) {
+                reported.add(key(message));
+            }
+            for (SingleValidationMessage message : uncertain) {
+                String key = key(message);
+                (reported.contains(key) ? confirmed : artifacts).add(key);
+            }
+        }
+    }
+
+    private static final class Cached {
+        final List<SingleValidationMessage> messages;
+        final long createdAt;
+
+        Cached(List<SingleValidationMessage> messages, long createdAt) {
+            this.messages = messages;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.SnapshotGeneratingValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local cache of the conformance resources the validation needs beyond the core R4 definitions: the StructureDefinitions
+ * of the HCX IG and its dependencies with pre-generated snapshots, and their ValueSets and CodeSystems.
+ *
+ * The cache is built once, e.g. when the container image is built, from IG packages (the package.tgz published with
+ * the IG) or JSON files, and is a gzip file with one compact JSON resource per line. read loads it into a validation
+ * support without network access and without generating snapshots, see HCXStartup.
+ *
+ * Usage: HCXValidationSnapshot output.ndjson.gz (package.tgz | directory | resource.json)...
+ */
+public final class HCXValidationSnapshot {
+
+    private static final String[] TYPES = {"StructureDefinition", "ValueSet", "CodeSystem"};
+
+    private HCXValidationSnapshot() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: HCXValidationSnapshot output.ndjson.gz (package.tgz | directory | resource.json)...");
+            System.exit(2);
+        }
+        long start = System.nanoTime();
+        List<Path> sources = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            sources.add(Paths.get(args[i]));
+        }
+        int written = write(build(sources), Paths.get(args[0]));
+        System.out.printf("Wrote %d resources to %s in %d ms%n", written, args[0], (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Loads the StructureDefinitions, ValueSets and CodeSystems of the sources and generates the snapshots which are
+     * missing. Sources are IG packages (.tgz), JSON resource files and directories of JSON resource files.
+     */
+    public static PrePopulatedValidationSupport build(List<Path> sources) throws IOException {
+        FhirContext context = HCXFHIRSerializer.getContext();
+        PrePopulatedValidationSupport loaded = new PrePopulatedValidationSupport(context);
+        for (Path source : sources) {
+            if (Files.isDirectory(source)) {
+                try (Stream<Path> files = Files.list(source)) {
+                    for (Path file : files.filter(f -> f.toString().endsWith(".json")).sorted().collect(Collectors.toList())) {
+                        add(loaded, file);
+                    }
+                }
+            } else if (source.toString().endsWith(".tgz")) {
+                addPackage(loaded, source);
+            } else {
+                add(loaded, source);
+            }
+        }
+
+        ValidationSupportChain chain = new ValidationSupportChain(loaded, context.getValidationSupport(), new SnapshotGeneratingValidationSupport(context));
+        PrePopulatedValidationSupport snapshot = new PrePopulatedValidationSupport(context);
+        for (IBaseResource resource : resources(loaded)) {
+            if (resource instanceof StructureDefinition) {
+                StructureDefinition definition = (StructureDefinition) resource;
+                if (!definition.hasSnapshot()) {
+                    definition = definition.copy();
+                    chain.generateSnapshot(new ValidationSupportContext(chain), definition, definition.getUrl(), null, definition.getName());
+                    if (!definition.hasSnapshot()) {
+                        throw new IOException("Could not generate the snapshot of " + definition.getUrl());
+                    }
+                }
+                snapshot.addStructureDefinition(definition);
+            } else {
+                snapshot.addResource(resource);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Writes the conformance resources of the support to the file and returns their number.
+     */
+    public static int write(PrePopulatedValidationSupport support, Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        int count = 0;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(temp), 64 * 1024), StandardCharsets.UTF_8))) {
+            for (IBaseResource resource : resources(support)) {
+                // one resource per line, compact JSON never contains a raw line break
+                writer.write(HCXFHIRSerializer.parser().encodeResourceToString(resource));
+                writer.write('\n');
+                count++;
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * Reads a file written by write. The lines are parsed in parallel.
+     */
+    public static PrePopulatedValidationSupport read(Path file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(file), 64 * 1024), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        }
+        List<IBaseResource> resources = lines.parallelStream().map(HCXFHIRSerializer::parse).collect(Collectors.toList());
+        PrePopulatedValidationSupport support = new PrePopulatedValidationSupport(HCXFHIRSerializer.getContext());
+        for (IBaseResource resource : resources) {
+            support.addResource(resource);
+        }
+        return support;
+    }
+
+    /**
+     * Returns the conformance resources of the support once each, PrePopulatedValidationSupport lists a resource under
+     * every key it is indexed by.
+     */
+    static List<IBaseResource> resources(PrePopulatedValidationSupport support) {
+        Set<IBaseResource> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<IBaseResource> resources = new ArrayList<>();
+        for (IBaseResource resource : support.fetchAllConformanceResources()) {
+            if (seen.add(resource)) {
+                resources.add(resource);
+            }
+        }
+        return resources;
+    }
+
+    private static void addPackage(PrePopulatedValidationSupport support, Path tgz) throws IOException {
+        NpmPackage npm;
+        try (InputStream in = Files.newInputStream(tgz)) {
+            npm = NpmPackage.fromPackage(in);
+        }
+        for (String name : npm.listResources(TYPES)) {
+            try (InputStream in = npm.loadResource(name)) {
+                addResource(support, HCXFHIRSerializer.parser().parseResource(new InputStreamReader(in, StandardCharsets.UTF_8)));
+            }
+        }
+    }
+
+    private static void add(PrePopulatedValidationSupport support, Path file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            addResource(support, HCXFHIRSerializer.parser().parseResource(reader));
+        }
+    }
+
+    private static void addResource(PrePopulatedValidationSupport support, IBaseResource resource) {
+        if (resource instanceof StructureDefinition || resource instanceof ValueSet || resource instanceof CodeSystem) {
+            support.addResource(resource);
+        }
+    }
+}
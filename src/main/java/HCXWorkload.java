@@ -0,0 +1,340 @@
+import io.hcxprotocol.utils.Operations;
+import org.hl7.fhir.r4.model.*;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+/**
+ * Seeded synthetic HCX workload for load tests and capacity planning: populations of patients with their coverages,
+ * providers and insurers, and a stream of claim and coverage eligibility request bundles drawn from them.
+ *
+ * Everything is derived from the seed and an index, request(i) always returns the same bundle for the same seed and
+ * configuration, whichever thread calls it and in whatever order. Nothing is kept in memory besides the configuration,
+ * so populations can be as large as needed. Claims have a configurable number of items and part of them carry a
+ * Communication with an attachment around the configured size. Requests are spread unevenly over the providers, the
+ * first ones getting most of them, as large hospitals do.
+ *
+ * <pre>
+ * HCXWorkload workload = HCXWorkload.builder(42).patients(100000).providers(500).items(1, 8).attachments(256, 0.2).build();
+ * HCXWorkload.Request request = workload.request(0);
+ * </pre>
+ */
+public final class HCXWorkload {
+
+    public static final String CLAIM_BUNDLE_PROFILE = "https://www.tmh.in/bundle-profile/claim";
+
+    private static final String[] FIRST_NAMES = {"Aarav", "Aditi", "Akash", "Ananya", "Arjun", "Divya", "Farhan", "Gauri", "Harish",
+            "Isha", "Karan", "Kavya", "Lakshmi", "Manoj", "Meera", "Nikhil", "Pooja", "Priya", "Rahul", "Riya", "Sanjay", "Sneha",
+            "Suresh", "Tanvi", "Varun", "Zoya"};
+    private static final String[] LAST_NAMES = {"Agarwal", "Bose", "Chopra", "Das", "Gupta", "Iyer", "Joshi", "Khan", "Kumar",
+            "Menon", "Mishra", "Nair", "Patel", "Rao", "Reddy", "Shah", "Sharma", "Singh", "Verma"};
+    private static final String[] CITIES = {"Bengaluru", "Chennai", "Delhi", "Hyderabad", "Jaipur", "Kolkata", "Lucknow", "Mumbai",
+            "Pune", "Ahmedabad"};
+    // package codes used elsewhere in this repository with a base price in INR
+    private static final String[][] PACKAGES = {{"ID003", "Treatment of COVID-19 Infection", "100000"}, {"E101021", "Twin Pregnancy Delivery", "15000"}};
+
+    private static final long PATIENT = 0x5851F42D4C957F2DL;
+    private static final long PROVIDER = 0x14057B7EF767814FL;
+    private static final long INSURER = 0x2545F4914F6CDD1DL;
+    private static final long REQUEST = 0x9E3779B97F4A7C15L;
+    // 2022-10-17T00:00:00Z, requests are created within the year after
+    private static final long BASE_TIME = 1665964800000L;
+
+    private final long seed;
+    private final int patients;
+    private final int providers;
+    private final int insurers;
+    private final int minItems;
+    private final int maxItems;
+    private final int attachmentKb;
+    private final double attachmentShare;
+    private final double eligibilityShare;
+    private final byte[] attachmentData;
+
+    private HCXWorkload(Builder builder) {
+        this.seed = builder.seed;
+        this.patients = builder.patients;
+        this.providers = builder.providers;
+        this.insurers = builder.insurers;
+        this.minItems = builder.minItems;
+        this.maxItems = builder.maxItems;
+        this.attachmentKb = builder.attachmentKb;
+        this.attachmentShare = builder.attachmentShare;
+        this.eligibilityShare = builder.eligibilityShare;
+        // one block of random bytes shared by all attachments, they are only read
+        this.attachmentData = new byte[attachmentKb * 1024 * 3 / 2];
+        byte[] random = new byte[8];
+        SplittableRandom generator = random(REQUEST, -1);
+        for (int i = 0; i < attachmentData.length; i += 8) {
+            long value = generator.nextLong();
+            for (int j = 0; j < 8; j++) {
+                random[j] = (byte) (value >>> (j * 8));
+            }
+            System.arraycopy(random, 0, attachmentData, i, Math.min(8, attachmentData.length - i));
+        }
+    }
+
+    public static Builder builder(long seed) {
+        return new Builder(seed);
+    }
+
+    /**
+     * Returns request number index: a claim/submit or coverageeligibility/check bundle with the patient, coverage,
+     * provider and insurer as entries, and an attachment Communication for some claims.
+     */
+    public Request request(long index) {
+        SplittableRandom random = random(REQUEST, index);
+        int patient = random.nextInt(patients);
+        int provider = skewed(random, providers);
+        Date created = new Date(BASE_TIME + random.nextLong(365L * 24 * 3600 * 1000));
+        boolean eligibility = random.nextDouble() < eligibilityShare;
+        DomainResource focal;
+        Operations operation;
+        String bundleProfile;
+        if (eligibility) {
+            focal = HCXCoverageEligibility.builder().id("CER" + index).identifier("CER-" + index).patient(patientId(patient))
+                    .provider(providerId(provider)).insurer(insurerId(insurerOf(patient))).coverage(coverageId(patient))
+                    .servicedPeriod(created, new Date(created.getTime() + random.nextLong(1, 15) * 24 * 3600 * 1000)).created(created).build();
+            operation = Operations.COVERAGE_ELIGIBILITY_CHECK;
+            bundleProfile = HCXTerminology.COVERAGE_ELIGIBILITY_REQUEST_BUNDLE_PROFILE;
+        } else {
+            HCXClaim.Builder claim = HCXClaim.builder().id("CLAIM" + index).identifier("http://identifiersystem.com", "CLAIM-" + index)
+                    .patient(patientId(patient)).provider(providerId(provider)).insurer(insurerId(insurerOf(patient)))
+                    .coverage(coverageId(patient)).created(created);
+            int items = minItems + random.nextInt(maxItems - minItems + 1);
+            for (int i = 0; i < items; i++) {
+                String[] code = PACKAGES[random.nextInt(PACKAGES.length)];
+                long price = Long.parseLong(code[2]);
+                claim.item(code[0], code[1], price * 8 / 10 + random.nextLong(price * 4 / 10 + 1));
+            }
+            focal = claim.build();
+            operation = Operations.CLAIM_SUBMIT;
+            bundleProfile = CLAIM_BUNDLE_PROFILE;
+        }
+        focal.addContained(patient(patient));
+        focal.addContained(coverage(patient));
+        focal.addContained(provider(provider));
+        focal.addContained(insurer(insurerOf(patient)));
+        if (!eligibility && attachmentKb > 0 && random.nextDouble() < attachmentShare) {
+            focal.addContained(communication(index, random));
+        }
+        Bundle bundle = HCXFHIRUtils.moveResourceToBundle(focal, Bundle.BundleType.COLLECTION, bundleProfile);
+        // the bundle id, identifier and timestamps are random or the current time otherwise
+        bundle.setId(new UUID(random.nextLong(), random.nextLong()).toString());
+        bundle.getIdentifier().setValue(new UUID(random.nextLong(), random.nextLong()).toString());
+        bundle.setTimestamp(created);
+        bundle.getMeta().setLastUpdated(created);
+        return new Request(index, operation, bundle);
+    }
+
+    public Patient patient(int index) {
+        SplittableRandom random = random(PATIENT, index);
+        Patient patient = new Patient();
+        patient.setId(patientId(index));
+        patient.getMeta().getProfile().add(new CanonicalType(HCXTerminology.NDHM_PATIENT_PROFILE));
+        patient.getIdentifier().add(new Identifier().setType(new CodeableConcept(new Coding().setSystem(HCXTerminology.IDENTIFIER_TYPE_SYSTEM)
+                .setCode("SN").setDisplay("Subscriber Number"))).setSystem("http://gicofIndia.com/beneficiaries").setValue("BEN-" + index));
+        patient.setGender(random.nextBoolean() ? Enumerations.AdministrativeGender.FEMALE : Enumerations.AdministrativeGender.MALE);
+        patient.getName().add(new HumanName().setText(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " " + LAST_NAMES[random.nextInt(LAST_NAMES.length)]));
+        // born between 1940 and 2020
+        patient.setBirthDate(new Date(-946771200000L + random.nextLong(80L * 365 * 24 * 3600 * 1000)));
+        patient.getAddress().add(new Address().setCity(CITIES[random.nextInt(CITIES.length)]).setCountry("India"));
+        return patient;
+    }
+
+    public Coverage coverage(int patientIndex) {
+        Coverage coverage = new Coverage();
+        coverage.setId(coverageId(patientIndex));
+        coverage.getMeta().getProfile().add(new CanonicalType(HCXTerminology.COVERAGE_PROFILE));
+        coverage.setStatus(Coverage.CoverageStatus.ACTIVE);
+        coverage.getIdentifier().add(new Identifier().setValue("policy-" + patientIndex).setSystem("https://www.gicofIndia.in/policies"));
+        coverage.getSubscriber().setReference("Patient/" + patientId(patientIndex));
+        coverage.setSubscriberId("SN-" + patientIndex);
+        coverage.getBeneficiary().setReference("Patient/" + patientId(patientIndex));
+        coverage.setRelationship(HCXTerminology.subscriberRelationshipSelf());
+        coverage.getPayor().add(HCXTerminology.organization(insurerId(insurerOf(patientIndex))));
+        return coverage;
+    }
+
+    public Organization provider(int index) {
+        SplittableRandom random = random(PROVIDER, index);
+        String city = CITIES[random.nextInt(CITIES.length)];
+        Organization provider = new Organization();
+        provider.setId(providerId(index));
+        provider.getMeta().getProfile().add(new CanonicalType(HCXTerminology.NDHM_ORGANIZATION_PROFILE));
+        provider.setName(LAST_NAMES[random.nextInt(LAST_NAMES.length)] + " Hospital " + city);
+        provider.getIdentifier().add(new Identifier().setSystem("http://abdm.gov.in/facilities").setValue("HFR-" + index)
+                .setType(new CodeableConcept(new Coding().setSystem(HCXTerminology.IDENTIFIER_TYPE_SYSTEM).setCode("AC").setDisplay("HFR"))));
+        provider.getAddress().add(new Address().setCity(city).setCountry("India"));
+        return provider;
+    }
+
+    public Organization insurer(int index) {
+        Organization insurer = new Organization();
+        insurer.setId(insurerId(index));
+        insurer.getMeta().getProfile().add(new CanonicalType(HCXTerminology.NDHM_ORGANIZATION_PROFILE));
+        insurer.setName("Insurer " + index);
+        insurer.getIdentifier().add(new Identifier().setSystem("http://irdai.gov.in/insurers").setValue("IRDAI-" + index)
+                .setType(new CodeableConcept(new Coding().setSystem(HCXTerminology.IDENTIFIER_TYPE_SYSTEM).setCode("AC").setDisplay("IRDAI"))));
+        return insurer;
+    }
+
+    private Communication communication(long index, SplittableRandom random) {
+        // between half and one and a half times the configured size
+        int size = attachmentKb * 512 + random.nextInt(attachmentKb * 1024 + 1);
+        Communication communication = new Communication();
+        communication.setId("COMMUNICATION" + index);
+        communication.getMeta().getProfile().add(new CanonicalType(HCXTerminology.COMMUNICATION_PROFILE));
+        communication.setStatus(Communication.CommunicationStatus.COMPLETED);
+        communication.getAbout().add(new Reference("Claim/CLAIM" + index));
+        communication.getPayload().add(new Communication.CommunicationPayloadComponent().setContent(new Attachment()
+                .setContentType("application/pdf").setTitle("discharge-summary-" + index + ".pdf").setData(Arrays.copyOf(attachmentData, size))));
+        return communication;
+    }
+
+    private int insurerOf(int patientIndex) {
+        return (int) Long.remainderUnsigned(mix(seed ^ INSURER ^ patientIndex), insurers);
+    }
+
+    private static String patientId(int index) {
+        return "PAT" + index;
+    }
+
+    private static String coverageId(int patientIndex) {
+        return "COV" + patientIndex;
+    }
+
+    private static String providerId(int index) {
+        return "HOSP" + index;
+    }
+
+    private static String insurerId(int index) {
+        return "INS" + index;
+    }
+
+    /**
+     * Index below n with falling probability, the first tenth of the indexes gets about a third of the draws.
+     */
+    private static int skewed(SplittableRandom random, int n) {
+        double u = random.nextDouble();
+        return Math.min(n - 1, (int) (n * u * u));
+    }
+
+    private SplittableRandom random(long kind, long index) {
+        return new SplittableRandom(mix(seed ^ kind) + mix(index ^ kind));
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * A generated request: the operation to send it with and the bundle.
+     */
+    public static final class Request {
+        private final long index;
+        private final Operations operation;
+        private final Bundle bundle;
+
+        Request(long index, Operations operation, Bundle bundle) {
+            this.index = index;
+            this.operation = operation;
+            this.bundle = bundle;
+        }
+
+        public long getIndex() {
+            return index;
+        }
+
+        public Operations getOperation() {
+            return operation;
+        }
+
+        public Bundle getBundle() {
+            return bundle;
+        }
+    }
+
+    public static class Builder {
+        private final long seed;
+        private int patients = 10000;
+        private int providers = 100;
+        private int insurers = 10;
+        private int minItems = 1;
+        private int maxItems = 5;
+        private int attachmentKb;
+        private double attachmentShare;
+        private double eligibilityShare = 0.3;
+
+        private Builder(long seed) {
+            this.seed = seed;
+        }
+
+        /**
+         * Number of patients, each with one coverage, 10000 by default.
+         */
+        public Builder patients(int patients) {
+            this.patients = patients;
+            return this;
+        }
+
+        /**
+         * Number of provider organizations, 100 by default.
+         */
+        public Builder providers(int providers) {
+            this.providers = providers;
+            return this;
+        }
+
+        /**
+         * Number of insurer organizations, 10 by default.
+         */
+        public Builder insurers(int insurers) {
+            this.insurers = insurers;
+            return this;
+        }
+
+        /**
+         * Range of the number of items per claim, 1 to 5 by default.
+         */
+        public Builder items(int min, int max) {
+            if (min < 0 || max < min) {
+                throw new IllegalArgumentException("Invalid item range " + min + " to " + max);
+            }
+            this.minItems = min;
+            this.maxItems = max;
+            return this;
+        }
+
+        /**
+         * Average attachment size and the share of claims with an attachment, none by default.
+         */
+        public Builder attachments(int kb, double share) {
+            this.attachmentKb = kb;
+            this.attachmentShare = share;
+            return this;
+        }
+
+        /**
+         * Share of coverage eligibility requests, the rest are claims, 0.3 by default.
+         */
+        public Builder eligibilityShare(double share) {
+            this.eligibilityShare = share;
+            return this;
+        }
+
+        public HCXWorkload build() {
+            if (patients < 1 || providers < 1 || insurers < 1) {
+                throw new IllegalArgumentException("Populations must not be empty");
+            }
+            return new HCXWorkload(this);
+        }
+    }
+}
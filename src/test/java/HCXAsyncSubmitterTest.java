@@ -0,0 +1,158 @@
+import io.hcxprotocol.utils.Operations;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HCXAsyncSubmitterTest {
+
+    private static final HCXAsyncSubmitter.Encryptor ENCRYPTOR = (payload, operation, recipientCode) -> Map.of("payload", payload);
+
+    /**
+     * Keeps the dispatched requests pending until the test completes them.
+     */
+    private static final class PendingDispatcher implements HCXAsyncSubmitter.Dispatcher {
+        final BlockingQueue<CompletableFuture<Map<String, Object>>> dispatched = new LinkedBlockingQueue<>();
+
+        @Override
+        public CompletableFuture<Map<String, Object>> dispatch(Map<String, Object> requestBody, Operations operation) {
+            CompletableFuture<Map<String, Object>> response = new CompletableFuture<>();
+            dispatched.add(response);
+            return response;
+        }
+
+        void completeNext() throws InterruptedException {
+            dispatched.poll(5, TimeUnit.SECONDS).complete(Map.of("responseObj", Map.of()));
+        }
+    }
+
+    private static Bundle bundle() {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        return bundle;
+    }
+
+    @Test
+    void submitBlocksAtMaxInFlight() throws Exception {
+        PendingDispatcher dispatcher = new PendingDispatcher();
+        try (HCXAsyncSubmitter submitter = new HCXAsyncSubmitter(ENCRYPTOR, dispatcher, 2)) {
+            CompletableFuture<Map<String, Object>> first = submitter.submit(bundle(), Operations.CLAIM_SUBMIT, "1-payor");
+            submitter.submit("{}", Operations.CLAIM_SUBMIT, "1-payor");
+            assertEquals(0, submitter.availablePermits());
+
+            ExecutorService caller = Executors.newSingleThreadExecutor();
+            try {
+                Future<CompletableFuture<Map<String, Object>>> third = caller.submit(() -> submitter.submit("{}", Operations.CLAIM_SUBMIT, "1-payor"));
+                assertThrows(TimeoutException.class, () -> third.get(200, TimeUnit.MILLISECONDS));
+
+                // either of the two requests in flight completing lets the third one in
+                dispatcher.completeNext();
+                third.get(5, TimeUnit.SECONDS);
+            } finally {
+                caller.shutdownNow();
+            }
+            dispatcher.completeNext();
+            dispatcher.completeNext();
+            assertNotNull(first.get(5, TimeUnit.SECONDS).get("responseObj"));
+            for (int i = 0; i < 100 && submitter.availablePermits() < 2; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, submitter.availablePermits());
+        }
+    }
+
+    @Test
+    void encryptorErrorFailsTheRequest() throws Exception {
+        HCXAsyncSubmitter.Encryptor failing = (payload, operation, recipientCode) -> {
+            throw new IOException("no public key for 1-payor");
+        };
+        PendingDispatcher dispatcher = new PendingDispatcher();
+        try (HCXAsyncSubmitter submitter = new HCXAsyncSubmitter(failing, dispatcher, 4)) {
+            CompletableFuture<Map<String, Object>> result = submitter.submit(bundle(), Operations.CLAIM_SUBMIT, "1-payor");
+            ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof IOException);
+            assertTrue(dispatcher.dispatched.isEmpty());
+            assertEquals(4, submitter.availablePermits());
+        }
+    }
+
+    @Test
+    void dispatcherErrorFailsTheRequest() throws Exception {
+        HCXAsyncSubmitter.Dispatcher failed = (body, operation) -> CompletableFuture.failedFuture(new HCXHttpDispatcher.StatusException(500, "error"));
+        HCXAsyncSubmitter.Dispatcher throwing = (body, operation) -> {
+            throw new IllegalStateException("not connected");
+        };
+        for (HCXAsyncSubmitter.Dispatcher dispatcher : List.of(failed, throwing)) {
+            try (HCXAsyncSubmitter submitter = new HCXAsyncSubmitter(ENCRYPTOR, dispatcher, 4)) {
+                CompletableFuture<Map<String, Object>> result = submitter.submit(bundle(), Operations.CLAIM_SUBMIT, "1-payor");
+                assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+                for (int i = 0; i < 100 && submitter.availablePermits() < 4; i++) {
+                    Thread.sleep(10);
+                }
+                assertEquals(4, submitter.availablePermits());
+            }
+        }
+    }
+
+    @Test
+    void dispatcherErrorFailsTheTrackedResponse() throws Exception {
+        HCXAsyncSubmitter.Encryptor encryptor = new HCXJweEncrypter(keyPair().getPublic(), "1-provider");
+        HCXAsyncSubmitter.Dispatcher failed = (body, operation) -> CompletableFuture.failedFuture(new IOException("connection refused"));
+        try (HCXCorrelationTracker<String> tracker = HCXCorrelationTracker.<String>builder().build();
+             HCXAsyncSubmitter submitter = new HCXAsyncSubmitter(encryptor, failed, 4)) {
+            CompletableFuture<String> response = submitter.submit(bundle(), Operations.CLAIM_SUBMIT, "1-payor", tracker);
+            ExecutionException e = assertThrows(ExecutionException.class, () -> response.get(30, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof IOException);
+            assertEquals(0, tracker.getPending());
+        }
+    }
+
+    @Test
+    void submitAfterCloseIsRejected() throws Exception {
+        HCXAsyncSubmitter submitter = new HCXAsyncSubmitter(ENCRYPTOR, new PendingDispatcher(), 4);
+        submitter.close();
+        assertThrows(RejectedExecutionException.class, () -> submitter.submit(bundle(), Operations.CLAIM_SUBMIT, "1-payor"));
+        CompletableFuture<Map<String, Object>> encoded = submitter.submit("{}", Operations.CLAIM_SUBMIT, "1-payor");
+        ExecutionException e = assertThrows(ExecutionException.class, () -> encoded.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+        assertEquals(4, submitter.availablePermits());
+    }
+
+    @Test
+    void encryptPoolIsSizedByCpuCount() throws Exception {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        HCXAsyncSubmitter.Encryptor blocking = (payload, operation, recipientCode) -> {
+            running.incrementAndGet();
+            release.await();
+            return Map.of("payload", payload);
+        };
+        try (HCXAsyncSubmitter submitter = new HCXAsyncSubmitter(blocking, (body, operation) -> CompletableFuture.completedFuture(body), cpus * 4)) {
+            for (int i = 0; i < cpus * 4; i++) {
+                submitter.submit("{}", Operations.CLAIM_SUBMIT, "1-payor");
+            }
+            for (int i = 0; i < 100 && running.get() < cpus; i++) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            assertEquals(cpus, running.get());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private static KeyPair keyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        return generator.generateKeyPair();
+    }
+}
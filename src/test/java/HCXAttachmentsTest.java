@@ -0,0 +1,118 @@
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HCXAttachmentsTest {
+
+    @TempDir
+    Path dir;
+
+    private static byte[] bytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(7).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static Communication communication(Attachment attachment) {
+        Communication communication = new Communication();
+        communication.setId("COMM1");
+        communication.setStatus(Communication.CommunicationStatus.COMPLETED);
+        communication.addPayload().setContent(attachment);
+        return communication;
+    }
+
+    private static String encode(Resource resource) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HCXAttachments.encode(resource, out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void fileAttachmentsAreOnlyInlinedByEncode() throws Exception {
+        byte[] content = bytes(100000);
+        Path document = Files.write(dir.resolve("report.pdf"), content);
+        Communication communication = communication(HCXAttachments.fileAttachment(document, "application/pdf", "report.pdf"));
+        Attachment attachment = (Attachment) communication.getPayloadFirstRep().getContent();
+
+        assertNull(attachment.getData());
+        assertEquals(document.toAbsolutePath(), HCXAttachments.getFile(attachment));
+        assertThrows(IllegalStateException.class, () -> HCXFHIRSerializer.encode(communication));
+        assertThrows(IllegalStateException.class, () -> HCXFHIRSerializer.encodeBinary(communication));
+
+        Communication inline = communication(new Attachment().setContentType("application/pdf").setTitle("report.pdf")
+                .setSize(content.length).setData(content));
+        String json = encode(communication);
+        assertEquals(HCXFHIRSerializer.encode(inline), json);
+        assertFalse(json.contains(document.toString()));
+        // the placeholders went into a copy
+        assertNull(attachment.getData());
+        assertEquals(document.toAbsolutePath(), HCXAttachments.getFile(attachment));
+
+        Bundle bundle = HCXFHIRUtils.resourceToBundle(communication, Bundle.BundleType.COLLECTION, "https://example.org/bundle");
+        assertTrue(encode(bundle).contains(Base64.getEncoder().encodeToString(content)));
+
+        HCXAttachments.deleteFiles(communication);
+        assertTrue(Files.exists(document), "files of fileAttachment belong to the caller");
+    }
+
+    @Test
+    void largeDataIsSpilledAndRestoredByEncode() throws Exception {
+        byte[] large = bytes(300000);
+        byte[] small = "small".getBytes(StandardCharsets.US_ASCII);
+        Communication original = communication(new Attachment().setContentType("application/pdf").setData(large));
+        original.addPayload().setContent(new Attachment().setContentType("text/plain").setData(small));
+        String json = HCXFHIRSerializer.encode(original);
+
+        Communication parsed = HCXAttachments.parse(Communication.class, new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), dir, 1024);
+        Attachment spilled = (Attachment) parsed.getPayload().get(0).getContent();
+        Attachment inline = (Attachment) parsed.getPayload().get(1).getContent();
+        Path file = HCXAttachments.getFile(spilled);
+        assertNotNull(file);
+        assertNull(spilled.getData());
+        assertArrayEquals(large, Files.readAllBytes(file));
+        assertArrayEquals(large, HCXAttachments.openData(spilled).readAllBytes());
+        assertNull(HCXAttachments.getFile(inline));
+        assertArrayEquals(small, inline.getData());
+        assertEquals(json, encode(parsed));
+
+        HCXAttachments.deleteFiles(parsed);
+        assertFalse(Files.exists(file));
+        assertFalse(spilled.hasData());
+    }
+
+    @Test
+    void cleanupDeletesForgottenTempFiles() throws Exception {
+        String json = HCXFHIRSerializer.encode(communication(new Attachment().setData(bytes(4096))));
+        Communication parsed = HCXAttachments.parse(Communication.class, new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), dir, 1024);
+        Path file = HCXAttachments.getFile((Attachment) parsed.getPayloadFirstRep().getContent());
+        assertTrue(Files.exists(file));
+
+        // the action the Cleaner runs once no attachment refers to the file any more
+        Runnable cleanup = HCXAttachments.cleanup(file);
+        cleanup.run();
+        assertFalse(Files.exists(file));
+        cleanup.run();
+    }
+
+    @Test
+    void failedParseDeletesItsTempFiles() throws Exception {
+        String json = HCXFHIRSerializer.encode(communication(new Attachment().setData(bytes(4096))));
+        // the attachment is spilled before the parser reaches the broken end
+        byte[] broken = json.substring(0, json.length() - 1).concat(",").getBytes(StandardCharsets.UTF_8);
+        assertThrows(Exception.class, () -> HCXAttachments.parse(Communication.class, new ByteArrayInputStream(broken), dir, 1024));
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(0, files.count());
+        }
+    }
+}
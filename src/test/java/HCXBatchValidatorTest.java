@@ -0,0 +1,96 @@
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.ValidationResult;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HCXBatchValidatorTest {
+
+    private static FhirValidator validator;
+    private static List<Bundle> bundles;
+
+    /**
+     * HCXWorkload claim bundles against the HCXTestProfiles stand-ins of the profiles HCXFHIRValidator loads, every
+     * third one without the gender of its patient.
+     */
+    @BeforeAll
+    static void createBundles() {
+        validator = HCXTestProfiles.validator();
+        bundles = HCXTestProfiles.claimBundles(17, 12);
+        for (int i = 0; i < bundles.size(); i += 3) {
+            for (Bundle.BundleEntryComponent entry : bundles.get(i).getEntry()) {
+                if (entry.getResource() instanceof Patient) {
+                    ((Patient) entry.getResource()).setGender(null);
+                }
+            }
+        }
+    }
+
+    private static List<String> messages(ValidationResult result) {
+        return result.getMessages().stream()
+                .map(m -> m.getSeverity() + " " + m.getLocationString() + " " + m.getMessage())
+                .collect(Collectors.toList());
+    }
+
+    private static void assertMatchesValidator(List<HCXBatchValidator.Result> results) {
+        assertEquals(bundles.size(), results.size());
+        for (int i = 0; i < bundles.size(); i++) {
+            HCXBatchValidator.Result result = results.get(i);
+            assertEquals(i, result.getIndex());
+            assertFalse(result.isSkipped());
+            ValidationResult expected = validator.validateWithResult(bundles.get(i));
+            assertEquals(expected.isSuccessful(), result.isSuccessful(), "bundle " + i);
+            assertEquals(messages(expected), messages(result.getValidationResult()), "bundle " + i);
+        }
+    }
+
+    @Test
+    void resultsMatchTheValidatorInInputOrder() throws Exception {
+        try (HCXBatchValidator batch = new HCXBatchValidator(validator, 4, false)) {
+            assertMatchesValidator(batch.validate(bundles));
+            assertMatchesValidator(batch.validate(bundles.stream()));
+        }
+    }
+
+    @Test
+    void throwingBundleDoesNotPoisonTheBatch() throws Exception {
+        Bundle poison = bundles.get(4);
+        try (HCXBatchValidator batch = new HCXBatchValidator(bundle -> {
+            if (bundle == poison) {
+                throw new IllegalStateException("validator broke");
+            }
+            return validator.validateWithResult(bundle);
+        }, 4, false)) {
+            List<HCXBatchValidator.Result> results = batch.validate(bundles);
+            assertEquals(bundles.size(), results.size());
+            HCXBatchValidator.Result failed = results.get(4);
+            assertFalse(failed.isSuccessful());
+            assertEquals(ResultSeverityEnum.FATAL, failed.getValidationResult().getMessages().get(0).getSeverity());
+            for (int i = 0; i < bundles.size(); i++) {
+                if (i != 4) {
+                    assertEquals(validator.validateWithResult(bundles.get(i)).isSuccessful(), results.get(i).isSuccessful(), "bundle " + i);
+                }
+            }
+        }
+    }
+
+    @Test
+    void failFastSkipsTheRest() throws Exception {
+        try (HCXBatchValidator batch = new HCXBatchValidator(validator, 2, true)) {
+            // the first bundle is invalid and validated on the calling thread
+            List<HCXBatchValidator.Result> results = batch.validate(bundles);
+            assertFalse(results.get(0).isSuccessful());
+            assertFalse(results.get(0).isSkipped());
+            Set<Boolean> skipped = results.subList(1, results.size()).stream().map(HCXBatchValidator.Result::isSkipped).collect(Collectors.toSet());
+            assertEquals(Set.of(true), skipped);
+        }
+    }
+}
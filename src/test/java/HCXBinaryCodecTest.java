@@ -0,0 +1,60 @@
+import ca.uhn.fhir.parser.DataFormatException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HCXBinaryCodecTest {
+
+    private static List<Bundle> bundles(int count) {
+        HCXWorkload workload = HCXWorkload.builder(7).items(1, 8).attachments(4, 0.5).build();
+        List<Bundle> bundles = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            bundles.add(workload.request(i).getBundle());
+        }
+        return bundles;
+    }
+
+    @Test
+    void recordsAreReadBackToBackFromOneStream() throws Exception {
+        List<Bundle> bundles = bundles(20);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Bundle bundle : bundles) {
+            HCXFHIRSerializer.encodeBinary(bundle, out);
+        }
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        for (Bundle bundle : bundles) {
+            assertEquals(HCXFHIRSerializer.encode(bundle), HCXFHIRSerializer.encode(HCXFHIRSerializer.parseBinary(Bundle.class, in)));
+        }
+        assertEquals(-1, in.read());
+        assertThrows(EOFException.class, () -> HCXFHIRSerializer.parseBinary(Bundle.class, new ByteArrayInputStream(new byte[0])));
+    }
+
+    @Test
+    void streamAndArrayFormsAreEqual() throws Exception {
+        Bundle bundle = bundles(1).get(0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HCXBinaryCodec.standard().encode(bundle, out);
+        byte[] data = HCXBinaryCodec.standard().encode(bundle);
+        assertArrayEquals(data, out.toByteArray());
+        assertTrue(HCXBinaryCodec.isBinary(data));
+        assertEquals(HCXFHIRSerializer.encode(bundle), HCXFHIRSerializer.encode(HCXBinaryCodec.standard().parse(Bundle.class, data)));
+    }
+
+    @Test
+    void truncatedAndTrailingDataIsRejected() {
+        byte[] data = HCXBinaryCodec.standard().encode(bundles(1).get(0));
+        assertThrows(DataFormatException.class, () -> HCXBinaryCodec.standard().parse(Arrays.copyOf(data, data.length - 1)));
+        assertThrows(DataFormatException.class, () -> HCXBinaryCodec.standard().parse(Arrays.copyOf(data, data.length + 1)));
+        HCXBinaryCodec other = HCXBinaryCodec.builder().dictionary("https://www.tmh.in/bundle").build();
+        assertThrows(DataFormatException.class, () -> other.parse(data));
+    }
+}
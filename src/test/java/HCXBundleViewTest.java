@@ -0,0 +1,85 @@
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HCXBundleViewTest {
+
+    private static Bundle bundle() {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        Patient patient = new Patient();
+        patient.setId("RVH1003");
+        patient.getMeta().addProfile(HCXTerminology.NDHM_PATIENT_PROFILE);
+        patient.addName().setText("Ravi Kumar");
+        Organization organization = new Organization();
+        organization.setId("Tmh01");
+        organization.setName("Tata Memorial Hospital");
+        Coverage coverage = new Coverage();
+        coverage.setId("COVERAGE1");
+        bundle.addEntry().setFullUrl("Patient/RVH1003").setResource(patient);
+        bundle.addEntry().setFullUrl("http://example.org/fhir/Organization/Tmh01").setResource(organization);
+        bundle.addEntry().setFullUrl("urn:uuid:0f3c1c1e-8b5e-4a0e-9f57-1f3c8d6d2a11").setResource(coverage);
+        return bundle;
+    }
+
+    private static void assertResolves(HCXBundleView view) {
+        assertEquals("RVH1003", view.resolve("Patient/RVH1003").getIdElement().getIdPart());
+        assertEquals("RVH1003", view.resolve("#RVH1003").getIdElement().getIdPart());
+        assertEquals("Tmh01", view.resolve("http://example.org/fhir/Organization/Tmh01").getIdElement().getIdPart());
+        assertEquals("Tmh01", view.resolve("Organization/Tmh01").getIdElement().getIdPart());
+        assertEquals("Tmh01", view.resolve("#Tmh01").getIdElement().getIdPart());
+        assertEquals("Tmh01", view.resolve("http://other.org/fhir/Organization/Tmh01").getIdElement().getIdPart());
+        assertEquals("COVERAGE1", view.resolve("urn:uuid:0f3c1c1e-8b5e-4a0e-9f57-1f3c8d6d2a11").getIdElement().getIdPart());
+        assertEquals("COVERAGE1", view.resolve(new Reference("Coverage/COVERAGE1")).getIdElement().getIdPart());
+
+        assertNull(view.resolve("Patient/missing"));
+        assertNull(view.resolve("#missing"));
+        assertNull(view.resolve("urn:uuid:00000000-0000-0000-0000-000000000000"));
+        assertNull(view.resolve((String) null));
+        assertFalse(view.contains("Organization/missing"));
+        assertTrue(view.contains("#COVERAGE1"));
+    }
+
+    @Test
+    void referencesResolveInDecodedBundle() {
+        assertResolves(HCXBundleView.of(bundle()));
+    }
+
+    @Test
+    void referencesResolveInParsedBundle() throws Exception {
+        assertResolves(HCXBundleView.parse(HCXFHIRSerializer.encode(bundle())));
+    }
+
+    @Test
+    void entriesAreDecodedOnFirstAccess() throws Exception {
+        // an entry which cannot be decoded only fails when it is asked for
+        String json = HCXFHIRSerializer.encode(bundle()).replace("\"resourceType\":\"Organization\"", "\"resourceType\":\"Organisation\"");
+        HCXBundleView view = HCXBundleView.parse(json);
+        assertEquals(3, view.size());
+        assertTrue(view.contains("Organisation/Tmh01"));
+        Patient patient = view.findFirst(Patient.class);
+        assertEquals("Ravi Kumar", patient.getNameFirstRep().getText());
+        assertSame(patient, view.findByProfile(HCXTerminology.NDHM_PATIENT_PROFILE));
+        assertSame(patient, view.resolve("Patient/RVH1003"));
+        assertNotNull(view.findFirst(ResourceType.Coverage));
+        assertThrows(RuntimeException.class, () -> view.resolve("Organisation/Tmh01"));
+    }
+
+    @Test
+    void decodesAreNotRecordedAsParseStages() throws Exception {
+        List<HCXMetrics.Stage> stages = new CopyOnWriteArrayList<>();
+        HCXInstrumentation.setMetrics((stage, operation, nanos, payloadSize, success) -> stages.add(stage));
+        try {
+            HCXBundleView view = HCXBundleView.parse(HCXFHIRSerializer.encode(bundle()));
+            stages.clear();
+            view.resources();
+            assertEquals(List.of(), stages);
+        } finally {
+            HCXInstrumentation.setMetrics(null);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Builds seeded, varied Claim, CoverageEligibilityRequest and PaymentNotice records, encodes each one through the
+ * HAPI path (builder, HCXFHIRUtils.resourceToBundle or moveResourceToBundle, compact HAPI encoding) and through
+ * HCXBundleWriter, and compares the outputs byte for byte. Runs in UTC and in Asia/Kolkata to cover time zone offsets.
+ */
+class HCXBundleWriterTest {
+
+    private static final int CASES = 200;
+
+    private static final String[] DISPLAYS = {"Treatment of COVID-19 Infection", "Cataract surgery \"phaco\" / IOL",
+            "Dialysis \u2013 per session", "\u092a\u094d\u0930\u0938\u0935 \u0938\u093e\u092e\u093e\u0928\u094d\u092f", "Line\nbreak and tab\t", "Back\\slash"};
+
+    private final TimeZone original = TimeZone.getDefault();
+
+    @AfterEach
+    void restoreTimeZone() {
+        TimeZone.setDefault(original);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"UTC", "Asia/Kolkata"})
+    void claimBundlesMatchHapi(String zone) throws Exception {
+        TimeZone.setDefault(TimeZone.getTimeZone(zone));
+        Random random = new Random(42);
+        for (int i = 0; i < CASES; i++) {
+            HCXBundleWriter.ClaimRecord record = new HCXBundleWriter.ClaimRecord();
+            record.id = "CLAIM" + i;
+            record.identifierValue = random.nextInt(10) == 0 ? null : UUID.nameUUIDFromBytes(("claim" + i).getBytes()).toString();
+            if (record.identifierValue == null && random.nextBoolean()) {
+                record.identifierSystem = null;
+            }
+            record.patientId = "PAT" + random.nextInt(1000);
+            record.insurerId = "INS" + random.nextInt(5);
+            record.providerId = "HOSP" + random.nextInt(50);
+            record.coverageId = "COV" + random.nextInt(1000);
+            record.created = date(random);
+            record.lastUpdated = random.nextBoolean() ? date(random) : null;
+            int items = random.nextInt(6);
+            for (int j = 0; j < items; j++) {
+                record.items.add(new HCXBundleWriter.Item("ID" + random.nextInt(500), DISPLAYS[random.nextInt(DISPLAYS.length)], random.nextInt(10000000)));
+            }
+
+            HCXClaim.Builder builder = HCXClaim.builder().id(record.id).identifier(record.identifierSystem, record.identifierValue)
+                    .patient(record.patientId).insurer(record.insurerId).provider(record.providerId).coverage(record.coverageId)
+                    .created(record.created).lastUpdated(record.lastUpdated);
+            for (HCXBundleWriter.Item item : record.items) {
+                builder.item(item.packageCode, item.display, item.unitPriceInr);
+            }
+            List<DomainResource> referenced = referenced(random, record.patientId, record.coverageId);
+            HCXBundleWriter.Header header = header(random, "https://www.tmh.in/bundle-profile/claim");
+            compare("Claim " + i, builder.build(), referenced, header, HCXBundleWriter.writeClaimBundle(header, raw(referenced), record));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"UTC", "Asia/Kolkata"})
+    void eligibilityBundlesMatchHapi(String zone) throws Exception {
+        TimeZone.setDefault(TimeZone.getTimeZone(zone));
+        Random random = new Random(42);
+        for (int i = 0; i < CASES; i++) {
+            HCXBundleWriter.EligibilityRecord record = new HCXBundleWriter.EligibilityRecord();
+            record.id = UUID.nameUUIDFromBytes(("ce" + i).getBytes()).toString();
+            record.identifierValue = random.nextInt(10) == 0 ? null : "req_" + record.id;
+            record.patientId = "PAT" + random.nextInt(1000);
+            record.providerId = "HOSP" + random.nextInt(50);
+            record.insurerId = "INS" + random.nextInt(5);
+            record.entererReference = random.nextBoolean() ? "http://abcd.com/Tmh01" : null;
+            record.facilityReference = random.nextBoolean() ? "http://sgh.com.sa/Location/" + random.nextInt(9999) : null;
+            record.coverageId = "COV" + random.nextInt(1000);
+            if (random.nextBoolean()) {
+                record.servicedStart = date(random);
+                record.servicedEnd = random.nextBoolean() ? date(random) : null;
+            }
+            record.created = date(random);
+
+            CoverageEligibilityRequest ce = HCXCoverageEligibility.builder().id(record.id).identifier(record.identifierValue)
+                    .patient(record.patientId).provider(record.providerId).insurer(record.insurerId).enterer(record.entererReference)
+                    .facility(record.facilityReference).coverage(record.coverageId).servicedPeriod(record.servicedStart, record.servicedEnd)
+                    .created(record.created).build();
+            List<DomainResource> referenced = referenced(random, record.patientId, record.coverageId);
+            HCXBundleWriter.Header header = header(random, HCXTerminology.COVERAGE_ELIGIBILITY_REQUEST_BUNDLE_PROFILE);
+            compare("CoverageEligibilityRequest " + i, ce, referenced, header,
+                    HCXBundleWriter.writeCoverageEligibilityRequestBundle(header, raw(referenced), record));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"UTC", "Asia/Kolkata"})
+    void paymentNoticeBundlesMatchHapi(String zone) throws Exception {
+        TimeZone.setDefault(TimeZone.getTimeZone(zone));
+        Random random = new Random(42);
+        for (int i = 0; i < CASES; i++) {
+            HCXBundleWriter.NoticeRecord record = new HCXBundleWriter.NoticeRecord();
+            record.id = "PN" + i;
+            record.identifierValue = random.nextInt(10) == 0 ? null : String.valueOf(100000 + i);
+            record.requestReference = "Claim/CLAIM" + random.nextInt(1000);
+            record.responseReference = random.nextBoolean() ? "ClaimResponse/CR" + random.nextInt(1000) : null;
+            record.providerId = "HOSP" + random.nextInt(50);
+            record.recipientId = "INS" + random.nextInt(5);
+            record.paymentReference = "PaymentReconciliation/PR" + random.nextInt(1000);
+            record.amountInr = random.nextInt(10000000);
+            record.created = date(random);
+
+            PaymentNotice notice = HCXPayment.paymentNoticeBuilder().id(record.id).identifier(record.identifierSystem, record.identifierValue)
+                    .request(record.requestReference).response(record.responseReference).provider(record.providerId)
+                    .recipient(record.recipientId).payment(record.paymentReference).amount(record.amountInr).created(record.created).build();
+            List<DomainResource> referenced = Collections.singletonList(HCXOrganization.providerOrganizationExample());
+            HCXBundleWriter.Header header = header(random, "https://www.tmh.in/bundle-profile/paymentnotice");
+            compare("PaymentNotice " + i, notice, referenced, header, HCXBundleWriter.writePaymentNoticeBundle(header, raw(referenced), record));
+        }
+    }
+
+    @Test
+    void outputParsesToTheHapiBundle() throws Exception {
+        Random random = new Random(7);
+        for (int i = 0; i < 20; i++) {
+            HCXBundleWriter.ClaimRecord record = new HCXBundleWriter.ClaimRecord();
+            record.id = "CLAIM" + i;
+            record.identifierValue = "claim-" + i;
+            record.patientId = "PAT" + i;
+            record.insurerId = "INS1";
+            record.providerId = "HOSP" + i;
+            record.coverageId = "COV" + i;
+            record.created = date(random);
+            record.items.add(new HCXBundleWriter.Item("ID" + i, DISPLAYS[i % DISPLAYS.length], random.nextInt(10000000)));
+            Claim claim = HCXClaim.builder().id(record.id).identifier(record.identifierSystem, record.identifierValue)
+                    .patient(record.patientId).insurer(record.insurerId).provider(record.providerId).coverage(record.coverageId)
+                    .created(record.created).item(record.items.get(0).packageCode, record.items.get(0).display, record.items.get(0).unitPriceInr).build();
+            List<DomainResource> referenced = referenced(random, record.patientId, record.coverageId);
+            HCXBundleWriter.Header header = header(random, "https://www.tmh.in/bundle-profile/claim");
+            String written = HCXBundleWriter.writeClaimBundle(header, raw(referenced), record);
+
+            HCXFHIRUtils.addContainedToResource(claim, referenced.toArray(new DomainResource[0]));
+            Bundle bundle = HCXFHIRUtils.resourceToBundle(claim, header.type, header.profile);
+            String compact = hapi(bundle, header);
+            String pretty = HCXFHIRSerializer.getContext().newJsonParser().setPrettyPrint(true).encodeResourceToString(bundle);
+            // the same bundle whatever the formatting
+            Bundle actual = HCXFHIRSerializer.parse(Bundle.class, written);
+            assertTrue(HCXFHIRSerializer.parse(Bundle.class, compact).equalsDeep(actual), "Claim " + i);
+            assertTrue(HCXFHIRSerializer.parse(Bundle.class, pretty).equalsDeep(actual), "Claim " + i);
+        }
+    }
+
+    @Test
+    void missingIdsAreRejected() {
+        HCXBundleWriter.Header header = header(new Random(1), "https://www.tmh.in/bundle-profile/claim");
+        HCXBundleWriter.ClaimRecord claim = new HCXBundleWriter.ClaimRecord();
+        claim.patientId = "PAT1";
+        claim.insurerId = "INS1";
+        claim.providerId = "HOSP1";
+        claim.coverageId = "COV1";
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> HCXBundleWriter.writeClaimBundle(header, List.of(), claim));
+        assertEquals("Claim id must be set", e.getMessage());
+        claim.id = "CLAIM1";
+        claim.coverageId = null;
+        e = assertThrows(IllegalArgumentException.class, () -> HCXBundleWriter.writeClaimBundle(header, List.of(), claim));
+        assertEquals("coverage id must be set", e.getMessage());
+
+        HCXBundleWriter.NoticeRecord notice = new HCXBundleWriter.NoticeRecord();
+        notice.id = "PN1";
+        notice.providerId = "HOSP1";
+        notice.recipientId = "INS1";
+        notice.paymentReference = "PaymentReconciliation/PR1";
+        e = assertThrows(IllegalArgumentException.class, () -> HCXBundleWriter.writePaymentNoticeBundle(header, List.of(), notice));
+        assertEquals("request reference must be set", e.getMessage());
+
+        Patient patient = HCXPatient.patientExample();
+        patient.setId((String) null);
+        assertThrows(IllegalArgumentException.class, () -> HCXBundleWriter.RawEntry.of(patient));
+    }
+
+    private static List<DomainResource> referenced(Random random, String patientId, String coverageId) {
+        List<DomainResource> referenced = new ArrayList<>();
+        if (random.nextBoolean()) {
+            referenced.add(HCXOrganization.providerOrganizationExample());
+            referenced.add(HCXOrganization.insurerOrganizationExample());
+        }
+        Patient patient = HCXPatient.patientExample();
+        patient.setId(patientId);
+        referenced.add(patient);
+        Coverage coverage = HCXCoverage.coverageExample();
+        coverage.setId(coverageId);
+        referenced.add(coverage);
+        return referenced;
+    }
+
+    private static List<HCXBundleWriter.RawEntry> raw(List<DomainResource> resources) {
+        List<HCXBundleWriter.RawEntry> entries = new ArrayList<>(resources.size());
+        for (DomainResource resource : resources) {
+            entries.add(HCXBundleWriter.RawEntry.of(resource.copy()));
+        }
+        return entries;
+    }
+
+    private static HCXBundleWriter.Header header(Random random, String profile) {
+        HCXBundleWriter.Header header = new HCXBundleWriter.Header();
+        header.id = new UUID(random.nextLong(), random.nextLong()).toString();
+        header.identifierValue = new UUID(random.nextLong(), random.nextLong()).toString();
+        header.profile = random.nextInt(10) == 0 ? null : profile;
+        header.type = random.nextBoolean() ? Bundle.BundleType.COLLECTION : Bundle.BundleType.DOCUMENT;
+        header.lastUpdated = date(random);
+        header.timestamp = date(random);
+        return header;
+    }
+
+    /**
+     * Compares the writer output with the encoding of resourceToBundle and of moveResourceToBundle. The resource is
+     * moved into the second bundle.
+     */
+    private static void compare(String name, DomainResource resource, List<DomainResource> referenced, HCXBundleWriter.Header header, String actual) {
+        HCXFHIRUtils.addContainedToResource(resource, referenced.toArray(new DomainResource[0]));
+        assertSameJson(actual, hapi(HCXFHIRUtils.resourceToBundle(resource, header.type, header.profile), header), "resourceToBundle, " + name);
+        assertSameJson(actual, hapi(HCXFHIRUtils.moveResourceToBundle(resource, header.type, header.profile), header), "moveResourceToBundle, " + name);
+    }
+
+    private static String hapi(Bundle bundle, HCXBundleWriter.Header header) {
+        bundle.setId(header.id);
+        bundle.getMeta().setLastUpdated(header.lastUpdated);
+        bundle.getIdentifier().setValue(header.identifierValue);
+        bundle.setTimestamp(header.timestamp);
+        return HCXFHIRSerializer.encode(bundle);
+    }
+
+    private static void assertSameJson(String actual, String expected, String name) {
+        if (expected.equals(actual)) {
+            return;
+        }
+        int at = 0;
+        while (at < Math.min(expected.length(), actual.length()) && expected.charAt(at) == actual.charAt(at)) {
+            at++;
+        }
+        int from = Math.max(0, at - 60);
+        fail("HCXBundleWriter output differs from " + name + " at offset " + at
+                + "\nHAPI:   ..." + expected.substring(from, Math.min(expected.length(), at + 60))
+                + "\nwriter: ..." + actual.substring(from, Math.min(actual.length(), at + 60)));
+    }
+
+    private static Date date(Random random) {
+        // 2020-01-01 to 2030-01-01 with millisecond part
+        return new Date(1577836800000L + (long) (random.nextDouble() * 315532800000L));
+    }
+}
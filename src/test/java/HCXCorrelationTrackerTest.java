@@ -0,0 +1,148 @@
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import io.hcxprotocol.utils.Operations;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HCXCorrelationTrackerTest {
+
+    @Test
+    void completingTheFutureFromOutsideRemovesTheRequest() throws Exception {
+        // no early responses, a late response would be kept as one
+        try (HCXCorrelationTracker<String> tracker = HCXCorrelationTracker.<String>builder().earlyResponseRetention(Duration.ZERO).build()) {
+            String first = UUID.randomUUID().toString();
+            CompletableFuture<String> future = tracker.register(first);
+            assertTrue(future.complete("done"));
+            assertEquals(0, tracker.getPending());
+            assertFalse(tracker.complete(first, "late"));
+            assertEquals("done", future.get());
+
+            tracker.register(UUID.randomUUID().toString()).completeExceptionally(new IllegalStateException());
+            tracker.register(UUID.randomUUID().toString()).cancel(false);
+            CompletableFuture<String> timed = tracker.register(UUID.randomUUID().toString()).orTimeout(10, TimeUnit.MILLISECONDS);
+            assertThrows(ExecutionException.class, () -> timed.get(5, TimeUnit.SECONDS));
+            tracker.register(UUID.randomUUID().toString()).completeAsync(() -> "async").get(5, TimeUnit.SECONDS);
+            // the completing thread removes the request right after the future completed
+            for (int i = 0; i < 100 && tracker.getPending() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, tracker.getPending());
+
+            // the correlation id can be registered again
+            assertFalse(tracker.register(first).isDone());
+            assertEquals(1, tracker.getPending());
+        }
+    }
+
+    @Test
+    void invalidCallbackFailsThePendingRequest() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keys = generator.generateKeyPair();
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        HCXJweEncrypter encrypter = new HCXJweEncrypter(keys.getPublic(), "1-payor");
+        String body = (String) encrypter.encrypt(HCXFHIRSerializer.encode(bundle), Operations.CLAIM_ON_SUBMIT, "1-provider").get("payload");
+
+        SingleValidationMessage error = new SingleValidationMessage();
+        error.setSeverity(ResultSeverityEnum.ERROR);
+        error.setMessage("invalid");
+        ValidationResult invalid = new ValidationResult(HCXFHIRSerializer.getContext(), List.of(error));
+        try (HCXCorrelationTracker<HCXIncomingProcessor.Incoming> tracker = HCXCorrelationTracker.<HCXIncomingProcessor.Incoming>builder()
+                .timeout(Duration.ofSeconds(30)).build();
+             HCXIncomingProcessor processor = new HCXIncomingProcessor(new HCXJweDecrypter(keys.getPrivate()), b -> invalid, 1, 4)) {
+            CompletableFuture<HCXIncomingProcessor.Incoming> pending = tracker.register(HCXCorrelationTracker.correlationId(body));
+            HCXIncomingProcessor.Incoming incoming = processor.submit(body, Operations.CLAIM_ON_SUBMIT, tracker).get(30, TimeUnit.SECONDS);
+            assertSame(invalid, incoming.getValidationResult());
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> pending.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof HCXIncomingProcessor.InvalidPayloadException);
+            assertSame(incoming, ((HCXIncomingProcessor.InvalidPayloadException) e.getCause()).getIncoming());
+            assertEquals(1, tracker.getFailed());
+        }
+    }
+
+    @Test
+    void tamperedCallbackDoesNotFailThePendingRequest() throws Exception {
+        KeyPair keys = keys();
+        String body = callback(keys, "1-provider");
+        // flip a character of the ciphertext, the header with the correlation id stays readable
+        String[] parts = body.split("\\.");
+        char c = parts[3].charAt(0);
+        parts[3] = (c == 'A' ? 'B' : 'A') + parts[3].substring(1);
+        String tampered = String.join(".", parts);
+        assertEquals(HCXCorrelationTracker.correlationId(body), HCXCorrelationTracker.correlationId(tampered));
+
+        try (HCXCorrelationTracker<HCXIncomingProcessor.Incoming> tracker = HCXCorrelationTracker.<HCXIncomingProcessor.Incoming>builder()
+                .timeout(Duration.ofSeconds(30)).build();
+             HCXIncomingProcessor processor = new HCXIncomingProcessor(new HCXJweDecrypter(keys.getPrivate()), null, 1, 4)) {
+            CompletableFuture<HCXIncomingProcessor.Incoming> pending = tracker.register(HCXCorrelationTracker.correlationId(body));
+            CompletableFuture<HCXIncomingProcessor.Incoming> rejected = processor.submit(tampered, Operations.CLAIM_ON_SUBMIT, tracker);
+            assertThrows(ExecutionException.class, () -> rejected.get(30, TimeUnit.SECONDS));
+            assertFalse(pending.isDone());
+            assertEquals(0, tracker.getFailed());
+
+            processor.submit(body, Operations.CLAIM_ON_SUBMIT, tracker).get(30, TimeUnit.SECONDS);
+            assertEquals(HCXCorrelationTracker.correlationId(body), pending.get(5, TimeUnit.SECONDS).getCorrelationId());
+        }
+    }
+
+    @Test
+    void callbackWithInvalidHeadersFailsThePendingRequest() throws Exception {
+        KeyPair keys = keys();
+        String body = callback(keys, "1-someone-else");
+        HCXHeaderValidator headerValidator = HCXHeaderValidator.builder().participantCode("1-provider").build();
+        try (HCXCorrelationTracker<HCXIncomingProcessor.Incoming> tracker = HCXCorrelationTracker.<HCXIncomingProcessor.Incoming>builder()
+                .timeout(Duration.ofSeconds(30)).build();
+             HCXIncomingProcessor processor = new HCXIncomingProcessor(new HCXJweDecrypter(keys.getPrivate()), headerValidator, null, 1, 4)) {
+            CompletableFuture<HCXIncomingProcessor.Incoming> pending = tracker.register(HCXCorrelationTracker.correlationId(body));
+            CompletableFuture<HCXIncomingProcessor.Incoming> rejected = processor.submit(body, Operations.CLAIM_ON_SUBMIT, tracker);
+            assertThrows(ExecutionException.class, () -> rejected.get(30, TimeUnit.SECONDS));
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> pending.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof HCXHeaderValidator.InvalidHeadersException);
+            assertEquals(1, tracker.getFailed());
+        }
+    }
+
+    @Test
+    void singleStripeMatchesResponses() throws Exception {
+        try (HCXCorrelationTracker<String> tracker = HCXCorrelationTracker.<String>builder().stripes(1).build()) {
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(tracker.register("c" + i));
+            }
+            for (int i = 0; i < 100; i++) {
+                assertTrue(tracker.complete("c" + i, "r" + i));
+                assertEquals("r" + i, futures.get(i).get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(0, tracker.getPending());
+        }
+    }
+
+    private static KeyPair keys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        return generator.generateKeyPair();
+    }
+
+    private static String callback(KeyPair keys, String recipientCode) throws Exception {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        HCXJweEncrypter encrypter = new HCXJweEncrypter(keys.getPublic(), "1-payor");
+        return (String) encrypter.encrypt(HCXFHIRSerializer.encode(bundle), Operations.CLAIM_ON_SUBMIT, recipientCode).get("payload");
+    }
+}
@@ -0,0 +1,98 @@
+import io.hcxprotocol.utils.Operations;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HCXIncomingProcessorTest {
+
+    private static KeyPair keys;
+
+    @BeforeAll
+    static void generateKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keys = generator.generateKeyPair();
+    }
+
+    private static Map<String, Object> headers() {
+        Map<String, Object> headers = new HashMap<>();
+        headers.put("alg", "RSA-OAEP");
+        headers.put("enc", "A256GCM");
+        headers.put(HCXHeaderValidator.SENDER_CODE, "1-provider");
+        headers.put(HCXHeaderValidator.RECIPIENT_CODE, "1-payor");
+        headers.put(HCXHeaderValidator.API_CALL_ID, UUID.randomUUID().toString());
+        headers.put(HCXHeaderValidator.CORRELATION_ID, UUID.randomUUID().toString());
+        headers.put(HCXHeaderValidator.TIMESTAMP, Instant.now().toString());
+        return headers;
+    }
+
+    private static String payload(Operations operation, String recipientCode) throws Exception {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        HCXJweEncrypter encrypter = new HCXJweEncrypter(keys.getPublic(), "1-payor");
+        return (String) encrypter.encrypt(HCXFHIRSerializer.encode(bundle), operation, recipientCode).get("payload");
+    }
+
+    @Test
+    void validHeadersPass() {
+        HCXHeaderValidator validator = HCXHeaderValidator.builder().participantCode("1-payor").build();
+        assertTrue(validator.validate(headers(), Operations.CLAIM_SUBMIT).isEmpty());
+    }
+
+    @Test
+    void invalidHeadersAreReportedWithSdkErrorCodes() {
+        HCXHeaderValidator validator = HCXHeaderValidator.builder().participantCode("1-payor").build();
+        Map<String, Object> headers = headers();
+        headers.remove(HCXHeaderValidator.CORRELATION_ID);
+        headers.put(HCXHeaderValidator.API_CALL_ID, "1-2-3-4-5");
+        headers.put(HCXHeaderValidator.TIMESTAMP, Instant.now().plusSeconds(3600).toString());
+        Map<String, String> errors = validator.validate(headers, Operations.CLAIM_ON_SUBMIT);
+        assertTrue(errors.get("ERR_MANDATORY_HEADER_MISSING").contains(HCXHeaderValidator.CORRELATION_ID));
+        assertTrue(errors.get("ERR_MANDATORY_HEADER_MISSING").contains(HCXHeaderValidator.STATUS));
+        assertTrue(errors.containsKey("ERR_INVALID_API_CALL_ID"));
+        assertTrue(errors.containsKey("ERR_INVALID_TIMESTAMP"));
+
+        headers = headers();
+        headers.put(HCXHeaderValidator.RECIPIENT_CODE, "1-someone-else");
+        headers.put(HCXHeaderValidator.STATUS, "response.complete");
+        errors = validator.validate(headers, Operations.CLAIM_SUBMIT);
+        assertEquals(2, errors.size());
+        assertTrue(errors.containsKey("ERR_INVALID_RECIPIENT"));
+        assertTrue(errors.containsKey("ERR_INVALID_STATUS"));
+    }
+
+    @Test
+    void requestsForOtherParticipantsAreRejected() throws Exception {
+        HCXHeaderValidator validator = HCXHeaderValidator.builder().participantCode("1-provider").build();
+        try (HCXIncomingProcessor processor = new HCXIncomingProcessor(new HCXJweDecrypter(keys.getPrivate()), validator, null, 1, 4)) {
+            HCXIncomingProcessor.Incoming incoming = processor.process(payload(Operations.CLAIM_ON_SUBMIT, "1-provider"), Operations.CLAIM_ON_SUBMIT);
+            assertEquals("response.complete", incoming.getHeaders().get(HCXHeaderValidator.STATUS));
+
+            HCXHeaderValidator.InvalidHeadersException e = assertThrows(HCXHeaderValidator.InvalidHeadersException.class,
+                    () -> processor.process(payload(Operations.CLAIM_ON_SUBMIT, "1-other"), Operations.CLAIM_ON_SUBMIT));
+            assertTrue(e.getErrors().containsKey("ERR_INVALID_RECIPIENT"));
+        }
+    }
+
+    @Test
+    void submitAfterCloseFails() throws Exception {
+        HCXIncomingProcessor processor = new HCXIncomingProcessor(new HCXJweDecrypter(keys.getPrivate()), null, 1, 4);
+        processor.close();
+        CompletableFuture<HCXIncomingProcessor.Incoming> future = processor.submit(payload(Operations.CLAIM_ON_SUBMIT, "1-provider"), Operations.CLAIM_ON_SUBMIT);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+}
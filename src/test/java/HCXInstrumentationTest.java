@@ -0,0 +1,36 @@
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HCXInstrumentationTest {
+
+    @Test
+    void utf8LengthMatchesEncodedLength() {
+        for (String text : List.of("", "Ravi Kumar", "Jos\u00e9", "\u0930\u0935\u093f \u0915\u0941\u092e\u093e\u0930",
+                "\ud83c\udfe5 hospital", "lone \ud83c surrogate", "end \udfe5")) {
+            assertEquals(text.getBytes(StandardCharsets.UTF_8).length, HCXInstrumentation.utf8Length(text), text);
+        }
+    }
+
+    @Test
+    void textPayloadsAreRecordedInBytes() {
+        List<Long> sizes = new CopyOnWriteArrayList<>();
+        HCXInstrumentation.setMetrics((stage, operation, nanos, payloadSize, success) -> sizes.add(payloadSize));
+        try {
+            Patient patient = new Patient();
+            patient.addName().setText("\u0930\u0935\u093f \u0915\u0941\u092e\u093e\u0930");
+            String json = HCXFHIRSerializer.encode(patient);
+            HCXFHIRSerializer.parse(Patient.class, json);
+            long bytes = json.getBytes(StandardCharsets.UTF_8).length;
+            assertTrue(bytes > json.length());
+            assertEquals(List.of(bytes, bytes), sizes);
+        } finally {
+            HCXInstrumentation.setMetrics(null);
+        }
+    }
+}
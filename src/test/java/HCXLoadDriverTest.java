@@ -0,0 +1,63 @@
+import ca.uhn.fhir.validation.ValidationResult;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HCXLoadDriverTest {
+
+    private static final HCXWorkload WORKLOAD = HCXWorkload.builder(42).items(1, 2).build();
+
+    private static ValidationResult valid() {
+        return new ValidationResult(HCXFHIRSerializer.getContext(), List.of());
+    }
+
+    @Test
+    void requestsFollowTheScheduleNotTheCompletions() throws Exception {
+        // 200/s for 500 ms is requests 0 to 99, 5 ms apart
+        List<Long> started = new CopyOnWriteArrayList<>();
+        HCXLoadDriver.Report report = HCXLoadDriver.builder(WORKLOAD).rate(200).duration(Duration.ofMillis(500))
+                .warmUp(Duration.ZERO).threads(4).validation(bundle -> {
+                    started.add(System.nanoTime());
+                    return valid();
+                }).run();
+        assertEquals(100, report.getRequests());
+        assertEquals(0, report.getFailures());
+        assertEquals(100, report.getRegistry().snapshot(HCXMetrics.Stage.REQUEST).getCount());
+        // spread over the run instead of sent back to back
+        long spread = started.stream().mapToLong(Long::longValue).max().getAsLong() - started.stream().mapToLong(Long::longValue).min().getAsLong();
+        assertTrue(spread >= TimeUnit.MILLISECONDS.toNanos(400), "spread " + spread);
+    }
+
+    @Test
+    void latencyIsMeasuredFromTheScheduledTime() throws Exception {
+        // one worker taking 20 ms per request falls behind a 10 ms schedule, the queueing shows in the latency
+        HCXLoadDriver.Report report = HCXLoadDriver.builder(WORKLOAD).rate(100).duration(Duration.ofMillis(500))
+                .warmUp(Duration.ZERO).threads(1).validation(bundle -> {
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return valid();
+                }).run();
+        assertEquals(50, report.getRequests());
+        HCXLatencyRegistry.Snapshot latency = report.getRegistry().snapshot(HCXMetrics.Stage.REQUEST);
+        // the last request is scheduled at 490 ms and completes after 50 x 20 ms
+        assertTrue(latency.getMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(400), "max " + latency.getMaxNanos());
+        assertTrue(report.getPercentileNanos(50) >= TimeUnit.MILLISECONDS.toNanos(100), "p50 " + report.getPercentileNanos(50));
+    }
+
+    @Test
+    void backToBackKeepsEveryThreadBusy() throws Exception {
+        HCXLoadDriver.Report report = HCXLoadDriver.builder(WORKLOAD).rate(0).duration(Duration.ofMillis(300))
+                .warmUp(Duration.ZERO).threads(2).run();
+        assertTrue(report.getRequests() >= 2);
+        assertEquals(0, report.getFailures());
+        assertEquals(report.getRequests(), report.getRegistry().snapshot(HCXMetrics.Stage.REQUEST).getCount());
+    }
+}
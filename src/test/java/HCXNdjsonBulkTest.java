@@ -0,0 +1,105 @@
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HCXNdjsonBulkTest {
+
+    @TempDir
+    Path dir;
+
+    private static String line(Resource resource) {
+        return HCXFHIRSerializer.encode(resource);
+    }
+
+    private static String claim(String id, String patientId, String coverageId) {
+        return line(HCXClaim.builder().id(id).identifier("http://identifiersystem.com", id).patient(patientId)
+                .insurer("GICOFINDIA").provider("Tmh01").coverage(coverageId).created(new Date(0))
+                .item("ID003", "Treatment of COVID-19 Infection", 100000).build());
+    }
+
+    private static String patient(String id) {
+        Patient patient = new Patient();
+        patient.setId(id);
+        // long enough to cross the 4096 byte windows a few times
+        patient.addName().setText("x".repeat(3000));
+        return line(patient);
+    }
+
+    private static String coverage(String id, String payorId) {
+        Coverage coverage = new Coverage();
+        coverage.setId(id);
+        coverage.setStatus(Coverage.CoverageStatus.ACTIVE);
+        coverage.getPayor().add(new Reference("Organization/" + payorId));
+        return line(coverage);
+    }
+
+    private static String organization(String id) {
+        Organization organization = new Organization();
+        organization.setId(id);
+        organization.setName(id);
+        return line(organization);
+    }
+
+    private static Map<String, Set<String>> bundles(Path file) throws Exception {
+        Map<String, Set<String>> bundles = new HashMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            Bundle bundle = HCXFHIRSerializer.parse(Bundle.class, line);
+            List<Bundle.BundleEntryComponent> entries = bundle.getEntry();
+            Resource focal = entries.get(entries.size() - 1).getResource();
+            bundles.put(focal.getIdElement().getIdPart(), entries.subList(0, entries.size() - 1).stream()
+                    .map(Bundle.BundleEntryComponent::getFullUrl).collect(Collectors.toSet()));
+        }
+        return bundles;
+    }
+
+    @Test
+    void bundlesFocalResourcesWithTheResourcesTheyReference() throws Exception {
+        List<String> lines = new ArrayList<>();
+        lines.add(claim("CLAIM1", "P1", "COV1"));
+        lines.add(patient("P2"));
+        lines.add(organization("GICOFINDIA"));
+        lines.add(claim("CLAIM2", "P1", "COV2"));
+        lines.add(coverage("COV1", "INS1"));
+        lines.add(patient("P1"));
+        lines.add(organization("INS1"));
+        lines.add(coverage("COV2", "MISSING"));
+        lines.add(claim("CLAIM3", "P3", "COV1"));
+        lines.add(patient("UNUSED"));
+        Path input = dir.resolve("resources.ndjson");
+        Files.write(input, lines, StandardCharsets.UTF_8);
+
+        Map<String, Set<String>> expected = Map.of(
+                "CLAIM1", Set.of("Patient/P1", "Coverage/COV1", "Organization/INS1", "Organization/GICOFINDIA"),
+                "CLAIM2", Set.of("Patient/P1", "Coverage/COV2", "Organization/GICOFINDIA"),
+                "CLAIM3", Set.of("Coverage/COV1", "Organization/INS1", "Organization/GICOFINDIA"));
+        for (int threads = 1; threads <= 4; threads++) {
+            HCXNdjsonBulk bulk = new HCXNdjsonBulk(Map.of(ResourceType.Claim, HCXTerminology.CLAIM_PROFILE), Bundle.BundleType.COLLECTION, threads, 4096);
+            Path output = dir.resolve("bundles" + threads + ".ndjson");
+            HCXNdjsonBulk.Summary summary = bulk.importResources(input, output);
+            assertEquals(10, summary.getLines());
+            assertEquals(3, summary.getWritten());
+            assertEquals(2, summary.getOrphans(), "P2 and UNUSED");
+            assertEquals(expected, bundles(output), threads + " threads");
+        }
+    }
+
+    @Test
+    void exportWritesEveryEntry() throws Exception {
+        Path input = dir.resolve("resources.ndjson");
+        Files.write(input, List.of(patient("P1"), coverage("COV1", "INS1"), claim("CLAIM1", "P1", "COV1")), StandardCharsets.UTF_8);
+        HCXNdjsonBulk bulk = new HCXNdjsonBulk(Map.of(ResourceType.Claim, HCXTerminology.CLAIM_PROFILE), Bundle.BundleType.COLLECTION, 2, 4096);
+        bulk.importResources(input, dir.resolve("bundles.ndjson"));
+        HCXNdjsonBulk.Summary summary = bulk.exportResources(dir.resolve("bundles.ndjson"), dir.resolve("export.ndjson"));
+        assertEquals(1, summary.getLines());
+        assertEquals(3, summary.getWritten());
+        assertEquals(3, Files.readAllLines(dir.resolve("export.ndjson")).size());
+    }
+}
@@ -0,0 +1,199 @@
+import io.hcxprotocol.utils.Operations;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HCXOutboxTest {
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Records the bodies it is called with and answers with the next outcome of the script for the payload, success
+     * once the script is used up. A null outcome never completes, like a gateway which does not answer.
+     */
+    private static final class StubDispatcher implements HCXAsyncSubmitter.Dispatcher {
+        final List<String> payloads = new CopyOnWriteArrayList<>();
+        final Map<String, List<Long>> attempts = new ConcurrentHashMap<>();
+        final Map<String, Deque<Throwable>> script = new ConcurrentHashMap<>();
+        volatile boolean answer = true;
+
+        StubDispatcher fail(String payload, Throwable... errors) {
+            script.put(payload, new ArrayDeque<>(Arrays.asList(errors)));
+            return this;
+        }
+
+        @Override
+        public CompletableFuture<Map<String, Object>> dispatch(Map<String, Object> requestBody, Operations operation) {
+            String payload = (String) requestBody.get("payload");
+            payloads.add(payload);
+            attempts.computeIfAbsent(payload, p -> new CopyOnWriteArrayList<>()).add(System.nanoTime());
+            if (!answer) {
+                return new CompletableFuture<>();
+            }
+            Deque<Throwable> errors = script.get(payload);
+            Throwable error = errors == null ? null : errors.poll();
+            return error == null ? CompletableFuture.completedFuture(Map.of("responseObj", Map.of())) : CompletableFuture.failedFuture(error);
+        }
+    }
+
+    private static final class RecordingListener implements HCXOutbox.Listener {
+        final List<Long> delivered = new CopyOnWriteArrayList<>();
+        final Map<Long, Throwable> failed = new ConcurrentHashMap<>();
+
+        @Override
+        public void delivered(long sequence, Operations operation, Map<String, Object> response) {
+            delivered.add(sequence);
+        }
+
+        @Override
+        public void failed(long sequence, Operations operation, Throwable error) {
+            failed.put(sequence, error);
+        }
+    }
+
+    private static Map<String, Object> body(String payload) {
+        return Map.of("payload", payload);
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    void unacknowledgedEntriesAreSentAgainAfterRestart() throws Exception {
+        StubDispatcher silent = new StubDispatcher();
+        silent.answer = false;
+        try (HCXOutbox outbox = HCXOutbox.builder(directory, silent).open()) {
+            for (int i = 0; i < 5; i++) {
+                outbox.enqueue(body("p" + i), Operations.CLAIM_SUBMIT);
+            }
+            for (int i = 0; i < 100 && silent.payloads.size() < 5; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(5, outbox.getPending());
+        }
+
+        StubDispatcher dispatcher = new StubDispatcher();
+        RecordingListener listener = new RecordingListener();
+        try (HCXOutbox outbox = HCXOutbox.builder(directory, dispatcher).listener(listener).open()) {
+            assertTrue(outbox.drain(Duration.ofSeconds(10)));
+            assertEquals(List.of("p0", "p1", "p2", "p3", "p4"), dispatcher.payloads);
+            assertEquals(5, outbox.getDelivered());
+            assertEquals(5, listener.delivered.size());
+            // a new entry continues the sequence
+            assertEquals(5, outbox.enqueue(body("p5"), Operations.CLAIM_SUBMIT));
+            assertTrue(outbox.drain(Duration.ofSeconds(10)));
+        }
+
+        // delivered entries are not sent a third time
+        StubDispatcher after = new StubDispatcher();
+        try (HCXOutbox outbox = HCXOutbox.builder(directory, after).open()) {
+            assertEquals(0, outbox.getPending());
+            Thread.sleep(200);
+            assertEquals(List.of(), after.payloads);
+        }
+    }
+
+    @Test
+    void failedDispatchIsRetriedWithBackoff() throws Exception {
+        StubDispatcher dispatcher = new StubDispatcher().fail("p0", new IOException("connection reset"),
+                new HCXHttpDispatcher.StatusException(503, "unavailable"));
+        RecordingListener listener = new RecordingListener();
+        try (HCXOutbox outbox = HCXOutbox.builder(directory, dispatcher).listener(listener)
+                .retry(5, Duration.ofMillis(100), Duration.ofSeconds(1)).open()) {
+            outbox.enqueue(body("p0"), Operations.CLAIM_SUBMIT);
+            assertTrue(outbox.drain(Duration.ofSeconds(10)));
+            assertEquals(List.of(0L), listener.delivered);
+            assertEquals(2, outbox.getRetries());
+        }
+        List<Long> times = dispatcher.attempts.get("p0");
+        assertEquals(3, times.size());
+        // jitter waits between half and the full backoff, 100 ms then 200 ms
+        assertTrue(times.get(1) - times.get(0) >= Duration.ofMillis(50).toNanos());
+        assertTrue(times.get(2) - times.get(1) >= Duration.ofMillis(100).toNanos());
+    }
+
+    @Test
+    void entriesFailAfterMaxAttempts() throws Exception {
+        StubDispatcher dispatcher = new StubDispatcher().fail("p0", new IOException("1"), new IOException("2"), new IOException("3"));
+        RecordingListener listener = new RecordingListener();
+        try (HCXOutbox outbox = HCXOutbox.builder(directory, dispatcher).listener(listener)
+                .retry(3, Duration.ofMillis(10), Duration.ofMillis(10)).open()) {
+            outbox.enqueue(body("p0"), Operations.CLAIM_SUBMIT);
+            assertTrue(outbox.drain(Duration.ofSeconds(10)));
+            assertEquals(1, outbox.getFailed());
+            assertEquals("3", listener.failed.get(0L).getMessage());
+        }
+        assertEquals(3, dispatcher.attempts.get("p0").size());
+    }
+
+    @Test
+    void nonRetryableErrorsFailAtOnce() throws Exception {
+        StubDispatcher dispatcher = new StubDispatcher()
+                .fail("bad-request", new HCXHttpDispatcher.StatusException(400, "invalid payload"))
+                .fail("invalid", new IllegalArgumentException("validation failed"))
+                .fail("throttled", new HCXHttpDispatcher.StatusException(429, "slow down"));
+        RecordingListener listener = new RecordingListener();
+        try (HCXOutbox outbox = HCXOutbox.builder(directory, dispatcher).listener(listener)
+                .retry(5, Duration.ofMillis(10), Duration.ofMillis(10)).open()) {
+            outbox.enqueue(body("bad-request"), Operations.CLAIM_SUBMIT);
+            outbox.enqueue(body("invalid"), Operations.CLAIM_SUBMIT);
+            outbox.enqueue(body("throttled"), Operations.CLAIM_SUBMIT);
+            assertTrue(outbox.drain(Duration.ofSeconds(10)));
+            assertEquals(2, outbox.getFailed());
+            assertEquals(1, outbox.getDelivered());
+            assertEquals(400, ((HCXHttpDispatcher.StatusException) listener.failed.get(0L)).getStatusCode());
+            assertTrue(listener.failed.get(1L) instanceof IllegalArgumentException);
+        }
+        assertEquals(1, dispatcher.attempts.get("bad-request").size());
+        assertEquals(1, dispatcher.attempts.get("invalid").size());
+        assertEquals(2, dispatcher.attempts.get("throttled").size());
+
+        // failed entries are final, they are not sent again after a restart
+        StubDispatcher after = new StubDispatcher();
+        try (HCXOutbox outbox = HCXOutbox.builder(directory, after).open()) {
+            assertEquals(0, outbox.getPending());
+        }
+    }
+
+    @Test
+    void segmentsRollAndDeliveredSegmentsAreDeleted() throws Exception {
+        StubDispatcher dispatcher = new StubDispatcher();
+        dispatcher.answer = false;
+        char[] filler = new char[1000];
+        Arrays.fill(filler, 'x');
+        try (HCXOutbox outbox = HCXOutbox.builder(directory, dispatcher).segmentSize(4096).open()) {
+            for (int i = 0; i < 20; i++) {
+                outbox.enqueue(body(i + new String(filler)), Operations.CLAIM_SUBMIT);
+            }
+            assertTrue(outbox.getSegmentCount() >= 5);
+            assertEquals(outbox.getSegmentCount(), segmentFiles());
+        }
+
+        dispatcher = new StubDispatcher();
+        try (HCXOutbox outbox = HCXOutbox.builder(directory, dispatcher).segmentSize(4096).open()) {
+            assertTrue(outbox.drain(Duration.ofSeconds(10)));
+            assertEquals(20, dispatcher.payloads.size());
+            // compacted when the sender is idle
+            for (int i = 0; i < 100 && outbox.getSegmentCount() > 1; i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(1, outbox.getSegmentCount());
+            assertEquals(1, segmentFiles());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HCXPreValidatorTest {
+
+    private static FhirValidator validator;
+    private static HCXPreValidator preValidator;
+
+    @BeforeAll
+    static void createValidators() {
+        validator = HCXTestProfiles.validator();
+        preValidator = HCXPreValidator.builder(HCXTestProfiles.support(HCXTestProfiles.snapshot())).mode(HCXPreValidator.Mode.TRUSTED).build();
+    }
+
+    private static <T extends Resource> T entry(Bundle bundle, Class<T> type) {
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (type.isInstance(entry.getResource())) {
+                return type.cast(entry.getResource());
+            }
+        }
+        throw new AssertionError("No " + type.getSimpleName() + " in the bundle");
+    }
+
+    /**
+     * Bundles broken in one of the ways the pre checks cover.
+     */
+    private static Map<String, Consumer<Bundle>> breakages() {
+        Map<String, Consumer<Bundle>> breakages = new LinkedHashMap<>();
+        breakages.put("claim without identifier", b -> entry(b, Claim.class).getIdentifier().clear());
+        breakages.put("claim without status", b -> entry(b, Claim.class).setStatus(null));
+        breakages.put("claim use other than the fixed value", b -> entry(b, Claim.class).setUse(Claim.Use.PREAUTHORIZATION));
+        breakages.put("claim type not matching the pattern", b -> entry(b, Claim.class).setType(new CodeableConcept(new Coding(HCXTerminology.CLAIM_TYPE_SYSTEM, "professional", null))));
+        breakages.put("claim patient of the wrong type", b -> entry(b, Claim.class).setPatient(new Reference("Organization/" + entry(b, Organization.class).getIdElement().getIdPart())));
+        breakages.put("claim insurance without coverage", b -> entry(b, Claim.class).getInsuranceFirstRep().setCoverage(null));
+        breakages.put("patient without gender", b -> entry(b, Patient.class).setGender(null));
+        breakages.put("organization without name", b -> entry(b, Organization.class).setName(null));
+        breakages.put("coverage without identifier", b -> entry(b, Coverage.class).getIdentifier().clear());
+        return breakages;
+    }
+
+    @Test
+    void neverRejectsWhatTheValidatorAccepts() {
+        for (Bundle bundle : HCXTestProfiles.claimBundles(3, 20)) {
+            assertTrue(validator.validateWithResult(bundle).isSuccessful());
+            assertEquals(List.of(), preValidator.check(bundle));
+        }
+    }
+
+    @Test
+    void rejectsWhatTheValidatorRejects() {
+        List<Bundle> bundles = HCXTestProfiles.claimBundles(5, breakages().size());
+        int i = 0;
+        for (Map.Entry<String, Consumer<Bundle>> breakage : breakages().entrySet()) {
+            Bundle bundle = bundles.get(i++);
+            breakage.getValue().accept(bundle);
+            assertFalse(validator.validateWithResult(bundle).isSuccessful(), breakage.getKey());
+            assertFalse(preValidator.check(bundle).isEmpty(), breakage.getKey());
+            assertFalse(preValidator.validateWithResult(bundle).isSuccessful(), breakage.getKey());
+        }
+        assertEquals(breakages().size(), preValidator.getRejected());
+    }
+
+    @Test
+    void fullModeReturnsTheValidatorResult() {
+        HCXPreValidator full = HCXPreValidator.builder(HCXTestProfiles.support(HCXTestProfiles.snapshot())).fullValidation(validator).build();
+        List<Bundle> bundles = HCXTestProfiles.claimBundles(9, 2);
+        assertTrue(full.validateWithResult(bundles.get(0)).isSuccessful());
+        assertEquals(1, full.getFullValidations());
+
+        entry(bundles.get(1), Patient.class).setGender(null);
+        List<SingleValidationMessage> messages = full.validateWithResult(bundles.get(1)).getMessages();
+        assertFalse(messages.isEmpty());
+        assertEquals(1, full.getRejected());
+        assertEquals(1, full.getFullValidations());
+    }
+
+    @Test
+    void hcxRulesAreStricterThanTheValidator() {
+        HCXPreValidator strict = HCXPreValidator.builder(HCXTestProfiles.support(HCXTestProfiles.snapshot())).mode(HCXPreValidator.Mode.TRUSTED)
+                .requireProfile(HCXPreValidator.HCX_PROFILED_TYPES).resolveReferences(true).build();
+        List<Bundle> bundles = HCXTestProfiles.claimBundles(13, 2);
+        assertEquals(List.of(), strict.check(bundles.get(0)));
+
+        Bundle dangling = bundles.get(0);
+        entry(dangling, Claim.class).getInsuranceFirstRep().setCoverage(new Reference("Coverage/COVERAGE1"));
+        assertTrue(validator.validateWithResult(dangling).isSuccessful());
+        assertEquals(List.of(), preValidator.check(dangling));
+        assertEquals(List.of("Bundle.entry[4].resource.insurance[0].coverage"), locations(strict.check(dangling)));
+
+        Bundle unprofiled = bundles.get(1);
+        unprofiled.getMeta().getProfile().clear();
+        entry(unprofiled, Claim.class).getMeta().getProfile().clear();
+        assertEquals(List.of(), preValidator.check(unprofiled));
+        assertEquals(List.of("Bundle.meta", "Bundle.entry[4].resource.meta"), locations(strict.check(unprofiled)));
+    }
+
+    private static List<String> locations(List<SingleValidationMessage> messages) {
+        List<String> locations = new ArrayList<>();
+        for (SingleValidationMessage message : messages) {
+            locations.add(message.getLocationString());
+        }
+        return locations;
+    }
+}
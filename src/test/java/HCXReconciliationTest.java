@@ -0,0 +1,159 @@
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HCXReconciliationTest {
+
+    private static final String CLAIM_SYSTEM = "https://hcx.example.org/claim-id";
+
+    private static class Report {
+        final HCXReconciliation.Outcome outcome;
+        final String claim;
+        final long expected;
+        final long paid;
+        final int payments;
+
+        Report(HCXReconciliation.Outcome outcome, String claim, long expected, long paid, int payments) {
+            this.outcome = outcome;
+            this.claim = claim;
+            this.expected = expected;
+            this.paid = paid;
+            this.payments = payments;
+        }
+    }
+
+    private final List<Report> reports = new ArrayList<>();
+    private final HCXReconciliation reconciliation = new HCXReconciliation(
+            (outcome, claim, expected, paid, payments, currency) -> reports.add(new Report(outcome, claim, expected, paid, payments)));
+
+    private static ClaimResponse claimResponse(String id, String claimId, String benefit) {
+        ClaimResponse claimResponse = new ClaimResponse();
+        claimResponse.setId(id);
+        claimResponse.setStatus(ClaimResponse.ClaimResponseStatus.ACTIVE);
+        claimResponse.setRequest(new Reference("Claim/" + claimId).setIdentifier(new Identifier().setSystem(CLAIM_SYSTEM).setValue(claimId)));
+        claimResponse.addTotal().setCategory(new CodeableConcept(new Coding("http://terminology.hl7.org/CodeSystem/adjudication", "benefit", null)))
+                .setAmount(new Money().setValue(new BigDecimal(benefit)).setCurrency("INR"));
+        return claimResponse;
+    }
+
+    private static PaymentNotice payment(Reference response, String amount) {
+        PaymentNotice notice = new PaymentNotice();
+        notice.setStatus(PaymentNotice.PaymentNoticeStatus.ACTIVE);
+        notice.setResponse(response);
+        notice.setAmount(new Money().setValue(new BigDecimal(amount)).setCurrency("INR"));
+        return notice;
+    }
+
+    private Report last(String claim) {
+        for (int i = reports.size() - 1; i >= 0; i--) {
+            if (reports.get(i).claim.equals(claim)) {
+                return reports.get(i);
+            }
+        }
+        return fail("No report for " + claim);
+    }
+
+    @Test
+    void paymentBeforeItsClaimResponseIsMatched() {
+        reconciliation.accept(payment(new Reference("https://hcx.example.org/fhir/ClaimResponse/cr1"), "600.00"));
+        reconciliation.accept(payment(new Reference().setIdentifier(new Identifier().setSystem(CLAIM_SYSTEM).setValue("c1")), "400.50"));
+        assertTrue(reports.isEmpty());
+        reconciliation.accept(claimResponse("cr1", "c1", "1000.50"));
+
+        Report report = last("ClaimResponse/cr1");
+        assertEquals(HCXReconciliation.Outcome.MATCHED, report.outcome);
+        assertEquals(100050, report.expected);
+        assertEquals(100050, report.paid);
+        assertEquals(2, report.payments);
+
+        HCXReconciliation.Summary summary = reconciliation.finish();
+        assertEquals(1, summary.getCount(HCXReconciliation.Outcome.MATCHED));
+        assertEquals(0, summary.getCount(HCXReconciliation.Outcome.UNMATCHED_PAYMENT));
+    }
+
+    @Test
+    void sharedIdentifierMatchesNeitherClaimResponse() {
+        ClaimResponse first = claimResponse("cr1", "c1", "100");
+        ClaimResponse second = claimResponse("cr2", "c2", "100");
+        first.addIdentifier().setSystem("https://tpa.example.org/batch").setValue("B-7");
+        second.addIdentifier().setSystem("https://tpa.example.org/batch").setValue("B-7");
+        reconciliation.accept(first);
+        reconciliation.accept(second);
+        reconciliation.accept(payment(new Reference().setIdentifier(new Identifier().setSystem("https://tpa.example.org/batch").setValue("B-7")), "100"));
+        reconciliation.accept(payment(new Reference("ClaimResponse/cr2"), "100"));
+        reconciliation.finish();
+
+        assertEquals(HCXReconciliation.Outcome.UNPAID, last("ClaimResponse/cr1").outcome);
+        assertEquals(HCXReconciliation.Outcome.MATCHED, last("ClaimResponse/cr2").outcome);
+        assertEquals(1, last("ClaimResponse/cr2").payments);
+        assertEquals(HCXReconciliation.Outcome.UNMATCHED_PAYMENT, reports.stream()
+                .filter(r -> r.expected == Long.MIN_VALUE).findFirst().orElseThrow().outcome);
+    }
+
+    @Test
+    void overpaymentIsReportedAtOnce() {
+        reconciliation.accept(claimResponse("cr1", "c1", "250.00"));
+        reconciliation.accept(payment(new Reference("Claim/c1"), "250.00"));
+        assertEquals(HCXReconciliation.Outcome.MATCHED, last("ClaimResponse/cr1").outcome);
+        reconciliation.accept(payment(new Reference("claim/c1"), "0.01"));
+        Report report = last("ClaimResponse/cr1");
+        assertEquals(HCXReconciliation.Outcome.AMOUNT_MISMATCH, report.outcome);
+        assertEquals(25001, report.paid);
+        assertEquals(2, reports.size());
+        reconciliation.finish();
+        assertEquals(2, reports.size());
+    }
+
+    @Test
+    void underpaymentIsReportedByFinish() {
+        reconciliation.accept(claimResponse("cr1", "c1", "250.00"));
+        reconciliation.accept(payment(new Reference("ClaimResponse/cr1/_history/2"), "249.99"));
+        assertTrue(reports.isEmpty());
+        HCXReconciliation.Summary summary = reconciliation.finish();
+        Report report = last("ClaimResponse/cr1");
+        assertEquals(HCXReconciliation.Outcome.AMOUNT_MISMATCH, report.outcome);
+        assertEquals(24999, report.paid);
+        assertEquals(1, summary.getCount(HCXReconciliation.Outcome.AMOUNT_MISMATCH));
+    }
+
+    @Test
+    void manyClaimsStayApart() throws Exception {
+        StringBuilder ndjson = new StringBuilder();
+        int claims = 100_000;
+        for (int i = 0; i < claims; i++) {
+            ndjson.append("{\"resourceType\":\"PaymentNotice\",\"status\":\"active\",\"request\":{\"reference\":\"Claim/c").append(i)
+                    .append("\"},\"amount\":{\"value\":").append(i % 1000).append(".25,\"currency\":\"INR\"}}\n");
+            ndjson.append("{\"resourceType\":\"ClaimResponse\",\"id\":\"cr").append(i).append("\",\"status\":\"active\",\"request\":{\"reference\":\"Claim/c")
+                    .append(i).append("\"},\"payment\":{\"amount\":{\"value\":").append(i % 1000).append(".25,\"currency\":\"INR\"}}}\n");
+        }
+        reconciliation.read(new ByteArrayInputStream(ndjson.toString().getBytes(StandardCharsets.UTF_8)));
+        HCXReconciliation.Summary summary = reconciliation.finish();
+        assertEquals(claims, summary.getCount(HCXReconciliation.Outcome.MATCHED));
+        assertEquals(claims, reports.size());
+    }
+
+    @Test
+    void scaledRoundsHalfUpLikeBigDecimal() {
+        List<String> numbers = new ArrayList<>(List.of("0", "-0", "0.005", "-0.005", "0.004", "1.005", "-1.005", "12.345", "12.3449",
+                "12.34", "12.3", "12", "12.", "0.995", "-0.995", "99999.999", "1E+3", "1.005e2", "-2.5E-3", "123456789012345.675",
+                "92233720368547758.07", "10000000000000000.5", "00012.50"));
+        Random random = new Random(18);
+        for (int i = 0; i < 10_000; i++) {
+            BigDecimal value = BigDecimal.valueOf(random.nextLong() % 10_000_000_000L, random.nextInt(6));
+            numbers.add(value.toPlainString());
+        }
+        for (String number : numbers) {
+            assertEquals(new BigDecimal(number).setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact(),
+                    HCXReconciliation.scaled(number), number);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ValidationResult;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Claim;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HCXStartupTest {
+
+    @TempDir
+    Path directory;
+
+    private HCXStartup start() throws Exception {
+        Path file = directory.resolve("validation-snapshot.ndjson.gz");
+        HCXValidationSnapshot.write(HCXTestProfiles.snapshot(), file);
+        return HCXStartup.builder().validationSnapshot(file).warmUpIterations(2).budget(Duration.ofMinutes(5)).start();
+    }
+
+    private static List<String> messages(ValidationResult result) {
+        return result.getMessages().stream()
+                .map(m -> m.getSeverity() + " " + m.getLocationString() + " " + m.getMessage())
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    void warmedValidatorMatchesColdValidator() throws Exception {
+        HCXStartup startup = start();
+        FhirValidator cold = HCXTestProfiles.validator();
+        List<Bundle> bundles = HCXTestProfiles.claimBundles(21, 6);
+        for (Bundle.BundleEntryComponent entry : bundles.get(1).getEntry()) {
+            if (entry.getResource() instanceof Patient) {
+                ((Patient) entry.getResource()).setGender(null);
+            } else if (entry.getResource() instanceof Claim) {
+                ((Claim) entry.getResource()).setUse(Claim.Use.PREAUTHORIZATION);
+            }
+        }
+        for (int i = 0; i < bundles.size(); i++) {
+            ValidationResult expected = cold.validateWithResult(bundles.get(i));
+            ValidationResult warmed = startup.getValidator().validateWithResult(bundles.get(i));
+            assertEquals(expected.isSuccessful(), warmed.isSuccessful(), "bundle " + i);
+            assertEquals(messages(expected), messages(warmed), "bundle " + i);
+            assertEquals(expected.isSuccessful(), startup.getPreValidator().validateWithResult(bundles.get(i)).isSuccessful(), "bundle " + i);
+        }
+        assertFalse(startup.getValidator().validateWithResult(bundles.get(1)).isSuccessful());
+    }
+
+    @Test
+    void reportListsThePhasesInOrder() throws Exception {
+        HCXStartup.Report report = start().getReport();
+        assertEquals(List.of("fhir context", "keys", "validation snapshot", "validator", "warm-up parsers", "warm-up validator"),
+                List.copyOf(report.getPhaseNanos().keySet()));
+        assertEquals(report.getPhaseNanos().values().stream().mapToLong(Long::longValue).sum(), report.getTotalNanos());
+        assertTrue(report.isWithinBudget());
+    }
+
+    @Test
+    void withoutSnapshotThereIsNoValidator() throws Exception {
+        HCXStartup startup = HCXStartup.builder().warmUpIterations(1).start();
+        assertNull(startup.getValidator());
+        assertNull(startup.getPreValidator());
+        assertNull(startup.getDecrypter());
+        assertEquals(List.of("fhir context", "keys", "warm-up parsers"), List.copyOf(startup.getReport().getPhaseNanos().keySet()));
+    }
+}
@@ -0,0 +1,54 @@
+import org.hl7.fhir.r4.model.Claim;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HCXTerminologyTest {
+
+    @Test
+    void builtResourcesDoNotShareInstances() {
+        HCXClaim.Builder builder = HCXClaim.builder().patient("p1").insurer("i1").provider("h1").coverage("c1");
+        Claim first = builder.item("HBP-1", "Package", 1000).build();
+        Claim second = builder.item("HBP-1", "Package", 1000).build();
+
+        assertNotSame(first.getProvider(), first.getPayee().getParty());
+        assertNotSame(first.getProvider(), first.getCareTeamFirstRep().getProvider());
+        assertNotSame(first.getProvider(), second.getProvider());
+        assertNotSame(first.getType(), second.getType());
+        assertNotSame(first.getMeta().getProfile().get(0), second.getMeta().getProfile().get(0));
+        assertNotSame(first.getItemFirstRep().getProductOrService(), second.getItemFirstRep().getProductOrService());
+
+        first.getProvider().setReference("Organization/changed");
+        first.getType().getCodingFirstRep().setCode("changed");
+        assertEquals("Organization/h1", second.getProvider().getReference());
+        assertEquals("Organization/h1", first.getPayee().getParty().getReference());
+        assertEquals("institutional", second.getType().getCodingFirstRep().getCode());
+    }
+
+    @Test
+    void reusedBuilderAllocatesLessThanExample() {
+        HCXClaim.Builder builder = HCXClaim.builder().insurer("GICOFINDIA").provider("Tmh01").identifier("http://identifiersystem.com", "x");
+        long example = allocatedPerCall(HCXClaim::claimExample);
+        long built = allocatedPerCall(() -> builder.id("C1").patient("RVH1003").coverage("COVERAGE1")
+                .item("ID003", "Treatment of COVID-19 Infection", 100000).build());
+        assertTrue(built < example, "builder " + built + " bytes, example " + example + " bytes");
+    }
+
+    private static Object sink;
+
+    private static long allocatedPerCall(Supplier<Claim> build) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        int calls = 20000;
+        for (int i = 0; i < calls; i++) {
+            sink = build.get();
+        }
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < calls; i++) {
+            sink = build.get();
+        }
+        return (threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / calls;
+    }
+}
@@ -0,0 +1,164 @@
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.validation.FhirValidator;
+import org.hl7.fhir.common.hapi.validation.support.*;
+import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
+import org.hl7.fhir.r4.model.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stand-ins for the HCX IG profiles, for tests which cannot download the IG package: differential StructureDefinitions
+ * with the profile URLs of HCXTerminology and HCXWorkload and a few rules of each kind (cardinality, fixed and pattern
+ * values, reference targets), and claim and coverage eligibility bundle profiles slicing Bundle.entry by profile.
+ * The snapshots are generated with HCXValidationSnapshot, like for the real IG.
+ */
+final class HCXTestProfiles {
+
+    private static final String BASE = "http://hl7.org/fhir/StructureDefinition/";
+
+    private static PrePopulatedValidationSupport snapshot;
+
+    private HCXTestProfiles() {
+    }
+
+    /**
+     * Returns the differential profiles.
+     */
+    static List<StructureDefinition> differentials() {
+        List<StructureDefinition> definitions = new ArrayList<>();
+
+        StructureDefinition claim = profile(HCXTerminology.CLAIM_PROFILE, "Claim");
+        element(claim, "Claim.identifier").setMin(1);
+        element(claim, "Claim.type").setPattern(HCXTerminology.claimTypeInstitutional());
+        element(claim, "Claim.use").setFixed(new CodeType("claim"));
+        element(claim, "Claim.patient").addType().setCode("Reference").addTargetProfile(HCXTerminology.NDHM_PATIENT_PROFILE);
+        element(claim, "Claim.insurance.coverage").addType().setCode("Reference").addTargetProfile(BASE + "Coverage");
+        definitions.add(claim);
+
+        StructureDefinition patient = profile(HCXTerminology.NDHM_PATIENT_PROFILE, "Patient");
+        element(patient, "Patient.identifier").setMin(1);
+        element(patient, "Patient.gender").setMin(1);
+        definitions.add(patient);
+
+        StructureDefinition organization = profile(HCXTerminology.NDHM_ORGANIZATION_PROFILE, "Organization");
+        element(organization, "Organization.identifier").setMin(1);
+        element(organization, "Organization.name").setMin(1);
+        definitions.add(organization);
+
+        StructureDefinition coverage = profile(HCXTerminology.COVERAGE_PROFILE, "Coverage");
+        element(coverage, "Coverage.identifier").setMin(1);
+        definitions.add(coverage);
+
+        definitions.add(profile(HCXTerminology.COMMUNICATION_PROFILE, "Communication"));
+
+        StructureDefinition eligibility = profile(HCXTerminology.COVERAGE_ELIGIBILITY_REQUEST_PROFILE, "CoverageEligibilityRequest");
+        element(eligibility, "CoverageEligibilityRequest.identifier").setMin(1);
+        definitions.add(eligibility);
+
+        definitions.add(bundleProfile(HCXWorkload.CLAIM_BUNDLE_PROFILE, "Claim", HCXTerminology.CLAIM_PROFILE));
+        definitions.add(bundleProfile(HCXTerminology.COVERAGE_ELIGIBILITY_REQUEST_BUNDLE_PROFILE, "CoverageEligibilityRequest",
+                HCXTerminology.COVERAGE_ELIGIBILITY_REQUEST_PROFILE));
+        return definitions;
+    }
+
+    /**
+     * Returns the profiles with generated snapshots. Built once, the instance is shared.
+     */
+    static synchronized PrePopulatedValidationSupport snapshot() {
+        if (snapshot == null) {
+            try {
+                Path directory = Files.createTempDirectory("hcx-profiles");
+                try {
+                    List<Path> files = new ArrayList<>();
+                    for (StructureDefinition definition : differentials()) {
+                        Path file = directory.resolve(definition.getName() + ".json");
+                        Files.write(file, HCXFHIRSerializer.encode(definition).getBytes(StandardCharsets.UTF_8));
+                        files.add(file);
+                    }
+                    snapshot = HCXValidationSnapshot.build(files);
+                    for (Path file : files) {
+                        Files.delete(file);
+                    }
+                } finally {
+                    Files.delete(directory);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns the validation support chain of HCXStartup over the given profiles.
+     */
+    static IValidationSupport support(PrePopulatedValidationSupport profiles) {
+        FhirContext context = HCXFHIRSerializer.getContext();
+        return new CachingValidationSupport(new ValidationSupportChain(profiles, context.getValidationSupport(),
+                new CommonCodeSystemsTerminologyService(context), new InMemoryTerminologyServerValidationSupport(context),
+                new SnapshotGeneratingValidationSupport(context)));
+    }
+
+    /**
+     * Returns a new validator for the profiles, set up like the one of HCXStartup.
+     */
+    static FhirValidator validator() {
+        return HCXFHIRSerializer.getContext().newValidator().registerValidatorModule(new FhirInstanceValidator(support(snapshot())));
+    }
+
+    /**
+     * Returns claim bundles of HCXWorkload, which carry the profiles above.
+     */
+    static List<Bundle> claimBundles(long seed, int count) {
+        HCXWorkload workload = HCXWorkload.builder(seed).patients(20).providers(5).insurers(2).items(1, 4).eligibilityShare(0).build();
+        List<Bundle> bundles = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            bundles.add(workload.request(i).getBundle());
+        }
+        return bundles;
+    }
+
+    private static StructureDefinition profile(String url, String type) {
+        StructureDefinition definition = new StructureDefinition();
+        String name = url.substring(url.lastIndexOf('/') + 1).replace(".html", "").replace("StructureDefinition-", "").replaceAll("[^A-Za-z0-9]", "");
+        definition.setUrl(url).setName(name + type).setStatus(Enumerations.PublicationStatus.ACTIVE)
+                .setFhirVersion(Enumerations.FHIRVersion._4_0_1).setKind(StructureDefinition.StructureDefinitionKind.RESOURCE)
+                .setAbstract(false).setType(type).setBaseDefinition(BASE + type).setDerivation(StructureDefinition.TypeDerivationRule.CONSTRAINT);
+        element(definition, type);
+        return definition;
+    }
+
+    private static ElementDefinition element(StructureDefinition definition, String path) {
+        return element(definition, path, path);
+    }
+
+    private static ElementDefinition element(StructureDefinition definition, String id, String path) {
+        ElementDefinition element = definition.getDifferential().addElement().setPath(path);
+        element.setId(id);
+        return element;
+    }
+
+    private static StructureDefinition bundleProfile(String url, String focalType, String focalProfile) {
+        StructureDefinition bundle = profile(url, "Bundle");
+        element(bundle, "Bundle.identifier").setMin(1);
+        element(bundle, "Bundle.timestamp").setMin(1);
+        ElementDefinition entry = element(bundle, "Bundle.entry").setMin(1);
+        entry.getSlicing().setRules(ElementDefinition.SlicingRules.OPEN).addDiscriminator()
+                .setType(ElementDefinition.DiscriminatorType.PROFILE).setPath("resource");
+        slice(bundle, focalType, focalProfile);
+        slice(bundle, "Patient", HCXTerminology.NDHM_PATIENT_PROFILE);
+        return bundle;
+    }
+
+    private static void slice(StructureDefinition bundle, String type, String profile) {
+        element(bundle, "Bundle.entry:" + type, "Bundle.entry").setSliceName(type).setMin(1).setMax("1");
+        element(bundle, "Bundle.entry:" + type + ".resource", "Bundle.entry.resource").setMin(1).addType().setCode(type).addProfile(profile);
+    }
+}
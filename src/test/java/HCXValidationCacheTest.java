@@ -0,0 +1,157 @@
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HCXValidationCacheTest {
+
+    private static FhirValidator validator;
+
+    @BeforeAll
+    static void createValidator() {
+        validator = HCXFHIRSerializer.getContext().newValidator();
+        validator.registerValidatorModule(new FhirInstanceValidator(HCXFHIRSerializer.getContext()));
+    }
+
+    private static Bundle bundle(boolean withTotal) {
+        Bundle bundle = new Bundle();
+        bundle.setId("b1");
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        if (withTotal) {
+            // bdl-1: total only when a search or history
+            bundle.setTotal(2);
+        }
+        Organization organization = new Organization();
+        organization.setId("o1");
+        organization.setName("Tata Memorial Hospital");
+        Patient patient = new Patient();
+        patient.setId("p1");
+        patient.addName().setFamily("Kumar").addGiven("Ravi");
+        patient.setManagingOrganization(new Reference("Organization/o1"));
+        bundle.addEntry().setFullUrl("http://example.org/fhir/Organization/o1").setResource(organization);
+        bundle.addEntry().setFullUrl("http://example.org/fhir/Patient/p1").setResource(patient);
+        return bundle;
+    }
+
+    private static List<String> errors(ValidationResult result) {
+        return result.getMessages().stream()
+                .filter(m -> m.getSeverity() == ResultSeverityEnum.ERROR || m.getSeverity() == ResultSeverityEnum.FATAL)
+                .map(SingleValidationMessage::getMessage)
+                .collect(Collectors.toList());
+    }
+
+    private static List<String> messages(ValidationResult result) {
+        return result.getMessages().stream()
+                .map(m -> m.getSeverity() + " " + m.getLocationString() + " " + m.getMessage())
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * The distinct messages without locations: when the bundle profile slices the entries by profile, HAPI reports
+     * the messages of an entry found while matching it against the slices under the location of another entry, e.g.
+     * "Bundle.entry[4].resource.entry[0].resource.ofType(Patient)", and sometimes more than once.
+     */
+    private static Set<String> summary(ValidationResult result) {
+        return result.getMessages().stream()
+                .map(m -> m.getSeverity() + " " + m.getMessage())
+                .collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    @Test
+    void bundleLevelErrorIsReportedAfterValidBundle() {
+        HCXValidationCache cache = new HCXValidationCache(validator, 100, Duration.ofMinutes(5));
+        Bundle good = bundle(false);
+        Bundle bad = bundle(true);
+        assertEquals(errors(validator.validateWithResult(good)).size(), errors(cache.validateWithResult(good)).size());
+        assertEquals(1, errors(validator.validateWithResult(bad)).size());
+        assertEquals(1, errors(cache.validateWithResult(bad)).size());
+        assertTrue(cache.getHits() > 0);
+    }
+
+    @Test
+    void bundleLevelErrorIsNotReplayedForValidBundle() {
+        HCXValidationCache cache = new HCXValidationCache(validator, 100, Duration.ofMinutes(5));
+        Bundle good = bundle(false);
+        Bundle bad = bundle(true);
+        assertEquals(1, errors(cache.validateWithResult(bad)).size());
+        assertEquals(errors(validator.validateWithResult(good)), errors(cache.validateWithResult(good)));
+        assertTrue(errors(cache.validateWithResult(good)).isEmpty());
+        assertTrue(cache.getHits() > 0);
+    }
+
+    @Test
+    void referencesBetweenEntriesAreCheckedLikeTheValidator() {
+        HCXValidationCache cache = new HCXValidationCache(validator, 100, Duration.ofMinutes(5));
+        assertTrue(errors(cache.validateWithResult(bundle(false))).isEmpty());
+
+        Bundle dangling = bundle(false);
+        ((Patient) dangling.getEntry().get(1).getResource()).setManagingOrganization(new Reference("Organization/missing"));
+        assertEquals(messages(validator.validateWithResult(dangling)), messages(cache.validateWithResult(dangling)));
+        assertEquals(0, cache.getFullValidations());
+
+        Bundle urn = bundle(false);
+        ((Patient) urn.getEntry().get(1).getResource()).setManagingOrganization(new Reference("urn:uuid:6f5ef7b2-5a4b-4f7c-9d59-6b1c9c3a4b1e"));
+        assertEquals(messages(validator.validateWithResult(urn)), messages(cache.validateWithResult(urn)));
+        assertEquals(1, cache.getFullValidations());
+    }
+
+    @Test
+    void profiledClaimBundlesMatchFullValidation() {
+        FhirValidator profiled = HCXTestProfiles.validator();
+        HCXValidationCache cache = new HCXValidationCache(profiled, 1000, Duration.ofMinutes(5));
+        List<Bundle> bundles = HCXTestProfiles.claimBundles(7, 10);
+        for (Bundle bundle : bundles) {
+            ValidationResult full = profiled.validateWithResult(bundle);
+            ValidationResult cached = cache.validateWithResult(bundle);
+            assertEquals(full.isSuccessful(), cached.isSuccessful());
+            assertEquals(summary(full), summary(cached));
+        }
+        // the first bundle teaches the cache which messages the stand-in entries cause
+        assertEquals(1, cache.getFullValidations());
+        assertTrue(cache.getHits() > 0);
+    }
+
+    @Test
+    void brokenClaimBundleMatchesFullValidation() {
+        FhirValidator profiled = HCXTestProfiles.validator();
+        HCXValidationCache cache = new HCXValidationCache(profiled, 1000, Duration.ofMinutes(5));
+        List<Bundle> bundles = HCXTestProfiles.claimBundles(11, 2);
+        cache.validateWithResult(bundles.get(0));
+
+        Bundle broken = bundles.get(1);
+        for (Bundle.BundleEntryComponent entry : broken.getEntry()) {
+            if (entry.getResource() instanceof Patient) {
+                ((Patient) entry.getResource()).setGender(null);
+            }
+        }
+        ValidationResult full = profiled.validateWithResult(broken);
+        assertFalse(full.isSuccessful());
+        assertEquals(messages(full), messages(cache.validateWithResult(broken)));
+        assertEquals(2, cache.getFullValidations());
+    }
+
+    @Test
+    void unchangedEntriesAreNotValidatedAgain() {
+        HCXValidationCache cache = new HCXValidationCache(validator, 100, Duration.ofMinutes(5));
+        cache.validateWithResult(bundle(false));
+        assertEquals(2, cache.getMisses());
+        Bundle next = bundle(false);
+        next.setId("b2");
+        cache.validateWithResult(next);
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getHits());
+    }
+}
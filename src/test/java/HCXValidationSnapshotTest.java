@@ -0,0 +1,53 @@
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HCXValidationSnapshotTest {
+
+    @TempDir
+    Path directory;
+
+    private static TreeMap<String, String> resources(PrePopulatedValidationSupport support) {
+        TreeMap<String, String> resources = new TreeMap<>();
+        for (IBaseResource resource : HCXValidationSnapshot.resources(support)) {
+            resources.put(((StructureDefinition) resource).getUrl(), HCXFHIRSerializer.encode(resource));
+        }
+        return resources;
+    }
+
+    @Test
+    void buildGeneratesTheMissingSnapshots() {
+        List<IBaseResource> resources = HCXValidationSnapshot.resources(HCXTestProfiles.snapshot());
+        assertEquals(HCXTestProfiles.differentials().size(), resources.size());
+        for (IBaseResource resource : resources) {
+            StructureDefinition definition = (StructureDefinition) resource;
+            assertTrue(definition.hasSnapshot(), definition.getUrl());
+            assertTrue(definition.hasDifferential(), definition.getUrl());
+        }
+    }
+
+    @Test
+    void writtenSnapshotReadsBackUnchanged() throws Exception {
+        PrePopulatedValidationSupport snapshot = HCXTestProfiles.snapshot();
+        Path file = directory.resolve("validation-snapshot.ndjson.gz");
+        assertEquals(HCXTestProfiles.differentials().size(), HCXValidationSnapshot.write(snapshot, file));
+        assertFalse(Files.exists(directory.resolve("validation-snapshot.ndjson.gz.tmp")));
+
+        PrePopulatedValidationSupport read = HCXValidationSnapshot.read(file);
+        assertEquals(resources(snapshot), resources(read));
+        assertEquals(snapshot.fetchAllConformanceResources().size(), read.fetchAllConformanceResources().size());
+
+        // writing over an existing file replaces it
+        HCXValidationSnapshot.write(HCXValidationSnapshot.read(file), file);
+        assertEquals(resources(snapshot), resources(HCXValidationSnapshot.read(file)));
+    }
+}
@@ -0,0 +1,38 @@
+import ca.uhn.fhir.util.FhirTerser;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HCXWorkloadTest {
+
+    @Test
+    void requestsDoNotShareInstances() {
+        // the load driver encodes the bundles of different requests on different threads
+        HCXWorkload workload = HCXWorkload.builder(42).items(1, 8).build();
+        FhirTerser terser = HCXFHIRSerializer.getContext().newTerser();
+        Set<IBase> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (long index = 0; index < 50; index++) {
+            HCXWorkload.Request request = workload.request(index);
+            for (IBase element : terser.getAllPopulatedChildElementsOfType(request.getBundle(), IBase.class)) {
+                assertTrue(seen.add(element), () -> "Shared " + element + " in request " + request);
+            }
+        }
+    }
+
+    @Test
+    void requestsDependOnlyOnSeedAndIndex() {
+        HCXWorkload workload = HCXWorkload.builder(42).items(1, 8).build();
+        HCXWorkload same = HCXWorkload.builder(42).items(1, 8).build();
+        String seventh = HCXFHIRSerializer.encode(workload.request(7).getBundle());
+        for (long index = 10; index >= 0; index--) {
+            assertEquals(HCXFHIRSerializer.encode(workload.request(index).getBundle()), HCXFHIRSerializer.encode(same.request(index).getBundle()));
+        }
+        assertEquals(seventh, HCXFHIRSerializer.encode(workload.request(7).getBundle()));
+        assertNotEquals(seventh, HCXFHIRSerializer.encode(HCXWorkload.builder(43).items(1, 8).build().request(7).getBundle()));
+    }
+}